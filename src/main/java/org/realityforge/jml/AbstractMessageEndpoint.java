@@ -1,6 +1,14 @@
 package org.realityforge.jml;
 
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.jms.BytesMessage;
@@ -21,30 +29,73 @@ import javax.jms.Topic;
  * A base class that can be extended to receive messages from a specific source m_channel.
  * The m_channel can either be a queue or a topic in which case the m_channel name is prefixed
  * with "queue://" or "topic://" respectively. The messages delivered to the endpoint can be
- * be filtered by specifying a selector. The subscription can also be made durable for topic
- * channels by specifying the subscription name.
+ * be filtered by specifying a selector, and further filtered in the client by a
+ * {@link MessageFilter} that may inspect the message body. The subscription can also be made
+ * durable for topic channels by specifying the subscription name.
  *
  * <p>If an exception is raised during message processing then the endpoint will send a copy of
  * the message to the dead message queue if the dead message queue has been specified. Otherwise
  * the endpoint will rethrow the exception and rely on the message server to catch and log the
  * problem.</p>
+ *
+ * <p>If a retry policy has been specified then a message that fails processing with a retryable
+ * exception is processed again after a delay, and only routed to the dead message queue once the
+ * policy is exhausted. Failures reported without an exception are never retried. Delayed
+ * messages are held in memory and scheduled on the shared {@link TimingWheel} so the listener
+ * thread is not blocked while waiting. Messages awaiting a retry when the endpoint is stopped
+ * are routed to the dead message queue. Retries are
+ * at-most-once: the message has already been acknowledged when it is held for a retry, so it is
+ * lost if the process fails before the retry succeeds or the message reaches the dead message
+ * queue.</p>
+ *
+ * <p>Retries and tasks scheduled by subclasses are run on a thread owned by the endpoint, never on
+ * the timing wheel thread, and hold the endpoint lock while they run so that they do not overlap
+ * the delivery of a message. The session is therefore used from more than one thread, one at a
+ * time, which relies on the provider tolerating serialized use of a session from threads other
+ * than its delivery thread, as ActiveMQ does.</p>
+ *
+ * <p>The filter, input verifier, selector and dead message queue can be changed while the
+ * endpoint is running. Changes take effect between messages. A new selector or dead message
+ * queue is applied by creating the new consumer or producer before closing the old one so that
+ * consumption does not pause. The new consumer or producer is created on the calling thread
+ * while holding the endpoint lock, so, like retries, changing the selector or dead message queue
+ * of a running endpoint relies on the provider tolerating serialized use of the session from
+ * threads other than its delivery thread. JMS offers no way to run code on the delivery thread,
+ * so on providers that do not tolerate this the endpoint should be stopped, reconfigured and
+ * restarted instead.</p>
  */
 public abstract class AbstractMessageEndpoint
 {
   /// Logger used to log in the endpoint and subclasses.
   protected static final Logger LOG = Logger.getLogger( AbstractMessageEndpoint.class.getName() );
+  /// The highest latency in microseconds recorded with full precision by the endpoint histograms.
+  public static final long MAX_RECORDED_LATENCY = TimeUnit.HOURS.toMicros( 1 );
 
   private String _name;
   private String _subscriptionName;
-  private String _selector;
-  private MessageVerifier _inputVerifier;
-  private String _dmqName;
+  private volatile String _selector;
+  private volatile MessageFilter _filter;
+  private volatile MessageVerifier _inputVerifier;
+  private volatile String _dmqName;
   private ChannelSpec _source;
+  private RetryPolicy _retryPolicy;
+  private Message[] _warmUpMessages = new Message[ 0 ];
+  private int _warmUpIterations;
   private boolean _isFrozen;
 
+  private final Object _lock = new Object();
+  private final LinkedHashSet<RetryTask> _pendingRetries = new LinkedHashSet<RetryTask>();
+  private int _attemptCount = 1;
+  private boolean _retryScheduled;
+  private int _generation;
   private Session _session;
+  private ExecutorService _executor;
   private MessageConsumer _sourceConsumer;
   private MessageProducer _dmqProducer;
+  private Message _view;
+  private final LatencyHistogram _deliveryLatency = new LatencyHistogram( MAX_RECORDED_LATENCY, 2 );
+  private final LatencyHistogram _processingTime = new LatencyHistogram( MAX_RECORDED_LATENCY, 2 );
+  private final AtomicLong _completedCount = new AtomicLong();
 
   /** Specify the name of the endpoint. Used during debugging. */
   public final void setName( final String name )
@@ -91,21 +142,103 @@ public abstract class AbstractMessageEndpoint
     return _subscriptionName;
   }
 
+  /**
+   * Specify the selector. If the endpoint is running then a consumer with the new selector is
+   * created before the consumer with the old selector is closed. Messages prefetched by the old
+   * consumer are returned to a queue, but on a non-durable topic subscription a message that
+   * matches both selectors may be delivered twice. The selector of a running durable subscription
+   * can not be changed.
+   *
+   * @throws IllegalStateException if the new consumer can not be created.
+   */
+  public final void setSelector( final String selector )
+  {
+    final MessageConsumer oldConsumer;
+    synchronized( _lock )
+    {
+      if( null == _session )
+      {
+        _selector = selector;
+        return;
+      }
+      if( null != _subscriptionName )
+      {
+        throw invalid( "the selector of a durable subscription can not be changed while running" );
+      }
+      final MessageConsumer consumer;
+      try
+      {
+        consumer = createSourceConsumer( _source.create( _session ), selector );
+      }
+      catch( final JMSException e )
+      {
+        warning( "Creating consumer for selector " + selector, e );
+        throw new IllegalStateException( "Unable to create consumer for selector " + selector, e );
+      }
+      oldConsumer = _sourceConsumer;
+      _sourceConsumer = consumer;
+      _selector = selector;
+    }
+    closeConsumer( oldConsumer );
+  }
+
   /** Return the selector string if any. */
   public String getSelector()
   {
     return _selector;
   }
 
+  /**
+   * Specify the filter evaluated in the client for each message delivered to the endpoint.
+   * Unlike the selector, the filter may inspect the body of the message. Messages that do not
+   * match the filter are dropped before the input verifier is invoked, and are acknowledged in
+   * the same way as messages that are handled.
+   */
+  public final void setFilter( final MessageFilter filter )
+  {
+    synchronized( _lock )
+    {
+      _filter = filter;
+    }
+  }
+
+  /** Return the filter if any. */
+  public final MessageFilter getFilter()
+  {
+    return _filter;
+  }
+
   /**
    * Specify the name of the dead message queue. If an exception occurs during message processing
    * the endpoint will attempt to route the message to this queue. Otherwise it will raise an
-   * exception from handler and let the MOM middle-ware handle the failure.
+   * exception from handler and let the MOM middle-ware handle the failure. If the endpoint is
+   * running then the producer for the new queue is created before the old producer is closed.
    */
   public final void setDmqName( final String dmqName )
   {
-    ensureEditable();
-    _dmqName = dmqName;
+    final MessageProducer oldProducer;
+    synchronized( _lock )
+    {
+      if( null == _session )
+      {
+        _dmqName = dmqName;
+        return;
+      }
+      final MessageProducer producer;
+      try
+      {
+        producer = ( null != dmqName ) ? _session.createProducer( _session.createQueue( dmqName ) ) : null;
+      }
+      catch( final JMSException e )
+      {
+        warning( "Creating producer for dmq " + dmqName, e );
+        throw new IllegalStateException( "Unable to create producer for dmq " + dmqName, e );
+      }
+      oldProducer = _dmqProducer;
+      _dmqProducer = producer;
+      _dmqName = dmqName;
+    }
+    closeProducer( oldProducer, "Closing producer for dmq" );
   }
 
   /** Return the dead message queue name, if any. */
@@ -120,9 +253,45 @@ public abstract class AbstractMessageEndpoint
    * the message will not be passed onto the handleMessage method.
    */
   public final void setInputVerifier( final MessageVerifier inputVerifier )
+  {
+    synchronized( _lock )
+    {
+      _inputVerifier = inputVerifier;
+    }
+  }
+
+  /**
+   * Specify the policy used to retry messages that fail processing. If not specified then
+   * failed messages are immediately routed to the dead message queue.
+   */
+  public final void setRetryPolicy( final RetryPolicy retryPolicy )
+  {
+    ensureEditable();
+    _retryPolicy = retryPolicy;
+  }
+
+  /** Return the retry policy, if any. */
+  public final RetryPolicy getRetryPolicy()
+  {
+    return _retryPolicy;
+  }
+
+  /**
+   * Specify sample messages that are processed when the endpoint is started, before the
+   * consumer is created, so that verifiers, transformers and the JIT are warm when the first
+   * real message arrives. Each sample is passed through the filter, the input verifier and
+   * {@link #warmUp(Session, Message)} the specified number of times. Nothing is sent. Failures
+   * do not prevent the endpoint starting; they are counted and the first is logged at FINE.
+   *
+   * @param messages the sample messages.
+   * @param iterations the number of times each sample is processed.
+   */
+  public final void setWarmUpMessages( final Collection<? extends Message> messages, final int iterations )
   {
     ensureEditable();
-    _inputVerifier = inputVerifier;
+    if( iterations < 0 ) throw new IllegalArgumentException( "iterations must not be negative" );
+    _warmUpMessages = messages.toArray( new Message[ messages.size() ] );
+    _warmUpIterations = iterations;
   }
 
   /**
@@ -144,23 +313,17 @@ public abstract class AbstractMessageEndpoint
 
       _session = session;
 
+      warmUp();
+
       final Destination inChannel = _source.create( session );
       final Destination dmq = ( null != _dmqName ) ? _session.createQueue( _dmqName ) : null;
       _dmqProducer = ( null != dmq ) ? _session.createProducer( dmq ) : null;
 
       preSubscribe( session );
 
-      if( null != _subscriptionName )
-      {
-        _sourceConsumer = _session.createDurableSubscriber( (Topic)inChannel, _subscriptionName, _selector, true );
-      }
-      else
-      {
-        _sourceConsumer = _session.createConsumer( inChannel, _selector );
-      }
-      _sourceConsumer.setMessageListener( new EndpointMessageListener() );
+      _sourceConsumer = createSourceConsumer( inChannel, _selector );
     }
-    catch( final JMSException e )
+    catch( final Exception e )
     {
       _isFrozen = false;
       warning( "Error starting endpoint", e );
@@ -173,24 +336,22 @@ public abstract class AbstractMessageEndpoint
   public final void stop()
     throws Exception
   {
-    try
+    final MessageConsumer consumer;
+    synchronized( _lock )
     {
-      if( null != _sourceConsumer ) _sourceConsumer.close();
+      consumer = _sourceConsumer;
+      _sourceConsumer = null;
     }
-    catch( final JMSException e )
-    {
-      warning( "Closing consumer", e );
-    }
-    _sourceConsumer = null;
+    closeConsumer( consumer );
 
-    try
-    {
-      if( null != _dmqProducer ) _dmqProducer.close();
-    }
-    catch( final JMSException e )
+    synchronized( _lock )
     {
-      warning( "Closing producer for dmq", e );
+      _generation++;
+      if( null != _session ) postConsumerClose();
     }
+    flushPendingRetries();
+
+    closeProducer( _dmqProducer, "Closing producer for dmq" );
     _dmqProducer = null;
 
     preSessionClose();
@@ -203,11 +364,92 @@ public abstract class AbstractMessageEndpoint
     {
       warning( "Closing session", e );
     }
-    _session = null;
+    final ExecutorService executor;
+    synchronized( _lock )
+    {
+      _session = null;
+      executor = _executor;
+      _executor = null;
+    }
+    if( null != executor ) executor.shutdown();
 
     _isFrozen = false;
   }
 
+  /** Return true if the endpoint has been started and not yet stopped. */
+  public final boolean isStarted()
+  {
+    return null != _session;
+  }
+
+  /**
+   * Return the histogram of the time in microseconds between a message being sent, as recorded
+   * in the JMSTimestamp header, and the message being delivered to the endpoint. Messages without
+   * a timestamp are not recorded.
+   */
+  public final LatencyHistogram getDeliveryLatency()
+  {
+    return _deliveryLatency;
+  }
+
+  /**
+   * Return the histogram of the time in microseconds the endpoint spends processing each message,
+   * including filtering, verification and routing failures to the dead message queue. Each retry
+   * of a message is recorded as a separate value.
+   */
+  public final LatencyHistogram getProcessingTime()
+  {
+    return _processingTime;
+  }
+
+  /**
+   * Return the number of messages the endpoint has finished with, by handling them, dropping them
+   * because they do not match the filter or routing them to the dead message queue. A message that
+   * is retried is counted once, when it is finished with.
+   */
+  public final long getCompletedCount()
+  {
+    return _completedCount.get();
+  }
+
+  /** Return the session the endpoint is using, or null if the endpoint is not started. */
+  protected final Session getSession()
+  {
+    return _session;
+  }
+
+  /**
+   * Schedule a task to be run after the specified delay. The {@link TimingWheel} only signals
+   * that the delay has elapsed; the task is run on the endpoint thread with exclusive access to
+   * the session, and is discarded if the endpoint is stopped before it runs.
+   *
+   * @param task the task to run.
+   * @param delay the delay in milliseconds.
+   * @return the handle that can be used to cancel the task.
+   */
+  protected final TimingWheel.Timeout schedule( final Runnable task, final long delay )
+  {
+    final Runnable guarded = guard( task );
+    return TimingWheel.getDefault().schedule( new Runnable()
+    {
+      public void run()
+      {
+        submit( guarded );
+      }
+    }, delay, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Run a task as soon as possible on the endpoint thread with exclusive access to the session.
+   * The task is discarded if the endpoint is stopped before it runs.
+   *
+   * @param task the task to run.
+   */
+  protected final void execute( final Runnable task )
+  {
+    submit( guard( task ) );
+  }
+
   /**
    * Template method invoked prior to the endpoint subscribing to the input m_channel.
    *
@@ -219,6 +461,15 @@ public abstract class AbstractMessageEndpoint
   {
   }
 
+  /**
+   * Template method invoked during stop after the consumer has been closed and before the
+   * producer for the dead message queue is closed. Messages held by the endpoint can be
+   * routed to the dead message queue using {@link #handleFailure(Message, String, Throwable)}.
+   */
+  protected void postConsumerClose()
+  {
+  }
+
   /**
    * Template method invoked during stop just prior to session being closed.
    */
@@ -234,6 +485,20 @@ public abstract class AbstractMessageEndpoint
   {
   }
 
+  /**
+   * Template method invoked to process a sample message during warm up. Subclasses should
+   * exercise the same code paths as {@link #handleMessage(Session, Message)} without sending
+   * any messages.
+   *
+   * @param session the associated JMS session.
+   * @param message the sample message.
+   * @throws Exception if the sample fails processing. The exception is ignored.
+   */
+  protected void warmUp( final Session session, final Message message )
+    throws Exception
+  {
+  }
+
   /**
    * Method to override to handle the message.
    *
@@ -253,7 +518,32 @@ public abstract class AbstractMessageEndpoint
    */
   protected final void handleFailure( final Message inMessage, final String reason, final Throwable t )
   {
+    final Message message = MessageView.unwrap( inMessage );
     info( reason, t );
+    if( null != t && null != _retryPolicy && null != _session && _retryPolicy.shouldRetry( _attemptCount, t ) )
+    {
+      scheduleRetry( message, _attemptCount + 1 );
+      return;
+    }
+    sendToDMQ( message, reason, t );
+  }
+
+  /**
+   * Route the message to the dead message queue without retrying it. Used by subclasses when a
+   * message is rejected by a routing decision rather than a failure that may be transient.
+   *
+   * @param inMessage the message to route.
+   * @param reason a textual description of why the message was rejected.
+   * @throws IllegalStateException if there is no dead message queue or the message can not be sent to it.
+   */
+  protected final void sendToDMQ( final Message inMessage, final String reason )
+  {
+    info( reason, null );
+    sendToDMQ( MessageView.unwrap( inMessage ), reason, null );
+  }
+
+  private void sendToDMQ( final Message inMessage, final String reason, final Throwable t )
+  {
     if( null == _dmqProducer )
     {
       final String message = "Unable to handle message and no DMQ to send message to. Message: " + inMessage;
@@ -329,11 +619,259 @@ public abstract class AbstractMessageEndpoint
     }
   }
 
-  private void doMessage( final Message message )
+  /**
+   * Return the lock that is held while a message is processed. Configuration that can be
+   * changed while the endpoint is running should be changed while holding the lock so that
+   * the change takes effect between messages.
+   */
+  protected final Object getLock()
+  {
+    return _lock;
+  }
+
+  /** Close the producer if not null, logging rather than raising any error. */
+  protected final void closeProducer( final MessageProducer producer, final String description )
+  {
+    try
+    {
+      if( null != producer ) producer.close();
+    }
+    catch( final JMSException e )
+    {
+      warning( description, e );
+    }
+  }
+
+  private MessageConsumer createSourceConsumer( final Destination inChannel, final String selector )
+    throws JMSException
+  {
+    final MessageConsumer consumer;
+    if( null != _subscriptionName )
+    {
+      consumer = _session.createDurableSubscriber( (Topic)inChannel, _subscriptionName, selector, true );
+    }
+    else
+    {
+      consumer = _session.createConsumer( inChannel, selector );
+    }
+    consumer.setMessageListener( new EndpointMessageListener() );
+    return consumer;
+  }
+
+  private void closeConsumer( final MessageConsumer consumer )
+  {
+    try
+    {
+      if( null != consumer ) consumer.close();
+    }
+    catch( final JMSException e )
+    {
+      warning( "Closing consumer", e );
+    }
+  }
+
+  private void warmUp()
+  {
+    if( 0 == _warmUpIterations || 0 == _warmUpMessages.length ) return;
+    final long start = System.nanoTime();
+    int failures = 0;
+    for( int i = 0; i < _warmUpIterations; i++ )
+    {
+      for( final Message message : _warmUpMessages )
+      {
+        try
+        {
+          resetBody( message );
+          if( null != _filter ) _filter.accept( message );
+          if( null != _inputVerifier ) _inputVerifier.verifyMessage( message );
+          warmUp( _session, message );
+        }
+        catch( final Exception e )
+        {
+          if( 0 == failures && LOG.isLoggable( Level.FINE ) )
+          {
+            log( Level.FINE, "Warm up failed for sample message: " + message, e );
+          }
+          failures++;
+        }
+      }
+    }
+    if( LOG.isLoggable( Level.INFO ) )
+    {
+      info( "Warmed up with " + ( _warmUpIterations * _warmUpMessages.length ) + " sample messages (" +
+            failures + " failures) in " + TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) + "ms", null );
+    }
+  }
+
+  private void resetBody( final Message message )
+    throws JMSException
+  {
+    if( message instanceof BytesMessage ) ( (BytesMessage)message ).reset();
+    else if( message instanceof StreamMessage ) ( (StreamMessage)message ).reset();
+  }
+
+  private void scheduleRetry( final Message message, final int attemptCount )
+  {
+    final long delay = _retryPolicy.getDelay( attemptCount - 1 );
+    if( LOG.isLoggable( Level.FINE ) )
+    {
+      log( Level.FINE, "Scheduling attempt " + attemptCount + " in " + delay + "ms for message: " + message, null );
+    }
+    final RetryTask task = new RetryTask( message, attemptCount );
+    synchronized( _lock )
+    {
+      _retryScheduled = true;
+      _pendingRetries.add( task );
+      task._timeout = TimingWheel.getDefault().schedule( new Runnable()
+      {
+        public void run()
+        {
+          submit( task );
+        }
+      }, delay, TimeUnit.MILLISECONDS );
+    }
+  }
+
+  /** Return a task that runs the specified task only if the endpoint has not been stopped since. */
+  private Runnable guard( final Runnable task )
+  {
+    final int generation;
+    synchronized( _lock )
+    {
+      generation = _generation;
+    }
+    return new Runnable()
+    {
+      public void run()
+      {
+        synchronized( _lock )
+        {
+          if( generation == _generation && null != _session ) task.run();
+        }
+      }
+    };
+  }
+
+  /** Submit a task to the endpoint thread, creating the thread if required. */
+  private void submit( final Runnable task )
+  {
+    synchronized( _lock )
+    {
+      if( null == _session ) return;
+      if( null == _executor )
+      {
+        final String name = "Endpoint-" + _name;
+        _executor = Executors.newSingleThreadExecutor( new ThreadFactory()
+        {
+          public Thread newThread( final Runnable runnable )
+          {
+            final Thread thread = new Thread( runnable, name );
+            thread.setDaemon( true );
+            return thread;
+          }
+        } );
+      }
+      try
+      {
+        _executor.execute( task );
+      }
+      catch( final RejectedExecutionException ree )
+      {
+        // Executor is shutdown as the endpoint stops
+      }
+    }
+  }
+
+  private void flushPendingRetries()
+  {
+    synchronized( _lock )
+    {
+      final ArrayList<RetryTask> tasks = new ArrayList<RetryTask>( _pendingRetries );
+      _pendingRetries.clear();
+      for( final RetryTask task : tasks )
+      {
+        if( null != task._timeout ) task._timeout.cancel();
+        _attemptCount = task._attemptCount - 1;
+        try
+        {
+          sendToDMQ( task._message, "Endpoint stopped before message could be retried", null );
+        }
+        catch( final IllegalStateException ise )
+        {
+          // Already logged in sendToDMQ
+        }
+        _completedCount.incrementAndGet();
+      }
+      _attemptCount = 1;
+    }
+  }
+
+  private void doMessage( final Message message, final int attemptCount )
+  {
+    synchronized( _lock )
+    {
+      _attemptCount = attemptCount;
+      _retryScheduled = false;
+      final long start = System.nanoTime();
+      try
+      {
+        doMessage( message );
+      }
+      finally
+      {
+        _attemptCount = 1;
+        _processingTime.recordValue( ( System.nanoTime() - start ) / 1000 );
+        if( !_retryScheduled ) _completedCount.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Return the read-only view of the message that was passed to the filter and input verifier, so
+   * that later stages reuse any body they decoded. The message is returned if it is not the message
+   * currently being handled.
+   */
+  final Message viewOf( final Message message )
+  {
+    final Message view = _view;
+    return null != view && MessageView.unwrap( view ) == message ? view : message;
+  }
+
+  private void doMessage( final Message inMessage )
+  {
+    final Message message = MessageView.lazyView( inMessage );
+    _view = message;
+    try
+    {
+      doMessage( inMessage, message );
+    }
+    finally
+    {
+      _view = null;
+    }
+  }
+
+  private void doMessage( final Message inMessage, final Message message )
   {
     if( LOG.isLoggable( Level.FINE ) )
     {
-      log( Level.FINE, "Starting to process message: " + message, null );
+      log( Level.FINE, "Starting to process message: " + inMessage, null );
+    }
+    try
+    {
+      if( null != _filter && !_filter.accept( message ) )
+      {
+        if( LOG.isLoggable( Level.FINE ) )
+        {
+          log( Level.FINE, "Dropping message not matching filter: " + inMessage, null );
+        }
+        return;
+      }
+    }
+    catch( final Exception e )
+    {
+      handleFailure( message, "Error evaluating filter. Error: " + e, e );
+      return;
     }
     try
     {
@@ -346,7 +884,7 @@ public abstract class AbstractMessageEndpoint
     }
     try
     {
-      handleMessage( _session, message );
+      handleMessage( _session, inMessage );
     }
     catch( final Exception e )
     {
@@ -357,10 +895,11 @@ public abstract class AbstractMessageEndpoint
   private Message createMessageToSendToDMQ( final Message inMessage, final String reason )
     throws Exception
   {
-    final Message message = cloneMessageForDMQ( _session, inMessage );
+    final Message message = MessageCloner.cloneMessage( _session, inMessage );
     message.setStringProperty( "JMLMessageLink", _name );
     message.setStringProperty( "JMLFailureReason", reason );
     message.setStringProperty( "JMLSourceChannel", _source.toSpec() );
+    message.setIntProperty( "JMLAttemptCount", _attemptCount );
     if( null != _subscriptionName )
     {
       message.setStringProperty( "JMLInSubscriptionName", _subscriptionName );
@@ -379,59 +918,53 @@ public abstract class AbstractMessageEndpoint
     return message;
   }
 
-  private static Message cloneMessageForDMQ( final Session session, final Message from )
-    throws Exception
+  private class EndpointMessageListener implements MessageListener
   {
-    final Message to;
-    if( from instanceof TextMessage )
-    {
-      to = session.createTextMessage( ( (TextMessage)from ).getText() );
-    }
-    else if( from instanceof MapMessage )
+    public void onMessage( final Message message )
     {
-      final MapMessage fromMessage = (MapMessage)from;
-      final Enumeration names = fromMessage.getMapNames();
-      final MapMessage toMessage = session.createMapMessage();
-      while( names.hasMoreElements() )
+      try
       {
-        final String key = (String)names.nextElement();
-        toMessage.setObjectProperty( key, fromMessage.getObject( key ) );
+        final long timestamp = message.getJMSTimestamp();
+        if( 0 != timestamp )
+        {
+          _deliveryLatency.recordValue( ( System.currentTimeMillis() - timestamp ) * 1000 );
+        }
       }
-      to = toMessage;
-    }
-    else if( from instanceof BytesMessage )
-    {
-      final BytesMessage fromMessage = (BytesMessage)from;
-      final BytesMessage toMessage = session.createBytesMessage();
-      final long length = fromMessage.getBodyLength();
-      for( int i = 0; i < length; i++ )
+      catch( final JMSException e )
       {
-        toMessage.writeByte( fromMessage.readByte() );
+        warning( "Unable to read JMSTimestamp", e );
       }
-      to = toMessage;
-    }
-    else if( from instanceof ObjectMessage )
-    {
-      final ObjectMessage fromMessage = (ObjectMessage)from;
-      // Warning - this assumes that the object can be deserialized
-      // in the context of the link which may not be the case
-      to = session.createObjectMessage( fromMessage.getObject() );
-    }
-    else //assume
-    {
-      //Ignore body as unable to copy across StreamMessage or any custom message types
-      to = session.createMessage();
+      doMessage( message, 1 );
     }
-
-    MessageUtil.copyMessageHeaders( from, to );
-    return to;
   }
 
-  private class EndpointMessageListener implements MessageListener
+  private class RetryTask implements Runnable
   {
-    public void onMessage( final Message message )
+    private final Message _message;
+    private final int _attemptCount;
+    private TimingWheel.Timeout _timeout;
+
+    RetryTask( final Message message, final int attemptCount )
+    {
+      _message = message;
+      _attemptCount = attemptCount;
+    }
+
+    public void run()
     {
-      doMessage( message );
+      synchronized( _lock )
+      {
+        if( !_pendingRetries.remove( this ) ) return;
+        try
+        {
+          resetBody( _message );
+        }
+        catch( final JMSException e )
+        {
+          warning( "Unable to reset message body prior to retry", e );
+        }
+        doMessage( _message, _attemptCount );
+      }
     }
   }
 }
@@ -0,0 +1,203 @@
+package org.realityforge.jml;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A declarative description of a binary record as a sequence of named fields. Fields are
+ * either fixed size numbers or byte arrays, padding, or byte arrays prefixed by their length.
+ * All multi-byte values in the record use the byte order of the layout.
+ */
+public final class BinaryLayout
+{
+  /**
+   * The type of a field.
+   */
+  public enum Type
+  {
+    INT8( 1, true ),
+    UINT8( 1, true ),
+    INT16( 2, true ),
+    UINT16( 2, true ),
+    INT32( 4, true ),
+    UINT32( 4, true ),
+    INT64( 8, true ),
+    FLOAT32( 4, false ),
+    FLOAT64( 8, false ),
+    /// A fixed number of bytes.
+    BYTES( -1, false ),
+    /// A fixed number of bytes that are ignored when read and zero when written.
+    PADDING( -1, false ),
+    /// A number of bytes preceded by their length encoded as an unsigned integer.
+    VARIABLE_BYTES( -1, false );
+
+    private final int _size;
+    private final boolean _integral;
+
+    Type( final int size, final boolean integral )
+    {
+      _size = size;
+      _integral = integral;
+    }
+
+    /** Return the size of the type in bytes, or -1 if the size is specified by the field. */
+    public int getSize()
+    {
+      return _size;
+    }
+
+    public boolean isIntegral()
+    {
+      return _integral;
+    }
+
+    public boolean isNumeric()
+    {
+      return _size > 0;
+    }
+  }
+
+  /**
+   * A field in a layout.
+   */
+  public static final class Field
+  {
+    private final String _name;
+    private final Type _type;
+    private final int _size;
+    private final Type _lengthType;
+
+    Field( final String name, final Type type, final int size, final Type lengthType )
+    {
+      _name = name;
+      _type = type;
+      _size = size;
+      _lengthType = lengthType;
+    }
+
+    public String getName()
+    {
+      return _name;
+    }
+
+    public Type getType()
+    {
+      return _type;
+    }
+
+    /** Return the size of the field in bytes, or -1 if the field is variable length. */
+    public int getSize()
+    {
+      return _size;
+    }
+
+    /** Return the type of the length prefix of a variable length field. */
+    public Type getLengthType()
+    {
+      return _lengthType;
+    }
+
+    @Override
+    public String toString()
+    {
+      return _name + ":" + _type + ( -1 != _size && !_type.isNumeric() ? "[" + _size + "]" : "" );
+    }
+  }
+
+  private final ByteOrder _byteOrder;
+  private final List<Field> _fields = new ArrayList<Field>();
+  private int _paddingCount;
+
+  public BinaryLayout( final ByteOrder byteOrder )
+  {
+    if( null == byteOrder ) throw new NullPointerException( "byteOrder" );
+    _byteOrder = byteOrder;
+  }
+
+  public ByteOrder getByteOrder()
+  {
+    return _byteOrder;
+  }
+
+  public List<Field> getFields()
+  {
+    return Collections.unmodifiableList( _fields );
+  }
+
+  /**
+   * Return the index of the field with the specified name, or -1 if no such field exists.
+   */
+  public int indexOf( final String name )
+  {
+    for( int i = 0; i < _fields.size(); i++ )
+    {
+      if( _fields.get( i ).getName().equals( name ) ) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Return the size of the record in bytes, or -1 if the record contains variable length fields.
+   */
+  public int getRecordSize()
+  {
+    int size = 0;
+    for( final Field field : _fields )
+    {
+      if( -1 == field.getSize() ) return -1;
+      size += field.getSize();
+    }
+    return size;
+  }
+
+  /** Add a numeric field. */
+  public BinaryLayout addField( final String name, final Type type )
+  {
+    if( null == type ) throw new NullPointerException( "type" );
+    if( !type.isNumeric() ) throw new IllegalArgumentException( "Type " + type + " requires a size" );
+    return add( name, type, type.getSize(), null );
+  }
+
+  /** Add a field containing a fixed number of bytes. */
+  public BinaryLayout addBytesField( final String name, final int size )
+  {
+    if( size < 1 ) throw new IllegalArgumentException( "size must be at least 1" );
+    return add( name, Type.BYTES, size, null );
+  }
+
+  /** Add a field containing a variable number of bytes preceded by a length of the specified integral type. */
+  public BinaryLayout addVariableBytesField( final String name, final Type lengthType )
+  {
+    if( null == lengthType ) throw new NullPointerException( "lengthType" );
+    if( !lengthType.isIntegral() || 8 == lengthType.getSize() )
+    {
+      throw new IllegalArgumentException( "Invalid length type " + lengthType );
+    }
+    return add( name, Type.VARIABLE_BYTES, -1, lengthType );
+  }
+
+  /** Add bytes that are skipped when reading and zero filled when writing. */
+  public BinaryLayout addPadding( final int size )
+  {
+    if( size < 1 ) throw new IllegalArgumentException( "size must be at least 1" );
+    final String name = "$padding" + _paddingCount++;
+    _fields.add( new Field( name, Type.PADDING, size, null ) );
+    return this;
+  }
+
+  private BinaryLayout add( final String name, final Type type, final int size, final Type lengthType )
+  {
+    if( null == name ) throw new NullPointerException( "name" );
+    if( -1 != indexOf( name ) ) throw new IllegalArgumentException( "Duplicate field " + name );
+    _fields.add( new Field( name, type, size, lengthType ) );
+    return this;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "BinaryLayout[" + _byteOrder + ", " + _fields + "]";
+  }
+}
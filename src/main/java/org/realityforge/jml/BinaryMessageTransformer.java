@@ -0,0 +1,360 @@
+package org.realityforge.jml;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Map;
+import javax.jms.BytesMessage;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * Transformer that converts a BytesMessage containing a sequence of records in one
+ * {@link BinaryLayout} into a BytesMessage containing the same records in another layout.
+ * Fields in the output layout are copied from the input field with the same name or the
+ * name specified by the field mapping. Numeric fields are converted between widths,
+ * signedness and byte order and byte fields are truncated or zero padded.
+ *
+ * <p>The message body is read into and written from ByteBuffers that are reused by each
+ * thread, so once the buffers have grown to fit the largest message transforming a
+ * message allocates nothing beyond the outgoing message.</p>
+ */
+final class BinaryMessageTransformer
+  extends MessageTransformer
+{
+  private final BinaryLayout.Field[] _inputFields;
+  private final BinaryLayout.Field[] _outputFields;
+  private final int[] _sources;
+  private final ByteOrder _inputOrder;
+  private final ByteOrder _outputOrder;
+  private final ThreadLocal<Buffers> _buffers = new ThreadLocal<Buffers>()
+  {
+    @Override
+    protected Buffers initialValue()
+    {
+      return new Buffers( _inputFields.length );
+    }
+  };
+
+  BinaryMessageTransformer( final BinaryLayout input,
+                            final BinaryLayout output,
+                            final Map<String, String> fieldMapping )
+  {
+    if( null == input ) throw new NullPointerException( "input" );
+    if( null == output ) throw new NullPointerException( "output" );
+    if( null == fieldMapping ) throw new NullPointerException( "fieldMapping" );
+    final List<BinaryLayout.Field> inputFields = input.getFields();
+    final List<BinaryLayout.Field> outputFields = output.getFields();
+    if( inputFields.isEmpty() ) throw new IllegalArgumentException( "Input layout has no fields" );
+    _inputFields = inputFields.toArray( new BinaryLayout.Field[ inputFields.size() ] );
+    _outputFields = outputFields.toArray( new BinaryLayout.Field[ outputFields.size() ] );
+    _inputOrder = input.getByteOrder();
+    _outputOrder = output.getByteOrder();
+    _sources = new int[ _outputFields.length ];
+    for( int i = 0; i < _outputFields.length; i++ )
+    {
+      final BinaryLayout.Field field = _outputFields[ i ];
+      if( BinaryLayout.Type.PADDING == field.getType() )
+      {
+        _sources[ i ] = -1;
+        continue;
+      }
+      final String sourceName =
+        fieldMapping.containsKey( field.getName() ) ? fieldMapping.get( field.getName() ) : field.getName();
+      final int source = input.indexOf( sourceName );
+      if( -1 == source )
+      {
+        throw new IllegalArgumentException( "No input field " + sourceName + " for output field " + field );
+      }
+      final BinaryLayout.Field sourceField = _inputFields[ source ];
+      if( sourceField.getType().isNumeric() != field.getType().isNumeric() ||
+          BinaryLayout.Type.PADDING == sourceField.getType() )
+      {
+        throw new IllegalArgumentException( "Can not convert input field " + sourceField + " to " + field );
+      }
+      _sources[ i ] = source;
+    }
+  }
+
+  @Override
+  public Message transformMessage( final Session session, final Message message )
+    throws Exception
+  {
+    final BytesMessage bytesMessage = castToType( message, BytesMessage.class );
+    final Buffers buffers = _buffers.get();
+
+    bytesMessage.reset();
+    final int length = (int)bytesMessage.getBodyLength();
+    final ByteBuffer input = buffers.prepareInput( length, _inputOrder );
+    bytesMessage.readBytes( input.array(), length );
+    bytesMessage.reset();
+
+    buffers.prepareOutput( _outputOrder );
+    int recordStart = 0;
+    try
+    {
+      while( input.hasRemaining() )
+      {
+        recordStart = input.position();
+        readRecord( input, buffers );
+        writeRecord( message, buffers );
+      }
+    }
+    catch( final BufferUnderflowException bue )
+    {
+      throw exceptionFor( message, "contains a truncated record at offset " + recordStart, null );
+    }
+
+    final BytesMessage result = session.createBytesMessage();
+    result.writeBytes( buffers._output.array(), 0, buffers._output.position() );
+    copyMessageHeaders( message, result );
+    return result;
+  }
+
+  /**
+   * Record the offset and length of each input field in the current record.
+   */
+  private void readRecord( final ByteBuffer input, final Buffers buffers )
+  {
+    for( int i = 0; i < _inputFields.length; i++ )
+    {
+      final BinaryLayout.Field field = _inputFields[ i ];
+      final int length;
+      if( BinaryLayout.Type.VARIABLE_BYTES == field.getType() )
+      {
+        final BinaryLayout.Type lengthType = field.getLengthType();
+        ensureRemaining( input, lengthType.getSize() );
+        length = (int)readLong( input, lengthType, input.position() );
+        input.position( input.position() + lengthType.getSize() );
+        if( length < 0 ) throw new BufferUnderflowException();
+      }
+      else
+      {
+        length = field.getSize();
+      }
+      ensureRemaining( input, length );
+      buffers._offsets[ i ] = input.position();
+      buffers._lengths[ i ] = length;
+      input.position( input.position() + length );
+    }
+  }
+
+  private void writeRecord( final Message message, final Buffers buffers )
+    throws Exception
+  {
+    final ByteBuffer input = buffers._input;
+    for( int i = 0; i < _outputFields.length; i++ )
+    {
+      final BinaryLayout.Field field = _outputFields[ i ];
+      final BinaryLayout.Type type = field.getType();
+      final int source = _sources[ i ];
+      if( BinaryLayout.Type.PADDING == type )
+      {
+        fill( buffers.ensureOutput( field.getSize() ), field.getSize() );
+      }
+      else if( type.isNumeric() )
+      {
+        final BinaryLayout.Type sourceType = _inputFields[ source ].getType();
+        final int offset = buffers._offsets[ source ];
+        final ByteBuffer output = buffers.ensureOutput( type.getSize() );
+        if( type.isIntegral() && sourceType.isIntegral() )
+        {
+          writeLong( output, type, readLong( input, sourceType, offset ) );
+        }
+        else
+        {
+          writeDouble( output, type, readDouble( input, sourceType, offset ) );
+        }
+      }
+      else
+      {
+        final int offset = buffers._offsets[ source ];
+        final int length = buffers._lengths[ source ];
+        if( BinaryLayout.Type.VARIABLE_BYTES == type )
+        {
+          final BinaryLayout.Type lengthType = field.getLengthType();
+          if( length > maxLength( lengthType ) )
+          {
+            throw exceptionFor( message, "has field " + field.getName() + " too long for length type " + lengthType, null );
+          }
+          final ByteBuffer output = buffers.ensureOutput( lengthType.getSize() + length );
+          writeLong( output, lengthType, length );
+          output.put( input.array(), offset, length );
+        }
+        else
+        {
+          final int size = field.getSize();
+          final int count = Math.min( size, length );
+          final ByteBuffer output = buffers.ensureOutput( size );
+          output.put( input.array(), offset, count );
+          fill( output, size - count );
+        }
+      }
+    }
+  }
+
+  private static void ensureRemaining( final ByteBuffer buffer, final int length )
+  {
+    if( buffer.remaining() < length ) throw new BufferUnderflowException();
+  }
+
+  private static void fill( final ByteBuffer output, final int count )
+  {
+    for( int i = 0; i < count; i++ )
+    {
+      output.put( (byte)0 );
+    }
+  }
+
+  private static long maxLength( final BinaryLayout.Type lengthType )
+  {
+    switch( lengthType )
+    {
+      case INT8:
+        return Byte.MAX_VALUE;
+      case UINT8:
+        return 0xFF;
+      case INT16:
+        return Short.MAX_VALUE;
+      case UINT16:
+        return 0xFFFF;
+      default:
+        return Integer.MAX_VALUE;
+    }
+  }
+
+  private static long readLong( final ByteBuffer buffer, final BinaryLayout.Type type, final int offset )
+  {
+    switch( type )
+    {
+      case INT8:
+        return buffer.get( offset );
+      case UINT8:
+        return buffer.get( offset ) & 0xFF;
+      case INT16:
+        return buffer.getShort( offset );
+      case UINT16:
+        return buffer.getShort( offset ) & 0xFFFF;
+      case INT32:
+        return buffer.getInt( offset );
+      case UINT32:
+        return buffer.getInt( offset ) & 0xFFFFFFFFL;
+      case INT64:
+        return buffer.getLong( offset );
+      case FLOAT32:
+        return (long)buffer.getFloat( offset );
+      case FLOAT64:
+        return (long)buffer.getDouble( offset );
+      default:
+        throw new IllegalStateException( "Unexpected type " + type );
+    }
+  }
+
+  private static double readDouble( final ByteBuffer buffer, final BinaryLayout.Type type, final int offset )
+  {
+    switch( type )
+    {
+      case FLOAT32:
+        return buffer.getFloat( offset );
+      case FLOAT64:
+        return buffer.getDouble( offset );
+      default:
+        return readLong( buffer, type, offset );
+    }
+  }
+
+  private static void writeLong( final ByteBuffer buffer, final BinaryLayout.Type type, final long value )
+  {
+    switch( type )
+    {
+      case INT8:
+      case UINT8:
+        buffer.put( (byte)value );
+        break;
+      case INT16:
+      case UINT16:
+        buffer.putShort( (short)value );
+        break;
+      case INT32:
+      case UINT32:
+        buffer.putInt( (int)value );
+        break;
+      case INT64:
+        buffer.putLong( value );
+        break;
+      case FLOAT32:
+        buffer.putFloat( value );
+        break;
+      case FLOAT64:
+        buffer.putDouble( value );
+        break;
+      default:
+        throw new IllegalStateException( "Unexpected type " + type );
+    }
+  }
+
+  private static void writeDouble( final ByteBuffer buffer, final BinaryLayout.Type type, final double value )
+  {
+    switch( type )
+    {
+      case FLOAT32:
+        buffer.putFloat( (float)value );
+        break;
+      case FLOAT64:
+        buffer.putDouble( value );
+        break;
+      default:
+        writeLong( buffer, type, (long)value );
+    }
+  }
+
+  /**
+   * The buffers and field positions reused by a thread.
+   */
+  private static final class Buffers
+  {
+    private final int[] _offsets;
+    private final int[] _lengths;
+    private ByteBuffer _input = ByteBuffer.allocate( 1024 );
+    private ByteBuffer _output = ByteBuffer.allocate( 1024 );
+
+    Buffers( final int fieldCount )
+    {
+      _offsets = new int[ fieldCount ];
+      _lengths = new int[ fieldCount ];
+    }
+
+    ByteBuffer prepareInput( final int length, final ByteOrder order )
+    {
+      if( _input.capacity() < length ) _input = ByteBuffer.allocate( length );
+      _input.clear();
+      _input.limit( length );
+      _input.order( order );
+      return _input;
+    }
+
+    void prepareOutput( final ByteOrder order )
+    {
+      _output.clear();
+      _output.order( order );
+    }
+
+    /**
+     * Return the output buffer, growing it if it does not have room for the specified number of bytes.
+     */
+    ByteBuffer ensureOutput( final int length )
+    {
+      if( _output.remaining() < length )
+      {
+        final ByteBuffer output =
+          ByteBuffer.allocate( Math.max( _output.capacity() * 2, _output.position() + length ) );
+        output.order( _output.order() );
+        _output.flip();
+        output.put( _output );
+        _output = output;
+      }
+      return _output;
+    }
+  }
+}
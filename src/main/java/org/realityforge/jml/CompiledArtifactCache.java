@@ -0,0 +1,583 @@
+package org.realityforge.jml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.XMLConstants;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactoryConfigurationError;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+/**
+ * A cache of compiled schemas and stylesheets keyed by the URL they were loaded from.
+ * Compiled Schema and Templates objects are thread-safe and so a single compiled form can
+ * be shared by every verifier and transformer that uses the same URL. Concurrent requests
+ * for an artifact that is being compiled wait for the compilation rather than repeating it.
+ *
+ * <p>If last-modified checking is enabled then each lookup asks the URL for its last modified
+ * time and recompiles the artifact if it has changed since it was compiled.</p>
+ *
+ * <p>If a translet directory is specified then stylesheets are compiled ahead-of-time into
+ * XSLTC translets that are persisted in a subdirectory named by the SHA-1 hash of the
+ * stylesheet content. Later processes load the persisted translet rather than recompiling
+ * the stylesheet. The hash only covers the content of the stylesheet itself so the directory
+ * should be cleared when an included or imported stylesheet changes. If the JVM does not include
+ * XSLTC or does not export the XSLTC runtime to application classes, which is checked once per
+ * process, translets are neither persisted nor loaded and stylesheets are compiled in memory as
+ * normal. If a persisted translet can not be loaded it is recompiled.</p>
+ *
+ * <p>Instances of this class are thread-safe.</p>
+ */
+public final class CompiledArtifactCache
+{
+  /// Logger used to report problems with persisted translets.
+  static final Logger LOG = Logger.getLogger( CompiledArtifactCache.class.getName() );
+
+  private static final String XSLTC_FACTORY = "com.sun.org.apache.xalan.internal.xsltc.trax.TransformerFactoryImpl";
+  /// A class from each package of the XSLTC runtime that translets link against.
+  private static final String[] XSLTC_RUNTIME_CLASSES = new String[]{
+    "com.sun.org.apache.xalan.internal.xsltc.DOM",
+    "com.sun.org.apache.xalan.internal.xsltc.runtime.AbstractTranslet",
+    "com.sun.org.apache.xalan.internal.xsltc.dom.KeyIndex",
+    "com.sun.org.apache.xml.internal.dtm.DTMAxisIterator",
+    "com.sun.org.apache.xml.internal.serializer.SerializationHandler" };
+  private static final String TRANSLET_PREFIX = "Translet_";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final CompiledArtifactCache c_default = new CompiledArtifactCache();
+
+  private static Boolean c_transletsSupported;
+
+  private final ConcurrentHashMap<String, Entry<Schema>> _schemas = new ConcurrentHashMap<String, Entry<Schema>>();
+  private final ConcurrentHashMap<String, Entry<Templates>> _templates =
+    new ConcurrentHashMap<String, Entry<Templates>>();
+  private volatile boolean _checkLastModified;
+  private volatile File _transletDirectory;
+  private final AtomicLong _transletLoadCount = new AtomicLong();
+  private final AtomicLong _transletCompileCount = new AtomicLong();
+
+  /**
+   * Return the process-wide cache used by {@link MessageVerifier} and {@link MessageTransformer}.
+   */
+  public static CompiledArtifactCache getDefault()
+  {
+    return c_default;
+  }
+
+  /**
+   * Specify whether the last modified time of a URL is checked on each lookup.
+   */
+  public void setCheckLastModified( final boolean checkLastModified )
+  {
+    _checkLastModified = checkLastModified;
+  }
+
+  public boolean isCheckLastModified()
+  {
+    return _checkLastModified;
+  }
+
+  /**
+   * Specify the directory in which compiled translets are persisted. Null disables persistence.
+   */
+  public void setTransletDirectory( final File transletDirectory )
+  {
+    _transletDirectory = transletDirectory;
+  }
+
+  public File getTransletDirectory()
+  {
+    return _transletDirectory;
+  }
+
+  /** Return the number of translets loaded from the translet directory. */
+  public long getTransletLoadCount()
+  {
+    return _transletLoadCount.get();
+  }
+
+  /** Return the number of translets compiled and persisted to the translet directory. */
+  public long getTransletCompileCount()
+  {
+    return _transletCompileCount.get();
+  }
+
+  /**
+   * Return the schema in the specified schema language loaded from the url, compiling it if necessary.
+   */
+  public Schema getSchema( final String schemaLanguage, final URL url )
+    throws Exception
+  {
+    if( null == schemaLanguage ) throw new NullPointerException( "schemaLanguage" );
+    if( null == url ) throw new NullPointerException( "url" );
+    return lookup( _schemas, schemaLanguage + " " + url.toExternalForm(), url, new Callable<Schema>()
+    {
+      public Schema call()
+        throws Exception
+      {
+        return SchemaFactory.newInstance( schemaLanguage ).newSchema( url );
+      }
+    } );
+  }
+
+  /**
+   * Return the XSLT stylesheet loaded from the url, compiling it if necessary.
+   */
+  public Templates getTemplates( final URL url )
+    throws Exception
+  {
+    if( null == url ) throw new NullPointerException( "url" );
+    return lookup( _templates, url.toExternalForm(), url, new Callable<Templates>()
+    {
+      public Templates call()
+        throws Exception
+      {
+        final File transletDirectory = _transletDirectory;
+        if( null != transletDirectory && isTransletSupported() )
+        {
+          final Templates templates = getTranslet( transletDirectory, url );
+          if( null != templates ) return templates;
+        }
+        return TransformerFactory.newInstance().newTemplates( new StreamSource( url.toExternalForm() ) );
+      }
+    } );
+  }
+
+  /**
+   * Compile the specified XSD schemas and XSLT stylesheets in parallel.
+   *
+   * @param schemas the urls of the XSD schemas.
+   * @param stylesheets the urls of the XSLT stylesheets.
+   * @param parallelism the maximum number of artifacts compiled concurrently.
+   * @throws Exception the first exception raised while compiling an artifact, once all compilations complete.
+   */
+  public void preload( final Collection<URL> schemas, final Collection<URL> stylesheets, final int parallelism )
+    throws Exception
+  {
+    if( parallelism < 1 ) throw new IllegalArgumentException( "parallelism must be at least 1" );
+    final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for( final URL url : schemas )
+    {
+      tasks.add( new Callable<Object>()
+      {
+        public Object call()
+          throws Exception
+        {
+          return getSchema( XMLConstants.W3C_XML_SCHEMA_NS_URI, url );
+        }
+      } );
+    }
+    for( final URL url : stylesheets )
+    {
+      tasks.add( new Callable<Object>()
+      {
+        public Object call()
+          throws Exception
+        {
+          return getTemplates( url );
+        }
+      } );
+    }
+    if( tasks.isEmpty() ) return;
+
+    final ExecutorService executor = Executors.newFixedThreadPool( Math.min( parallelism, tasks.size() ) );
+    try
+    {
+      Exception failure = null;
+      for( final Future<Object> future : executor.invokeAll( tasks ) )
+      {
+        try
+        {
+          future.get();
+        }
+        catch( final ExecutionException ee )
+        {
+          if( null == failure ) failure = unwrap( ee );
+        }
+      }
+      if( null != failure ) throw failure;
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Remove all artifacts from the cache.
+   */
+  public void clear()
+  {
+    _schemas.clear();
+    _templates.clear();
+  }
+
+  private <T> T lookup( final ConcurrentHashMap<String, Entry<T>> cache,
+                        final String key,
+                        final URL url,
+                        final Callable<T> compiler )
+    throws Exception
+  {
+    Entry<T> entry = cache.get( key );
+    final long lastModified = _checkLastModified ? getLastModified( url ) : 0;
+    if( null != entry && _checkLastModified && 0 != lastModified && entry._lastModified != lastModified )
+    {
+      cache.remove( key, entry );
+      entry = null;
+    }
+    if( null == entry )
+    {
+      final Entry<T> candidate = new Entry<T>( compiler, lastModified );
+      entry = cache.putIfAbsent( key, candidate );
+      if( null == entry )
+      {
+        entry = candidate;
+        candidate._task.run();
+      }
+    }
+    try
+    {
+      return entry._task.get();
+    }
+    catch( final ExecutionException ee )
+    {
+      // Remove failed compilations so that a later lookup retries
+      cache.remove( key, entry );
+      throw unwrap( ee );
+    }
+  }
+
+  /**
+   * Return true if translets can be persisted and loaded by this JVM. Translets are defined by an
+   * application class loader and so can only be loaded if the XSLTC runtime is accessible to
+   * application classes. From Java 9 this requires the java.xml module to export the runtime,
+   * such as via --add-exports. The result is determined once and cached.
+   */
+  static synchronized boolean isTransletSupported()
+  {
+    if( null == c_transletsSupported )
+    {
+      c_transletsSupported = isXsltcRuntimeAccessible();
+      if( !c_transletsSupported )
+      {
+        LOG.info( "XSLTC runtime is not accessible to application classes. " +
+                  "Stylesheets will be compiled in memory rather than persisted as translets." );
+      }
+    }
+    return c_transletsSupported;
+  }
+
+  private static boolean isXsltcRuntimeAccessible()
+  {
+    final Class<?>[] runtime = new Class<?>[ XSLTC_RUNTIME_CLASSES.length ];
+    try
+    {
+      for( int i = 0; i < runtime.length; i++ )
+      {
+        runtime[ i ] = Class.forName( XSLTC_RUNTIME_CLASSES[ i ] );
+      }
+    }
+    catch( final ClassNotFoundException cnfe )
+    {
+      return false;
+    }
+    final Method getModule;
+    try
+    {
+      getModule = Class.class.getMethod( "getModule" );
+    }
+    catch( final NoSuchMethodException nsme )
+    {
+      // Prior to Java 9 every public class is accessible
+      return true;
+    }
+    try
+    {
+      final Class<?> moduleType = getModule.getReturnType();
+      final Method isExported = moduleType.getMethod( "isExported", String.class, moduleType );
+      final Object module = getModule.invoke( CompiledArtifactCache.class );
+      for( final Class<?> type : runtime )
+      {
+        if( !(Boolean)isExported.invoke( getModule.invoke( type ), type.getPackage().getName(), module ) )
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+    catch( final Exception e )
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Return the translet for the stylesheet, loading it from the translet directory if present
+   * and otherwise compiling and persisting it. Returns null if XSLTC is not available.
+   */
+  private Templates getTranslet( final File transletDirectory, final URL url )
+    throws Exception
+  {
+    final byte[] content = readContent( url );
+    final String hash = hash( content );
+    final File directory = new File( transletDirectory, hash );
+    if( directory.isDirectory() )
+    {
+      final Templates templates = loadTranslet( directory, url );
+      if( null != templates )
+      {
+        _transletLoadCount.incrementAndGet();
+        return templates;
+      }
+      delete( directory );
+    }
+    final Templates templates = compileTranslet( directory, hash, content, url );
+    if( null != templates ) _transletCompileCount.incrementAndGet();
+    return templates;
+  }
+
+  private static Templates loadTranslet( final File directory, final URL url )
+  {
+    final Thread thread = Thread.currentThread();
+    final ClassLoader contextClassLoader = thread.getContextClassLoader();
+    URLClassLoader classLoader = null;
+    try
+    {
+      final String transletName = findTransletName( directory );
+      if( null == transletName ) return null;
+      final TransformerFactory factory = newXsltcFactory();
+      if( null == factory ) return null;
+      factory.setAttribute( "use-classpath", Boolean.TRUE );
+      factory.setAttribute( "translet-name", transletName );
+      classLoader = new URLClassLoader( new URL[]{ directory.toURI().toURL() },
+                                        CompiledArtifactCache.class.getClassLoader() );
+      // XSLTC loads the translet class using the context class loader
+      thread.setContextClassLoader( classLoader );
+      final Templates templates = factory.newTemplates( new StreamSource( url.toExternalForm() ) );
+      // Linkage problems are only detected once the translet is instantiated
+      templates.newTransformer();
+      // Define the auxiliary classes now so that the class loader can be closed
+      defineClasses( classLoader, directory, "" );
+      return templates;
+    }
+    catch( final Throwable t )
+    {
+      LOG.log( Level.WARNING, "Unable to load translet for " + url + " from " + directory, t );
+      return null;
+    }
+    finally
+    {
+      thread.setContextClassLoader( contextClassLoader );
+      close( classLoader );
+    }
+  }
+
+  private static void defineClasses( final ClassLoader classLoader, final File directory, final String packagePrefix )
+    throws ClassNotFoundException
+  {
+    final File[] files = directory.listFiles();
+    if( null == files ) return;
+    for( final File file : files )
+    {
+      final String name = file.getName();
+      if( file.isDirectory() )
+      {
+        defineClasses( classLoader, file, packagePrefix + name + "." );
+      }
+      else if( name.endsWith( ".class" ) )
+      {
+        Class.forName( packagePrefix + name.substring( 0, name.length() - ".class".length() ), false, classLoader );
+      }
+    }
+  }
+
+  /** Release any files held open by the class loader. Classes it has already defined remain usable. */
+  private static void close( final ClassLoader classLoader )
+  {
+    // URLClassLoader is only Closeable from Java 7
+    if( classLoader instanceof Closeable )
+    {
+      try
+      {
+        ( (Closeable)classLoader ).close();
+      }
+      catch( final IOException ioe )
+      {
+        LOG.log( Level.FINE, "Unable to close translet class loader", ioe );
+      }
+    }
+  }
+
+  private static Templates compileTranslet( final File directory,
+                                            final String hash,
+                                            final byte[] content,
+                                            final URL url )
+    throws Exception
+  {
+    final TransformerFactory factory = newXsltcFactory();
+    if( null == factory ) return null;
+    // Compile into a temporary directory and rename so that other processes never see a partial translet
+    final File temp = new File( directory.getParentFile(), hash + "." + System.nanoTime() + ".tmp" );
+    try
+    {
+      factory.setAttribute( "generate-translet", Boolean.TRUE );
+      factory.setAttribute( "translet-name", TRANSLET_PREFIX + hash );
+      factory.setAttribute( "destination-directory", temp.getAbsolutePath() );
+    }
+    catch( final IllegalArgumentException iae )
+    {
+      return null;
+    }
+    final Templates templates =
+      factory.newTemplates( new StreamSource( new ByteArrayInputStream( content ), url.toExternalForm() ) );
+    if( !temp.renameTo( directory ) )
+    {
+      // Another process may have persisted the same translet concurrently
+      delete( temp );
+    }
+    return templates;
+  }
+
+  private static TransformerFactory newXsltcFactory()
+  {
+    try
+    {
+      return TransformerFactory.newInstance( XSLTC_FACTORY, null );
+    }
+    catch( final TransformerFactoryConfigurationError e )
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Return the name of the translet class in the directory. Auxiliary classes generated
+   * for large stylesheets contain a '$' in their name.
+   */
+  private static String findTransletName( final File directory )
+  {
+    final File[] files = directory.listFiles();
+    if( null == files ) return null;
+    for( final File file : files )
+    {
+      final String name = file.getName();
+      if( file.isDirectory() )
+      {
+        final String transletName = findTransletName( file );
+        if( null != transletName ) return transletName;
+      }
+      else if( name.endsWith( ".class" ) && -1 == name.indexOf( '$' ) )
+      {
+        return name.substring( 0, name.length() - ".class".length() );
+      }
+    }
+    return null;
+  }
+
+  private static byte[] readContent( final URL url )
+    throws IOException
+  {
+    final InputStream input = url.openStream();
+    try
+    {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[ 4096 ];
+      int count;
+      while( -1 != ( count = input.read( buffer ) ) )
+      {
+        output.write( buffer, 0, count );
+      }
+      return output.toByteArray();
+    }
+    finally
+    {
+      input.close();
+    }
+  }
+
+  private static String hash( final byte[] content )
+    throws Exception
+  {
+    final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( content );
+    final char[] chars = new char[ digest.length * 2 ];
+    for( int i = 0; i < digest.length; i++ )
+    {
+      chars[ i * 2 ] = HEX[ ( digest[ i ] >> 4 ) & 0xF ];
+      chars[ i * 2 + 1 ] = HEX[ digest[ i ] & 0xF ];
+    }
+    return new String( chars );
+  }
+
+  private static void delete( final File file )
+  {
+    final File[] children = file.listFiles();
+    if( null != children )
+    {
+      for( final File child : children )
+      {
+        delete( child );
+      }
+    }
+    if( !file.delete() ) file.deleteOnExit();
+  }
+
+  private static long getLastModified( final URL url )
+    throws Exception
+  {
+    final URLConnection connection = url.openConnection();
+    final long lastModified = connection.getLastModified();
+    try
+    {
+      connection.getInputStream().close();
+    }
+    catch( final IOException ioe )
+    {
+      // Ignored as only opened to release resources held by connection
+    }
+    return lastModified;
+  }
+
+  private static Exception unwrap( final ExecutionException ee )
+  {
+    final Throwable cause = ee.getCause();
+    if( cause instanceof Exception ) return (Exception)cause;
+    else if( cause instanceof Error ) throw (Error)cause;
+    else return ee;
+  }
+
+  private static final class Entry<T>
+  {
+    private final FutureTask<T> _task;
+    private final long _lastModified;
+
+    Entry( final Callable<T> compiler, final long lastModified )
+    {
+      _task = new FutureTask<T>( compiler );
+      _lastModified = lastModified;
+    }
+  }
+}
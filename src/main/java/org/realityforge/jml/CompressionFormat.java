@@ -0,0 +1,36 @@
+package org.realityforge.jml;
+
+/**
+ * The format of a message body compressed by a transformer created by
+ * {@link MessageTransformer#newCompressingTransformer(CompressionFormat, int)}.
+ */
+public enum CompressionFormat
+{
+  /// The zlib format described in RFC 1950.
+  DEFLATE( "deflate" ),
+  /// The gzip format described in RFC 1952.
+  GZIP( "gzip" );
+
+  private final String _propertyValue;
+
+  CompressionFormat( final String propertyValue )
+  {
+    _propertyValue = propertyValue;
+  }
+
+  /** Return the value of the property used to mark messages compressed in this format. */
+  public String getPropertyValue()
+  {
+    return _propertyValue;
+  }
+
+  /** Return the format with the specified property value or null if there is no such format. */
+  public static CompressionFormat forPropertyValue( final String propertyValue )
+  {
+    for( final CompressionFormat format : values() )
+    {
+      if( format._propertyValue.equals( propertyValue ) ) return format;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,387 @@
+package org.realityforge.jml;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Replays messages from a dead message queue back into the channels they were routed from
+ * or to. Messages are selected using the diagnostic properties added by
+ * {@link AbstractMessageEndpoint} when the message was sent to the dead message queue and
+ * may be filtered by the name of the endpoint and by the failure reason. The diagnostic
+ * properties are stripped before the message is re-sent.
+ *
+ * <p>Messages are replayed in batches, each of which is committed as a single transaction
+ * so the session supplied to {@link #replay(Session)} must be transacted. The rate at which
+ * messages are replayed can be limited to avoid overwhelming the endpoints. The rate is enforced
+ * per message, so a batch is spread over the time its messages are permitted to take and the
+ * transaction remains open for that time.</p>
+ */
+public final class DeadMessageReplayer
+{
+  /// Logger used to report progress.
+  static final Logger LOG = Logger.getLogger( DeadMessageReplayer.class.getName() );
+
+  /// The prefix of properties added to messages when routed to the dead message queue.
+  public static final String DIAGNOSTIC_PROPERTY_PREFIX = "JML";
+
+  /**
+   * The channel to which messages are replayed.
+   */
+  public enum Target
+  {
+    /// The channel the endpoint consumed the message from.
+    SOURCE( "JMLSourceChannel" ),
+    /// The channel the link would have sent the message to.
+    DESTINATION( "JMLDestinationChannel" );
+
+    private final String _propertyName;
+
+    Target( final String propertyName )
+    {
+      _propertyName = propertyName;
+    }
+
+    public String getPropertyName()
+    {
+      return _propertyName;
+    }
+  }
+
+  /**
+   * Listener notified after each batch is committed.
+   */
+  public interface ProgressListener
+  {
+    void onProgress( Progress progress );
+  }
+
+  /**
+   * Statistics describing a replay.
+   */
+  public static final class Progress
+  {
+    private final long _startTime = System.currentTimeMillis();
+    private int _messageCount;
+    private int _batchCount;
+    private long _endTime;
+
+    /** Return the number of messages replayed. */
+    public int getMessageCount()
+    {
+      return _messageCount;
+    }
+
+    /** Return the number of batches committed. */
+    public int getBatchCount()
+    {
+      return _batchCount;
+    }
+
+    /** Return the time in milliseconds since the replay started, or the duration of a completed replay. */
+    public long getElapsedTime()
+    {
+      return ( 0 != _endTime ? _endTime : System.currentTimeMillis() ) - _startTime;
+    }
+
+    /** Return the number of messages replayed per second. */
+    public double getThroughput()
+    {
+      final long elapsed = getElapsedTime();
+      return 0 == elapsed ? _messageCount * 1000.0 : _messageCount * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "Replayed " + _messageCount + " messages in " + _batchCount + " batches over " +
+             getElapsedTime() + "ms (" + (long)getThroughput() + " messages/s)";
+    }
+  }
+
+  private String _dmqName;
+  private String _linkName;
+  private String _failureReasonPattern;
+  private Target _target = Target.SOURCE;
+  private int _batchSize = 100;
+  private double _maxRate;
+  private int _maxMessages;
+  private long _receiveTimeout = 1000;
+  private ProgressListener _progressListener;
+
+  /** Specify the name of the dead message queue to replay messages from. */
+  public void setDmqName( final String dmqName )
+  {
+    _dmqName = dmqName;
+  }
+
+  public String getDmqName()
+  {
+    return _dmqName;
+  }
+
+  /** Only replay messages routed to the dead message queue by the endpoint with the specified name. */
+  public void setLinkName( final String linkName )
+  {
+    _linkName = linkName;
+  }
+
+  public String getLinkName()
+  {
+    return _linkName;
+  }
+
+  /**
+   * Only replay messages with a failure reason matching the specified pattern.
+   * The pattern uses the syntax of the selector LIKE operator.
+   */
+  public void setFailureReasonPattern( final String failureReasonPattern )
+  {
+    _failureReasonPattern = failureReasonPattern;
+  }
+
+  public String getFailureReasonPattern()
+  {
+    return _failureReasonPattern;
+  }
+
+  /** Specify whether messages are replayed into their source or destination channel. */
+  public void setTarget( final Target target )
+  {
+    if( null == target ) throw new NullPointerException( "target" );
+    _target = target;
+  }
+
+  public Target getTarget()
+  {
+    return _target;
+  }
+
+  /** Specify the number of messages committed in each transaction. */
+  public void setBatchSize( final int batchSize )
+  {
+    if( batchSize < 1 ) throw new IllegalArgumentException( "batchSize must be at least 1" );
+    _batchSize = batchSize;
+  }
+
+  public int getBatchSize()
+  {
+    return _batchSize;
+  }
+
+  /** Specify the maximum number of messages replayed per second. Zero means unlimited. */
+  public void setMaxRate( final double maxRate )
+  {
+    if( maxRate < 0 ) throw new IllegalArgumentException( "maxRate must not be negative" );
+    _maxRate = maxRate;
+  }
+
+  public double getMaxRate()
+  {
+    return _maxRate;
+  }
+
+  /** Specify the maximum number of messages to replay. Zero means all matching messages. */
+  public void setMaxMessages( final int maxMessages )
+  {
+    if( maxMessages < 0 ) throw new IllegalArgumentException( "maxMessages must not be negative" );
+    _maxMessages = maxMessages;
+  }
+
+  public int getMaxMessages()
+  {
+    return _maxMessages;
+  }
+
+  /**
+   * Specify the time in milliseconds to wait for a message before the dead message
+   * queue is considered drained.
+   */
+  public void setReceiveTimeout( final long receiveTimeout )
+  {
+    if( receiveTimeout < 1 ) throw new IllegalArgumentException( "receiveTimeout must be positive" );
+    _receiveTimeout = receiveTimeout;
+  }
+
+  public long getReceiveTimeout()
+  {
+    return _receiveTimeout;
+  }
+
+  /** Specify the listener notified of progress after each batch. */
+  public void setProgressListener( final ProgressListener progressListener )
+  {
+    _progressListener = progressListener;
+  }
+
+  /**
+   * Return the selector used to select messages from the dead message queue.
+   */
+  public String getSelector()
+  {
+    final StringBuilder sb = new StringBuilder();
+    sb.append( _target.getPropertyName() ).append( " IS NOT NULL" );
+    if( null != _linkName )
+    {
+      sb.append( " AND JMLMessageLink = " ).append( quote( _linkName ) );
+    }
+    if( null != _failureReasonPattern )
+    {
+      sb.append( " AND JMLFailureReason LIKE " ).append( quote( _failureReasonPattern ) );
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Replay the matching messages until the dead message queue is drained or the maximum
+   * number of messages has been replayed.
+   *
+   * @param session the transacted session used to consume and send messages.
+   * @return the statistics describing the replay.
+   * @throws Exception if there is a problem replaying messages. The current batch is rolled back.
+   */
+  public Progress replay( final Session session )
+    throws Exception
+  {
+    if( null == session ) throw new NullPointerException( "session" );
+    if( null == _dmqName ) throw new IllegalStateException( "dmqName not specified" );
+    if( !session.getTransacted() ) throw new IllegalStateException( "session must be transacted" );
+
+    final Progress progress = new Progress();
+    final HashMap<String, MessageProducer> producers = new HashMap<String, MessageProducer>();
+    final MessageConsumer consumer = session.createConsumer( session.createQueue( _dmqName ), getSelector() );
+    try
+    {
+      boolean drained = false;
+      while( !drained && !isComplete( progress ) )
+      {
+        int count = 0;
+        try
+        {
+          while( count < _batchSize && !isComplete( progress, count ) )
+          {
+            final Message message = consumer.receive( _receiveTimeout );
+            if( null == message )
+            {
+              drained = true;
+              break;
+            }
+            resend( session, producers, message );
+            count++;
+            throttle( progress, count );
+          }
+          session.commit();
+        }
+        catch( final Exception e )
+        {
+          session.rollback();
+          throw e;
+        }
+        if( 0 != count )
+        {
+          progress._messageCount += count;
+          progress._batchCount++;
+          reportProgress( progress );
+        }
+      }
+    }
+    finally
+    {
+      progress._endTime = System.currentTimeMillis();
+      close( consumer, producers );
+    }
+    if( LOG.isLoggable( Level.INFO ) )
+    {
+      LOG.info( "Completed replay from " + _dmqName + ". " + progress );
+    }
+    return progress;
+  }
+
+  private boolean isComplete( final Progress progress )
+  {
+    return isComplete( progress, 0 );
+  }
+
+  private boolean isComplete( final Progress progress, final int pending )
+  {
+    return 0 != _maxMessages && progress._messageCount + pending >= _maxMessages;
+  }
+
+  private void resend( final Session session,
+                       final HashMap<String, MessageProducer> producers,
+                       final Message message )
+    throws Exception
+  {
+    final String channel = message.getStringProperty( _target.getPropertyName() );
+    MessageProducer producer = producers.get( channel );
+    if( null == producer )
+    {
+      producer = session.createProducer( ChannelSpec.parseChannelSpec( channel ).create( session ) );
+      producers.put( channel, producer );
+    }
+    final Message output = MessageCloner.cloneMessage( session, message );
+    output.clearProperties();
+    final Enumeration names = message.getPropertyNames();
+    while( names.hasMoreElements() )
+    {
+      final String name = (String)names.nextElement();
+      if( !name.startsWith( DIAGNOSTIC_PROPERTY_PREFIX ) )
+      {
+        output.setObjectProperty( name, message.getObjectProperty( name ) );
+      }
+    }
+    producer.send( output, output.getJMSDeliveryMode(), output.getJMSPriority(), output.getJMSExpiration() );
+  }
+
+  private void reportProgress( final Progress progress )
+  {
+    if( LOG.isLoggable( Level.FINE ) )
+    {
+      LOG.fine( "Replaying from " + _dmqName + ". " + progress );
+    }
+    if( null != _progressListener ) _progressListener.onProgress( progress );
+  }
+
+  private void throttle( final Progress progress, final int pending )
+    throws InterruptedException
+  {
+    if( 0 == _maxRate ) return;
+    final long expected = (long)( ( progress._messageCount + pending ) * 1000 / _maxRate );
+    final long delay = expected - progress.getElapsedTime();
+    if( delay > 0 ) Thread.sleep( delay );
+  }
+
+  private static void close( final MessageConsumer consumer, final HashMap<String, MessageProducer> producers )
+  {
+    try
+    {
+      consumer.close();
+    }
+    catch( final JMSException e )
+    {
+      LOG.log( Level.WARNING, "Closing consumer", e );
+    }
+    for( final MessageProducer producer : producers.values() )
+    {
+      try
+      {
+        producer.close();
+      }
+      catch( final JMSException e )
+      {
+        LOG.log( Level.WARNING, "Closing producer", e );
+      }
+    }
+  }
+
+  private static String quote( final String value )
+  {
+    return "'" + value.replace( "'", "''" ) + "'";
+  }
+}
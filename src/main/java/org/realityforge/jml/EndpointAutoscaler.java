@@ -0,0 +1,374 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+
+/**
+ * Scales the number of endpoints consuming from a queue between a minimum and a maximum based
+ * on the backlog of the queue. Endpoints are created by a factory and each is started with its
+ * own session on the supplied connection, so each endpoint adds a concurrent consumer.
+ *
+ * <p>At every sample interval the backlog is sampled by browsing the source queue, using the
+ * selector of the endpoints and counting at most the browse limit messages, and the throughput
+ * is measured as the number of messages completed by all the endpoints during the interval, as
+ * reported by {@link AbstractMessageEndpoint#getCompletedCount()}. Messages dropped by the filter
+ * are counted as they drain the backlog, while retry attempts are not counted until the message
+ * is completed.
+ * The backlog divided by the throughput estimates the time required to drain the queue. If the
+ * estimate exceeds the high drain time for the configured number of consecutive samples then an
+ * endpoint is added, and if it is below the low drain time for the configured number of
+ * consecutive samples then the most recently added endpoint is stopped. Requiring consecutive
+ * samples and separate thresholds avoids oscillating in response to bursts.</p>
+ *
+ * <p>Messages already prefetched by a consumer are not redistributed to new consumers, so the
+ * connection should be configured with a small prefetch for scaling up to take effect quickly.</p>
+ */
+public final class EndpointAutoscaler
+{
+  /// Logger used to log in the autoscaler.
+  static final Logger LOG = Logger.getLogger( EndpointAutoscaler.class.getName() );
+
+  /**
+   * Factory used to create the endpoints. Every endpoint must consume from the same queue
+   * with the same selector.
+   */
+  public interface EndpointFactory
+  {
+    /** Create an unstarted endpoint. The index is unique among the active endpoints. */
+    AbstractMessageEndpoint createEndpoint( int index )
+      throws Exception;
+  }
+
+  private final Connection _connection;
+  private final EndpointFactory _factory;
+  private final List<AbstractMessageEndpoint> _endpoints = new ArrayList<AbstractMessageEndpoint>();
+  private int _minEndpoints = 1;
+  private int _maxEndpoints = Runtime.getRuntime().availableProcessors();
+  private long _sampleInterval = 1000;
+  private long _lowDrainTime = 1000;
+  private long _highDrainTime = 5000;
+  private int _scaleUpSamples = 2;
+  private int _scaleDownSamples = 5;
+  private int _browseLimit = 10000;
+  private boolean _transacted;
+  private int _acknowledgeMode = Session.AUTO_ACKNOWLEDGE;
+
+  private ScheduledExecutorService _executor;
+  private Session _browserSession;
+  private Queue _queue;
+  private String _selector;
+  private int _scaleUpCount;
+  private int _scaleDownCount;
+  private long _lastCompleted;
+  private volatile int _backlog;
+  private volatile double _throughput;
+  private volatile int _endpointCount;
+
+  public EndpointAutoscaler( final Connection connection, final EndpointFactory factory )
+  {
+    if( null == connection ) throw new NullPointerException( "connection" );
+    if( null == factory ) throw new NullPointerException( "factory" );
+    _connection = connection;
+    _factory = factory;
+  }
+
+  /** Specify the minimum and maximum number of endpoints. */
+  public void setEndpointBounds( final int minEndpoints, final int maxEndpoints )
+  {
+    ensureEditable();
+    if( minEndpoints < 1 ) throw new IllegalArgumentException( "minEndpoints must be at least 1" );
+    if( maxEndpoints < minEndpoints ) throw new IllegalArgumentException( "maxEndpoints must be at least minEndpoints" );
+    _minEndpoints = minEndpoints;
+    _maxEndpoints = maxEndpoints;
+  }
+
+  /** Specify the time in milliseconds between samples of the backlog. */
+  public void setSampleInterval( final long sampleInterval )
+  {
+    ensureEditable();
+    if( sampleInterval < 1 ) throw new IllegalArgumentException( "sampleInterval must be positive" );
+    _sampleInterval = sampleInterval;
+  }
+
+  /**
+   * Specify the estimated drain times in milliseconds below which the endpoints are scaled
+   * down and above which they are scaled up.
+   */
+  public void setDrainTimeThresholds( final long lowDrainTime, final long highDrainTime )
+  {
+    ensureEditable();
+    if( lowDrainTime < 0 || highDrainTime <= lowDrainTime )
+    {
+      throw new IllegalArgumentException( "highDrainTime must be greater than lowDrainTime" );
+    }
+    _lowDrainTime = lowDrainTime;
+    _highDrainTime = highDrainTime;
+  }
+
+  /** Specify the number of consecutive samples required before scaling up or down. */
+  public void setHysteresis( final int scaleUpSamples, final int scaleDownSamples )
+  {
+    ensureEditable();
+    if( scaleUpSamples < 1 || scaleDownSamples < 1 ) throw new IllegalArgumentException( "samples must be at least 1" );
+    _scaleUpSamples = scaleUpSamples;
+    _scaleDownSamples = scaleDownSamples;
+  }
+
+  /** Specify the maximum number of messages counted when browsing the queue. */
+  public void setBrowseLimit( final int browseLimit )
+  {
+    ensureEditable();
+    if( browseLimit < 1 ) throw new IllegalArgumentException( "browseLimit must be at least 1" );
+    _browseLimit = browseLimit;
+  }
+
+  /** Specify the transacted flag and acknowledge mode of the sessions created for endpoints. */
+  public void setSessionMode( final boolean transacted, final int acknowledgeMode )
+  {
+    ensureEditable();
+    _transacted = transacted;
+    _acknowledgeMode = acknowledgeMode;
+  }
+
+  public boolean isStarted()
+  {
+    return null != _executor;
+  }
+
+  /** Return the number of active endpoints. */
+  public int getEndpointCount()
+  {
+    return _endpointCount;
+  }
+
+  /** Return the backlog at the last sample. */
+  public int getBacklog()
+  {
+    return _backlog;
+  }
+
+  /** Return the number of messages per second completed by all endpoints during the last sample interval. */
+  public double getThroughput()
+  {
+    return _throughput;
+  }
+
+  /**
+   * Start the minimum number of endpoints and begin sampling the backlog.
+   *
+   * @throws Exception if the endpoints can not be created or started.
+   */
+  public synchronized void start()
+    throws Exception
+  {
+    if( isStarted() ) throw new IllegalStateException( "Autoscaler already started" );
+    try
+    {
+      while( _endpoints.size() < _minEndpoints )
+      {
+        addEndpoint();
+      }
+      final AbstractMessageEndpoint endpoint = _endpoints.get( 0 );
+      if( endpoint.getSource().isTopic() ) throw new IllegalStateException( "Endpoints must consume from a queue" );
+      _browserSession = _connection.createSession( false, Session.AUTO_ACKNOWLEDGE );
+      _queue = (Queue)endpoint.getSource().create( _browserSession );
+      _selector = endpoint.getSelector();
+    }
+    catch( final Exception e )
+    {
+      LOG.log( Level.WARNING, "Error starting autoscaler", e );
+      stopEndpoints();
+      closeBrowserSession();
+      throw e;
+    }
+    _executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+    {
+      public Thread newThread( final Runnable runnable )
+      {
+        final Thread thread = new Thread( runnable, "EndpointAutoscaler" );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+    _executor.scheduleWithFixedDelay( new Runnable()
+    {
+      public void run()
+      {
+        sample();
+      }
+    }, _sampleInterval, _sampleInterval, TimeUnit.MILLISECONDS );
+  }
+
+  /** Stop sampling and stop all the endpoints. */
+  public void stop()
+    throws InterruptedException
+  {
+    final ScheduledExecutorService executor;
+    synchronized( this )
+    {
+      executor = _executor;
+      _executor = null;
+    }
+    if( null != executor )
+    {
+      executor.shutdown();
+      executor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+    }
+    synchronized( this )
+    {
+      stopEndpoints();
+      closeBrowserSession();
+      _scaleUpCount = 0;
+      _scaleDownCount = 0;
+      _lastCompleted = 0;
+    }
+  }
+
+  private synchronized void sample()
+  {
+    if( !isStarted() ) return;
+    try
+    {
+      _backlog = browse();
+    }
+    catch( final JMSException e )
+    {
+      LOG.log( Level.WARNING, "Error browsing queue " + _queue, e );
+      return;
+    }
+    long total = 0;
+    for( final AbstractMessageEndpoint endpoint : _endpoints )
+    {
+      total += endpoint.getCompletedCount();
+    }
+    final long completed = Math.max( 0, total - _lastCompleted );
+    _lastCompleted = total;
+    _throughput = completed * 1000.0 / _sampleInterval;
+
+    final double drainTime =
+      0 == _backlog ? 0 : 0 == completed ? Double.POSITIVE_INFINITY : _backlog * 1000.0 / _throughput;
+    _scaleUpCount = drainTime > _highDrainTime ? _scaleUpCount + 1 : 0;
+    _scaleDownCount = drainTime < _lowDrainTime ? _scaleDownCount + 1 : 0;
+    try
+    {
+      if( _scaleUpCount >= _scaleUpSamples && _endpoints.size() < _maxEndpoints )
+      {
+        _scaleUpCount = 0;
+        addEndpoint();
+        log( "Scaled up" );
+      }
+      else if( _scaleDownCount >= _scaleDownSamples && _endpoints.size() > _minEndpoints )
+      {
+        _scaleDownCount = 0;
+        final AbstractMessageEndpoint endpoint = _endpoints.remove( _endpoints.size() - 1 );
+        stopEndpoint( endpoint );
+        _lastCompleted -= endpoint.getCompletedCount();
+        _endpointCount = _endpoints.size();
+        log( "Scaled down" );
+      }
+    }
+    catch( final Exception e )
+    {
+      LOG.log( Level.WARNING, "Error scaling endpoints", e );
+    }
+  }
+
+  private int browse()
+    throws JMSException
+  {
+    final QueueBrowser browser = _browserSession.createBrowser( _queue, _selector );
+    try
+    {
+      int count = 0;
+      final Enumeration enumeration = browser.getEnumeration();
+      while( count < _browseLimit && enumeration.hasMoreElements() )
+      {
+        enumeration.nextElement();
+        count++;
+      }
+      return count;
+    }
+    finally
+    {
+      browser.close();
+    }
+  }
+
+  private void addEndpoint()
+    throws Exception
+  {
+    final AbstractMessageEndpoint endpoint = _factory.createEndpoint( _endpoints.size() );
+    final Session session = _connection.createSession( _transacted, _acknowledgeMode );
+    try
+    {
+      endpoint.start( session );
+    }
+    catch( final Exception e )
+    {
+      if( !endpoint.isStarted() ) session.close();
+      throw e;
+    }
+    _endpoints.add( endpoint );
+    _endpointCount = _endpoints.size();
+  }
+
+  private void stopEndpoints()
+  {
+    while( !_endpoints.isEmpty() )
+    {
+      stopEndpoint( _endpoints.remove( _endpoints.size() - 1 ) );
+    }
+    _endpointCount = 0;
+  }
+
+  private void stopEndpoint( final AbstractMessageEndpoint endpoint )
+  {
+    try
+    {
+      endpoint.stop();
+    }
+    catch( final Exception e )
+    {
+      LOG.log( Level.WARNING, "Error stopping endpoint " + endpoint.getName(), e );
+    }
+  }
+
+  private void closeBrowserSession()
+  {
+    try
+    {
+      if( null != _browserSession ) _browserSession.close();
+    }
+    catch( final JMSException e )
+    {
+      LOG.log( Level.WARNING, "Error closing browser session", e );
+    }
+    _browserSession = null;
+  }
+
+  private void log( final String action )
+  {
+    if( LOG.isLoggable( Level.INFO ) )
+    {
+      LOG.info( action + " to " + _endpoints.size() + " endpoints. Backlog: " + _backlog +
+                " Throughput: " + Math.round( _throughput ) + "/s" );
+    }
+  }
+
+  private void ensureEditable()
+  {
+    if( isStarted() ) throw new IllegalStateException( "Attempting to edit active autoscaler" );
+  }
+}
@@ -0,0 +1,382 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+/**
+ * A container that owns a pool of connections created from a ConnectionFactory and manages
+ * the lifecycle of a set of endpoints. Each endpoint is given its own session, and sessions are
+ * distributed across the connections in a round-robin fashion. Endpoints are started and
+ * stopped in parallel using a bounded pool of threads.
+ *
+ * <p>An endpoint that fails to start does not prevent the other endpoints from starting.
+ * The failure is logged and reported by {@link #getStatus()}.</p>
+ */
+public final class EndpointContainer
+{
+  /// Logger used to log in the container.
+  static final Logger LOG = Logger.getLogger( EndpointContainer.class.getName() );
+
+  private final ConnectionFactory _connectionFactory;
+  private final List<AbstractMessageEndpoint> _endpoints = new ArrayList<AbstractMessageEndpoint>();
+  private final Map<AbstractMessageEndpoint, Throwable> _failures =
+    Collections.synchronizedMap( new LinkedHashMap<AbstractMessageEndpoint, Throwable>() );
+  private final List<Connection> _connections = new ArrayList<Connection>();
+  private int _connectionCount = 1;
+  private int _parallelism = Runtime.getRuntime().availableProcessors();
+  private boolean _transacted;
+  private int _acknowledgeMode = Session.AUTO_ACKNOWLEDGE;
+  private String _clientIDPrefix;
+  private boolean _isStarted;
+
+  public EndpointContainer( final ConnectionFactory connectionFactory )
+  {
+    if( null == connectionFactory ) throw new NullPointerException( "connectionFactory" );
+    _connectionFactory = connectionFactory;
+  }
+
+  /** Specify the number of connections the sessions are distributed across. */
+  public void setConnectionCount( final int connectionCount )
+  {
+    ensureEditable();
+    if( connectionCount < 1 ) throw new IllegalArgumentException( "connectionCount must be at least 1" );
+    _connectionCount = connectionCount;
+  }
+
+  public int getConnectionCount()
+  {
+    return _connectionCount;
+  }
+
+  /** Specify the maximum number of endpoints started or stopped concurrently. */
+  public void setParallelism( final int parallelism )
+  {
+    ensureEditable();
+    if( parallelism < 1 ) throw new IllegalArgumentException( "parallelism must be at least 1" );
+    _parallelism = parallelism;
+  }
+
+  public int getParallelism()
+  {
+    return _parallelism;
+  }
+
+  /** Specify the transacted flag and acknowledge mode of the sessions created for endpoints. */
+  public void setSessionMode( final boolean transacted, final int acknowledgeMode )
+  {
+    ensureEditable();
+    _transacted = transacted;
+    _acknowledgeMode = acknowledgeMode;
+  }
+
+  /**
+   * Specify the prefix of the client ID assigned to each connection. The client ID of a
+   * connection is the prefix followed by a dash and the index of the connection. A client
+   * ID is required if any endpoint uses a durable subscription.
+   */
+  public void setClientIDPrefix( final String clientIDPrefix )
+  {
+    ensureEditable();
+    _clientIDPrefix = clientIDPrefix;
+  }
+
+  public String getClientIDPrefix()
+  {
+    return _clientIDPrefix;
+  }
+
+  /** Add an endpoint to be managed by the container. */
+  public void addEndpoint( final AbstractMessageEndpoint endpoint )
+  {
+    if( null == endpoint ) throw new NullPointerException( "endpoint" );
+    ensureEditable();
+    _endpoints.add( endpoint );
+  }
+
+  /** Return the endpoints managed by the container. */
+  public List<AbstractMessageEndpoint> getEndpoints()
+  {
+    return Collections.unmodifiableList( _endpoints );
+  }
+
+  public boolean isStarted()
+  {
+    return _isStarted;
+  }
+
+  /**
+   * Create the connections and start all the endpoints. Message delivery begins once
+   * every endpoint has been started.
+   *
+   * @throws JMSException if the connections can not be created.
+   * @throws InterruptedException if interrupted while waiting for the endpoints to start.
+   */
+  public synchronized void start()
+    throws JMSException, InterruptedException
+  {
+    if( _isStarted ) throw new IllegalStateException( "Container already started" );
+    _failures.clear();
+    try
+    {
+      for( int i = 0; i < _connectionCount; i++ )
+      {
+        final Connection connection = _connectionFactory.createConnection();
+        _connections.add( connection );
+        if( null != _clientIDPrefix ) connection.setClientID( _clientIDPrefix + "-" + i );
+      }
+    }
+    catch( final JMSException e )
+    {
+      LOG.log( Level.WARNING, "Error creating connections", e );
+      closeConnections();
+      throw e;
+    }
+    _isStarted = true;
+
+    final long start = System.currentTimeMillis();
+    final ArrayList<EndpointTask> tasks = new ArrayList<EndpointTask>();
+    for( int i = 0; i < _endpoints.size(); i++ )
+    {
+      final Connection connection = _connections.get( i % _connections.size() );
+      tasks.add( new EndpointTask( _endpoints.get( i ) )
+      {
+        void run( final AbstractMessageEndpoint endpoint )
+          throws Exception
+        {
+          final Session session = connection.createSession( _transacted, _acknowledgeMode );
+          try
+          {
+            endpoint.start( session );
+          }
+          catch( final Exception e )
+          {
+            if( !endpoint.isStarted() ) session.close();
+            throw e;
+          }
+        }
+      } );
+    }
+    runAll( "start", tasks );
+
+    for( final Connection connection : _connections )
+    {
+      connection.start();
+    }
+    if( LOG.isLoggable( Level.INFO ) )
+    {
+      LOG.info( "Started " + getStatus() + " in " + ( System.currentTimeMillis() - start ) + "ms" );
+    }
+  }
+
+  /**
+   * Stop all the endpoints and close the connections.
+   *
+   * @throws InterruptedException if interrupted while waiting for the endpoints to stop.
+   */
+  public synchronized void stop()
+    throws InterruptedException
+  {
+    if( !_isStarted ) return;
+    for( final Connection connection : _connections )
+    {
+      try
+      {
+        connection.stop();
+      }
+      catch( final JMSException e )
+      {
+        LOG.log( Level.WARNING, "Stopping connection", e );
+      }
+    }
+
+    final ArrayList<EndpointTask> tasks = new ArrayList<EndpointTask>();
+    for( final AbstractMessageEndpoint endpoint : _endpoints )
+    {
+      if( endpoint.isStarted() )
+      {
+        tasks.add( new EndpointTask( endpoint )
+        {
+          void run( final AbstractMessageEndpoint endpoint )
+            throws Exception
+          {
+            endpoint.stop();
+          }
+        } );
+      }
+    }
+    runAll( "stop", tasks );
+    closeConnections();
+    _isStarted = false;
+  }
+
+  /**
+   * Return a snapshot of the status of the endpoints.
+   */
+  public Status getStatus()
+  {
+    int started = 0;
+    for( final AbstractMessageEndpoint endpoint : _endpoints )
+    {
+      if( endpoint.isStarted() ) started++;
+    }
+    final LinkedHashMap<AbstractMessageEndpoint, Throwable> failures;
+    synchronized( _failures )
+    {
+      failures = new LinkedHashMap<AbstractMessageEndpoint, Throwable>( _failures );
+    }
+    return new Status( _endpoints.size(), started, failures );
+  }
+
+  private void runAll( final String action, final List<EndpointTask> tasks )
+    throws InterruptedException
+  {
+    if( tasks.isEmpty() ) return;
+    final ExecutorService executor =
+      Executors.newFixedThreadPool( Math.min( _parallelism, tasks.size() ), new ContainerThreadFactory( action ) );
+    try
+    {
+      final List<Future<Object>> futures = executor.invokeAll( tasks );
+      for( int i = 0; i < futures.size(); i++ )
+      {
+        try
+        {
+          futures.get( i ).get();
+        }
+        catch( final ExecutionException ee )
+        {
+          final AbstractMessageEndpoint endpoint = tasks.get( i ).getEndpoint();
+          _failures.put( endpoint, ee.getCause() );
+          LOG.log( Level.WARNING, "Failed to " + action + " endpoint " + endpoint.getName(), ee.getCause() );
+        }
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  private void closeConnections()
+  {
+    for( final Connection connection : _connections )
+    {
+      try
+      {
+        connection.close();
+      }
+      catch( final JMSException e )
+      {
+        LOG.log( Level.WARNING, "Closing connection", e );
+      }
+    }
+    _connections.clear();
+  }
+
+  private void ensureEditable()
+  {
+    if( _isStarted ) throw new IllegalStateException( "Attempting to edit active EndpointContainer" );
+  }
+
+  /**
+   * Aggregate status of the endpoints in a container.
+   */
+  public static final class Status
+  {
+    private final int _endpointCount;
+    private final int _startedCount;
+    private final Map<AbstractMessageEndpoint, Throwable> _failures;
+
+    Status( final int endpointCount, final int startedCount, final Map<AbstractMessageEndpoint, Throwable> failures )
+    {
+      _endpointCount = endpointCount;
+      _startedCount = startedCount;
+      _failures = Collections.unmodifiableMap( failures );
+    }
+
+    public int getEndpointCount()
+    {
+      return _endpointCount;
+    }
+
+    public int getStartedCount()
+    {
+      return _startedCount;
+    }
+
+    /**
+     * Return the failures raised when starting or stopping endpoints, keyed by endpoint. Endpoints
+     * are used as keys rather than names as names are optional and need not be unique.
+     */
+    public Map<AbstractMessageEndpoint, Throwable> getFailures()
+    {
+      return _failures;
+    }
+
+    @Override
+    public String toString()
+    {
+      return _startedCount + "/" + _endpointCount + " endpoints (" + _failures.size() + " failures)";
+    }
+  }
+
+  private abstract static class EndpointTask
+    implements Callable<Object>
+  {
+    private final AbstractMessageEndpoint _endpoint;
+
+    EndpointTask( final AbstractMessageEndpoint endpoint )
+    {
+      _endpoint = endpoint;
+    }
+
+    final AbstractMessageEndpoint getEndpoint()
+    {
+      return _endpoint;
+    }
+
+    public final Object call()
+      throws Exception
+    {
+      run( _endpoint );
+      return null;
+    }
+
+    abstract void run( AbstractMessageEndpoint endpoint )
+      throws Exception;
+  }
+
+  private static class ContainerThreadFactory
+    implements ThreadFactory
+  {
+    private final String _action;
+    private final AtomicInteger _count = new AtomicInteger();
+
+    ContainerThreadFactory( final String action )
+    {
+      _action = action;
+    }
+
+    public Thread newThread( final Runnable runnable )
+    {
+      final Thread thread = new Thread( runnable, "EndpointContainer-" + _action + "-" + _count.incrementAndGet() );
+      thread.setDaemon( true );
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,458 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A concurrent cache of reference data used to enrich messages. Values are looked up by key and
+ * loaded by a pluggable {@link Loader} when they are not present in the cache, so that a lookup
+ * of a cached key costs a single hash lookup.
+ *
+ * <ul>
+ *   <li>Entries expire after the time to live and the cache holds at most the maximum number of
+ *   entries. When the cache is full an entry that has not been read since the eviction hand last
+ *   passed it is evicted, approximating least recently used eviction without ordering reads.</li>
+ *   <li>If a refresh-ahead fraction is specified then reading an entry that is older than that
+ *   fraction of the time to live reloads it in the background while the current value continues
+ *   to be returned, so frequently read keys do not expire.</li>
+ *   <li>Keys that the loader does not return a value for are cached as absent for the negative
+ *   time to live, so repeated lookups of unknown keys do not reach the loader.</li>
+ *   <li>Keys missed concurrently by several threads, and keys refreshed in the background, are
+ *   loaded together in batches of up to the maximum batch size.</li>
+ * </ul>
+ *
+ * <p>Failures of the loader are not cached. A lookup that fails to load raises the exception of
+ * the loader, and a refresh that fails retains the current value until it expires.</p>
+ */
+public final class EnrichmentCache<V>
+{
+  /// Logger used to log in the cache.
+  static final Logger LOG = Logger.getLogger( EnrichmentCache.class.getName() );
+
+  /**
+   * Loader of the values for a set of keys.
+   */
+  public interface Loader<V>
+  {
+    /**
+     * Return the values of the keys. Keys that do not have a value are omitted from the result.
+     *
+     * @throws Exception if the values can not be loaded.
+     */
+    Map<String, V> load( Set<String> keys )
+      throws Exception;
+  }
+
+  private final Loader<V> _loader;
+  private final ConcurrentHashMap<String, Entry<V>> _entries = new ConcurrentHashMap<String, Entry<V>>();
+  private final ConcurrentHashMap<String, Load> _loads = new ConcurrentHashMap<String, Load>();
+  private final ConcurrentLinkedQueue<Load> _missQueue = new ConcurrentLinkedQueue<Load>();
+  private final ConcurrentLinkedQueue<String> _refreshQueue = new ConcurrentLinkedQueue<String>();
+  private final ReentrantLock _loadLock = new ReentrantLock();
+  private final Object _evictionLock = new Object();
+  private final AtomicBoolean _refreshScheduled = new AtomicBoolean();
+  private final AtomicLong _missCount = new AtomicLong();
+  private final AtomicLong _loadCount = new AtomicLong();
+  private int _maxSize = 10000;
+  private long _timeToLive = TimeUnit.MINUTES.toNanos( 10 );
+  private long _negativeTimeToLive = TimeUnit.MINUTES.toNanos( 1 );
+  private double _refreshAhead;
+  private int _maxBatchSize = 100;
+  private Iterator<Map.Entry<String, Entry<V>>> _evictionHand;
+  private ExecutorService _refreshExecutor;
+
+  public EnrichmentCache( final Loader<V> loader )
+  {
+    if( null == loader ) throw new NullPointerException( "loader" );
+    _loader = loader;
+  }
+
+  /** Specify the maximum number of entries held. */
+  public void setMaxSize( final int maxSize )
+  {
+    if( maxSize < 1 ) throw new IllegalArgumentException( "maxSize must be at least 1" );
+    _maxSize = maxSize;
+  }
+
+  public int getMaxSize()
+  {
+    return _maxSize;
+  }
+
+  /**
+   * Specify the time to live in milliseconds of loaded values and of absent values. A negative
+   * time to live of zero disables negative caching.
+   */
+  public void setTimeToLive( final long timeToLive, final long negativeTimeToLive )
+  {
+    if( timeToLive < 1 ) throw new IllegalArgumentException( "timeToLive must be positive" );
+    if( negativeTimeToLive < 0 ) throw new IllegalArgumentException( "negativeTimeToLive must not be negative" );
+    _timeToLive = TimeUnit.MILLISECONDS.toNanos( timeToLive );
+    _negativeTimeToLive = TimeUnit.MILLISECONDS.toNanos( negativeTimeToLive );
+  }
+
+  /**
+   * Specify the fraction of the time to live after which a read entry is refreshed in the
+   * background. A fraction of zero disables refresh-ahead.
+   */
+  public void setRefreshAhead( final double refreshAhead )
+  {
+    if( refreshAhead < 0 || refreshAhead >= 1 ) throw new IllegalArgumentException( "refreshAhead must be between 0 and 1" );
+    _refreshAhead = refreshAhead;
+  }
+
+  /** Specify the maximum number of keys passed to a single invocation of the loader. */
+  public void setMaxBatchSize( final int maxBatchSize )
+  {
+    if( maxBatchSize < 1 ) throw new IllegalArgumentException( "maxBatchSize must be at least 1" );
+    _maxBatchSize = maxBatchSize;
+  }
+
+  /** Return the number of entries, including expired entries that have not been removed. */
+  public int size()
+  {
+    return _entries.size();
+  }
+
+  /** Return the number of lookups that required the value to be loaded. */
+  public long getMissCount()
+  {
+    return _missCount.get();
+  }
+
+  /** Return the number of invocations of the loader. */
+  public long getLoadCount()
+  {
+    return _loadCount.get();
+  }
+
+  /**
+   * Return the value of the key, loading it if it is not cached or has expired.
+   *
+   * @return the value, or null if the key has no value.
+   * @throws Exception if the value is not cached and can not be loaded.
+   */
+  public V get( final String key )
+    throws Exception
+  {
+    if( null == key ) throw new NullPointerException( "key" );
+    final Entry<V> entry = _entries.get( key );
+    final long now = System.nanoTime();
+    if( null != entry && now - entry._expiresAt < 0 )
+    {
+      if( !entry._referenced ) entry._referenced = true;
+      if( 0 != entry._refreshAt && now - entry._refreshAt >= 0 && entry._refreshing.compareAndSet( false, true ) )
+      {
+        scheduleRefresh( key );
+      }
+      return entry._value;
+    }
+    _missCount.incrementAndGet();
+    return load( key ).await();
+  }
+
+  /**
+   * Load the values of the keys that are not cached in batches, so that later lookups of the keys
+   * are satisfied from the cache.
+   *
+   * @throws Exception if the values can not be loaded.
+   */
+  public void preload( final Collection<String> keys )
+    throws Exception
+  {
+    final List<Load> loads = new ArrayList<Load>();
+    final long now = System.nanoTime();
+    for( final String key : keys )
+    {
+      final Entry<V> entry = _entries.get( key );
+      if( null == entry || now - entry._expiresAt >= 0 ) loads.add( load( key ) );
+    }
+    for( final Load load : loads )
+    {
+      load.await();
+    }
+  }
+
+  /** Remove the entry for a key so the next lookup loads it. */
+  public void invalidate( final String key )
+  {
+    _entries.remove( key );
+  }
+
+  /** Remove every entry. */
+  public void invalidateAll()
+  {
+    _entries.clear();
+  }
+
+  /** Stop the thread used to refresh entries in the background. */
+  public synchronized void close()
+  {
+    if( null != _refreshExecutor )
+    {
+      _refreshExecutor.shutdown();
+      _refreshExecutor = null;
+    }
+  }
+
+  private Load load( final String key )
+  {
+    final Load load = new Load( key );
+    final Load existing = _loads.putIfAbsent( key, load );
+    if( null != existing ) return existing;
+    _missQueue.add( load );
+    return load;
+  }
+
+  /**
+   * Load the queued misses in batches. Invoked by threads awaiting a load so that the thread
+   * that acquires the lock loads the keys missed by all the waiting threads.
+   */
+  private void loadMisses()
+  {
+    if( !_loadLock.tryLock() ) return;
+    try
+    {
+      while( !_missQueue.isEmpty() )
+      {
+        final Map<String, Load> batch = new HashMap<String, Load>();
+        Load load;
+        while( batch.size() < _maxBatchSize && null != ( load = _missQueue.poll() ) )
+        {
+          batch.put( load._key, load );
+        }
+        try
+        {
+          final Map<String, V> values = loadBatch( batch.keySet() );
+          for( final Load completed : batch.values() )
+          {
+            completed.complete( values.get( completed._key ), null );
+          }
+        }
+        catch( final Exception e )
+        {
+          for( final Load failed : batch.values() )
+          {
+            failed.complete( null, e );
+          }
+        }
+      }
+    }
+    finally
+    {
+      _loadLock.unlock();
+    }
+  }
+
+  private Map<String, V> loadBatch( final Set<String> keys )
+    throws Exception
+  {
+    _loadCount.incrementAndGet();
+    final Map<String, V> loaded = _loader.load( Collections.unmodifiableSet( keys ) );
+    final Map<String, V> values = null != loaded ? loaded : Collections.<String, V>emptyMap();
+    final long now = System.nanoTime();
+    for( final String key : keys )
+    {
+      final V value = values.get( key );
+      if( null != value )
+      {
+        final long refreshAt = _refreshAhead > 0 ? now + Math.max( 1, (long)( _timeToLive * _refreshAhead ) ) : 0;
+        put( key, new Entry<V>( value, now + _timeToLive, refreshAt ) );
+      }
+      else if( 0 != _negativeTimeToLive )
+      {
+        put( key, new Entry<V>( null, now + _negativeTimeToLive, 0 ) );
+      }
+      else
+      {
+        _entries.remove( key );
+      }
+    }
+    return values;
+  }
+
+  private void put( final String key, final Entry<V> entry )
+  {
+    if( null == _entries.put( key, entry ) && _entries.size() > _maxSize )
+    {
+      evict();
+    }
+  }
+
+  /**
+   * Evict entries until the cache is within the maximum size. The hand cycles over the entries,
+   * evicting expired entries and entries that have not been referenced since the hand last
+   * passed them and clearing the referenced flag of the others.
+   */
+  private void evict()
+  {
+    synchronized( _evictionLock )
+    {
+      final long now = System.nanoTime();
+      int examined = 0;
+      while( _entries.size() > _maxSize )
+      {
+        if( null == _evictionHand || !_evictionHand.hasNext() )
+        {
+          _evictionHand = _entries.entrySet().iterator();
+          if( !_evictionHand.hasNext() ) return;
+        }
+        final Map.Entry<String, Entry<V>> candidate = _evictionHand.next();
+        final Entry<V> entry = candidate.getValue();
+        // Give up on second chances once every entry has been examined twice
+        if( !entry._referenced || now - entry._expiresAt >= 0 || examined > 2 * _maxSize )
+        {
+          _entries.remove( candidate.getKey(), entry );
+        }
+        else
+        {
+          entry._referenced = false;
+        }
+        examined++;
+      }
+    }
+  }
+
+  private void scheduleRefresh( final String key )
+  {
+    _refreshQueue.add( key );
+    if( _refreshScheduled.compareAndSet( false, true ) )
+    {
+      getRefreshExecutor().execute( new Runnable()
+      {
+        public void run()
+        {
+          refresh();
+        }
+      } );
+    }
+  }
+
+  private synchronized ExecutorService getRefreshExecutor()
+  {
+    if( null == _refreshExecutor )
+    {
+      _refreshExecutor = Executors.newSingleThreadExecutor( new ThreadFactory()
+      {
+        public Thread newThread( final Runnable runnable )
+        {
+          final Thread thread = new Thread( runnable, "EnrichmentCache-Refresh" );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
+    return _refreshExecutor;
+  }
+
+  private void refresh()
+  {
+    _refreshScheduled.set( false );
+    while( !_refreshQueue.isEmpty() )
+    {
+      final Set<String> keys = new LinkedHashSet<String>();
+      String key;
+      while( keys.size() < _maxBatchSize && null != ( key = _refreshQueue.poll() ) )
+      {
+        keys.add( key );
+      }
+      try
+      {
+        loadBatch( keys );
+      }
+      catch( final Exception e )
+      {
+        LOG.log( Level.WARNING, "Error refreshing " + keys.size() + " keys", e );
+        for( final String failed : keys )
+        {
+          final Entry<V> entry = _entries.get( failed );
+          if( null != entry ) entry._refreshing.set( false );
+        }
+      }
+    }
+  }
+
+  /**
+   * A cached value or absence of a value.
+   */
+  private static final class Entry<V>
+  {
+    private final V _value;
+    private final long _expiresAt;
+    private final long _refreshAt;
+    private final AtomicBoolean _refreshing = new AtomicBoolean();
+    private volatile boolean _referenced;
+
+    Entry( final V value, final long expiresAt, final long refreshAt )
+    {
+      _value = value;
+      _expiresAt = expiresAt;
+      _refreshAt = refreshAt;
+    }
+  }
+
+  /**
+   * A pending load of a key. Threads awaiting the load take turns loading the queued misses
+   * until the load completes.
+   */
+  private final class Load
+  {
+    private final String _key;
+    private boolean _isDone;
+    private V _value;
+    private Exception _exception;
+
+    Load( final String key )
+    {
+      _key = key;
+    }
+
+    V await()
+      throws Exception
+    {
+      while( true )
+      {
+        loadMisses();
+        synchronized( this )
+        {
+          if( !_isDone ) wait( 10 );
+          if( _isDone )
+          {
+            if( null != _exception ) throw _exception;
+            return _value;
+          }
+        }
+      }
+    }
+
+    void complete( final V value, final Exception exception )
+    {
+      _loads.remove( _key, this );
+      synchronized( this )
+      {
+        _value = value;
+        _exception = exception;
+        _isDone = true;
+        notifyAll();
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.realityforge.jml;
+
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * Abstract class for transformers that enrich a message with reference data looked up in an
+ * {@link EnrichmentCache} using the value of a property of the message as the key. Messages
+ * without the key property are passed through unchanged.
+ */
+public abstract class EnrichmentTransformer<V>
+  extends MessageTransformer
+{
+  private final String _keyProperty;
+  private final EnrichmentCache<V> _cache;
+
+  protected EnrichmentTransformer( final String keyProperty, final EnrichmentCache<V> cache )
+  {
+    if( null == keyProperty ) throw new NullPointerException( "keyProperty" );
+    if( null == cache ) throw new NullPointerException( "cache" );
+    _keyProperty = keyProperty;
+    _cache = cache;
+  }
+
+  public final String getKeyProperty()
+  {
+    return _keyProperty;
+  }
+
+  public final EnrichmentCache<V> getCache()
+  {
+    return _cache;
+  }
+
+  @Override
+  public final Message transformMessage( final Session session, final Message message )
+    throws Exception
+  {
+    final Object key = message.getObjectProperty( _keyProperty );
+    if( null == key ) return message;
+    return enrich( session, message, _cache.get( key.toString() ) );
+  }
+
+  /**
+   * Return the message enriched with the reference data.
+   *
+   * @param session the session associated with the message.
+   * @param message the message to enrich.
+   * @param value the reference data of the key, or null if the key has no reference data.
+   * @return the enriched message.
+   * @throws Exception if there is a problem enriching the message.
+   */
+  protected abstract Message enrich( final Session session, final Message message, final V value )
+    throws Exception;
+
+  /**
+   * Enricher that copies the message and stores the reference data in a property. Messages
+   * whose key has no reference data are passed through unchanged.
+   */
+  static final class PropertyEnrichmentTransformer
+    extends EnrichmentTransformer<Object>
+  {
+    private final String _targetProperty;
+
+    @SuppressWarnings( { "unchecked" } )
+    PropertyEnrichmentTransformer( final String keyProperty,
+                                   final EnrichmentCache<?> cache,
+                                   final String targetProperty )
+    {
+      super( keyProperty, (EnrichmentCache<Object>)cache );
+      if( null == targetProperty ) throw new NullPointerException( "targetProperty" );
+      _targetProperty = targetProperty;
+    }
+
+    @Override
+    protected Message enrich( final Session session, final Message message, final Object value )
+      throws Exception
+    {
+      if( null == value ) return message;
+      final Message result = MessageCloner.cloneMessage( session, message );
+      result.setObjectProperty( _targetProperty, value );
+      return result;
+    }
+  }
+}
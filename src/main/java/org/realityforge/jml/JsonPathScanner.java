@@ -0,0 +1,98 @@
+package org.realityforge.jml;
+
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Scans JSON text in a single pass and reports the values found at a set of paths.
+ * A path is the sequence of member names from the root object separated by '.'.
+ * Members of arrays are not addressable. Subtrees that can not contain a path are
+ * skipped without being examined beyond validating their syntax.
+ */
+final class JsonPathScanner
+{
+  /**
+   * Callback invoked for each value found at a path.
+   */
+  interface Visitor
+  {
+    /**
+     * @param path  the index of the path in the collection the scanner was created with.
+     * @param token the first token of the value.
+     * @param start the offset of the first character of the value.
+     * @param end   the offset after the last character of the value.
+     */
+    void onValue( int path, JsonReader.Token token, int start, int end )
+      throws Exception;
+  }
+
+  private final HashMap<String, Integer> _paths = new HashMap<String, Integer>();
+  private final HashSet<String> _prefixes = new HashSet<String>();
+
+  JsonPathScanner( final Collection<String> paths )
+  {
+    int index = 0;
+    for( final String path : paths )
+    {
+      if( null == path || 0 == path.length() ) throw new IllegalArgumentException( "Invalid path '" + path + "'" );
+      _paths.put( path, index++ );
+      int separator = path.indexOf( '.' );
+      while( -1 != separator )
+      {
+        _prefixes.add( path.substring( 0, separator ) );
+        separator = path.indexOf( '.', separator + 1 );
+      }
+    }
+  }
+
+  /**
+   * Scan the text and invoke the visitor for each value found at a path.
+   *
+   * @throws ParseException if the text is not valid JSON.
+   */
+  void scan( final CharSequence text, final Visitor visitor )
+    throws Exception
+  {
+    final JsonReader reader = new JsonReader( text );
+    final JsonReader.Token token = reader.next();
+    if( JsonReader.Token.BEGIN_OBJECT == token )
+    {
+      scanObject( reader, null, visitor );
+    }
+    else
+    {
+      reader.skipValue();
+    }
+    if( JsonReader.Token.END_DOCUMENT != reader.next() )
+    {
+      throw new ParseException( "Unexpected content after document", reader.getTokenStart() );
+    }
+  }
+
+  private void scanObject( final JsonReader reader, final String prefix, final Visitor visitor )
+    throws Exception
+  {
+    while( JsonReader.Token.END_OBJECT != reader.next() )
+    {
+      final String name = reader.getString();
+      final String path = null == prefix ? name : prefix + "." + name;
+      final JsonReader.Token token = reader.next();
+      final int start = reader.getTokenStart();
+      if( JsonReader.Token.BEGIN_OBJECT == token && _prefixes.contains( path ) )
+      {
+        scanObject( reader, path, visitor );
+      }
+      else
+      {
+        reader.skipValue();
+      }
+      final Integer index = _paths.get( path );
+      if( null != index )
+      {
+        visitor.onValue( index, token, start, reader.getPosition() );
+      }
+    }
+  }
+}
@@ -0,0 +1,369 @@
+package org.realityforge.jml;
+
+import java.text.ParseException;
+
+/**
+ * A streaming pull tokenizer for JSON text. The tokenizer validates the text as it is
+ * read and does not build a tree, so memory use is proportional to the nesting depth of
+ * the document rather than its size. Strings are only decoded when requested.
+ */
+final class JsonReader
+{
+  enum Token
+  {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+  }
+
+  private static final int STATE_VALUE = 0;
+  private static final int STATE_VALUE_OR_END = 1;
+  private static final int STATE_NAME = 2;
+  private static final int STATE_NAME_OR_END = 3;
+  private static final int STATE_COMMA_OR_END = 4;
+  private static final int STATE_DONE = 5;
+
+  private final CharSequence _text;
+  private final int _length;
+  private boolean[] _objects = new boolean[ 16 ];
+  private int _depth;
+  private int _state = STATE_VALUE;
+  private int _position;
+  private int _tokenStart;
+  private int _stringStart;
+  private int _stringEnd;
+  private boolean _stringEscaped;
+
+  JsonReader( final CharSequence text )
+  {
+    _text = text;
+    _length = text.length();
+  }
+
+  /** Return the number of containers enclosing the current position. */
+  int getDepth()
+  {
+    return _depth;
+  }
+
+  /** Return the offset of the first character of the last token. */
+  int getTokenStart()
+  {
+    return _tokenStart;
+  }
+
+  /** Return the offset after the last character consumed. */
+  int getPosition()
+  {
+    return _position;
+  }
+
+  /**
+   * Return the next token.
+   *
+   * @throws ParseException if the text is not valid JSON.
+   */
+  Token next()
+    throws ParseException
+  {
+    skipWhitespace();
+    _tokenStart = _position;
+    switch( _state )
+    {
+      case STATE_DONE:
+        if( _position < _length ) throw error( "Unexpected content after document" );
+        return Token.END_DOCUMENT;
+      case STATE_COMMA_OR_END:
+      {
+        final char c = read();
+        if( ',' == c )
+        {
+          _state = _objects[ _depth - 1 ] ? STATE_NAME : STATE_VALUE;
+          return next();
+        }
+        return endContainer( c );
+      }
+      case STATE_NAME_OR_END:
+      case STATE_NAME:
+      {
+        final char c = read();
+        if( '"' == c )
+        {
+          readString();
+          skipWhitespace();
+          if( ':' != read() ) throw error( "Expected ':'" );
+          _state = STATE_VALUE;
+          return Token.NAME;
+        }
+        else if( STATE_NAME_OR_END == _state )
+        {
+          return endContainer( c );
+        }
+        throw error( "Expected name" );
+      }
+      case STATE_VALUE_OR_END:
+        if( _position < _length && ']' == _text.charAt( _position ) )
+        {
+          return endContainer( read() );
+        }
+        return readValue();
+      default:
+        return readValue();
+    }
+  }
+
+  /**
+   * Skip the remainder of the value that started with the last token. Does nothing if the
+   * last token was a primitive value.
+   */
+  void skipValue()
+    throws ParseException
+  {
+    final char c = _text.charAt( _tokenStart );
+    if( '{' != c && '[' != c ) return;
+    final int depth = _depth - 1;
+    while( _depth != depth )
+    {
+      next();
+    }
+  }
+
+  /** Return the decoded text of the last NAME or STRING token. */
+  String getString()
+    throws ParseException
+  {
+    if( !_stringEscaped ) return _text.subSequence( _stringStart, _stringEnd ).toString();
+    final StringBuilder sb = new StringBuilder( _stringEnd - _stringStart );
+    for( int i = _stringStart; i < _stringEnd; i++ )
+    {
+      final char c = _text.charAt( i );
+      if( '\\' != c )
+      {
+        sb.append( c );
+        continue;
+      }
+      final char e = _text.charAt( ++i );
+      switch( e )
+      {
+        case 'b':
+          sb.append( '\b' );
+          break;
+        case 'f':
+          sb.append( '\f' );
+          break;
+        case 'n':
+          sb.append( '\n' );
+          break;
+        case 'r':
+          sb.append( '\r' );
+          break;
+        case 't':
+          sb.append( '\t' );
+          break;
+        case 'u':
+          sb.append( (char)Integer.parseInt( _text.subSequence( i + 1, i + 5 ).toString(), 16 ) );
+          i += 4;
+          break;
+        default:
+          sb.append( e );
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Append value to the builder as a quoted JSON string.
+   */
+  static void appendQuoted( final StringBuilder sb, final String value )
+  {
+    sb.append( '"' );
+    for( int i = 0; i < value.length(); i++ )
+    {
+      final char c = value.charAt( i );
+      if( '"' == c || '\\' == c )
+      {
+        sb.append( '\\' ).append( c );
+      }
+      else if( c < 0x20 )
+      {
+        sb.append( String.format( "\\u%04x", (int)c ) );
+      }
+      else
+      {
+        sb.append( c );
+      }
+    }
+    sb.append( '"' );
+  }
+
+  private Token readValue()
+    throws ParseException
+  {
+    final char c = read();
+    switch( c )
+    {
+      case '{':
+        push( true );
+        _state = STATE_NAME_OR_END;
+        return Token.BEGIN_OBJECT;
+      case '[':
+        push( false );
+        _state = STATE_VALUE_OR_END;
+        return Token.BEGIN_ARRAY;
+      case '"':
+        readString();
+        afterValue();
+        return Token.STRING;
+      case 't':
+        readLiteral( "rue" );
+        afterValue();
+        return Token.BOOLEAN;
+      case 'f':
+        readLiteral( "alse" );
+        afterValue();
+        return Token.BOOLEAN;
+      case 'n':
+        readLiteral( "ull" );
+        afterValue();
+        return Token.NULL;
+      default:
+        if( '-' == c || isDigit( c ) )
+        {
+          readNumber( c );
+          afterValue();
+          return Token.NUMBER;
+        }
+        throw error( "Unexpected character '" + c + "'" );
+    }
+  }
+
+  private Token endContainer( final char c )
+    throws ParseException
+  {
+    final boolean isObject = _objects[ _depth - 1 ];
+    if( isObject ? '}' != c : ']' != c ) throw error( "Expected ',' or '" + ( isObject ? '}' : ']' ) + "'" );
+    _depth--;
+    afterValue();
+    return isObject ? Token.END_OBJECT : Token.END_ARRAY;
+  }
+
+  private void afterValue()
+  {
+    _state = 0 == _depth ? STATE_DONE : STATE_COMMA_OR_END;
+  }
+
+  private void push( final boolean isObject )
+  {
+    if( _depth == _objects.length )
+    {
+      final boolean[] objects = new boolean[ _objects.length * 2 ];
+      System.arraycopy( _objects, 0, objects, 0, _objects.length );
+      _objects = objects;
+    }
+    _objects[ _depth++ ] = isObject;
+  }
+
+  private void readString()
+    throws ParseException
+  {
+    _stringStart = _position;
+    _stringEscaped = false;
+    while( true )
+    {
+      final char c = read();
+      if( '"' == c )
+      {
+        _stringEnd = _position - 1;
+        return;
+      }
+      else if( '\\' == c )
+      {
+        _stringEscaped = true;
+        final char e = read();
+        if( 'u' == e )
+        {
+          for( int i = 0; i < 4; i++ )
+          {
+            if( -1 == Character.digit( read(), 16 ) ) throw error( "Invalid unicode escape" );
+          }
+        }
+        else if( -1 == "\"\\/bfnrt".indexOf( e ) )
+        {
+          throw error( "Invalid escape '\\" + e + "'" );
+        }
+      }
+      else if( c < 0x20 )
+      {
+        throw error( "Control character in string" );
+      }
+    }
+  }
+
+  private void readLiteral( final String remainder )
+    throws ParseException
+  {
+    for( int i = 0; i < remainder.length(); i++ )
+    {
+      if( remainder.charAt( i ) != read() ) throw error( "Invalid literal" );
+    }
+  }
+
+  private void readNumber( final char first )
+    throws ParseException
+  {
+    char c = first;
+    if( '-' == c ) c = read();
+    if( '0' != c )
+    {
+      if( !isDigit( c ) ) throw error( "Invalid number" );
+      skipDigits();
+    }
+    if( _position < _length && '.' == _text.charAt( _position ) )
+    {
+      _position++;
+      if( !isDigit( read() ) ) throw error( "Invalid number" );
+      skipDigits();
+    }
+    if( _position < _length && ( 'e' == _text.charAt( _position ) || 'E' == _text.charAt( _position ) ) )
+    {
+      _position++;
+      c = read();
+      if( '+' == c || '-' == c ) c = read();
+      if( !isDigit( c ) ) throw error( "Invalid number" );
+      skipDigits();
+    }
+  }
+
+  private void skipDigits()
+  {
+    while( _position < _length && isDigit( _text.charAt( _position ) ) )
+    {
+      _position++;
+    }
+  }
+
+  private void skipWhitespace()
+  {
+    while( _position < _length )
+    {
+      final char c = _text.charAt( _position );
+      if( ' ' != c && '\t' != c && '\n' != c && '\r' != c ) return;
+      _position++;
+    }
+  }
+
+  private char read()
+    throws ParseException
+  {
+    if( _position >= _length ) throw error( "Unexpected end of input" );
+    return _text.charAt( _position++ );
+  }
+
+  private static boolean isDigit( final char c )
+  {
+    return c >= '0' && c <= '9';
+  }
+
+  private ParseException error( final String message )
+  {
+    return new ParseException( message + " at offset " + _position, _position );
+  }
+}
@@ -0,0 +1,33 @@
+package org.realityforge.jml;
+
+/**
+ * The type of a JSON value expected by a verifier created by
+ * {@link MessageVerifier#newJsonVerifier(java.util.Map)}.
+ */
+public enum JsonType
+{
+  STRING, NUMBER, BOOLEAN, NULL, OBJECT, ARRAY,
+  /// Any value is accepted, the field need only be present.
+  ANY;
+
+  static JsonType forToken( final JsonReader.Token token )
+  {
+    switch( token )
+    {
+      case BEGIN_OBJECT:
+        return OBJECT;
+      case BEGIN_ARRAY:
+        return ARRAY;
+      case STRING:
+        return STRING;
+      case NUMBER:
+        return NUMBER;
+      case BOOLEAN:
+        return BOOLEAN;
+      case NULL:
+        return NULL;
+      default:
+        throw new IllegalArgumentException( "Token " + token + " does not start a value" );
+    }
+  }
+}
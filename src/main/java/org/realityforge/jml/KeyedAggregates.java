@@ -0,0 +1,154 @@
+package org.realityforge.jml;
+
+import java.util.Arrays;
+
+/**
+ * The count, sum, minimum and maximum of the values recorded for each key. The aggregates are
+ * held in parallel primitive arrays indexed by an open addressing hash table of the keys so that
+ * recording a value for an existing key does not allocate. Clearing retains the arrays so that
+ * the instance can be reused for the next window.
+ */
+final class KeyedAggregates
+{
+  private static final int INITIAL_CAPACITY = 64;
+
+  private String[] _keys;
+  private long[] _counts;
+  private double[] _sums;
+  private double[] _mins;
+  private double[] _maxs;
+  private int _size;
+
+  KeyedAggregates()
+  {
+    allocate( INITIAL_CAPACITY );
+  }
+
+  /** Return the number of keys. */
+  int size()
+  {
+    return _size;
+  }
+
+  /** Return the number of slots. Slots that do not contain a key have a null key. */
+  int capacity()
+  {
+    return _keys.length;
+  }
+
+  String keyAt( final int slot )
+  {
+    return _keys[ slot ];
+  }
+
+  long countAt( final int slot )
+  {
+    return _counts[ slot ];
+  }
+
+  double sumAt( final int slot )
+  {
+    return _sums[ slot ];
+  }
+
+  double minAt( final int slot )
+  {
+    return _mins[ slot ];
+  }
+
+  double maxAt( final int slot )
+  {
+    return _maxs[ slot ];
+  }
+
+  /** Record a value for the key. */
+  void add( final String key, final double value )
+  {
+    merge( key, 1, value, value, value );
+  }
+
+  /** Add the aggregates of every key in the other instance to this instance. */
+  void addAll( final KeyedAggregates other )
+  {
+    for( int i = 0; i < other._keys.length; i++ )
+    {
+      final String key = other._keys[ i ];
+      if( null != key ) merge( key, other._counts[ i ], other._sums[ i ], other._mins[ i ], other._maxs[ i ] );
+    }
+  }
+
+  /** Remove every key. */
+  void clear()
+  {
+    if( 0 != _size )
+    {
+      Arrays.fill( _keys, null );
+      _size = 0;
+    }
+  }
+
+  private void merge( final String key, final long count, final double sum, final double min, final double max )
+  {
+    final int slot = slotFor( key );
+    if( null == _keys[ slot ] )
+    {
+      _keys[ slot ] = key;
+      _counts[ slot ] = count;
+      _sums[ slot ] = sum;
+      _mins[ slot ] = min;
+      _maxs[ slot ] = max;
+      if( ++_size * 2 > _keys.length ) resize();
+    }
+    else
+    {
+      _counts[ slot ] += count;
+      _sums[ slot ] += sum;
+      if( min < _mins[ slot ] ) _mins[ slot ] = min;
+      if( max > _maxs[ slot ] ) _maxs[ slot ] = max;
+    }
+  }
+
+  private int slotFor( final String key )
+  {
+    final int mask = _keys.length - 1;
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    int slot = hash & mask;
+    while( null != _keys[ slot ] && !key.equals( _keys[ slot ] ) )
+    {
+      slot = ( slot + 1 ) & mask;
+    }
+    return slot;
+  }
+
+  private void resize()
+  {
+    final String[] keys = _keys;
+    final long[] counts = _counts;
+    final double[] sums = _sums;
+    final double[] mins = _mins;
+    final double[] maxs = _maxs;
+    allocate( keys.length * 2 );
+    for( int i = 0; i < keys.length; i++ )
+    {
+      if( null != keys[ i ] )
+      {
+        final int slot = slotFor( keys[ i ] );
+        _keys[ slot ] = keys[ i ];
+        _counts[ slot ] = counts[ i ];
+        _sums[ slot ] = sums[ i ];
+        _mins[ slot ] = mins[ i ];
+        _maxs[ slot ] = maxs[ i ];
+      }
+    }
+  }
+
+  private void allocate( final int capacity )
+  {
+    _keys = new String[ capacity ];
+    _counts = new long[ capacity ];
+    _sums = new double[ capacity ];
+    _mins = new double[ capacity ];
+    _maxs = new double[ capacity ];
+  }
+}
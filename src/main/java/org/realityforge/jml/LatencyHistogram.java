@@ -0,0 +1,231 @@
+package org.realityforge.jml;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory histogram of latencies. Values are recorded into log-linear buckets in the
+ * manner of HdrHistogram so that every value up to the highest trackable value is recorded
+ * with the specified number of significant decimal digits, and recording a value neither
+ * allocates nor blocks. Values below zero are recorded as zero and values above the highest
+ * trackable value are recorded as the highest trackable value.
+ *
+ * <p>The histogram may be recorded and read concurrently. {@link #snapshot()} returns the values
+ * recorded since the histogram was created or reset, and {@link #intervalSnapshot()} returns
+ * the values recorded since the previous interval snapshot.</p>
+ */
+public final class LatencyHistogram
+{
+  private final long _highestTrackableValue;
+  private final int _subBucketHalfCountMagnitude;
+  private final int _subBucketHalfCount;
+  private final long _subBucketMask;
+  private final int _leadingZeroCountBase;
+  private final AtomicLongArray _counts;
+  private final Object _intervalLock = new Object();
+  private long[] _intervalBase;
+
+  /**
+   * Create a histogram.
+   *
+   * @param highestTrackableValue the highest value that is recorded with full precision.
+   * @param significantDigits the number of significant decimal digits, between 1 and 5.
+   */
+  public LatencyHistogram( final long highestTrackableValue, final int significantDigits )
+  {
+    if( highestTrackableValue < 2 ) throw new IllegalArgumentException( "highestTrackableValue must be at least 2" );
+    if( significantDigits < 1 || significantDigits > 5 )
+    {
+      throw new IllegalArgumentException( "significantDigits must be between 1 and 5" );
+    }
+    _highestTrackableValue = highestTrackableValue;
+    final long largestValueWithSingleUnitResolution = 2 * (long)Math.pow( 10, significantDigits );
+    final int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros( largestValueWithSingleUnitResolution - 1 );
+    _subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+    _subBucketHalfCount = 1 << _subBucketHalfCountMagnitude;
+    final long subBucketCount = 1L << subBucketCountMagnitude;
+    _subBucketMask = subBucketCount - 1;
+    _leadingZeroCountBase = 64 - _subBucketHalfCountMagnitude - 1;
+
+    long trackableValue = subBucketCount - 1;
+    int bucketCount = 1;
+    while( trackableValue < highestTrackableValue )
+    {
+      trackableValue = ( trackableValue << 1 ) | 1;
+      bucketCount++;
+    }
+    _counts = new AtomicLongArray( ( bucketCount + 1 ) * _subBucketHalfCount );
+    _intervalBase = new long[ _counts.length() ];
+  }
+
+  /** Return the highest value that is recorded with full precision. */
+  public long getHighestTrackableValue()
+  {
+    return _highestTrackableValue;
+  }
+
+  /** Record a value. */
+  public void recordValue( final long value )
+  {
+    _counts.incrementAndGet( indexOf( Math.max( 0, Math.min( value, _highestTrackableValue ) ) ) );
+  }
+
+  /** Remove all recorded values. */
+  public void reset()
+  {
+    synchronized( _intervalLock )
+    {
+      for( int i = 0; i < _counts.length(); i++ )
+      {
+        _counts.set( i, 0 );
+      }
+      _intervalBase = new long[ _counts.length() ];
+    }
+  }
+
+  /** Return a snapshot of the values recorded since the histogram was created or reset. */
+  public Snapshot snapshot()
+  {
+    final long[] counts = new long[ _counts.length() ];
+    for( int i = 0; i < counts.length; i++ )
+    {
+      counts[ i ] = _counts.get( i );
+    }
+    return new Snapshot( counts );
+  }
+
+  /**
+   * Return a snapshot of the values recorded since the previous invocation of this method,
+   * or since the histogram was created or reset.
+   */
+  public Snapshot intervalSnapshot()
+  {
+    synchronized( _intervalLock )
+    {
+      final long[] counts = new long[ _counts.length() ];
+      for( int i = 0; i < counts.length; i++ )
+      {
+        final long count = _counts.get( i );
+        counts[ i ] = count - _intervalBase[ i ];
+        _intervalBase[ i ] = count;
+      }
+      return new Snapshot( counts );
+    }
+  }
+
+  private int indexOf( final long value )
+  {
+    final int bucketIndex = _leadingZeroCountBase - Long.numberOfLeadingZeros( value | _subBucketMask );
+    final int subBucketIndex = (int)( value >>> bucketIndex );
+    return ( ( bucketIndex + 1 ) << _subBucketHalfCountMagnitude ) + ( subBucketIndex - _subBucketHalfCount );
+  }
+
+  private long lowestValueAt( final int index )
+  {
+    int bucketIndex = ( index >> _subBucketHalfCountMagnitude ) - 1;
+    int subBucketIndex = ( index & ( _subBucketHalfCount - 1 ) ) + _subBucketHalfCount;
+    if( bucketIndex < 0 )
+    {
+      subBucketIndex -= _subBucketHalfCount;
+      bucketIndex = 0;
+    }
+    return ( (long)subBucketIndex ) << bucketIndex;
+  }
+
+  private long highestValueAt( final int index )
+  {
+    final int bucketIndex = Math.max( 0, ( index >> _subBucketHalfCountMagnitude ) - 1 );
+    return Math.min( lowestValueAt( index ) + ( 1L << bucketIndex ) - 1, _highestTrackableValue );
+  }
+
+  /**
+   * An immutable copy of the counts recorded by a histogram. Values reported by a snapshot
+   * are the highest value equivalent to the recorded value at the precision of the histogram.
+   */
+  public final class Snapshot
+  {
+    private final long[] _snapshotCounts;
+    private final long _totalCount;
+
+    Snapshot( final long[] counts )
+    {
+      _snapshotCounts = counts;
+      long totalCount = 0;
+      for( final long count : counts )
+      {
+        totalCount += count;
+      }
+      _totalCount = totalCount;
+    }
+
+    /** Return the number of values recorded. */
+    public long getCount()
+    {
+      return _totalCount;
+    }
+
+    /** Return the smallest value recorded, or 0 if no values were recorded. */
+    public long getMin()
+    {
+      for( int i = 0; i < _snapshotCounts.length; i++ )
+      {
+        if( 0 != _snapshotCounts[ i ] ) return lowestValueAt( i );
+      }
+      return 0;
+    }
+
+    /** Return the largest value recorded, or 0 if no values were recorded. */
+    public long getMax()
+    {
+      for( int i = _snapshotCounts.length - 1; i >= 0; i-- )
+      {
+        if( 0 != _snapshotCounts[ i ] ) return highestValueAt( i );
+      }
+      return 0;
+    }
+
+    /** Return the mean of the values recorded, or 0 if no values were recorded. */
+    public double getMean()
+    {
+      if( 0 == _totalCount ) return 0;
+      double total = 0;
+      for( int i = 0; i < _snapshotCounts.length; i++ )
+      {
+        if( 0 != _snapshotCounts[ i ] )
+        {
+          total += _snapshotCounts[ i ] * ( ( lowestValueAt( i ) + highestValueAt( i ) ) / 2.0 );
+        }
+      }
+      return total / _totalCount;
+    }
+
+    /**
+     * Return the value at or below which the specified percentage of the recorded values fall,
+     * or 0 if no values were recorded.
+     *
+     * @param percentile the percentile between 0 and 100.
+     */
+    public long getValueAtPercentile( final double percentile )
+    {
+      if( percentile < 0 || percentile > 100 )
+      {
+        throw new IllegalArgumentException( "percentile must be between 0 and 100" );
+      }
+      final long target = Math.max( 1, (long)Math.ceil( percentile / 100 * _totalCount ) );
+      long count = 0;
+      for( int i = 0; i < _snapshotCounts.length; i++ )
+      {
+        count += _snapshotCounts[ i ];
+        if( count >= target ) return highestValueAt( i );
+      }
+      return 0;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "count=" + getCount() + " min=" + getMin() + " mean=" + Math.round( getMean() ) +
+             " p50=" + getValueAtPercentile( 50 ) + " p99=" + getValueAtPercentile( 99 ) +
+             " p99.9=" + getValueAtPercentile( 99.9 ) + " max=" + getMax();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package org.realityforge.jml;
+
+import java.util.List;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+/**
+ * Abstract class for services that combine the replies gathered for a request into a single
+ * message. Instances of this class should be stateless and thread-safe.
+ */
+public abstract class MessageAggregator
+{
+  /**
+   * Return the message combining the replies.
+   *
+   * @param session the session associated with the messages.
+   * @param request the request the replies were gathered for.
+   * @param replies the replies in the order they were received.
+   * @return the combined message.
+   * @throws Exception if there is a problem combining the replies.
+   */
+  public abstract Message aggregate( final Session session, final Message request, final List<Message> replies )
+    throws Exception;
+
+  /**
+   * Create an aggregator that expects XML formatted TextMessage replies and nests the document
+   * element of each reply inside the specified root element. Any byte order mark, XML declaration,
+   * processing instructions, comments and whitespace before the document element are removed.
+   * Replies with a document type declaration are rejected. The headers and properties of the
+   * request are copied to the combined message.
+   *
+   * @param rootElement the name of the root element of the combined message.
+   */
+  public static MessageAggregator newXMLAggregator( final String rootElement )
+  {
+    if( null == rootElement ) throw new NullPointerException( "rootElement" );
+    return new XMLMessageAggregator( rootElement );
+  }
+
+  private static final class XMLMessageAggregator
+    extends MessageAggregator
+  {
+    private final String _rootElement;
+
+    XMLMessageAggregator( final String rootElement )
+    {
+      _rootElement = rootElement;
+    }
+
+    @Override
+    public Message aggregate( final Session session, final Message request, final List<Message> replies )
+      throws Exception
+    {
+      final StringBuilder sb = new StringBuilder();
+      sb.append( '<' ).append( _rootElement ).append( '>' );
+      for( final Message reply : replies )
+      {
+        final String text = MessageUtil.castToType( reply, TextMessage.class ).getText();
+        if( null == text ) throw MessageUtil.exceptionFor( reply, "has no content", null );
+        sb.append( text, findDocumentElement( reply, text ), text.length() );
+      }
+      sb.append( "</" ).append( _rootElement ).append( '>' );
+      final TextMessage result = session.createTextMessage( sb.toString() );
+      MessageUtil.copyMessageHeaders( request, result );
+      return result;
+    }
+
+    /**
+     * Return the position of the document element, skipping the prolog that can not be nested.
+     */
+    private static int findDocumentElement( final Message reply, final String text )
+      throws Exception
+    {
+      int position = 0;
+      while( true )
+      {
+        while( position < text.length() &&
+               ( '\uFEFF' == text.charAt( position ) || Character.isWhitespace( text.charAt( position ) ) ) )
+        {
+          position++;
+        }
+        if( text.startsWith( "<?", position ) )
+        {
+          position = skipPast( reply, text, position, "?>" );
+        }
+        else if( text.startsWith( "<!--", position ) )
+        {
+          position = skipPast( reply, text, position, "-->" );
+        }
+        else if( text.startsWith( "<!DOCTYPE", position ) )
+        {
+          throw MessageUtil.exceptionFor( reply, "has a document type declaration", null );
+        }
+        else if( position < text.length() && '<' == text.charAt( position ) )
+        {
+          return position;
+        }
+        else
+        {
+          throw MessageUtil.exceptionFor( reply, "has no document element", null );
+        }
+      }
+    }
+
+    private static int skipPast( final Message reply, final String text, final int position, final String end )
+      throws Exception
+    {
+      final int index = text.indexOf( end, position );
+      if( -1 == index ) throw MessageUtil.exceptionFor( reply, "has a malformed XML prolog", null );
+      return index + end.length();
+    }
+  }
+}
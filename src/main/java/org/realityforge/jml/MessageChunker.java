@@ -0,0 +1,184 @@
+package org.realityforge.jml;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+/**
+ * The message endpoint that splits messages with large bodies into a group of smaller chunk
+ * messages and sends them to a destination channel. Messages with bodies no larger than the
+ * chunk size are sent unchanged. Chunks can be reassembled by a {@link MessageReassembler}.
+ *
+ * <p>Each chunk is a BytesMessage with the headers and properties of the original message plus
+ * properties identifying the group, the sequence number of the chunk within the group, the total
+ * number of chunks, the offset of the chunk and the length and type of the original body. The body
+ * of a BytesMessage is read one chunk at a time so only a single chunk is held in memory.</p>
+ *
+ * <p>Only TextMessages and BytesMessages can be chunked. Text is encoded as UTF-8.</p>
+ */
+public final class MessageChunker
+  extends AbstractMessageEndpoint
+{
+  /// The default maximum size in bytes of the body of a chunk.
+  public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+  /// The property identifying the group a chunk belongs to.
+  public static final String GROUP_ID_PROPERTY = "jmlChunkGroupID";
+  /// The property containing the 1-based sequence number of a chunk within its group.
+  public static final String SEQUENCE_PROPERTY = "jmlChunkSequence";
+  /// The property containing the number of chunks in the group.
+  public static final String COUNT_PROPERTY = "jmlChunkCount";
+  /// The property containing the offset of the chunk in the original body.
+  public static final String OFFSET_PROPERTY = "jmlChunkOffset";
+  /// The property containing the length in bytes of the original body.
+  public static final String LENGTH_PROPERTY = "jmlChunkedLength";
+  /// The property recording whether the original message was a TextMessage or BytesMessage.
+  public static final String BODY_TYPE_PROPERTY = "jmlChunkedBodyType";
+
+  static final String TEXT_BODY = "text";
+  static final String BYTES_BODY = "bytes";
+  static final String ENCODING = "UTF-8";
+
+  private ChannelSpec _destination;
+  private int _chunkSize = DEFAULT_CHUNK_SIZE;
+  private MessageProducer _destinationProducer;
+  private byte[] _buffer;
+
+  /** Specify the destination channel. */
+  public void setDestinationChannel( final String channelSpec )
+  {
+    ensureEditable();
+    _destination = ChannelSpec.parseChannelSpec( channelSpec );
+  }
+
+  /** Specify the maximum size in bytes of the body of a chunk. */
+  public void setChunkSize( final int chunkSize )
+  {
+    ensureEditable();
+    if( chunkSize < 1 ) throw new IllegalArgumentException( "chunkSize must be at least 1" );
+    _chunkSize = chunkSize;
+  }
+
+  public int getChunkSize()
+  {
+    return _chunkSize;
+  }
+
+  @Override
+  protected void preSubscribe( final Session session ) throws Exception
+  {
+    _destinationProducer = session.createProducer( _destination.create( session ) );
+    _buffer = new byte[ _chunkSize ];
+  }
+
+  @Override
+  protected void preSessionClose()
+  {
+    try
+    {
+      if( null != _destinationProducer ) _destinationProducer.close();
+    }
+    catch( final JMSException e )
+    {
+      warning( "Closing destination producer", e );
+    }
+    _destinationProducer = null;
+    _buffer = null;
+  }
+
+  @Override
+  protected void handleMessage( final Session session, final Message message ) throws Exception
+  {
+    if( message instanceof TextMessage )
+    {
+      final String text = ( (TextMessage)message ).getText();
+      final byte[] data = null == text ? new byte[ 0 ] : text.getBytes( ENCODING );
+      if( data.length <= _chunkSize )
+      {
+        send( message );
+        return;
+      }
+      final int count = chunkCount( data.length );
+      for( int i = 0; i < count; i++ )
+      {
+        final int offset = i * _chunkSize;
+        final BytesMessage chunk = session.createBytesMessage();
+        chunk.writeBytes( data, offset, Math.min( _chunkSize, data.length - offset ) );
+        sendChunk( message, chunk, TEXT_BODY, i, count, data.length );
+      }
+    }
+    else if( message instanceof BytesMessage )
+    {
+      final BytesMessage bytesMessage = (BytesMessage)message;
+      bytesMessage.reset();
+      final int length = (int)bytesMessage.getBodyLength();
+      if( length <= _chunkSize )
+      {
+        send( message );
+        return;
+      }
+      final int count = chunkCount( length );
+      for( int i = 0; i < count; i++ )
+      {
+        final int size = bytesMessage.readBytes( _buffer, _chunkSize );
+        final BytesMessage chunk = session.createBytesMessage();
+        chunk.writeBytes( _buffer, 0, size );
+        sendChunk( message, chunk, BYTES_BODY, i, count, length );
+      }
+    }
+    else
+    {
+      throw MessageUtil.exceptionFor( message, "is not a TextMessage or BytesMessage and can not be chunked", null );
+    }
+  }
+
+  @Override
+  protected void preSendMessageToDMQ( final Message message ) throws JMSException
+  {
+    message.setStringProperty( "JMLDestinationChannel", _destination.toSpec() );
+  }
+
+  @Override
+  protected void ensureValidConfig()
+    throws Exception
+  {
+    super.ensureValidConfig();
+    if( null == _destination ) throw invalid( "destination channel not specified" );
+  }
+
+  private int chunkCount( final int length )
+  {
+    return ( length + _chunkSize - 1 ) / _chunkSize;
+  }
+
+  private void sendChunk( final Message message,
+                          final BytesMessage chunk,
+                          final String bodyType,
+                          final int index,
+                          final int count,
+                          final int length )
+    throws JMSException
+  {
+    MessageUtil.copyMessageHeaders( message, chunk );
+    chunk.setStringProperty( GROUP_ID_PROPERTY, message.getJMSMessageID() );
+    chunk.setIntProperty( SEQUENCE_PROPERTY, index + 1 );
+    chunk.setIntProperty( COUNT_PROPERTY, count );
+    chunk.setIntProperty( OFFSET_PROPERTY, index * _chunkSize );
+    chunk.setIntProperty( LENGTH_PROPERTY, length );
+    chunk.setStringProperty( BODY_TYPE_PROPERTY, bodyType );
+    send( chunk );
+  }
+
+  private void send( final Message output )
+    throws JMSException
+  {
+    final Message message = MessageView.unwrap( output );
+    _destinationProducer.send( message,
+                                message.getJMSDeliveryMode(),
+                                message.getJMSPriority(),
+                                message.getJMSExpiration() );
+  }
+}
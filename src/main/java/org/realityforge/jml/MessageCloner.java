@@ -0,0 +1,211 @@
+package org.realityforge.jml;
+
+import java.lang.reflect.Method;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageEOFException;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TextMessage;
+
+/**
+ * Utility class that creates a copy of a message, including headers, properties and body,
+ * using a session. Used when routing messages to the dead message queue and available to
+ * transformers that need a writable copy of a message.
+ *
+ * <p>Every standard body type is copied in a single pass over the source message. The bodies of
+ * BytesMessages and StreamMessages are reset before and after copying so the source can still be
+ * read. If the message implementation exposes the serialized content of an ObjectMessage, as the
+ * ActiveMQ implementation does, then the serialized bytes are copied without deserializing the
+ * object. This avoids the cost of serialization and does not require the class of the object to
+ * be loadable by the endpoint. Otherwise the object is deserialized and set on the copy.</p>
+ */
+public final class MessageCloner
+{
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final ThreadLocal<byte[]> c_buffer = new ThreadLocal<byte[]>()
+  {
+    @Override
+    protected byte[] initialValue()
+    {
+      return new byte[ BUFFER_SIZE ];
+    }
+  };
+
+  private static final ConcurrentHashMap<Class<?>, ContentAccessor> c_accessors =
+    new ConcurrentHashMap<Class<?>, ContentAccessor>();
+  private static final ContentAccessor NO_ACCESSOR = new ContentAccessor( null, null, null, null );
+
+  private MessageCloner()
+  {
+  }
+
+  /**
+   * Create a copy of the message, including headers, properties and body, using the session.
+   */
+  public static Message cloneMessage( final Session session, final Message from )
+    throws Exception
+  {
+    final Message to;
+    if( from instanceof TextMessage )
+    {
+      to = session.createTextMessage( ( (TextMessage)from ).getText() );
+    }
+    else if( from instanceof BytesMessage )
+    {
+      to = cloneBytesMessage( session, (BytesMessage)from );
+    }
+    else if( from instanceof MapMessage )
+    {
+      to = cloneMapMessage( session, (MapMessage)from );
+    }
+    else if( from instanceof StreamMessage )
+    {
+      to = cloneStreamMessage( session, (StreamMessage)from );
+    }
+    else if( from instanceof ObjectMessage )
+    {
+      to = cloneObjectMessage( session, (ObjectMessage)from );
+    }
+    else
+    {
+      to = session.createMessage();
+    }
+
+    MessageUtil.copyMessageHeaders( from, to );
+    return to;
+  }
+
+  private static BytesMessage cloneBytesMessage( final Session session, final BytesMessage from )
+    throws JMSException
+  {
+    final BytesMessage to = session.createBytesMessage();
+    final byte[] buffer = c_buffer.get();
+    from.reset();
+    int count;
+    while( -1 != ( count = from.readBytes( buffer ) ) )
+    {
+      to.writeBytes( buffer, 0, count );
+    }
+    from.reset();
+    return to;
+  }
+
+  private static MapMessage cloneMapMessage( final Session session, final MapMessage from )
+    throws JMSException
+  {
+    final MapMessage to = session.createMapMessage();
+    final Enumeration names = from.getMapNames();
+    while( names.hasMoreElements() )
+    {
+      final String name = (String)names.nextElement();
+      to.setObject( name, from.getObject( name ) );
+    }
+    return to;
+  }
+
+  private static StreamMessage cloneStreamMessage( final Session session, final StreamMessage from )
+    throws JMSException
+  {
+    final StreamMessage to = session.createStreamMessage();
+    from.reset();
+    try
+    {
+      while( true )
+      {
+        to.writeObject( from.readObject() );
+      }
+    }
+    catch( final MessageEOFException meofe )
+    {
+      //End of stream
+    }
+    from.reset();
+    return to;
+  }
+
+  private static ObjectMessage cloneObjectMessage( final Session session, final ObjectMessage from )
+    throws Exception
+  {
+    final ObjectMessage to = session.createObjectMessage();
+    final Message source = MessageView.unwrap( from );
+    final ContentAccessor accessor = accessorFor( source.getClass() );
+    if( accessor == NO_ACCESSOR || accessor != accessorFor( to.getClass() ) || !accessor.copy( source, to ) )
+    {
+      to.setObject( from.getObject() );
+    }
+    return to;
+  }
+
+  private static ContentAccessor accessorFor( final Class<?> type )
+  {
+    ContentAccessor accessor = c_accessors.get( type );
+    if( null == accessor )
+    {
+      accessor = ContentAccessor.lookup( type );
+      c_accessors.put( type, accessor );
+    }
+    return accessor;
+  }
+
+  /**
+   * Reflective access to the serialized content of a message implementation that exposes
+   * public getContent/setContent and isCompressed/setCompressed methods.
+   */
+  private static final class ContentAccessor
+  {
+    private final Method _getContent;
+    private final Method _setContent;
+    private final Method _isCompressed;
+    private final Method _setCompressed;
+
+    ContentAccessor( final Method getContent,
+                     final Method setContent,
+                     final Method isCompressed,
+                     final Method setCompressed )
+    {
+      _getContent = getContent;
+      _setContent = setContent;
+      _isCompressed = isCompressed;
+      _setCompressed = setCompressed;
+    }
+
+    static ContentAccessor lookup( final Class<?> type )
+    {
+      try
+      {
+        final Method getContent = type.getMethod( "getContent" );
+        final Method setContent = type.getMethod( "setContent", getContent.getReturnType() );
+        final Method isCompressed = type.getMethod( "isCompressed" );
+        final Method setCompressed = type.getMethod( "setCompressed", Boolean.TYPE );
+        return new ContentAccessor( getContent, setContent, isCompressed, setCompressed );
+      }
+      catch( final Exception e )
+      {
+        return NO_ACCESSOR;
+      }
+    }
+
+    /**
+     * Copy the serialized content, returning false if the source has not been serialized.
+     */
+    boolean copy( final Message from, final Message to )
+      throws Exception
+    {
+      final Object content = _getContent.invoke( from );
+      if( null == content )
+      {
+        return false;
+      }
+      _setContent.invoke( to, content );
+      _setCompressed.invoke( to, _isCompressed.invoke( from ) );
+      return true;
+    }
+  }
+}
@@ -0,0 +1,414 @@
+package org.realityforge.jml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageEOFException;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+
+/**
+ * Utility class that encodes a message, including headers, properties and body, into a
+ * compact binary form that can be stored outside the message server and later decoded
+ * into a new message created by a session.
+ *
+ * <p>The JMSReplyTo header is preserved for named queues and topics. Temporary destinations
+ * can not outlive their connection and are dropped.</p>
+ */
+public final class MessageCodec
+{
+  private static final int VERSION = 1;
+
+  private static final byte TYPE_MESSAGE = 0;
+  private static final byte TYPE_TEXT = 1;
+  private static final byte TYPE_BYTES = 2;
+  private static final byte TYPE_MAP = 3;
+  private static final byte TYPE_STREAM = 4;
+  private static final byte TYPE_OBJECT = 5;
+
+  private static final byte VALUE_NULL = 0;
+  private static final byte VALUE_BOOLEAN = 1;
+  private static final byte VALUE_BYTE = 2;
+  private static final byte VALUE_SHORT = 3;
+  private static final byte VALUE_CHAR = 4;
+  private static final byte VALUE_INT = 5;
+  private static final byte VALUE_LONG = 6;
+  private static final byte VALUE_FLOAT = 7;
+  private static final byte VALUE_DOUBLE = 8;
+  private static final byte VALUE_STRING = 9;
+  private static final byte VALUE_BYTES = 10;
+
+  private MessageCodec()
+  {
+  }
+
+  /**
+   * Encode the message into a byte array.
+   */
+  public static byte[] encode( final Message message )
+    throws Exception
+  {
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    final DataOutputStream output = new DataOutputStream( baos );
+    encode( message, output );
+    output.flush();
+    return baos.toByteArray();
+  }
+
+  /**
+   * Decode a message previously encoded by {@link #encode(Message)}.
+   */
+  public static Message decode( final Session session, final byte[] data )
+    throws Exception
+  {
+    return decode( session, new DataInputStream( new ByteArrayInputStream( data ) ) );
+  }
+
+  static void encode( final Message message, final DataOutputStream output )
+    throws Exception
+  {
+    output.writeByte( VERSION );
+    writeHeaders( message, output );
+    writeProperties( message, output );
+    if( message instanceof TextMessage )
+    {
+      output.writeByte( TYPE_TEXT );
+      writeString( output, ( (TextMessage)message ).getText() );
+    }
+    else if( message instanceof BytesMessage )
+    {
+      output.writeByte( TYPE_BYTES );
+      final BytesMessage bytesMessage = (BytesMessage)message;
+      bytesMessage.reset();
+      final byte[] data = new byte[ (int)bytesMessage.getBodyLength() ];
+      bytesMessage.readBytes( data );
+      bytesMessage.reset();
+      output.writeInt( data.length );
+      output.write( data );
+    }
+    else if( message instanceof MapMessage )
+    {
+      output.writeByte( TYPE_MAP );
+      final MapMessage mapMessage = (MapMessage)message;
+      final Enumeration names = mapMessage.getMapNames();
+      while( names.hasMoreElements() )
+      {
+        final String name = (String)names.nextElement();
+        output.writeBoolean( true );
+        output.writeUTF( name );
+        writeValue( output, mapMessage.getObject( name ) );
+      }
+      output.writeBoolean( false );
+    }
+    else if( message instanceof StreamMessage )
+    {
+      output.writeByte( TYPE_STREAM );
+      final StreamMessage streamMessage = (StreamMessage)message;
+      streamMessage.reset();
+      try
+      {
+        while( true )
+        {
+          final Object value = streamMessage.readObject();
+          output.writeBoolean( true );
+          writeValue( output, value );
+        }
+      }
+      catch( final MessageEOFException meofe )
+      {
+        output.writeBoolean( false );
+      }
+      streamMessage.reset();
+    }
+    else if( message instanceof ObjectMessage )
+    {
+      output.writeByte( TYPE_OBJECT );
+      final Serializable object = ( (ObjectMessage)message ).getObject();
+      final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      final ObjectOutputStream objectOutput = new ObjectOutputStream( baos );
+      objectOutput.writeObject( object );
+      objectOutput.close();
+      output.writeInt( baos.size() );
+      baos.writeTo( output );
+    }
+    else
+    {
+      output.writeByte( TYPE_MESSAGE );
+    }
+  }
+
+  static Message decode( final Session session, final DataInputStream input )
+    throws Exception
+  {
+    final int version = input.readUnsignedByte();
+    if( VERSION != version ) throw new IOException( "Unsupported encoding version " + version );
+
+    final String correlationID = readString( input );
+    final String type = readString( input );
+    final int deliveryMode = input.readInt();
+    final int priority = input.readInt();
+    final long expiration = input.readLong();
+    final String replyTo = readString( input );
+
+    final LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+    while( input.readBoolean() )
+    {
+      final String name = input.readUTF();
+      properties.put( name, readValue( input ) );
+    }
+
+    final byte messageType = input.readByte();
+    final Message message;
+    if( TYPE_TEXT == messageType )
+    {
+      message = session.createTextMessage( readString( input ) );
+    }
+    else if( TYPE_BYTES == messageType )
+    {
+      final byte[] data = new byte[ input.readInt() ];
+      input.readFully( data );
+      final BytesMessage bytesMessage = session.createBytesMessage();
+      bytesMessage.writeBytes( data );
+      message = bytesMessage;
+    }
+    else if( TYPE_MAP == messageType )
+    {
+      final MapMessage mapMessage = session.createMapMessage();
+      while( input.readBoolean() )
+      {
+        final String name = input.readUTF();
+        mapMessage.setObject( name, readValue( input ) );
+      }
+      message = mapMessage;
+    }
+    else if( TYPE_STREAM == messageType )
+    {
+      final StreamMessage streamMessage = session.createStreamMessage();
+      while( input.readBoolean() )
+      {
+        streamMessage.writeObject( readValue( input ) );
+      }
+      message = streamMessage;
+    }
+    else if( TYPE_OBJECT == messageType )
+    {
+      final byte[] data = new byte[ input.readInt() ];
+      input.readFully( data );
+      final ObjectInputStream objectInput = new ObjectInputStream( new ByteArrayInputStream( data ) );
+      message = session.createObjectMessage( (Serializable)objectInput.readObject() );
+    }
+    else if( TYPE_MESSAGE == messageType )
+    {
+      message = session.createMessage();
+    }
+    else
+    {
+      throw new IOException( "Unknown message type " + messageType );
+    }
+
+    message.setJMSCorrelationID( correlationID );
+    message.setJMSType( type );
+    message.setJMSDeliveryMode( deliveryMode );
+    message.setJMSPriority( priority );
+    message.setJMSExpiration( expiration );
+    if( null != replyTo )
+    {
+      message.setJMSReplyTo( ChannelSpec.parseChannelSpec( replyTo ).create( session ) );
+    }
+    for( final Map.Entry<String, Object> entry : properties.entrySet() )
+    {
+      message.setObjectProperty( entry.getKey(), entry.getValue() );
+    }
+    return message;
+  }
+
+  private static void writeHeaders( final Message message, final DataOutputStream output )
+    throws Exception
+  {
+    writeString( output, message.getJMSCorrelationID() );
+    writeString( output, message.getJMSType() );
+    output.writeInt( message.getJMSDeliveryMode() );
+    output.writeInt( message.getJMSPriority() );
+    output.writeLong( message.getJMSExpiration() );
+    writeString( output, toSpec( message.getJMSReplyTo() ) );
+  }
+
+  private static void writeProperties( final Message message, final DataOutputStream output )
+    throws Exception
+  {
+    final Enumeration names = message.getPropertyNames();
+    while( names.hasMoreElements() )
+    {
+      final String name = (String)names.nextElement();
+      output.writeBoolean( true );
+      output.writeUTF( name );
+      writeValue( output, message.getObjectProperty( name ) );
+    }
+    output.writeBoolean( false );
+  }
+
+  private static String toSpec( final Destination destination )
+    throws JMSException
+  {
+    if( destination instanceof TemporaryQueue || destination instanceof TemporaryTopic )
+    {
+      return null;
+    }
+    else if( destination instanceof Queue )
+    {
+      return ChannelSpec.QUEUE_PREFIX + ( (Queue)destination ).getQueueName();
+    }
+    else if( destination instanceof Topic )
+    {
+      return ChannelSpec.TOPIC_PREFIX + ( (Topic)destination ).getTopicName();
+    }
+    else
+    {
+      return null;
+    }
+  }
+
+  private static void writeString( final DataOutputStream output, final String value )
+    throws IOException
+  {
+    if( null == value )
+    {
+      output.writeInt( -1 );
+    }
+    else
+    {
+      final byte[] data = value.getBytes( "UTF-8" );
+      output.writeInt( data.length );
+      output.write( data );
+    }
+  }
+
+  private static String readString( final DataInputStream input )
+    throws IOException
+  {
+    final int length = input.readInt();
+    if( -1 == length ) return null;
+    final byte[] data = new byte[ length ];
+    input.readFully( data );
+    return new String( data, "UTF-8" );
+  }
+
+  private static void writeValue( final DataOutputStream output, final Object value )
+    throws IOException
+  {
+    if( null == value )
+    {
+      output.writeByte( VALUE_NULL );
+    }
+    else if( value instanceof Boolean )
+    {
+      output.writeByte( VALUE_BOOLEAN );
+      output.writeBoolean( (Boolean)value );
+    }
+    else if( value instanceof Byte )
+    {
+      output.writeByte( VALUE_BYTE );
+      output.writeByte( (Byte)value );
+    }
+    else if( value instanceof Short )
+    {
+      output.writeByte( VALUE_SHORT );
+      output.writeShort( (Short)value );
+    }
+    else if( value instanceof Character )
+    {
+      output.writeByte( VALUE_CHAR );
+      output.writeChar( (Character)value );
+    }
+    else if( value instanceof Integer )
+    {
+      output.writeByte( VALUE_INT );
+      output.writeInt( (Integer)value );
+    }
+    else if( value instanceof Long )
+    {
+      output.writeByte( VALUE_LONG );
+      output.writeLong( (Long)value );
+    }
+    else if( value instanceof Float )
+    {
+      output.writeByte( VALUE_FLOAT );
+      output.writeFloat( (Float)value );
+    }
+    else if( value instanceof Double )
+    {
+      output.writeByte( VALUE_DOUBLE );
+      output.writeDouble( (Double)value );
+    }
+    else if( value instanceof String )
+    {
+      output.writeByte( VALUE_STRING );
+      writeString( output, (String)value );
+    }
+    else if( value instanceof byte[] )
+    {
+      final byte[] data = (byte[])value;
+      output.writeByte( VALUE_BYTES );
+      output.writeInt( data.length );
+      output.write( data );
+    }
+    else
+    {
+      throw new IOException( "Unable to encode value of type " + value.getClass().getName() );
+    }
+  }
+
+  private static Object readValue( final DataInputStream input )
+    throws IOException
+  {
+    final byte type = input.readByte();
+    switch( type )
+    {
+      case VALUE_NULL:
+        return null;
+      case VALUE_BOOLEAN:
+        return input.readBoolean();
+      case VALUE_BYTE:
+        return input.readByte();
+      case VALUE_SHORT:
+        return input.readShort();
+      case VALUE_CHAR:
+        return input.readChar();
+      case VALUE_INT:
+        return input.readInt();
+      case VALUE_LONG:
+        return input.readLong();
+      case VALUE_FLOAT:
+        return input.readFloat();
+      case VALUE_DOUBLE:
+        return input.readDouble();
+      case VALUE_STRING:
+        return readString( input );
+      case VALUE_BYTES:
+        final byte[] data = new byte[ input.readInt() ];
+        input.readFully( data );
+        return data;
+      default:
+        throw new IOException( "Unknown value type " + type );
+    }
+  }
+}
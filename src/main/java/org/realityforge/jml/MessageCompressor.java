@@ -0,0 +1,448 @@
+package org.realityforge.jml;
+
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+/**
+ * Utility class that compresses the body of TextMessages and BytesMessages into BytesMessages
+ * and decompresses them again. Compressed messages are marked with a property naming the
+ * compression format and a property recording the type of the original body.
+ *
+ * <p>Deflater and Inflater instances are pooled as they hold native memory that is expensive
+ * to allocate, and the buffers used to read and write bodies are reused by each thread.</p>
+ *
+ * <p>Decompression fails once the body exceeds a maximum length so that a small, highly
+ * compressed message can not exhaust the heap.</p>
+ */
+final class MessageCompressor
+{
+  /// The property naming the CompressionFormat of a compressed message.
+  static final String COMPRESSION_PROPERTY = "jmlCompression";
+  /// The property recording the type of the body of a compressed message.
+  static final String BODY_TYPE_PROPERTY = "jmlCompressedBodyType";
+
+  private static final String TEXT_BODY = "text";
+  private static final String BYTES_BODY = "bytes";
+  private static final String ENCODING = "UTF-8";
+  private static final int MAX_POOL_SIZE = 32;
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int GZIP_HEADER_SIZE = 10;
+  private static final int GZIP_TRAILER_SIZE = 8;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private static final Pool<Deflater> c_deflaters = new Pool<Deflater>()
+  {
+    Deflater create( final CompressionFormat format )
+    {
+      return new Deflater( Deflater.DEFAULT_COMPRESSION, CompressionFormat.GZIP == format );
+    }
+
+    void reset( final Deflater deflater )
+    {
+      deflater.reset();
+    }
+
+    void dispose( final Deflater deflater )
+    {
+      deflater.end();
+    }
+  };
+
+  private static final Pool<Inflater> c_inflaters = new Pool<Inflater>()
+  {
+    Inflater create( final CompressionFormat format )
+    {
+      return new Inflater( CompressionFormat.GZIP == format );
+    }
+
+    void reset( final Inflater inflater )
+    {
+      inflater.reset();
+    }
+
+    void dispose( final Inflater inflater )
+    {
+      inflater.end();
+    }
+  };
+
+  private static final ThreadLocal<Buffers> c_buffers = new ThreadLocal<Buffers>()
+  {
+    @Override
+    protected Buffers initialValue()
+    {
+      return new Buffers();
+    }
+  };
+
+  private MessageCompressor()
+  {
+  }
+
+  static boolean isCompressed( final Message message )
+    throws JMSException
+  {
+    return message.propertyExists( COMPRESSION_PROPERTY );
+  }
+
+  /**
+   * Return a BytesMessage containing the compressed body of the message, or the message itself
+   * if the body is smaller than the threshold or the message is already compressed.
+   */
+  static Message compress( final Session session,
+                           final Message message,
+                           final CompressionFormat format,
+                           final int threshold )
+    throws Exception
+  {
+    if( isCompressed( message ) ) return message;
+    final Buffers buffers = c_buffers.get();
+    final byte[] data;
+    final int length;
+    final String bodyType;
+    if( message instanceof TextMessage )
+    {
+      final String text = ( (TextMessage)message ).getText();
+      // UTF-8 uses at most three bytes per char so short text need not be encoded to test the threshold
+      if( null == text || (long)text.length() * 3 < threshold ) return message;
+      data = text.getBytes( ENCODING );
+      length = data.length;
+      bodyType = TEXT_BODY;
+    }
+    else if( message instanceof BytesMessage )
+    {
+      final BytesMessage bytesMessage = (BytesMessage)message;
+      bytesMessage.reset();
+      length = (int)bytesMessage.getBodyLength();
+      data = buffers.input( length );
+      bytesMessage.readBytes( data, length );
+      bytesMessage.reset();
+      bodyType = BYTES_BODY;
+    }
+    else
+    {
+      throw MessageUtil.exceptionFor( message, "is not a TextMessage or BytesMessage and can not be compressed", null );
+    }
+    if( length < threshold ) return message;
+
+    final int compressedLength = deflate( format, data, length, buffers );
+    final BytesMessage result = session.createBytesMessage();
+    result.writeBytes( buffers._output, 0, compressedLength );
+    MessageUtil.copyMessageHeaders( message, result );
+    result.setStringProperty( COMPRESSION_PROPERTY, format.getPropertyValue() );
+    result.setStringProperty( BODY_TYPE_PROPERTY, bodyType );
+    return result;
+  }
+
+  /**
+   * Return a message with the decompressed body of the message, or the message itself if it is not compressed.
+   *
+   * @param maxLength the maximum length in bytes of the decompressed body.
+   */
+  static Message decompress( final Session session, final Message message, final int maxLength )
+    throws Exception
+  {
+    if( !isCompressed( message ) ) return message;
+    final Buffers buffers = c_buffers.get();
+    final int length = inflate( message, buffers, maxLength );
+    final Message result;
+    if( TEXT_BODY.equals( message.getStringProperty( BODY_TYPE_PROPERTY ) ) )
+    {
+      result = session.createTextMessage( new String( buffers._output, 0, length, ENCODING ) );
+    }
+    else
+    {
+      final BytesMessage bytesMessage = session.createBytesMessage();
+      bytesMessage.writeBytes( buffers._output, 0, length );
+      result = bytesMessage;
+    }
+    MessageUtil.copyMessageHeaders( message, result );
+    result.clearProperties();
+    final Enumeration names = message.getPropertyNames();
+    while( names.hasMoreElements() )
+    {
+      final String name = (String)names.nextElement();
+      if( !COMPRESSION_PROPERTY.equals( name ) && !BODY_TYPE_PROPERTY.equals( name ) )
+      {
+        result.setObjectProperty( name, message.getObjectProperty( name ) );
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return a read-only view of the message with the body decompressed, or the message itself if it is
+   * not compressed. Headers and properties are read from the underlying message. This allows a message
+   * to be verified without a session to create a decompressed message.
+   *
+   * @param maxLength the maximum length in bytes of the decompressed body.
+   */
+  static Message decompressedView( final Message message, final int maxLength )
+    throws Exception
+  {
+    if( !isCompressed( message ) ) return message;
+    final Buffers buffers = c_buffers.get();
+    final int length = inflate( message, buffers, maxLength );
+    if( TEXT_BODY.equals( message.getStringProperty( BODY_TYPE_PROPERTY ) ) )
+    {
+      return MessageView.newTextView( message, new String( buffers._output, 0, length, ENCODING ) );
+    }
+    else
+    {
+      final byte[] data = new byte[ length ];
+      System.arraycopy( buffers._output, 0, data, 0, length );
+      return MessageView.newBytesView( message, data );
+    }
+  }
+
+  private static int deflate( final CompressionFormat format,
+                              final byte[] data,
+                              final int length,
+                              final Buffers buffers )
+  {
+    final Deflater deflater = c_deflaters.acquire( format );
+    try
+    {
+      int position = 0;
+      if( CompressionFormat.GZIP == format )
+      {
+        final byte[] header = { (byte)GZIP_MAGIC, (byte)( GZIP_MAGIC >> 8 ), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, -1 };
+        System.arraycopy( header, 0, buffers.output( GZIP_HEADER_SIZE ), 0, GZIP_HEADER_SIZE );
+        position = GZIP_HEADER_SIZE;
+      }
+      deflater.setInput( data, 0, length );
+      deflater.finish();
+      while( !deflater.finished() )
+      {
+        final byte[] output = buffers.output( position + 1 );
+        position += deflater.deflate( output, position, output.length - position );
+      }
+      if( CompressionFormat.GZIP == format )
+      {
+        final CRC32 crc = buffers._crc;
+        crc.reset();
+        crc.update( data, 0, length );
+        final byte[] output = buffers.output( position + GZIP_TRAILER_SIZE );
+        writeIntLE( output, position, (int)crc.getValue() );
+        writeIntLE( output, position + 4, length );
+        position += GZIP_TRAILER_SIZE;
+      }
+      return position;
+    }
+    finally
+    {
+      c_deflaters.release( format, deflater );
+    }
+  }
+
+  /**
+   * Inflate the body of the compressed message into the output buffer and return the length.
+   * The output buffer grows no larger than required to detect that maxLength is exceeded.
+   */
+  private static int inflate( final Message message, final Buffers buffers, final int maxLength )
+    throws Exception
+  {
+    final CompressionFormat format =
+      CompressionFormat.forPropertyValue( message.getStringProperty( COMPRESSION_PROPERTY ) );
+    if( null == format )
+    {
+      throw MessageUtil.exceptionFor( message, "has unknown compression format " +
+                                               message.getStringProperty( COMPRESSION_PROPERTY ), null );
+    }
+    final BytesMessage bytesMessage = MessageUtil.castToType( message, BytesMessage.class );
+    bytesMessage.reset();
+    final int length = (int)bytesMessage.getBodyLength();
+    final byte[] data = buffers.input( length );
+    bytesMessage.readBytes( data, length );
+    bytesMessage.reset();
+
+    final Inflater inflater = c_inflaters.acquire( format );
+    try
+    {
+      int offset = 0;
+      int end = length;
+      if( CompressionFormat.GZIP == format )
+      {
+        offset = skipGzipHeader( data, length );
+        end = length - GZIP_TRAILER_SIZE;
+        if( end < offset ) throw new DataFormatException( "Truncated gzip data" );
+      }
+      inflater.setInput( data, offset, end - offset );
+      int position = 0;
+      while( !inflater.finished() )
+      {
+        final byte[] output = buffers.output( position + 1 );
+        final int limit = (int)Math.min( output.length, maxLength + 1L );
+        final int count = inflater.inflate( output, position, limit - position );
+        if( 0 == count && ( inflater.needsInput() || inflater.needsDictionary() ) )
+        {
+          throw new DataFormatException( "Truncated compressed data" );
+        }
+        position += count;
+        if( position > maxLength )
+        {
+          throw new DataFormatException( "Decompressed body exceeds maximum length of " + maxLength + " bytes" );
+        }
+      }
+      if( CompressionFormat.GZIP == format )
+      {
+        final CRC32 crc = buffers._crc;
+        crc.reset();
+        crc.update( buffers._output, 0, position );
+        if( readIntLE( data, end ) != (int)crc.getValue() || readIntLE( data, end + 4 ) != position )
+        {
+          throw new DataFormatException( "Corrupt gzip trailer" );
+        }
+      }
+      return position;
+    }
+    catch( final DataFormatException dfe )
+    {
+      throw MessageUtil.exceptionFor( message, "failed to decompress body", dfe );
+    }
+    finally
+    {
+      c_inflaters.release( format, inflater );
+    }
+  }
+
+  private static int skipGzipHeader( final byte[] data, final int length )
+    throws DataFormatException
+  {
+    if( length < GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE ||
+        GZIP_MAGIC != ( ( data[ 0 ] & 0xFF ) | ( ( data[ 1 ] & 0xFF ) << 8 ) ) ||
+        Deflater.DEFLATED != data[ 2 ] )
+    {
+      throw new DataFormatException( "Not in gzip format" );
+    }
+    final int flags = data[ 3 ] & 0xFF;
+    int offset = GZIP_HEADER_SIZE;
+    if( 0 != ( flags & FEXTRA ) )
+    {
+      offset += 2 + ( ( data[ offset ] & 0xFF ) | ( ( data[ offset + 1 ] & 0xFF ) << 8 ) );
+    }
+    if( 0 != ( flags & FNAME ) ) offset = skipZeroTerminated( data, offset, length );
+    if( 0 != ( flags & FCOMMENT ) ) offset = skipZeroTerminated( data, offset, length );
+    if( 0 != ( flags & FHCRC ) ) offset += 2;
+    return offset;
+  }
+
+  private static int skipZeroTerminated( final byte[] data, final int offset, final int length )
+    throws DataFormatException
+  {
+    for( int i = offset; i < length; i++ )
+    {
+      if( 0 == data[ i ] ) return i + 1;
+    }
+    throw new DataFormatException( "Truncated gzip header" );
+  }
+
+  private static void writeIntLE( final byte[] data, final int offset, final int value )
+  {
+    data[ offset ] = (byte)value;
+    data[ offset + 1 ] = (byte)( value >> 8 );
+    data[ offset + 2 ] = (byte)( value >> 16 );
+    data[ offset + 3 ] = (byte)( value >> 24 );
+  }
+
+  private static int readIntLE( final byte[] data, final int offset )
+  {
+    return ( data[ offset ] & 0xFF ) |
+           ( ( data[ offset + 1 ] & 0xFF ) << 8 ) |
+           ( ( data[ offset + 2 ] & 0xFF ) << 16 ) |
+           ( ( data[ offset + 3 ] & 0xFF ) << 24 );
+  }
+
+  /**
+   * The buffers reused by a thread.
+   */
+  private static final class Buffers
+  {
+    private final CRC32 _crc = new CRC32();
+    private byte[] _input = new byte[ 8192 ];
+    private byte[] _output = new byte[ 8192 ];
+
+    byte[] input( final int length )
+    {
+      if( _input.length < length ) _input = new byte[ Math.max( length, _input.length * 2 ) ];
+      return _input;
+    }
+
+    /**
+     * Return the output buffer, growing it while preserving its content if it is smaller than length.
+     */
+    byte[] output( final int length )
+    {
+      if( _output.length < length )
+      {
+        final byte[] output = new byte[ Math.max( length, _output.length * 2 ) ];
+        System.arraycopy( _output, 0, output, 0, _output.length );
+        _output = output;
+      }
+      return _output;
+    }
+  }
+
+  /**
+   * A bounded pool of codec instances for each compression format.
+   */
+  private abstract static class Pool<T>
+  {
+    private final ConcurrentLinkedQueue<T>[] _queues;
+    private final AtomicInteger[] _sizes;
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    Pool()
+    {
+      final CompressionFormat[] formats = CompressionFormat.values();
+      _queues = new ConcurrentLinkedQueue[ formats.length ];
+      _sizes = new AtomicInteger[ formats.length ];
+      for( int i = 0; i < formats.length; i++ )
+      {
+        _queues[ i ] = new ConcurrentLinkedQueue<T>();
+        _sizes[ i ] = new AtomicInteger();
+      }
+    }
+
+    final T acquire( final CompressionFormat format )
+    {
+      final T instance = _queues[ format.ordinal() ].poll();
+      if( null == instance ) return create( format );
+      _sizes[ format.ordinal() ].decrementAndGet();
+      return instance;
+    }
+
+    final void release( final CompressionFormat format, final T instance )
+    {
+      if( _sizes[ format.ordinal() ].incrementAndGet() <= MAX_POOL_SIZE )
+      {
+        reset( instance );
+        _queues[ format.ordinal() ].offer( instance );
+      }
+      else
+      {
+        _sizes[ format.ordinal() ].decrementAndGet();
+        dispose( instance );
+      }
+    }
+
+    abstract T create( CompressionFormat format );
+
+    abstract void reset( T instance );
+
+    abstract void dispose( T instance );
+  }
+}
@@ -0,0 +1,55 @@
+package org.realityforge.jml;
+
+import java.text.ParseException;
+import javax.jms.Message;
+
+/**
+ * Abstract class used to select the messages processed by an endpoint. Filters are evaluated
+ * in the client and may inspect the body of the message, which broker-side selectors can not.
+ * Instances of this class should be stateless and thread-safe.
+ *
+ * <p>Filters are usually compiled from an expression using {@link #compile(String)}. The
+ * expression language resembles the JMS selector syntax:</p>
+ *
+ * <pre>
+ * expression := expression OR expression | expression AND expression | NOT expression | ( expression )
+ *             | operand comparison literal | operand [NOT] IN ( literal, ... )
+ *             | operand [NOT] MATCHES 'regex' | operand IS [NOT] NULL | operand
+ * operand    := JMSMessageID | JMSCorrelationID | JMSType | JMSPriority | JMSDeliveryMode
+ *             | JMSTimestamp | JMSExpiration | JMSRedelivered | property | body | xpath('expression')
+ * comparison := = | &lt;&gt; | &lt; | &lt;= | &gt; | &gt;=
+ * literal    := 'string' | number | TRUE | FALSE
+ * </pre>
+ *
+ * <p>The body operand is the text of a TextMessage and xpath() evaluates an XPath expression
+ * against the body of a TextMessage. Simple location paths, as supported by
+ * {@link MessageVerifier#newXPathVerifier(java.util.Map)}, are resolved in one streaming pass
+ * that stops once every such path is found, while other expressions parse the whole body. Bodies
+ * that contain a document type declaration are not well-formed for the purposes of xpath(). A
+ * MATCHES predicate succeeds if the regular expression is found anywhere in the value. An operand
+ * used alone must be true, or for xpath(), evaluate to true. Comparisons with missing values, and
+ * with bodies of messages that are not TextMessages, are false.</p>
+ */
+public abstract class MessageFilter
+{
+  /**
+   * Return true if the message should be processed.
+   *
+   * @throws Exception if the filter can not be evaluated against the message.
+   */
+  public abstract boolean accept( Message message ) throws Exception;
+
+  /**
+   * Compile the expression into a filter. The expression is parsed once into a tree that is
+   * evaluated for each message. Conjunctions and disjunctions evaluate predicates on headers and
+   * properties before predicates that inspect the body, and the body is scanned and parsed at most
+   * once per message regardless of the number of xpath() operands.
+   *
+   * @throws ParseException if the expression is not valid.
+   */
+  public static MessageFilter compile( final String expression )
+    throws ParseException
+  {
+    return new MessageFilterParser( expression ).parse();
+  }
+}
@@ -0,0 +1,922 @@
+package org.realityforge.jml;
+
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Parser that compiles a filter expression, as described in {@link MessageFilter}, into a tree
+ * of nodes. Literals, regular expressions and XPath expressions are compiled while parsing.
+ */
+final class MessageFilterParser
+{
+  private static final int COST_HEADER = 0;
+  private static final int COST_PROPERTY = 1;
+  private static final int COST_BODY = 2;
+  private static final int COST_XPATH = 3;
+
+  private static final int OP_EQ = 0;
+  private static final int OP_NE = 1;
+  private static final int OP_LT = 2;
+  private static final int OP_LE = 3;
+  private static final int OP_GT = 4;
+  private static final int OP_GE = 5;
+
+  private static final List<String> HEADERS =
+    Arrays.asList( "JMSMessageID", "JMSCorrelationID", "JMSType", "JMSPriority", "JMSDeliveryMode",
+                   "JMSTimestamp", "JMSExpiration", "JMSRedelivered" );
+
+  private static final Comparator<Node> COST_ORDER = new Comparator<Node>()
+  {
+    public int compare( final Node node1, final Node node2 )
+    {
+      return node1.cost() - node2.cost();
+    }
+  };
+
+  private static final ThreadLocal<DocumentBuilder> c_documentBuilder = new ThreadLocal<DocumentBuilder>()
+  {
+    @Override
+    protected DocumentBuilder initialValue()
+    {
+      try
+      {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware( true );
+        // Bodies are untrusted so reject DTDs to prevent external entity and entity expansion attacks
+        factory.setFeature( XMLConstants.FEATURE_SECURE_PROCESSING, true );
+        factory.setFeature( "http://apache.org/xml/features/disallow-doctype-decl", true );
+        factory.setExpandEntityReferences( false );
+        factory.setXIncludeAware( false );
+        return factory.newDocumentBuilder();
+      }
+      catch( final Exception e )
+      {
+        throw new IllegalStateException( "Unable to create DocumentBuilder", e );
+      }
+    }
+  };
+
+  private final String _text;
+  private final ArrayList<String> _streamingPaths = new ArrayList<String>();
+  private int _position;
+
+  MessageFilterParser( final String text )
+  {
+    if( null == text ) throw new NullPointerException( "text" );
+    _text = text;
+  }
+
+  MessageFilter parse()
+    throws ParseException
+  {
+    final Node root = parseOr();
+    skipWhitespace();
+    if( _position < _text.length() ) throw error( "Unexpected content" );
+    final XmlPathScanner scanner = _streamingPaths.isEmpty() ? null : new XmlPathScanner( _streamingPaths );
+    return new CompiledFilter( _text, root, scanner );
+  }
+
+  private Node parseOr()
+    throws ParseException
+  {
+    final ArrayList<Node> nodes = new ArrayList<Node>();
+    nodes.add( parseAnd() );
+    while( keyword( "OR" ) )
+    {
+      nodes.add( parseAnd() );
+    }
+    return 1 == nodes.size() ? nodes.get( 0 ) : new Junction( false, nodes );
+  }
+
+  private Node parseAnd()
+    throws ParseException
+  {
+    final ArrayList<Node> nodes = new ArrayList<Node>();
+    nodes.add( parseUnary() );
+    while( keyword( "AND" ) )
+    {
+      nodes.add( parseUnary() );
+    }
+    return 1 == nodes.size() ? nodes.get( 0 ) : new Junction( true, nodes );
+  }
+
+  private Node parseUnary()
+    throws ParseException
+  {
+    if( keyword( "NOT" ) )
+    {
+      return new Not( parseUnary() );
+    }
+    else if( symbol( "(" ) )
+    {
+      final Node node = parseOr();
+      expect( ")" );
+      return node;
+    }
+    else
+    {
+      return parsePredicate( parseOperand() );
+    }
+  }
+
+  private Node parsePredicate( final Operand operand )
+    throws ParseException
+  {
+    final int op = comparison();
+    if( -1 != op )
+    {
+      final int start = _position;
+      final Object literal = parseLiteral();
+      if( literal instanceof Boolean && OP_EQ != op && OP_NE != op )
+      {
+        throw new ParseException( "Boolean values can only be compared for equality", start );
+      }
+      return new Comparison( operand, op, literal );
+    }
+    else if( keyword( "IS" ) )
+    {
+      final boolean negated = keyword( "NOT" );
+      if( !keyword( "NULL" ) ) throw error( "Expected NULL" );
+      return new IsNull( operand, negated );
+    }
+    final boolean negated = keyword( "NOT" );
+    if( keyword( "IN" ) )
+    {
+      final HashSet<String> values = new HashSet<String>();
+      expect( "(" );
+      do
+      {
+        values.add( parseString() );
+      }
+      while( symbol( "," ) );
+      expect( ")" );
+      final Node node = new In( operand, values );
+      return negated ? new Not( node ) : node;
+    }
+    else if( keyword( "MATCHES" ) )
+    {
+      final int start = _position;
+      final String regex = parseString();
+      final Pattern pattern;
+      try
+      {
+        pattern = Pattern.compile( regex );
+      }
+      catch( final PatternSyntaxException pse )
+      {
+        throw new ParseException( "Invalid regular expression: " + pse.getDescription(), start );
+      }
+      final Node node = new Matches( operand, pattern );
+      return negated ? new Not( node ) : node;
+    }
+    else if( negated )
+    {
+      throw error( "Expected IN or MATCHES" );
+    }
+    else
+    {
+      return new Truth( operand );
+    }
+  }
+
+  private Operand parseOperand()
+    throws ParseException
+  {
+    skipWhitespace();
+    final int start = _position;
+    final String name = identifier();
+    if( null == name )
+    {
+      throw error( "Expected operand" );
+    }
+    else if( "body".equals( name ) )
+    {
+      return new BodyOperand();
+    }
+    else if( "xpath".equals( name ) && symbol( "(" ) )
+    {
+      final int expressionStart = _position;
+      final String expression = parseString();
+      expect( ")" );
+      if( XmlPathScanner.isSupported( expression ) )
+      {
+        _streamingPaths.add( expression );
+        return new StreamingXPathOperand( _streamingPaths.size() - 1 );
+      }
+      try
+      {
+        return new XPathOperand( XPathFactory.newInstance().newXPath().compile( expression ) );
+      }
+      catch( final XPathExpressionException xpee )
+      {
+        throw new ParseException( "Invalid XPath expression: " + xpee.getMessage(), expressionStart );
+      }
+    }
+    else if( isKeyword( name ) )
+    {
+      throw new ParseException( "Unexpected keyword " + name, start );
+    }
+    else if( HEADERS.contains( name ) )
+    {
+      return new HeaderOperand( HEADERS.indexOf( name ) );
+    }
+    else
+    {
+      return new PropertyOperand( name );
+    }
+  }
+
+  private Object parseLiteral()
+    throws ParseException
+  {
+    skipWhitespace();
+    if( _position < _text.length() && '\'' == _text.charAt( _position ) )
+    {
+      return parseString();
+    }
+    else if( keyword( "TRUE" ) )
+    {
+      return Boolean.TRUE;
+    }
+    else if( keyword( "FALSE" ) )
+    {
+      return Boolean.FALSE;
+    }
+    final int start = _position;
+    boolean floating = false;
+    if( _position < _text.length() && ( '-' == _text.charAt( _position ) || '+' == _text.charAt( _position ) ) )
+    {
+      _position++;
+    }
+    while( _position < _text.length() )
+    {
+      final char c = _text.charAt( _position );
+      if( '.' == c || 'e' == c || 'E' == c )
+      {
+        floating = true;
+      }
+      else if( !Character.isDigit( c ) && !( floating && ( '-' == c || '+' == c ) ) )
+      {
+        break;
+      }
+      _position++;
+    }
+    final String number = _text.substring( start, _position );
+    try
+    {
+      return floating ? (Number)Double.valueOf( number ) : (Number)Long.valueOf( number );
+    }
+    catch( final NumberFormatException nfe )
+    {
+      throw new ParseException( "Expected literal", start );
+    }
+  }
+
+  private String parseString()
+    throws ParseException
+  {
+    skipWhitespace();
+    if( _position >= _text.length() || '\'' != _text.charAt( _position ) ) throw error( "Expected string" );
+    final StringBuilder sb = new StringBuilder();
+    _position++;
+    while( true )
+    {
+      if( _position >= _text.length() ) throw error( "Unterminated string" );
+      final char c = _text.charAt( _position++ );
+      if( '\'' == c )
+      {
+        if( _position < _text.length() && '\'' == _text.charAt( _position ) )
+        {
+          _position++;
+        }
+        else
+        {
+          return sb.toString();
+        }
+      }
+      sb.append( c );
+    }
+  }
+
+  private int comparison()
+  {
+    if( symbol( "<=" ) ) return OP_LE;
+    else if( symbol( ">=" ) ) return OP_GE;
+    else if( symbol( "<>" ) || symbol( "!=" ) ) return OP_NE;
+    else if( symbol( "<" ) ) return OP_LT;
+    else if( symbol( ">" ) ) return OP_GT;
+    else if( symbol( "=" ) ) return OP_EQ;
+    else return -1;
+  }
+
+  private String identifier()
+  {
+    skipWhitespace();
+    final int start = _position;
+    if( _position < _text.length() && Character.isJavaIdentifierStart( _text.charAt( _position ) ) )
+    {
+      _position++;
+      while( _position < _text.length() &&
+             ( Character.isJavaIdentifierPart( _text.charAt( _position ) ) || '.' == _text.charAt( _position ) ) )
+      {
+        _position++;
+      }
+      return _text.substring( start, _position );
+    }
+    return null;
+  }
+
+  private boolean keyword( final String keyword )
+  {
+    final int start = _position;
+    final String name = identifier();
+    if( null != name && name.equalsIgnoreCase( keyword ) )
+    {
+      return true;
+    }
+    _position = start;
+    return false;
+  }
+
+  private static boolean isKeyword( final String name )
+  {
+    for( final String keyword : new String[]{ "AND", "OR", "NOT", "IN", "IS", "NULL", "MATCHES", "TRUE", "FALSE" } )
+    {
+      if( keyword.equalsIgnoreCase( name ) ) return true;
+    }
+    return false;
+  }
+
+  private boolean symbol( final String symbol )
+  {
+    skipWhitespace();
+    if( _text.startsWith( symbol, _position ) )
+    {
+      _position += symbol.length();
+      return true;
+    }
+    return false;
+  }
+
+  private void expect( final String symbol )
+    throws ParseException
+  {
+    if( !symbol( symbol ) ) throw error( "Expected '" + symbol + "'" );
+  }
+
+  private void skipWhitespace()
+  {
+    while( _position < _text.length() && Character.isWhitespace( _text.charAt( _position ) ) )
+    {
+      _position++;
+    }
+  }
+
+  private ParseException error( final String message )
+  {
+    return new ParseException( message + " at offset " + _position + " in filter: " + _text, _position );
+  }
+
+  /**
+   * The state of the evaluation of a filter against a single message. The body is
+   * extracted and parsed at most once, and scanned for the streaming paths at most once.
+   */
+  static final class Evaluation
+  {
+    private final Message _message;
+    private final XmlPathScanner _scanner;
+    private boolean _textLoaded;
+    private String _text;
+    private Document _document;
+    private String[] _pathValues;
+
+    Evaluation( final Message message, final XmlPathScanner scanner )
+    {
+      _message = message;
+      _scanner = scanner;
+    }
+
+    String getText()
+      throws Exception
+    {
+      if( !_textLoaded )
+      {
+        _textLoaded = true;
+        _text = _message instanceof TextMessage ? ( (TextMessage)_message ).getText() : null;
+      }
+      return _text;
+    }
+
+    Document getDocument()
+      throws Exception
+    {
+      if( null == _document && null != getText() )
+      {
+        final DocumentBuilder builder = c_documentBuilder.get();
+        try
+        {
+          _document = builder.parse( new InputSource( new StringReader( _text ) ) );
+        }
+        catch( final Exception e )
+        {
+          throw MessageUtil.exceptionFor( _message, "does not contain well-formed XML", e );
+        }
+        finally
+        {
+          builder.reset();
+        }
+      }
+      return _document;
+    }
+
+    /**
+     * Return the value of the streaming path, or null if the path does not resolve or the
+     * message is not a TextMessage.
+     */
+    String getPathValue( final int path )
+      throws Exception
+    {
+      if( null == _pathValues && null != getText() )
+      {
+        final String[] values = new String[ _scanner.size() ];
+        try
+        {
+          _scanner.scan( _text, new XmlPathScanner.Visitor()
+          {
+            public void onValue( final int path, final String value )
+            {
+              values[ path ] = value;
+            }
+          } );
+        }
+        catch( final Exception e )
+        {
+          throw MessageUtil.exceptionFor( _message, "does not contain well-formed XML", e );
+        }
+        _pathValues = values;
+      }
+      return null == _pathValues ? null : _pathValues[ path ];
+    }
+  }
+
+  private static final class CompiledFilter
+    extends MessageFilter
+  {
+    private final String _expression;
+    private final Node _root;
+    private final XmlPathScanner _scanner;
+
+    CompiledFilter( final String expression, final Node root, final XmlPathScanner scanner )
+    {
+      _expression = expression;
+      _root = root;
+      _scanner = scanner;
+    }
+
+    @Override
+    public boolean accept( final Message message )
+      throws Exception
+    {
+      return _root.evaluate( new Evaluation( message, _scanner ) );
+    }
+
+    @Override
+    public String toString()
+    {
+      return _expression;
+    }
+  }
+
+  private abstract static class Node
+  {
+    abstract boolean evaluate( Evaluation evaluation ) throws Exception;
+
+    abstract int cost();
+  }
+
+  private static final class Junction
+    extends Node
+  {
+    private final boolean _conjunction;
+    private final Node[] _nodes;
+    private final int _cost;
+
+    Junction( final boolean conjunction, final List<Node> nodes )
+    {
+      _conjunction = conjunction;
+      Collections.sort( nodes, COST_ORDER );
+      _nodes = nodes.toArray( new Node[ nodes.size() ] );
+      _cost = _nodes[ _nodes.length - 1 ].cost();
+    }
+
+    boolean evaluate( final Evaluation evaluation )
+      throws Exception
+    {
+      for( final Node node : _nodes )
+      {
+        if( node.evaluate( evaluation ) != _conjunction ) return !_conjunction;
+      }
+      return _conjunction;
+    }
+
+    int cost()
+    {
+      return _cost;
+    }
+  }
+
+  private static final class Not
+    extends Node
+  {
+    private final Node _node;
+
+    Not( final Node node )
+    {
+      _node = node;
+    }
+
+    boolean evaluate( final Evaluation evaluation )
+      throws Exception
+    {
+      return !_node.evaluate( evaluation );
+    }
+
+    int cost()
+    {
+      return _node.cost();
+    }
+  }
+
+  private abstract static class Predicate
+    extends Node
+  {
+    final Operand _operand;
+
+    Predicate( final Operand operand )
+    {
+      _operand = operand;
+    }
+
+    int cost()
+    {
+      return _operand.cost();
+    }
+  }
+
+  private static final class Comparison
+    extends Predicate
+  {
+    private final int _op;
+    private final Object _literal;
+
+    Comparison( final Operand operand, final int op, final Object literal )
+    {
+      super( operand );
+      _op = op;
+      _literal = literal;
+    }
+
+    boolean evaluate( final Evaluation evaluation )
+      throws Exception
+    {
+      final Object value = _operand.value( evaluation );
+      if( null == value )
+      {
+        return false;
+      }
+      else if( _literal instanceof String )
+      {
+        return value instanceof String && test( ( (String)value ).compareTo( (String)_literal ) );
+      }
+      else if( _literal instanceof Boolean )
+      {
+        final Boolean flag = value instanceof String ? toBoolean( (String)value ) :
+                             value instanceof Boolean ? (Boolean)value : null;
+        return null != flag && test( flag.equals( _literal ) ? 0 : 1 );
+      }
+      else if( _literal instanceof Long && isIntegral( value ) )
+      {
+        final long number = ( (Number)value ).longValue();
+        final long literal = (Long)_literal;
+        return test( number < literal ? -1 : number == literal ? 0 : 1 );
+      }
+      else
+      {
+        final double number;
+        if( value instanceof Number )
+        {
+          number = ( (Number)value ).doubleValue();
+        }
+        else if( value instanceof String )
+        {
+          try
+          {
+            number = Double.parseDouble( ( (String)value ).trim() );
+          }
+          catch( final NumberFormatException nfe )
+          {
+            return false;
+          }
+        }
+        else
+        {
+          return false;
+        }
+        return test( Double.compare( number, ( (Number)_literal ).doubleValue() ) );
+      }
+    }
+
+    private boolean test( final int comparison )
+    {
+      switch( _op )
+      {
+        case OP_EQ:
+          return 0 == comparison;
+        case OP_NE:
+          return 0 != comparison;
+        case OP_LT:
+          return comparison < 0;
+        case OP_LE:
+          return comparison <= 0;
+        case OP_GT:
+          return comparison > 0;
+        default:
+          return comparison >= 0;
+      }
+    }
+
+    private static boolean isIntegral( final Object value )
+    {
+      return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private static Boolean toBoolean( final String value )
+    {
+      final String text = value.trim();
+      return "true".equalsIgnoreCase( text ) ? Boolean.TRUE : "false".equalsIgnoreCase( text ) ? Boolean.FALSE : null;
+    }
+  }
+
+  private static final class In
+    extends Predicate
+  {
+    private final HashSet<String> _values;
+
+    In( final Operand operand, final HashSet<String> values )
+    {
+      super( operand );
+      _values = values;
+    }
+
+    boolean evaluate( final Evaluation evaluation )
+      throws Exception
+    {
+      final Object value = _operand.value( evaluation );
+      return value instanceof String && _values.contains( value );
+    }
+  }
+
+  private static final class Matches
+    extends Predicate
+  {
+    private final Pattern _pattern;
+
+    Matches( final Operand operand, final Pattern pattern )
+    {
+      super( operand );
+      _pattern = pattern;
+    }
+
+    boolean evaluate( final Evaluation evaluation )
+      throws Exception
+    {
+      final Object value = _operand.value( evaluation );
+      return null != value && _pattern.matcher( value.toString() ).find();
+    }
+  }
+
+  private static final class IsNull
+    extends Predicate
+  {
+    private final boolean _negated;
+
+    IsNull( final Operand operand, final boolean negated )
+    {
+      super( operand );
+      _negated = negated;
+    }
+
+    boolean evaluate( final Evaluation evaluation )
+      throws Exception
+    {
+      return ( null == _operand.value( evaluation ) ) != _negated;
+    }
+  }
+
+  private static final class Truth
+    extends Predicate
+  {
+    Truth( final Operand operand )
+    {
+      super( operand );
+    }
+
+    boolean evaluate( final Evaluation evaluation )
+      throws Exception
+    {
+      return _operand.isTrue( evaluation );
+    }
+  }
+
+  private abstract static class Operand
+  {
+    abstract Object value( Evaluation evaluation ) throws Exception;
+
+    abstract int cost();
+
+    boolean isTrue( final Evaluation evaluation )
+      throws Exception
+    {
+      final Object value = value( evaluation );
+      return Boolean.TRUE.equals( value ) || ( value instanceof String && "true".equalsIgnoreCase( (String)value ) );
+    }
+  }
+
+  private static final class HeaderOperand
+    extends Operand
+  {
+    private final int _header;
+
+    HeaderOperand( final int header )
+    {
+      _header = header;
+    }
+
+    Object value( final Evaluation evaluation )
+      throws Exception
+    {
+      final Message message = evaluation._message;
+      switch( _header )
+      {
+        case 0:
+          return message.getJMSMessageID();
+        case 1:
+          return message.getJMSCorrelationID();
+        case 2:
+          return message.getJMSType();
+        case 3:
+          return message.getJMSPriority();
+        case 4:
+          return DeliveryMode.PERSISTENT == message.getJMSDeliveryMode() ? "PERSISTENT" : "NON_PERSISTENT";
+        case 5:
+          return message.getJMSTimestamp();
+        case 6:
+          return message.getJMSExpiration();
+        default:
+          return message.getJMSRedelivered();
+      }
+    }
+
+    int cost()
+    {
+      return COST_HEADER;
+    }
+  }
+
+  private static final class PropertyOperand
+    extends Operand
+  {
+    private final String _name;
+
+    PropertyOperand( final String name )
+    {
+      _name = name;
+    }
+
+    Object value( final Evaluation evaluation )
+      throws Exception
+    {
+      return evaluation._message.getObjectProperty( _name );
+    }
+
+    int cost()
+    {
+      return COST_PROPERTY;
+    }
+  }
+
+  private static final class BodyOperand
+    extends Operand
+  {
+    Object value( final Evaluation evaluation )
+      throws Exception
+    {
+      return evaluation.getText();
+    }
+
+    int cost()
+    {
+      return COST_BODY;
+    }
+  }
+
+  private static final class XPathOperand
+    extends Operand
+  {
+    private final XPathExpression _expression;
+
+    XPathOperand( final XPathExpression expression )
+    {
+      _expression = expression;
+    }
+
+    Object value( final Evaluation evaluation )
+      throws Exception
+    {
+      return evaluate( evaluation, XPathConstants.STRING );
+    }
+
+    @Override
+    boolean isTrue( final Evaluation evaluation )
+      throws Exception
+    {
+      return Boolean.TRUE.equals( evaluate( evaluation, XPathConstants.BOOLEAN ) );
+    }
+
+    private Object evaluate( final Evaluation evaluation, final QName type )
+      throws Exception
+    {
+      final Document document = evaluation.getDocument();
+      if( null == document )
+      {
+        return null;
+      }
+      // XPathExpression instances are not thread-safe
+      synchronized( _expression )
+      {
+        return _expression.evaluate( document, type );
+      }
+    }
+
+    int cost()
+    {
+      return COST_XPATH;
+    }
+  }
+
+  /**
+   * Operand for an XPath expression in the subset supported by {@link XmlPathScanner}. The
+   * expressions of a filter are resolved together in one streaming pass over the body.
+   */
+  private static final class StreamingXPathOperand
+    extends Operand
+  {
+    private final int _path;
+
+    StreamingXPathOperand( final int path )
+    {
+      _path = path;
+    }
+
+    Object value( final Evaluation evaluation )
+      throws Exception
+    {
+      final String value = evaluation.getPathValue( _path );
+      // The string value of an empty node set is the empty string
+      return null != value || null == evaluation.getText() ? value : "";
+    }
+
+    @Override
+    boolean isTrue( final Evaluation evaluation )
+      throws Exception
+    {
+      return null != evaluation.getPathValue( _path );
+    }
+
+    int cost()
+    {
+      return COST_XPATH;
+    }
+  }
+}
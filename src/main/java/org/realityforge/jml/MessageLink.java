@@ -1,5 +1,6 @@
 package org.realityforge.jml;
 
+import java.io.IOException;
 import java.util.logging.Level;
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -10,26 +11,77 @@ import javax.jms.Session;
  * The message endpoint that routes a message from a source channel to a destination channel.
  * The message may pass through input message verifier, transformer and output message verifier
  * before being sent to the destination channel.
+ *
+ * <p>If a spool has been specified then messages that can not be sent to the destination are
+ * appended to the spool rather than routed to the dead message queue, and are forwarded in order
+ * once the destination recovers. While the spool contains messages, new messages are appended to
+ * the spool so that ordering is preserved. Spooled messages are forwarded in batches on the
+ * endpoint thread rather than the timing wheel thread; the timing wheel is only used to wake the
+ * forwarder once the spool is empty or the destination is unavailable.</p>
+ *
+ * <p>The transformer, output verifier and destination channel can be changed while the link is
+ * running. A new destination is applied by creating the producer for the new destination before
+ * closing the producer for the old destination. The producer is created on the calling thread,
+ * which relies on the provider tolerating serialized use of the session from other threads as
+ * described in {@link AbstractMessageEndpoint}.</p>
  */
 public final class MessageLink
   extends AbstractMessageEndpoint
 {
-  private ChannelSpec _destination;
-  private MessageVerifier _outputVerifier;
-  private MessageTransformer _transformer;
+  /// The default delay in milliseconds between attempts to forward spooled messages.
+  public static final long DEFAULT_SPOOL_FORWARD_INTERVAL = 1000;
+
+  /// The maximum number of spooled messages forwarded before other work is given a chance to run.
+  private static final int SPOOL_FORWARD_BATCH_SIZE = 100;
+
+  private volatile ChannelSpec _destination;
+  private volatile MessageVerifier _outputVerifier;
+  private volatile MessageTransformer _transformer;
+  private MessageSpool _spool;
+  private long _spoolForwardInterval = DEFAULT_SPOOL_FORWARD_INTERVAL;
   private MessageProducer _destinationProducer;
 
-  /** Specify the destination channel. */
+  /**
+   * Specify the destination channel.
+   *
+   * @throws IllegalStateException if the link is running and the producer can not be created.
+   */
   public void setDestinationChannel( final String channelSpec )
   {
-    _destination = ChannelSpec.parseChannelSpec( channelSpec );
+    final ChannelSpec destination = ChannelSpec.parseChannelSpec( channelSpec );
+    final MessageProducer oldProducer;
+    synchronized( getLock() )
+    {
+      final Session session = getSession();
+      if( null == session )
+      {
+        _destination = destination;
+        return;
+      }
+      final MessageProducer producer;
+      try
+      {
+        producer = session.createProducer( destination.create( session ) );
+      }
+      catch( final JMSException e )
+      {
+        warning( "Creating producer for destination " + channelSpec, e );
+        throw new IllegalStateException( "Unable to create producer for destination " + channelSpec, e );
+      }
+      oldProducer = _destinationProducer;
+      _destinationProducer = producer;
+      _destination = destination;
+    }
+    closeProducer( oldProducer, "Closing destination producer" );
   }
 
   /** Specify verifier that is invoked prior to sending message to the destination channel. */
   public void setOutputVerifier( final MessageVerifier outputVerifier )
   {
-    ensureEditable();
-    _outputVerifier = outputVerifier;
+    synchronized( getLock() )
+    {
+      _outputVerifier = outputVerifier;
+    }
   }
 
   /**
@@ -37,29 +89,58 @@ public final class MessageLink
    * message to destination and before output verifier.
    */
   public void setTransformer( final MessageTransformer transformer )
+  {
+    synchronized( getLock() )
+    {
+      _transformer = transformer;
+    }
+  }
+
+  /**
+   * Specify the spool used to store messages that can not be sent to the destination.
+   * The spool is not closed when the link is stopped.
+   */
+  public void setSpool( final MessageSpool spool )
   {
     ensureEditable();
-    _transformer = transformer;
+    _spool = spool;
+  }
+
+  /**
+   * Specify the delay in milliseconds between attempts to forward spooled messages. The
+   * spool is also synced to disk at this interval.
+   */
+  public void setSpoolForwardInterval( final long spoolForwardInterval )
+  {
+    ensureEditable();
+    if( spoolForwardInterval <= 0 ) throw new IllegalArgumentException( "spoolForwardInterval must be positive" );
+    _spoolForwardInterval = spoolForwardInterval;
   }
 
   @Override
   protected void preSubscribe( final Session session ) throws Exception
   {
     _destinationProducer = session.createProducer( _destination.create( session ) );
+    if( null != _spool )
+    {
+      execute( new SpoolForwarder() );
+    }
   }
 
   @Override
   protected void preSessionClose()
   {
+    closeProducer( _destinationProducer, "Closing destination producer" );
+    _destinationProducer = null;
+
     try
     {
-      if( null != _destinationProducer ) _destinationProducer.close();
+      if( null != _spool ) _spool.sync();
     }
-    catch( final JMSException e )
+    catch( final IOException ioe )
     {
-      warning( "Closing destination producer", e );
+      warning( "Syncing spool", ioe );
     }
-    _destinationProducer = null;
   }
 
   @Override
@@ -68,7 +149,7 @@ public final class MessageLink
     final Message output;
     try
     {
-      if( null != _transformer ) output = _transformer.transformMessage( session, message );
+      if( null != _transformer ) output = _transformer.transformMessage( session, viewOf( message ) );
       else output = message;
     }
     catch( final Exception e )
@@ -86,21 +167,35 @@ public final class MessageLink
     }
   }
 
+  @Override
+  protected void warmUp( final Session session, final Message message ) throws Exception
+  {
+    final Message output = ( null != _transformer ) ? _transformer.transformMessage( session, message ) : message;
+    if( null != output && null != _outputVerifier ) _outputVerifier.verifyMessage( output );
+  }
+
   @Override
   protected void preSendMessageToDMQ( final Message message ) throws JMSException
   {
     message.setStringProperty( "JMLDestinationChannel", _destination.toSpec() );
   }
 
-  private void send( final Message inMessage, final Message outMessage )
+  private void send( final Message inMessage, final Message output )
   {
+    final Message outMessage = MessageView.unwrap( output );
     try
     {
-      if( null != _outputVerifier ) _outputVerifier.verifyMessage( outMessage );
+      if( null != _outputVerifier ) _outputVerifier.verifyMessage( viewOf( output ) );
     }
     catch( final Exception e )
     {
       handleFailure( inMessage, "Generated message failed send precondition check. Error: " + e, e );
+      return;
+    }
+    if( null != _spool && !_spool.isEmpty() )
+    {
+      spool( inMessage, outMessage, null );
+      return;
     }
     try
     {
@@ -111,7 +206,85 @@ public final class MessageLink
     }
     catch( final Exception e )
     {
-      handleFailure( inMessage, "Failed to send generated message to destination. Error: " + e, e );
+      if( null != _spool )
+      {
+        spool( inMessage, outMessage, e );
+      }
+      else
+      {
+        handleFailure( inMessage, "Failed to send generated message to destination. Error: " + e, e );
+      }
+    }
+  }
+
+  private void spool( final Message inMessage, final Message outMessage, final Exception cause )
+  {
+    Exception error = cause;
+    try
+    {
+      if( _spool.append( outMessage ) ) return;
+      if( null == error ) error = new IOException( "Spool " + _spool.getDirectory() + " is full" );
+    }
+    catch( final Exception e )
+    {
+      error = e;
+    }
+    handleFailure( inMessage, "Failed to send generated message to destination or spool. Error: " + error, error );
+  }
+
+  /**
+   * Task that forwards a batch of spooled messages to the destination and syncs the spool.
+   * Runs on the endpoint thread with exclusive access to the session. Records are only discarded
+   * if they are corrupt. If the message can not be created in the session, or can not be sent,
+   * the record is left in place and forwarding is retried after the forward interval.
+   */
+  private class SpoolForwarder
+    implements Runnable
+  {
+    public void run()
+    {
+      boolean idle = false;
+      try
+      {
+        for( int i = 0; i < SPOOL_FORWARD_BATCH_SIZE; i++ )
+        {
+          final Message message;
+          try
+          {
+            message = _spool.peek( getSession() );
+          }
+          catch( final IOException ioe )
+          {
+            warning( "Discarding spooled message that could not be decoded", ioe );
+            _spool.remove();
+            continue;
+          }
+          catch( final ClassNotFoundException cnfe )
+          {
+            warning( "Discarding spooled message that could not be decoded", cnfe );
+            _spool.remove();
+            continue;
+          }
+          if( null == message )
+          {
+            idle = true;
+            break;
+          }
+          _destinationProducer.send( message,
+                                      message.getJMSDeliveryMode(),
+                                      message.getJMSPriority(),
+                                      message.getJMSExpiration() );
+          _spool.remove();
+        }
+        _spool.sync();
+      }
+      catch( final Exception e )
+      {
+        info( "Unable to forward spooled messages to destination. Error: " + e, e );
+        idle = true;
+      }
+      if( idle ) schedule( this, _spoolForwardInterval );
+      else execute( this );
     }
   }
 
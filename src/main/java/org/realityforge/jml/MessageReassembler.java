@@ -0,0 +1,335 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * The message endpoint that reassembles the chunks produced by a {@link MessageChunker} into
+ * the original message and sends it to a destination channel. Messages that are not chunks
+ * are sent unchanged.
+ *
+ * <p>The body of each chunk is copied into the reassembly buffer for its group as it arrives,
+ * and chunks may arrive in any order. The chunks themselves are also retained so that they can be
+ * routed to the dead message queue, so an incomplete group buffers twice the length of the
+ * original message. The total number of bytes buffered for incomplete groups is bounded. If a
+ * new group would exceed the bound then the oldest incomplete groups are evicted, and a group
+ * that is larger than the bound or has more than the maximum number of chunks is rejected. Groups that are not complete within the
+ * group timeout, groups that are evicted or rejected and groups that are incomplete when the
+ * endpoint is stopped have their chunks routed directly to the dead message queue, even if a
+ * retry policy is specified. Group timeouts are handled on the endpoint thread rather than the
+ * timing wheel thread.</p>
+ *
+ * <p>Delivery of chunked messages is at-most-once. Each chunk is acknowledged by the session as
+ * it is received and is then held only in memory, so the chunks of incomplete groups are lost if
+ * the process fails before the group is complete or routed to the dead message queue. Chunks
+ * should be produced to a channel where this is acceptable, or the message should be sent
+ * without chunking.</p>
+ *
+ * <p>All the chunks of a group must be delivered to the same reassembler. If several reassemblers
+ * consume the same channel then a selector on {@link MessageChunker#GROUP_ID_PROPERTY} or message
+ * groups provided by the message server should be used to partition the groups.</p>
+ */
+public final class MessageReassembler
+  extends AbstractMessageEndpoint
+{
+  /// The default maximum number of bytes buffered for incomplete groups.
+  public static final long DEFAULT_MAX_BUFFER_SIZE = 64L * 1024 * 1024;
+  /// The default maximum number of chunks in a group.
+  public static final int DEFAULT_MAX_CHUNK_COUNT = 10000;
+  /// The default time in milliseconds to wait for all the chunks of a group.
+  public static final long DEFAULT_GROUP_TIMEOUT = 60 * 1000;
+
+  private static final String CHUNK_PROPERTY_PREFIX = "jmlChunk";
+
+  private final LinkedHashMap<String, Group> _groups = new LinkedHashMap<String, Group>();
+  private ChannelSpec _destination;
+  private long _maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+  private int _maxChunkCount = DEFAULT_MAX_CHUNK_COUNT;
+  private long _groupTimeout = DEFAULT_GROUP_TIMEOUT;
+  private long _bufferedBytes;
+  private MessageProducer _destinationProducer;
+  private byte[] _buffer = new byte[ 8192 ];
+
+  /** Specify the destination channel. */
+  public void setDestinationChannel( final String channelSpec )
+  {
+    ensureEditable();
+    _destination = ChannelSpec.parseChannelSpec( channelSpec );
+  }
+
+  /** Specify the maximum number of bytes buffered for incomplete groups, including the retained chunks. */
+  public void setMaxBufferSize( final long maxBufferSize )
+  {
+    ensureEditable();
+    if( maxBufferSize < 1 ) throw new IllegalArgumentException( "maxBufferSize must be positive" );
+    _maxBufferSize = maxBufferSize;
+  }
+
+  public long getMaxBufferSize()
+  {
+    return _maxBufferSize;
+  }
+
+  /** Specify the maximum number of chunks in a group. */
+  public void setMaxChunkCount( final int maxChunkCount )
+  {
+    ensureEditable();
+    if( maxChunkCount < 1 ) throw new IllegalArgumentException( "maxChunkCount must be positive" );
+    _maxChunkCount = maxChunkCount;
+  }
+
+  public int getMaxChunkCount()
+  {
+    return _maxChunkCount;
+  }
+
+  /** Specify the time in milliseconds to wait for all the chunks of a group after the first arrives. */
+  public void setGroupTimeout( final long groupTimeout )
+  {
+    ensureEditable();
+    if( groupTimeout < 1 ) throw new IllegalArgumentException( "groupTimeout must be positive" );
+    _groupTimeout = groupTimeout;
+  }
+
+  public long getGroupTimeout()
+  {
+    return _groupTimeout;
+  }
+
+  @Override
+  protected void preSubscribe( final Session session ) throws Exception
+  {
+    _destinationProducer = session.createProducer( _destination.create( session ) );
+  }
+
+  @Override
+  protected void postConsumerClose()
+  {
+    for( final Group group : new ArrayList<Group>( _groups.values() ) )
+    {
+      reject( group, "Endpoint stopped before all chunks were received" );
+    }
+  }
+
+  @Override
+  protected void preSessionClose()
+  {
+    try
+    {
+      if( null != _destinationProducer ) _destinationProducer.close();
+    }
+    catch( final JMSException e )
+    {
+      warning( "Closing destination producer", e );
+    }
+    _destinationProducer = null;
+  }
+
+  @Override
+  protected void handleMessage( final Session session, final Message message ) throws Exception
+  {
+    if( !message.propertyExists( MessageChunker.GROUP_ID_PROPERTY ) )
+    {
+      send( message );
+      return;
+    }
+    final String groupID = message.getStringProperty( MessageChunker.GROUP_ID_PROPERTY );
+    final int sequence = message.getIntProperty( MessageChunker.SEQUENCE_PROPERTY );
+    final int offset = message.getIntProperty( MessageChunker.OFFSET_PROPERTY );
+    final BytesMessage chunk = MessageUtil.castToType( message, BytesMessage.class );
+
+    Group group = _groups.get( groupID );
+    if( null == group )
+    {
+      group = createGroup( groupID, message );
+      if( null == group ) return;
+    }
+    chunk.reset();
+    final int size = (int)chunk.getBodyLength();
+    if( sequence < 1 || sequence > group._chunks.length || null != group._chunks[ sequence - 1 ] ||
+        offset < 0 || offset + size > group._data.length )
+    {
+      throw MessageUtil.exceptionFor( message, "is an invalid or duplicate chunk " + sequence +
+                                               " of group " + groupID, null );
+    }
+    if( _buffer.length < size ) _buffer = new byte[ Math.max( size, _buffer.length * 2 ) ];
+    chunk.readBytes( _buffer, size );
+    chunk.reset();
+    System.arraycopy( _buffer, 0, group._data, offset, size );
+    group._chunks[ sequence - 1 ] = message;
+    group._received++;
+
+    if( group._received == group._chunks.length )
+    {
+      remove( group );
+      send( reassemble( session, group, message ) );
+    }
+  }
+
+  @Override
+  protected void preSendMessageToDMQ( final Message message ) throws JMSException
+  {
+    message.setStringProperty( "JMLDestinationChannel", _destination.toSpec() );
+  }
+
+  @Override
+  protected void ensureValidConfig()
+    throws Exception
+  {
+    super.ensureValidConfig();
+    if( null == _destination ) throw invalid( "destination channel not specified" );
+  }
+
+  private Group createGroup( final String groupID, final Message message )
+    throws Exception
+  {
+    final int count = message.getIntProperty( MessageChunker.COUNT_PROPERTY );
+    final int length = message.getIntProperty( MessageChunker.LENGTH_PROPERTY );
+    // Every chunk contains at least one byte unless the message is empty
+    if( count < 1 || length < 0 || count > Math.max( 1, length ) )
+    {
+      throw MessageUtil.exceptionFor( message, "has invalid chunk count or length", null );
+    }
+    if( count > _maxChunkCount )
+    {
+      sendToDMQ( message, "Chunked message of " + count + " chunks has more than the maximum of " +
+                          _maxChunkCount + " chunks" );
+      return null;
+    }
+    // The reassembly buffer and the retained chunks
+    final long size = 2L * length;
+    if( size > _maxBufferSize )
+    {
+      sendToDMQ( message, "Chunked message of " + length + " bytes is larger than the reassembly buffer" );
+      return null;
+    }
+    final Iterator<Group> iterator = _groups.values().iterator();
+    while( _bufferedBytes + size > _maxBufferSize && iterator.hasNext() )
+    {
+      final Group oldest = iterator.next();
+      iterator.remove();
+      release( oldest );
+      routeToDMQ( oldest, "Evicted from full reassembly buffer" );
+    }
+
+    final Group group = new Group( groupID, count, length, size );
+    _groups.put( groupID, group );
+    _bufferedBytes += size;
+    group._timeout = schedule( new Runnable()
+    {
+      public void run()
+      {
+        if( _groups.get( groupID ) == group )
+        {
+          reject( group, "Timed out waiting for chunks" );
+        }
+      }
+    }, _groupTimeout );
+    return group;
+  }
+
+  private Message reassemble( final Session session, final Group group, final Message chunk )
+    throws Exception
+  {
+    final Message result;
+    if( MessageChunker.TEXT_BODY.equals( chunk.getStringProperty( MessageChunker.BODY_TYPE_PROPERTY ) ) )
+    {
+      result = session.createTextMessage( new String( group._data, MessageChunker.ENCODING ) );
+    }
+    else
+    {
+      final BytesMessage bytesMessage = session.createBytesMessage();
+      bytesMessage.writeBytes( group._data );
+      result = bytesMessage;
+    }
+    MessageUtil.copyMessageHeaders( chunk, result );
+    result.clearProperties();
+    final Enumeration names = chunk.getPropertyNames();
+    while( names.hasMoreElements() )
+    {
+      final String name = (String)names.nextElement();
+      if( !name.startsWith( CHUNK_PROPERTY_PREFIX ) )
+      {
+        result.setObjectProperty( name, chunk.getObjectProperty( name ) );
+      }
+    }
+    return result;
+  }
+
+  private void reject( final Group group, final String reason )
+  {
+    remove( group );
+    routeToDMQ( group, reason );
+  }
+
+  private void remove( final Group group )
+  {
+    _groups.remove( group._id );
+    release( group );
+  }
+
+  private void release( final Group group )
+  {
+    _bufferedBytes -= group._size;
+    if( null != group._timeout ) group._timeout.cancel();
+  }
+
+  private void routeToDMQ( final Group group, final String reason )
+  {
+    final String description =
+      reason + ". Received " + group._received + " of " + group._chunks.length + " chunks of group " + group._id;
+    for( final Message chunk : group._chunks )
+    {
+      if( null != chunk )
+      {
+        try
+        {
+          sendToDMQ( chunk, description );
+        }
+        catch( final IllegalStateException ise )
+        {
+          // No DMQ or unable to send to DMQ. Already logged.
+        }
+      }
+    }
+  }
+
+  private void send( final Message output )
+    throws JMSException
+  {
+    final Message message = MessageView.unwrap( output );
+    _destinationProducer.send( message,
+                                message.getJMSDeliveryMode(),
+                                message.getJMSPriority(),
+                                message.getJMSExpiration() );
+  }
+
+  /**
+   * The chunks received for a group and the buffer they are reassembled into.
+   */
+  private static final class Group
+  {
+    private final String _id;
+    private final Message[] _chunks;
+    private final byte[] _data;
+    /// The number of bytes counted against the maximum buffer size.
+    private final long _size;
+    private int _received;
+    private TimingWheel.Timeout _timeout;
+
+    Group( final String id, final int count, final int length, final long size )
+    {
+      _id = id;
+      _chunks = new Message[ count ];
+      _data = new byte[ length ];
+      _size = size;
+    }
+  }
+}
@@ -0,0 +1,404 @@
+package org.realityforge.jml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * A local, disk-backed FIFO of messages used to store messages that could not be sent
+ * so that they can be forwarded once the destination recovers.
+ *
+ * <p>The spool is a log of fixed size segment files that are memory-mapped while in use.
+ * Each record is prefixed by its length and a CRC32 checksum so that a record torn by a
+ * crash is detected and discarded during recovery. The position of the oldest unforwarded
+ * record is recorded in a checkpoint file when the spool is synced, and fully forwarded
+ * segments are deleted. Disk usage is bounded by the segment size multiplied by the maximum
+ * number of segments; appends fail once the bound is reached.</p>
+ *
+ * <p>Written records reach the operating system immediately and so survive a crash of the
+ * process. They are only guaranteed to survive a crash of the host once {@link #sync()} has
+ * been invoked. Removal is also recorded by {@link #sync()} so a crash may cause messages removed
+ * since the last sync to be forwarded again.</p>
+ *
+ * <p>Instances of this class are thread-safe.</p>
+ */
+public final class MessageSpool
+{
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final int RECORD_HEADER_SIZE = 8;
+
+  private final File _directory;
+  private final int _segmentSize;
+  private final int _maxSegments;
+  private final LinkedList<Long> _segments = new LinkedList<Long>();
+  private final CRC32 _crc = new CRC32();
+
+  private MappedByteBuffer _writeBuffer;
+  private long _writeSegment;
+  private MappedByteBuffer _readBuffer;
+  private long _readSegment;
+  private int _readPosition;
+  private int _count;
+  private boolean _dirty;
+  private boolean _checkpointDirty;
+  private boolean _closed;
+
+  /**
+   * Open the spool in the specified directory, recovering any records left by a previous instance.
+   *
+   * @param directory the directory in which the spool is stored. Created if it does not exist.
+   * @param segmentSize the size in bytes of each segment file. This limits the size of a single message.
+   * @param maxSegments the maximum number of segment files.
+   * @throws IOException if there is a problem opening or recovering the spool.
+   */
+  public MessageSpool( final File directory, final int segmentSize, final int maxSegments )
+    throws IOException
+  {
+    if( null == directory ) throw new NullPointerException( "directory" );
+    if( segmentSize <= RECORD_HEADER_SIZE ) throw new IllegalArgumentException( "segmentSize too small" );
+    if( maxSegments < 1 ) throw new IllegalArgumentException( "maxSegments must be at least 1" );
+    if( !directory.isDirectory() && !directory.mkdirs() )
+    {
+      throw new IOException( "Unable to create spool directory " + directory );
+    }
+    _directory = directory;
+    _segmentSize = segmentSize;
+    _maxSegments = maxSegments;
+    recover();
+  }
+
+  public File getDirectory()
+  {
+    return _directory;
+  }
+
+  /**
+   * Return the number of messages in the spool.
+   */
+  public synchronized int size()
+  {
+    return _count;
+  }
+
+  public synchronized boolean isEmpty()
+  {
+    return 0 == _count;
+  }
+
+  /**
+   * Append message to the end of the spool.
+   *
+   * @return true if the message was appended, false if the spool is full or the message is larger than a segment.
+   */
+  public synchronized boolean append( final Message message )
+    throws Exception
+  {
+    ensureOpen();
+    final byte[] data = MessageCodec.encode( message );
+    final int recordSize = RECORD_HEADER_SIZE + data.length;
+    if( recordSize > _segmentSize ) return false;
+    if( _writeBuffer.remaining() < recordSize )
+    {
+      if( _segments.size() >= _maxSegments ) return false;
+      rollSegment();
+    }
+    _crc.reset();
+    _crc.update( data, 0, data.length );
+    _writeBuffer.putInt( data.length );
+    _writeBuffer.putInt( (int)_crc.getValue() );
+    _writeBuffer.put( data );
+    _count++;
+    _dirty = true;
+    return true;
+  }
+
+  /**
+   * Return a new message created in the session from the oldest record in the spool,
+   * or null if the spool is empty. The record is not removed.
+   */
+  public synchronized Message peek( final Session session )
+    throws Exception
+  {
+    ensureOpen();
+    if( 0 == _count ) return null;
+    positionReader();
+    final int length = _readBuffer.getInt( _readPosition );
+    final byte[] data = new byte[ length ];
+    final ByteBuffer buffer = _readBuffer.duplicate();
+    buffer.position( _readPosition + RECORD_HEADER_SIZE );
+    buffer.get( data );
+    return MessageCodec.decode( session, data );
+  }
+
+  /**
+   * Remove the oldest record from the spool.
+   */
+  public synchronized void remove()
+    throws IOException
+  {
+    ensureOpen();
+    if( 0 == _count ) throw new IllegalStateException( "Spool is empty" );
+    positionReader();
+    final int length = _readBuffer.getInt( _readPosition );
+    _readPosition += RECORD_HEADER_SIZE + length;
+    _count--;
+    _checkpointDirty = true;
+  }
+
+  /**
+   * Force any appended records to the storage device and record the position of the oldest record.
+   */
+  public synchronized void sync()
+    throws IOException
+  {
+    if( _closed ) return;
+    if( _dirty )
+    {
+      _writeBuffer.force();
+      _dirty = false;
+    }
+    if( _checkpointDirty )
+    {
+      writeCheckpoint();
+      _checkpointDirty = false;
+    }
+  }
+
+  /**
+   * Sync and close the spool.
+   */
+  public synchronized void close()
+    throws IOException
+  {
+    sync();
+    _closed = true;
+    _writeBuffer = null;
+    _readBuffer = null;
+  }
+
+  private void ensureOpen()
+  {
+    if( _closed ) throw new IllegalStateException( "Spool is closed" );
+  }
+
+  /**
+   * Move the reader to the next segment if it has consumed every record in the current segment,
+   * deleting the consumed segment.
+   */
+  private void positionReader()
+    throws IOException
+  {
+    while( true )
+    {
+      if( _readSegment == _writeSegment )
+      {
+        _readBuffer = _writeBuffer;
+        return;
+      }
+      if( null == _readBuffer ) _readBuffer = map( _readSegment );
+      if( hasRecordHeaderAt( _readBuffer, _readPosition ) ) return;
+
+      final File file = segmentFile( _readSegment );
+      _segments.removeFirst();
+      _readSegment = _segments.getFirst();
+      _readPosition = 0;
+      _readBuffer = null;
+      writeCheckpoint();
+      _checkpointDirty = false;
+      if( !file.delete() ) file.deleteOnExit();
+    }
+  }
+
+  private void rollSegment()
+    throws IOException
+  {
+    _writeBuffer.force();
+    if( _readSegment == _writeSegment ) _readBuffer = _writeBuffer;
+    _writeSegment++;
+    _segments.add( _writeSegment );
+    _writeBuffer = map( _writeSegment );
+  }
+
+  private boolean hasRecordHeaderAt( final ByteBuffer buffer, final int position )
+  {
+    if( position + RECORD_HEADER_SIZE > buffer.capacity() ) return false;
+    final int length = buffer.getInt( position );
+    return length > 0 && position + RECORD_HEADER_SIZE + length <= buffer.capacity();
+  }
+
+  private boolean hasRecordAt( final ByteBuffer buffer, final int position )
+  {
+    if( !hasRecordHeaderAt( buffer, position ) ) return false;
+    final int length = buffer.getInt( position );
+    final int checksum = buffer.getInt( position + 4 );
+    final byte[] data = new byte[ length ];
+    final ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position( position + RECORD_HEADER_SIZE );
+    duplicate.get( data );
+    _crc.reset();
+    _crc.update( data, 0, data.length );
+    return checksum == (int)_crc.getValue();
+  }
+
+  private void recover()
+    throws IOException
+  {
+    final String[] names = _directory.list();
+    final long[] ids = new long[ null == names ? 0 : names.length ];
+    int idCount = 0;
+    if( null != names )
+    {
+      for( final String name : names )
+      {
+        if( name.endsWith( SEGMENT_SUFFIX ) )
+        {
+          try
+          {
+            ids[ idCount++ ] = Long.parseLong( name.substring( 0, name.length() - SEGMENT_SUFFIX.length() ) );
+          }
+          catch( final NumberFormatException nfe )
+          {
+            idCount--;
+          }
+        }
+      }
+    }
+    final long[] segmentIds = Arrays.copyOf( ids, idCount );
+    Arrays.sort( segmentIds );
+
+    long checkpointSegment = -1;
+    int checkpointPosition = 0;
+    final File checkpoint = new File( _directory, CHECKPOINT_FILE );
+    if( checkpoint.exists() )
+    {
+      final RandomAccessFile file = new RandomAccessFile( checkpoint, "r" );
+      try
+      {
+        checkpointSegment = file.readLong();
+        checkpointPosition = file.readInt();
+      }
+      finally
+      {
+        file.close();
+      }
+    }
+
+    for( final long id : segmentIds )
+    {
+      if( id < checkpointSegment )
+      {
+        segmentFile( id ).delete();
+      }
+      else
+      {
+        _segments.add( id );
+      }
+    }
+    if( _segments.isEmpty() )
+    {
+      final long id = Math.max( 0, checkpointSegment );
+      _segments.add( id );
+      checkpointPosition = ( id == checkpointSegment ) ? checkpointPosition : 0;
+    }
+    if( _segments.getFirst() != checkpointSegment )
+    {
+      checkpointPosition = 0;
+    }
+
+    _readSegment = _segments.getFirst();
+    _readPosition = checkpointPosition;
+    _count = 0;
+    for( final long id : _segments )
+    {
+      final MappedByteBuffer buffer = map( id );
+      int position = ( id == _readSegment ) ? _readPosition : 0;
+      while( hasRecordAt( buffer, position ) )
+      {
+        position += RECORD_HEADER_SIZE + buffer.getInt( position );
+        _count++;
+      }
+      if( id == _segments.getLast() )
+      {
+        zeroFrom( buffer, position );
+        buffer.position( position );
+        _writeBuffer = buffer;
+        _writeSegment = id;
+      }
+      else if( id == _readSegment )
+      {
+        _readBuffer = buffer;
+      }
+    }
+  }
+
+  /**
+   * Zero the segment from the specified position to the end. A record torn by a crash may be
+   * followed by records written before it that were never synced, and appends only partially
+   * overwrite them, so any of these could otherwise be mistaken for valid records once the reader
+   * leaves the segment.
+   */
+  private void zeroFrom( final ByteBuffer buffer, final int position )
+  {
+    final ByteBuffer tail = buffer.duplicate();
+    tail.position( position );
+    final byte[] zeros = new byte[ Math.min( tail.remaining(), 8192 ) ];
+    while( tail.hasRemaining() )
+    {
+      tail.put( zeros, 0, Math.min( zeros.length, tail.remaining() ) );
+    }
+  }
+
+  private void writeCheckpoint()
+    throws IOException
+  {
+    final File temp = new File( _directory, CHECKPOINT_FILE + ".tmp" );
+    final FileOutputStream output = new FileOutputStream( temp );
+    try
+    {
+      final ByteBuffer buffer = ByteBuffer.allocate( 12 );
+      buffer.putLong( _readSegment );
+      buffer.putInt( _readPosition );
+      output.write( buffer.array() );
+    }
+    finally
+    {
+      output.close();
+    }
+    final File checkpoint = new File( _directory, CHECKPOINT_FILE );
+    if( !temp.renameTo( checkpoint ) )
+    {
+      checkpoint.delete();
+      if( !temp.renameTo( checkpoint ) ) throw new IOException( "Unable to write checkpoint " + checkpoint );
+    }
+  }
+
+  private MappedByteBuffer map( final long id )
+    throws IOException
+  {
+    final RandomAccessFile file = new RandomAccessFile( segmentFile( id ), "rw" );
+    try
+    {
+      final FileChannel channel = file.getChannel();
+      return channel.map( FileChannel.MapMode.READ_WRITE, 0, _segmentSize );
+    }
+    finally
+    {
+      file.close();
+    }
+  }
+
+  private File segmentFile( final long id )
+  {
+    return new File( _directory, String.format( "%020d%s", id, SEGMENT_SUFFIX ) );
+  }
+}
@@ -3,24 +3,36 @@ package org.realityforge.jml;
 import java.io.ByteArrayOutputStream;
 import java.io.StringReader;
 import java.net.URL;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.Session;
 import javax.jms.TextMessage;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 /**
  * Abstract class for services that transform one messages.
  * Instances of this class should be stateless and thread-safe.
+ *
+ * <p>Endpoints pass transformers a read-only view of the message that decodes the body when it
+ * is first read and retains it for the remaining stages. If the transformer returns the message
+ * it was passed then the original message is sent, and its body is not re-encoded.</p>
  */
 public abstract class MessageTransformer
 {
+  /// The default maximum length in bytes of a decompressed body.
+  public static final int DEFAULT_MAX_DECOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
   /**
    * Return the message passed in parameter with the transformation applied.
    *
@@ -61,7 +73,8 @@ public abstract class MessageTransformer
 
   /**
    * Create a transformer that expects an XML formatted TextMessage and attempts to
-   * apply an XSLT transform. Uses the underlying javax.xml.transform API.
+   * apply an XSLT transform. Uses the underlying javax.xml.transform API. The
+   * compiled stylesheet is shared through the {@link CompiledArtifactCache}.
    *
    * @param url the url of XSLT sheet
    */
@@ -69,10 +82,121 @@ public abstract class MessageTransformer
     throws Exception
   {
     if( null == url ) throw new NullPointerException( "url" );
-    final Source source = new StreamSource( url.openStream() );
-    final TransformerFactory factory = TransformerFactory.newInstance();
-    final Transformer transformer = factory.newTransformer( source );
-    return new XslMessageTransformer( transformer );
+    final Templates templates = CompiledArtifactCache.getDefault().getTemplates( url );
+    return new XslMessageTransformer( templates.newTransformer() );
+  }
+
+  /**
+   * Create a transformer that expects a BytesMessage containing records in the input layout
+   * and converts them into records in the output layout. Each output field is copied from the
+   * input field with the same name.
+   */
+  public static MessageTransformer newBinaryTransformer( final BinaryLayout input, final BinaryLayout output )
+  {
+    return newBinaryTransformer( input, output, Collections.<String, String>emptyMap() );
+  }
+
+  /**
+   * Create a transformer that expects a BytesMessage containing records in the input layout
+   * and converts them into records in the output layout.
+   *
+   * @param fieldMapping map from the name of an output field to the name of the input field it is copied from.
+   *                     Output fields not in the map are copied from the input field with the same name.
+   */
+  public static MessageTransformer newBinaryTransformer( final BinaryLayout input,
+                                                         final BinaryLayout output,
+                                                         final Map<String, String> fieldMapping )
+  {
+    return new BinaryMessageTransformer( input, output, fieldMapping );
+  }
+
+  /**
+   * Create a transformer that expects a TextMessage containing JSON and produces a TextMessage
+   * containing a JSON object with the selected fields, renamed. Values are copied verbatim in
+   * the order they appear in the input, and fields missing from the input are omitted. The
+   * input is processed in a single streaming pass without building a tree.
+   *
+   * @param fieldMapping map from the path of an input field to the name of the output field. A path is
+   *                     the sequence of member names from the root object separated by '.'.
+   */
+  public static MessageTransformer newJsonTransformer( final Map<String, String> fieldMapping )
+  {
+    if( null == fieldMapping ) throw new NullPointerException( "fieldMapping" );
+    return new JsonMessageTransformer( fieldMapping );
+  }
+
+  /**
+   * Create a transformer that compresses the body of TextMessages and BytesMessages into a
+   * BytesMessage marked with a property naming the format. Messages with a body smaller than
+   * the threshold and messages that are already compressed are returned unchanged.
+   *
+   * @param format the compression format.
+   * @param threshold the minimum size of the body in bytes before it is compressed. Text is measured as UTF-8.
+   */
+  public static MessageTransformer newCompressingTransformer( final CompressionFormat format, final int threshold )
+  {
+    if( null == format ) throw new NullPointerException( "format" );
+    if( threshold < 0 ) throw new IllegalArgumentException( "threshold must not be negative" );
+    return new CompressingMessageTransformer( format, threshold );
+  }
+
+  /**
+   * Create a transformer that decompresses messages compressed by a transformer created by
+   * {@link #newCompressingTransformer(CompressionFormat, int)}, restoring the original body type.
+   * Messages that are not compressed are returned unchanged. Bodies that decompress to more than
+   * {@link #DEFAULT_MAX_DECOMPRESSED_LENGTH} bytes are rejected.
+   */
+  public static MessageTransformer newDecompressingTransformer()
+  {
+    return newDecompressingTransformer( DEFAULT_MAX_DECOMPRESSED_LENGTH );
+  }
+
+  /**
+   * Create a transformer that decompresses messages compressed by a transformer created by
+   * {@link #newCompressingTransformer(CompressionFormat, int)}, rejecting bodies that decompress
+   * to more than the specified length.
+   *
+   * @param maxLength the maximum length in bytes of the decompressed body.
+   */
+  public static MessageTransformer newDecompressingTransformer( final int maxLength )
+  {
+    if( maxLength < 0 ) throw new IllegalArgumentException( "maxLength must not be negative" );
+    return new DecompressingMessageTransformer( maxLength );
+  }
+
+  /**
+   * Create a transformer that looks up the value of the key property in the cache and stores
+   * the reference data in the target property of a copy of the message. The reference data must
+   * be a valid property value. Messages without the key property or whose key has no reference
+   * data are returned unchanged.
+   *
+   * @param keyProperty the property containing the key.
+   * @param cache the cache of reference data.
+   * @param targetProperty the property the reference data is stored in.
+   */
+  public static MessageTransformer newEnrichmentTransformer( final String keyProperty,
+                                                             final EnrichmentCache<?> cache,
+                                                             final String targetProperty )
+  {
+    return new EnrichmentTransformer.PropertyEnrichmentTransformer( keyProperty, cache, targetProperty );
+  }
+
+  /**
+   * Create a transformer that expects a TextMessage containing XML and stores the string value of
+   * the node at each of the specified paths in a property of a copy of the message, so that the
+   * values can be used by selectors to route the message. The paths are compiled once and resolved
+   * together in a single streaming pass that stops as soon as every path is found. Paths that are
+   * not found are omitted, and if no path is found the message is returned unchanged.
+   *
+   * @param propertyMapping map from a path to the name of the property its value is stored in. Paths are
+   *                        restricted as described in {@link MessageVerifier#newXPathVerifier(Map)}.
+   * @throws ParseException if a path is not supported.
+   */
+  public static MessageTransformer newXPathExtractingTransformer( final Map<String, String> propertyMapping )
+    throws ParseException
+  {
+    if( null == propertyMapping ) throw new NullPointerException( "propertyMapping" );
+    return new XPathExtractingTransformer( propertyMapping );
   }
 
   private static class XslMessageTransformer
@@ -115,4 +239,146 @@ public abstract class MessageTransformer
       }
     }
   }
+
+  private static class JsonMessageTransformer
+    extends MessageTransformer
+  {
+    private final String[] _names;
+    private final JsonPathScanner _scanner;
+
+    private JsonMessageTransformer( final Map<String, String> fieldMapping )
+    {
+      final ArrayList<String> paths = new ArrayList<String>( fieldMapping.keySet() );
+      _names = new String[ paths.size() ];
+      for( int i = 0; i < _names.length; i++ )
+      {
+        final String name = fieldMapping.get( paths.get( i ) );
+        if( null == name ) throw new NullPointerException( "name of " + paths.get( i ) );
+        final StringBuilder sb = new StringBuilder();
+        JsonReader.appendQuoted( sb, name );
+        _names[ i ] = sb.append( ':' ).toString();
+      }
+      _scanner = new JsonPathScanner( paths );
+    }
+
+    @Override
+    public Message transformMessage( final Session session, final Message message )
+      throws Exception
+    {
+      final TextMessage textMessage = castToType( message, TextMessage.class );
+      final String text = textMessage.getText();
+      final StringBuilder sb = new StringBuilder();
+      sb.append( '{' );
+      try
+      {
+        _scanner.scan( text, new JsonPathScanner.Visitor()
+        {
+          public void onValue( final int path, final JsonReader.Token token, final int start, final int end )
+          {
+            if( 1 != sb.length() ) sb.append( ',' );
+            sb.append( _names[ path ] ).append( text, start, end );
+          }
+        } );
+      }
+      catch( final ParseException pe )
+      {
+        throw exceptionFor( textMessage, "is not valid JSON", pe );
+      }
+      sb.append( '}' );
+
+      final TextMessage result = session.createTextMessage( sb.toString() );
+      copyMessageHeaders( textMessage, result );
+      return result;
+    }
+  }
+
+  private static class XPathExtractingTransformer
+    extends MessageTransformer
+  {
+    private final String[] _properties;
+    private final XmlPathScanner _scanner;
+
+    private XPathExtractingTransformer( final Map<String, String> propertyMapping )
+      throws ParseException
+    {
+      final ArrayList<String> paths = new ArrayList<String>( propertyMapping.keySet() );
+      _properties = new String[ paths.size() ];
+      for( int i = 0; i < _properties.length; i++ )
+      {
+        _properties[ i ] = propertyMapping.get( paths.get( i ) );
+        if( null == _properties[ i ] ) throw new NullPointerException( "property of " + paths.get( i ) );
+      }
+      _scanner = new XmlPathScanner( paths );
+    }
+
+    @Override
+    public Message transformMessage( final Session session, final Message message )
+      throws Exception
+    {
+      final TextMessage textMessage = castToType( message, TextMessage.class );
+      final String[] values = new String[ _properties.length ];
+      try
+      {
+        _scanner.scan( textMessage.getText(), new XmlPathScanner.Visitor()
+        {
+          public void onValue( final int path, final String value )
+          {
+            values[ path ] = value;
+          }
+        } );
+      }
+      catch( final XMLStreamException xse )
+      {
+        throw exceptionFor( textMessage, "is not well-formed XML", xse );
+      }
+      Message result = message;
+      for( int i = 0; i < values.length; i++ )
+      {
+        if( null != values[ i ] )
+        {
+          if( result == message ) result = MessageCloner.cloneMessage( session, message );
+          result.setStringProperty( _properties[ i ], values[ i ] );
+        }
+      }
+      return result;
+    }
+  }
+
+  private static class CompressingMessageTransformer
+    extends MessageTransformer
+  {
+    private final CompressionFormat _format;
+    private final int _threshold;
+
+    private CompressingMessageTransformer( final CompressionFormat format, final int threshold )
+    {
+      _format = format;
+      _threshold = threshold;
+    }
+
+    @Override
+    public Message transformMessage( final Session session, final Message message )
+      throws Exception
+    {
+      return MessageCompressor.compress( session, message, _format, _threshold );
+    }
+  }
+
+  private static class DecompressingMessageTransformer
+    extends MessageTransformer
+  {
+    private final int _maxLength;
+
+    private DecompressingMessageTransformer( final int maxLength )
+    {
+      _maxLength = maxLength;
+    }
+
+    @Override
+    public Message transformMessage( final Session session, final Message message )
+      throws Exception
+    {
+      return MessageCompressor.decompress( session, message, _maxLength );
+    }
+  }
 }
@@ -1,19 +1,26 @@
 package org.realityforge.jml;
 
-import java.io.ByteArrayInputStream;
+import java.io.StringReader;
 import java.net.URL;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.regex.Pattern;
 import javax.jms.Message;
 import javax.jms.TextMessage;
 import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 
 /**
  * Abstract class used to verify a Message matches a format.
  * Instances of this class should be stateless and thread-safe.
+ *
+ * <p>Endpoints pass verifiers a read-only view of the message that decodes the body when it is
+ * first read and retains it for the remaining stages. Verifiers that only inspect headers and
+ * properties should not read the body so that it is never decoded.</p>
  */
 public abstract class MessageVerifier
 {
@@ -44,7 +51,8 @@ public abstract class MessageVerifier
 
   /**
    * Create a verifier that expects expects a TextMessage with content
-   * matching XSD specified at URL.
+   * matching XSD specified at URL. The compiled schema is shared through
+   * the {@link CompiledArtifactCache}.
    */
   public static MessageVerifier newXSDVerifier( final URL url )
     throws Exception
@@ -75,6 +83,65 @@ public abstract class MessageVerifier
     return new RegexMessageVerifier( pattern );
   }
 
+  /**
+   * Create a MessageVerifier that expects a TextMessage containing JSON with the specified
+   * fields. The JSON is verified in a single streaming pass without building a tree.
+   *
+   * @param requiredFields map from the path of a required field to its expected type. A path is the
+   *                       sequence of member names from the root object separated by '.'.
+   */
+  public static MessageVerifier newJsonVerifier( final Map<String, JsonType> requiredFields )
+  {
+    if( null == requiredFields ) throw new NullPointerException( "requiredFields" );
+    return new JsonMessageVerifier( requiredFields );
+  }
+
+  /**
+   * Create a MessageVerifier that expects a TextMessage containing XML with a node at each of the
+   * specified paths. The paths are compiled once and resolved together in a single streaming pass
+   * that stops as soon as every path is found, so content after the last required node is not parsed.
+   *
+   * <p>Paths are absolute XPath location paths restricted to unprefixed element names or '*'
+   * separated by '/' or '//'. Each step may have a position predicate such as [2] or an attribute
+   * predicate such as [@type='retail'], and the last step may instead be an attribute or text().</p>
+   *
+   * @param requiredValues map from a path to the pattern its string value must match, or null if any value
+   *                       is accepted.
+   * @throws ParseException if a path is not supported.
+   */
+  public static MessageVerifier newXPathVerifier( final Map<String, Pattern> requiredValues )
+    throws ParseException
+  {
+    if( null == requiredValues ) throw new NullPointerException( "requiredValues" );
+    return new XPathMessageVerifier( requiredValues );
+  }
+
+  /**
+   * Create a MessageVerifier that applies the specified verifier to the decompressed content
+   * of messages compressed by a transformer created by
+   * {@link MessageTransformer#newCompressingTransformer(CompressionFormat, int)}. Messages that
+   * are not compressed are passed to the verifier unchanged. Bodies that decompress to more than
+   * {@link MessageTransformer#DEFAULT_MAX_DECOMPRESSED_LENGTH} bytes are rejected.
+   */
+  public static MessageVerifier newDecompressingVerifier( final MessageVerifier verifier )
+  {
+    return newDecompressingVerifier( verifier, MessageTransformer.DEFAULT_MAX_DECOMPRESSED_LENGTH );
+  }
+
+  /**
+   * Create a MessageVerifier that applies the specified verifier to the decompressed content
+   * of compressed messages, rejecting bodies that decompress to more than the specified length.
+   *
+   * @param verifier the verifier applied to the decompressed message.
+   * @param maxLength the maximum length in bytes of the decompressed body.
+   */
+  public static MessageVerifier newDecompressingVerifier( final MessageVerifier verifier, final int maxLength )
+  {
+    if( null == verifier ) throw new NullPointerException( "verifier" );
+    if( maxLength < 0 ) throw new IllegalArgumentException( "maxLength must not be negative" );
+    return new DecompressingMessageVerifier( verifier, maxLength );
+  }
+
   private static MessageVerifier newXmlVerifier( final String schemaLabel,
                                                  final String schemaLanguage,
                                                  final URL url )
@@ -82,8 +149,7 @@ public abstract class MessageVerifier
   {
     if( null == schemaLanguage ) throw new NullPointerException( "schemaLanguage" );
     if( null == url ) throw new NullPointerException( "url" );
-    final SchemaFactory factory = SchemaFactory.newInstance( schemaLanguage );
-    final Schema schema = factory.newSchema( url );
+    final Schema schema = CompiledArtifactCache.getDefault().getSchema( schemaLanguage, url );
     return new XmlMessageVerifier( schemaLabel + " loaded from " + url, schema.newValidator() );
   }
 
@@ -104,7 +170,7 @@ public abstract class MessageVerifier
       final TextMessage textMessage = castToType( message, TextMessage.class );
       try
       {
-        _validator.validate( new StreamSource( new ByteArrayInputStream( textMessage.getText().getBytes() ) ) );
+        _validator.validate( new StreamSource( new StringReader( textMessage.getText() ) ) );
       }
       catch( final Exception e )
       {
@@ -132,4 +198,124 @@ public abstract class MessageVerifier
       }
     }
   }
+
+  private static class JsonMessageVerifier
+    extends MessageVerifier
+  {
+    private final String[] _paths;
+    private final JsonType[] _types;
+    private final JsonPathScanner _scanner;
+
+    private JsonMessageVerifier( final Map<String, JsonType> requiredFields )
+    {
+      _paths = requiredFields.keySet().toArray( new String[ requiredFields.size() ] );
+      _types = new JsonType[ _paths.length ];
+      for( int i = 0; i < _paths.length; i++ )
+      {
+        _types[ i ] = requiredFields.get( _paths[ i ] );
+        if( null == _types[ i ] ) throw new NullPointerException( "type of " + _paths[ i ] );
+      }
+      _scanner = new JsonPathScanner( Arrays.asList( _paths ) );
+    }
+
+    public void verifyMessage( final Message message ) throws Exception
+    {
+      final TextMessage textMessage = castToType( message, TextMessage.class );
+      final boolean[] found = new boolean[ _paths.length ];
+      try
+      {
+        _scanner.scan( textMessage.getText(), new JsonPathScanner.Visitor()
+        {
+          public void onValue( final int path, final JsonReader.Token token, final int start, final int end )
+            throws Exception
+          {
+            final JsonType type = JsonType.forToken( token );
+            if( JsonType.ANY != _types[ path ] && type != _types[ path ] )
+            {
+              throw exceptionFor( message, "has JSON field " + _paths[ path ] + " of type " + type +
+                                           " but expected " + _types[ path ] + ".", null );
+            }
+            found[ path ] = true;
+          }
+        } );
+      }
+      catch( final ParseException pe )
+      {
+        throw exceptionFor( message, "is not valid JSON.", pe );
+      }
+      for( int i = 0; i < found.length; i++ )
+      {
+        if( !found[ i ] ) throw exceptionFor( message, "is missing JSON field " + _paths[ i ] + ".", null );
+      }
+    }
+  }
+
+  private static class XPathMessageVerifier
+    extends MessageVerifier
+  {
+    private final String[] _paths;
+    private final Pattern[] _patterns;
+    private final XmlPathScanner _scanner;
+
+    private XPathMessageVerifier( final Map<String, Pattern> requiredValues )
+      throws ParseException
+    {
+      _paths = requiredValues.keySet().toArray( new String[ requiredValues.size() ] );
+      _patterns = new Pattern[ _paths.length ];
+      for( int i = 0; i < _paths.length; i++ )
+      {
+        _patterns[ i ] = requiredValues.get( _paths[ i ] );
+      }
+      _scanner = new XmlPathScanner( Arrays.asList( _paths ) );
+    }
+
+    public void verifyMessage( final Message message ) throws Exception
+    {
+      final TextMessage textMessage = castToType( message, TextMessage.class );
+      final boolean[] found = new boolean[ _paths.length ];
+      try
+      {
+        _scanner.scan( textMessage.getText(), new XmlPathScanner.Visitor()
+        {
+          public void onValue( final int path, final String value )
+            throws Exception
+          {
+            final Pattern pattern = _patterns[ path ];
+            if( null != pattern && !pattern.matcher( value ).matches() )
+            {
+              throw exceptionFor( message, "has a value at " + _paths[ path ] +
+                                           " that failed to match pattern \"" + pattern.pattern() + "\".", null );
+            }
+            found[ path ] = true;
+          }
+        } );
+      }
+      catch( final XMLStreamException xse )
+      {
+        throw exceptionFor( message, "is not well-formed XML.", xse );
+      }
+      for( int i = 0; i < found.length; i++ )
+      {
+        if( !found[ i ] ) throw exceptionFor( message, "is missing XML node " + _paths[ i ] + ".", null );
+      }
+    }
+  }
+
+  private static class DecompressingMessageVerifier
+    extends MessageVerifier
+  {
+    private final MessageVerifier _verifier;
+    private final int _maxLength;
+
+    private DecompressingMessageVerifier( final MessageVerifier verifier, final int maxLength )
+    {
+      _verifier = verifier;
+      _maxLength = maxLength;
+    }
+
+    public void verifyMessage( final Message message ) throws Exception
+    {
+      _verifier.verifyMessage( MessageCompressor.decompressedView( message, _maxLength ) );
+    }
+  }
 }
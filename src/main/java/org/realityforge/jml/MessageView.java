@@ -0,0 +1,714 @@
+package org.realityforge.jml;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Enumeration;
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageNotWriteableException;
+import javax.jms.ObjectMessage;
+import javax.jms.TextMessage;
+
+/**
+ * Read-only views of messages that supply the body in place of the underlying message. Methods
+ * that do not access the body are delegated directly to the underlying message.
+ *
+ * <p>Lazy views are passed through the filter, verifiers and transformers of an endpoint so that
+ * the body is only decoded if a stage reads it, and is decoded at most once however many stages
+ * read it. Views must be unwrapped before the message is sent or copied by the provider so that an
+ * untouched message is forwarded as is, rather than being converted and re-encoded as a foreign
+ * message implementation.</p>
+ */
+abstract class MessageView
+  implements Message
+{
+  private final Message _message;
+
+  private MessageView( final Message message )
+  {
+    _message = message;
+  }
+
+  /** Return a view of the message with the specified text in place of its body. */
+  static TextMessage newTextView( final Message message, final String text )
+  {
+    return new TextView( unwrap( message ), text );
+  }
+
+  /** Return a view of the message with the specified bytes in place of its body. */
+  static BytesMessage newBytesView( final Message message, final byte[] data )
+  {
+    return new BytesView( unwrap( message ), data );
+  }
+
+  /**
+   * Return a view of the message that decodes the body when it is first read and retains it for
+   * subsequent reads. Messages whose body type is not retained, and views, are returned unchanged.
+   */
+  static Message lazyView( final Message message )
+  {
+    if( message instanceof MessageView ) return message;
+    else if( message instanceof TextMessage ) return new TextView( message, null );
+    else if( message instanceof BytesMessage ) return new BytesView( message, null );
+    else if( message instanceof ObjectMessage ) return new ObjectView( message );
+    else return message;
+  }
+
+  /** Return the message underlying the view, or the message if it is not a view. */
+  static Message unwrap( final Message message )
+  {
+    if( message instanceof MessageView ) return ( (MessageView)message )._message;
+    else return message;
+  }
+
+  final Message getMessage()
+  {
+    return _message;
+  }
+
+  public final void clearBody()
+    throws JMSException
+  {
+    throw notWriteable();
+  }
+
+  public final void acknowledge()
+    throws JMSException
+  {
+    _message.acknowledge();
+  }
+
+  public final String getJMSMessageID()
+    throws JMSException
+  {
+    return _message.getJMSMessageID();
+  }
+
+  public final void setJMSMessageID( final String id )
+    throws JMSException
+  {
+    _message.setJMSMessageID( id );
+  }
+
+  public final long getJMSTimestamp()
+    throws JMSException
+  {
+    return _message.getJMSTimestamp();
+  }
+
+  public final void setJMSTimestamp( final long timestamp )
+    throws JMSException
+  {
+    _message.setJMSTimestamp( timestamp );
+  }
+
+  public final byte[] getJMSCorrelationIDAsBytes()
+    throws JMSException
+  {
+    return _message.getJMSCorrelationIDAsBytes();
+  }
+
+  public final void setJMSCorrelationIDAsBytes( final byte[] correlationID )
+    throws JMSException
+  {
+    _message.setJMSCorrelationIDAsBytes( correlationID );
+  }
+
+  public final String getJMSCorrelationID()
+    throws JMSException
+  {
+    return _message.getJMSCorrelationID();
+  }
+
+  public final void setJMSCorrelationID( final String correlationID )
+    throws JMSException
+  {
+    _message.setJMSCorrelationID( correlationID );
+  }
+
+  public final Destination getJMSReplyTo()
+    throws JMSException
+  {
+    return _message.getJMSReplyTo();
+  }
+
+  public final void setJMSReplyTo( final Destination replyTo )
+    throws JMSException
+  {
+    _message.setJMSReplyTo( replyTo );
+  }
+
+  public final Destination getJMSDestination()
+    throws JMSException
+  {
+    return _message.getJMSDestination();
+  }
+
+  public final void setJMSDestination( final Destination destination )
+    throws JMSException
+  {
+    _message.setJMSDestination( destination );
+  }
+
+  public final int getJMSDeliveryMode()
+    throws JMSException
+  {
+    return _message.getJMSDeliveryMode();
+  }
+
+  public final void setJMSDeliveryMode( final int deliveryMode )
+    throws JMSException
+  {
+    _message.setJMSDeliveryMode( deliveryMode );
+  }
+
+  public final boolean getJMSRedelivered()
+    throws JMSException
+  {
+    return _message.getJMSRedelivered();
+  }
+
+  public final void setJMSRedelivered( final boolean redelivered )
+    throws JMSException
+  {
+    _message.setJMSRedelivered( redelivered );
+  }
+
+  public final String getJMSType()
+    throws JMSException
+  {
+    return _message.getJMSType();
+  }
+
+  public final void setJMSType( final String type )
+    throws JMSException
+  {
+    _message.setJMSType( type );
+  }
+
+  public final long getJMSExpiration()
+    throws JMSException
+  {
+    return _message.getJMSExpiration();
+  }
+
+  public final void setJMSExpiration( final long expiration )
+    throws JMSException
+  {
+    _message.setJMSExpiration( expiration );
+  }
+
+  public final int getJMSPriority()
+    throws JMSException
+  {
+    return _message.getJMSPriority();
+  }
+
+  public final void setJMSPriority( final int priority )
+    throws JMSException
+  {
+    _message.setJMSPriority( priority );
+  }
+
+  public final void clearProperties()
+    throws JMSException
+  {
+    _message.clearProperties();
+  }
+
+  public final boolean propertyExists( final String name )
+    throws JMSException
+  {
+    return _message.propertyExists( name );
+  }
+
+  public final boolean getBooleanProperty( final String name )
+    throws JMSException
+  {
+    return _message.getBooleanProperty( name );
+  }
+
+  public final byte getByteProperty( final String name )
+    throws JMSException
+  {
+    return _message.getByteProperty( name );
+  }
+
+  public final short getShortProperty( final String name )
+    throws JMSException
+  {
+    return _message.getShortProperty( name );
+  }
+
+  public final int getIntProperty( final String name )
+    throws JMSException
+  {
+    return _message.getIntProperty( name );
+  }
+
+  public final long getLongProperty( final String name )
+    throws JMSException
+  {
+    return _message.getLongProperty( name );
+  }
+
+  public final float getFloatProperty( final String name )
+    throws JMSException
+  {
+    return _message.getFloatProperty( name );
+  }
+
+  public final double getDoubleProperty( final String name )
+    throws JMSException
+  {
+    return _message.getDoubleProperty( name );
+  }
+
+  public final String getStringProperty( final String name )
+    throws JMSException
+  {
+    return _message.getStringProperty( name );
+  }
+
+  public final Object getObjectProperty( final String name )
+    throws JMSException
+  {
+    return _message.getObjectProperty( name );
+  }
+
+  public final Enumeration<?> getPropertyNames()
+    throws JMSException
+  {
+    return _message.getPropertyNames();
+  }
+
+  public final void setBooleanProperty( final String name, final boolean value )
+    throws JMSException
+  {
+    _message.setBooleanProperty( name, value );
+  }
+
+  public final void setByteProperty( final String name, final byte value )
+    throws JMSException
+  {
+    _message.setByteProperty( name, value );
+  }
+
+  public final void setShortProperty( final String name, final short value )
+    throws JMSException
+  {
+    _message.setShortProperty( name, value );
+  }
+
+  public final void setIntProperty( final String name, final int value )
+    throws JMSException
+  {
+    _message.setIntProperty( name, value );
+  }
+
+  public final void setLongProperty( final String name, final long value )
+    throws JMSException
+  {
+    _message.setLongProperty( name, value );
+  }
+
+  public final void setFloatProperty( final String name, final float value )
+    throws JMSException
+  {
+    _message.setFloatProperty( name, value );
+  }
+
+  public final void setDoubleProperty( final String name, final double value )
+    throws JMSException
+  {
+    _message.setDoubleProperty( name, value );
+  }
+
+  public final void setStringProperty( final String name, final String value )
+    throws JMSException
+  {
+    _message.setStringProperty( name, value );
+  }
+
+  public final void setObjectProperty( final String name, final Object value )
+    throws JMSException
+  {
+    _message.setObjectProperty( name, value );
+  }
+
+  public final String toString()
+  {
+    return _message.toString();
+  }
+
+  static MessageNotWriteableException notWriteable()
+  {
+    return new MessageNotWriteableException( "View of message is read-only" );
+  }
+
+  private static final class TextView
+    extends MessageView
+    implements TextMessage
+  {
+    private String _text;
+    private boolean _decoded;
+
+    TextView( final Message message, final String text )
+    {
+      super( message );
+      _text = text;
+      _decoded = null != text;
+    }
+
+    public String getText()
+      throws JMSException
+    {
+      if( !_decoded )
+      {
+        _text = ( (TextMessage)getMessage() ).getText();
+        _decoded = true;
+      }
+      return _text;
+    }
+
+    public void setText( final String text )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+  }
+
+  private static final class BytesView
+    extends MessageView
+    implements BytesMessage
+  {
+    private byte[] _data;
+    private DataInputStream _input;
+
+    BytesView( final Message message, final byte[] data )
+    {
+      super( message );
+      _data = data;
+      if( null != data ) reset();
+    }
+
+    public long getBodyLength()
+      throws JMSException
+    {
+      return data().length;
+    }
+
+    public boolean readBoolean()
+      throws JMSException
+    {
+      try
+      {
+        return input().readBoolean();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public byte readByte()
+      throws JMSException
+    {
+      try
+      {
+        return input().readByte();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public int readUnsignedByte()
+      throws JMSException
+    {
+      try
+      {
+        return input().readUnsignedByte();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public short readShort()
+      throws JMSException
+    {
+      try
+      {
+        return input().readShort();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public int readUnsignedShort()
+      throws JMSException
+    {
+      try
+      {
+        return input().readUnsignedShort();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public char readChar()
+      throws JMSException
+    {
+      try
+      {
+        return input().readChar();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public int readInt()
+      throws JMSException
+    {
+      try
+      {
+        return input().readInt();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public long readLong()
+      throws JMSException
+    {
+      try
+      {
+        return input().readLong();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public float readFloat()
+      throws JMSException
+    {
+      try
+      {
+        return input().readFloat();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public double readDouble()
+      throws JMSException
+    {
+      try
+      {
+        return input().readDouble();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public String readUTF()
+      throws JMSException
+    {
+      try
+      {
+        return input().readUTF();
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public int readBytes( final byte[] value )
+      throws JMSException
+    {
+      return readBytes( value, value.length );
+    }
+
+    public int readBytes( final byte[] value, final int length )
+      throws JMSException
+    {
+      try
+      {
+        return input().read( value, 0, length );
+      }
+      catch( final IOException ioe )
+      {
+        throw readFailure( ioe );
+      }
+    }
+
+    public void writeBoolean( final boolean value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeByte( final byte value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeShort( final short value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeChar( final char value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeInt( final int value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeLong( final long value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeFloat( final float value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeDouble( final double value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeUTF( final String value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeBytes( final byte[] value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeBytes( final byte[] value, final int offset, final int length )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void writeObject( final Object value )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+
+    public void reset()
+    {
+      if( null != _data ) _input = new DataInputStream( new ByteArrayInputStream( _data ) );
+    }
+
+    private byte[] data()
+      throws JMSException
+    {
+      if( null == _data )
+      {
+        _data = readBody( (BytesMessage)getMessage() );
+        reset();
+      }
+      return _data;
+    }
+
+    private DataInputStream input()
+      throws JMSException
+    {
+      data();
+      return _input;
+    }
+
+    private static JMSException readFailure( final IOException ioe )
+    {
+      final JMSException exception = ioe instanceof EOFException ?
+                                     new MessageEOFException( "End of message body" ) :
+                                     new JMSException( "Unable to read message body: " + ioe );
+      exception.setLinkedException( ioe );
+      return exception;
+    }
+
+    /** Read the entire body, leaving the message reset so that it can still be read or sent. */
+    private static byte[] readBody( final BytesMessage message )
+      throws JMSException
+    {
+      message.reset();
+      final byte[] data = new byte[ (int)message.getBodyLength() ];
+      if( 0 != data.length ) message.readBytes( data );
+      message.reset();
+      return data;
+    }
+  }
+
+  private static final class ObjectView
+    extends MessageView
+    implements ObjectMessage
+  {
+    private Serializable _object;
+    private boolean _decoded;
+
+    ObjectView( final Message message )
+    {
+      super( message );
+    }
+
+    public Serializable getObject()
+      throws JMSException
+    {
+      if( !_decoded )
+      {
+        _object = ( (ObjectMessage)getMessage() ).getObject();
+        _decoded = true;
+      }
+      return _object;
+    }
+
+    public void setObject( final Serializable object )
+      throws JMSException
+    {
+      throw notWriteable();
+    }
+  }
+}
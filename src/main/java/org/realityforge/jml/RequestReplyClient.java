@@ -0,0 +1,510 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+/**
+ * Sends requests and correlates their replies without blocking a thread per request. A single
+ * temporary reply queue and consumer is shared by every request sent through the client. Each
+ * request is assigned a unique JMSCorrelationID and the replies are matched to the pending
+ * requests using the JMSCorrelationID of the reply, so responders must copy the JMSCorrelationID
+ * of the request into the reply and send the reply to the JMSReplyTo destination of the request.
+ *
+ * <p>The pending requests are held in a concurrent map and the timeout of each request is
+ * scheduled on the {@link TimingWheel}, so the cost of a request does not depend on the number
+ * of requests in flight. The timing wheel only signals the timeout; requests are failed, and their
+ * listeners notified, on a thread owned by the client so that a slow listener does not delay
+ * other timeouts in the process. Replies that arrive after the request timed out or was cancelled
+ * are discarded.</p>
+ *
+ * <p>Requests may be sent from any thread and sends are serialized. A client created with a
+ * connection creates its own sessions when started: one that receives replies and one that is
+ * only used to send requests, so sending never uses the session of the reply listener. Both are
+ * non-transacted and acknowledge replies automatically, and both are closed when the client is
+ * stopped.</p>
+ *
+ * <p>A client created with a session uses that session to send requests from the calling thread
+ * while the session's delivery thread delivers replies. JMS does not permit a session to be used
+ * concurrently with its message listener, so this requires a provider whose sessions tolerate
+ * such use, and the session must not be used for other purposes while the client is started.
+ * The session must not be transacted as the request would not be sent until the session is
+ * committed, and must not use CLIENT_ACKNOWLEDGE as acknowledging a reply would acknowledge
+ * every message consumed by the session.</p>
+ */
+public final class RequestReplyClient
+{
+  /// Logger used to log in the client.
+  static final Logger LOG = Logger.getLogger( RequestReplyClient.class.getName() );
+
+  private static final AtomicLong c_clientID = new AtomicLong();
+
+  /**
+   * Listener notified when a request completes. The listener is invoked on the thread that
+   * delivers the reply, cancels the request or stops the client, or on the thread owned by the
+   * client if the request times out, and should complete quickly.
+   */
+  public interface ReplyListener
+  {
+    /** Invoked when the reply has been received. */
+    void onReply( Message reply );
+
+    /**
+     * Invoked when the request failed. The exception is a {@link TimeoutException} if no reply
+     * was received within the timeout, or a {@link CancellationException} if the request was
+     * cancelled or the client stopped.
+     */
+    void onFailure( Exception exception );
+  }
+
+  private final Connection _connection;
+  private final Session _session;
+  private final Map<String, ReplyFuture> _pending = new ConcurrentHashMap<String, ReplyFuture>();
+  private final AtomicLong _requestID = new AtomicLong();
+  private final Object _sendLock = new Object();
+  private final long _clientID = c_clientID.incrementAndGet();
+  private final String _correlationPrefix = "JML-" + _clientID + "-" + Long.toHexString( System.nanoTime() ) + "-";
+  private long _defaultTimeout = 30000;
+  private Session _replySession;
+  private Session _producerSession;
+  private TemporaryQueue _replyQueue;
+  private MessageConsumer _replyConsumer;
+  private MessageProducer _producer;
+  private volatile ExecutorService _executor;
+
+  /** Create a client that creates its own reply and producer sessions on the connection. */
+  public RequestReplyClient( final Connection connection )
+  {
+    if( null == connection ) throw new NullPointerException( "connection" );
+    _connection = connection;
+    _session = null;
+  }
+
+  /**
+   * Create a client that sends requests and receives replies using the session. The provider
+   * must tolerate the session sending while its listener is active.
+   */
+  public RequestReplyClient( final Session session )
+  {
+    if( null == session ) throw new NullPointerException( "session" );
+    _connection = null;
+    _session = session;
+  }
+
+  /** Specify the timeout in milliseconds of requests sent without an explicit timeout. */
+  public void setDefaultTimeout( final long defaultTimeout )
+  {
+    if( defaultTimeout < 1 ) throw new IllegalArgumentException( "defaultTimeout must be positive" );
+    _defaultTimeout = defaultTimeout;
+  }
+
+  public long getDefaultTimeout()
+  {
+    return _defaultTimeout;
+  }
+
+  /** Return the queue that replies are sent to. */
+  public synchronized Destination getReplyQueue()
+  {
+    return _replyQueue;
+  }
+
+  /** Return the number of requests awaiting a reply. */
+  public int getPendingCount()
+  {
+    return _pending.size();
+  }
+
+  public synchronized boolean isStarted()
+  {
+    return null != _replyQueue;
+  }
+
+  /**
+   * Create the reply queue and begin receiving replies.
+   *
+   * @throws JMSException if the reply queue, consumer or producer can not be created.
+   */
+  public synchronized void start()
+    throws JMSException
+  {
+    if( isStarted() ) throw new IllegalStateException( "Client already started" );
+    if( null != _session )
+    {
+      if( _session.getTransacted() ) throw new IllegalStateException( "Session must not be transacted" );
+      if( Session.CLIENT_ACKNOWLEDGE == _session.getAcknowledgeMode() )
+      {
+        throw new IllegalStateException( "Session must not use CLIENT_ACKNOWLEDGE" );
+      }
+    }
+    try
+    {
+      if( null != _connection )
+      {
+        _replySession = _connection.createSession( false, Session.AUTO_ACKNOWLEDGE );
+        _producerSession = _connection.createSession( false, Session.AUTO_ACKNOWLEDGE );
+      }
+      else
+      {
+        _replySession = _session;
+        _producerSession = _session;
+      }
+      _replyQueue = _replySession.createTemporaryQueue();
+      synchronized( _sendLock )
+      {
+        _producer = _producerSession.createProducer( null );
+      }
+      final String name = "RequestReplyClient-" + _clientID;
+      _executor = Executors.newSingleThreadExecutor( new ThreadFactory()
+      {
+        public Thread newThread( final Runnable runnable )
+        {
+          final Thread thread = new Thread( runnable, name );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+      _replyConsumer = _replySession.createConsumer( _replyQueue );
+      _replyConsumer.setMessageListener( new ReplyMessageListener() );
+    }
+    catch( final JMSException e )
+    {
+      LOG.log( Level.WARNING, "Error starting client", e );
+      stop();
+      throw e;
+    }
+  }
+
+  /**
+   * Stop receiving replies and delete the reply queue. Requests awaiting a reply fail with a
+   * {@link CancellationException}.
+   */
+  public void stop()
+  {
+    synchronized( this )
+    {
+      try
+      {
+        if( null != _replyConsumer ) _replyConsumer.close();
+      }
+      catch( final JMSException e )
+      {
+        LOG.log( Level.WARNING, "Error closing reply consumer", e );
+      }
+      _replyConsumer = null;
+      synchronized( _sendLock )
+      {
+        try
+        {
+          if( null != _producer ) _producer.close();
+        }
+        catch( final JMSException e )
+        {
+          LOG.log( Level.WARNING, "Error closing producer", e );
+        }
+        _producer = null;
+      }
+      try
+      {
+        if( null != _replyQueue ) _replyQueue.delete();
+      }
+      catch( final JMSException e )
+      {
+        LOG.log( Level.WARNING, "Error deleting reply queue", e );
+      }
+      _replyQueue = null;
+      if( null != _connection )
+      {
+        closeSession( _producerSession );
+        closeSession( _replySession );
+      }
+      _producerSession = null;
+      _replySession = null;
+    }
+    final List<ReplyFuture> pending = new ArrayList<ReplyFuture>( _pending.values() );
+    for( final ReplyFuture future : pending )
+    {
+      future.fail( new CancellationException( "Client stopped" ) );
+    }
+    final ExecutorService executor;
+    synchronized( this )
+    {
+      executor = _executor;
+      _executor = null;
+    }
+    if( null != executor ) executor.shutdown();
+  }
+
+  /**
+   * Send a request using the default timeout.
+   *
+   * @see #request(ChannelSpec, Message, long)
+   */
+  public ReplyFuture request( final ChannelSpec destination, final Message request )
+    throws JMSException
+  {
+    return request( destination, request, _defaultTimeout );
+  }
+
+  /**
+   * Send a request and return a future that completes when the reply is received. The
+   * JMSCorrelationID and JMSReplyTo headers of the request are replaced.
+   *
+   * @param destination the channel to send the request to.
+   * @param request the request message.
+   * @param timeout the time in milliseconds to wait for the reply.
+   * @return the future that completes with the reply.
+   * @throws JMSException if the request can not be sent.
+   */
+  public ReplyFuture request( final ChannelSpec destination, final Message request, final long timeout )
+    throws JMSException
+  {
+    if( null == destination ) throw new NullPointerException( "destination" );
+    if( null == request ) throw new NullPointerException( "request" );
+    if( timeout < 1 ) throw new IllegalArgumentException( "timeout must be positive" );
+    final String correlationID = _correlationPrefix + _requestID.incrementAndGet();
+    final ReplyFuture future = new ReplyFuture( correlationID );
+    // The future is registered before sending as the reply may arrive before send returns
+    _pending.put( correlationID, future );
+    final Runnable timeoutTask = new Runnable()
+    {
+      public void run()
+      {
+        future.fail( new TimeoutException( "No reply received within " + timeout + "ms" ) );
+      }
+    };
+    future._timeout = TimingWheel.getDefault().schedule( new Runnable()
+    {
+      public void run()
+      {
+        execute( timeoutTask );
+      }
+    }, timeout, TimeUnit.MILLISECONDS );
+    try
+    {
+      synchronized( _sendLock )
+      {
+        if( null == _producer ) throw new IllegalStateException( "Client not started" );
+        request.setJMSCorrelationID( correlationID );
+        request.setJMSReplyTo( _replyQueue );
+        _producer.send( destination.create( _producerSession ), request );
+      }
+    }
+    catch( final JMSException e )
+    {
+      _pending.remove( correlationID );
+      future._timeout.cancel();
+      throw e;
+    }
+    catch( final RuntimeException e )
+    {
+      _pending.remove( correlationID );
+      future._timeout.cancel();
+      throw e;
+    }
+    return future;
+  }
+
+  /** Run the task on the thread owned by the client rather than the calling thread. */
+  private void execute( final Runnable task )
+  {
+    final ExecutorService executor = _executor;
+    if( null == executor ) return;
+    try
+    {
+      executor.execute( task );
+    }
+    catch( final RejectedExecutionException ree )
+    {
+      // Executor is shutdown as the client stops and pending requests are cancelled
+    }
+  }
+
+  private static void closeSession( final Session session )
+  {
+    try
+    {
+      if( null != session ) session.close();
+    }
+    catch( final JMSException e )
+    {
+      LOG.log( Level.WARNING, "Error closing session", e );
+    }
+  }
+
+  private class ReplyMessageListener
+    implements MessageListener
+  {
+    public void onMessage( final Message message )
+    {
+      try
+      {
+        final String correlationID = message.getJMSCorrelationID();
+        final ReplyFuture future = null != correlationID ? _pending.get( correlationID ) : null;
+        if( null != future )
+        {
+          future.complete( message );
+        }
+        else if( LOG.isLoggable( Level.FINE ) )
+        {
+          LOG.fine( "Discarding reply with unknown correlation ID " + correlationID );
+        }
+      }
+      catch( final JMSException e )
+      {
+        LOG.log( Level.WARNING, "Error handling reply", e );
+      }
+    }
+  }
+
+  /**
+   * The future result of a request. The future completes with the reply, fails if no reply is
+   * received within the timeout and may be cancelled while awaiting the reply.
+   */
+  public final class ReplyFuture
+    implements Future<Message>
+  {
+    private final String _correlationID;
+    private volatile TimingWheel.Timeout _timeout;
+    private boolean _isDone;
+    private Message _reply;
+    private Exception _exception;
+    private ReplyListener _listener;
+
+    ReplyFuture( final String correlationID )
+    {
+      _correlationID = correlationID;
+    }
+
+    /** Return the JMSCorrelationID assigned to the request. */
+    public String getCorrelationID()
+    {
+      return _correlationID;
+    }
+
+    /**
+     * Specify the listener notified when the request completes. If the request has already
+     * completed the listener is invoked immediately on the calling thread.
+     */
+    public void setListener( final ReplyListener listener )
+    {
+      if( null == listener ) throw new NullPointerException( "listener" );
+      synchronized( this )
+      {
+        if( null != _listener ) throw new IllegalStateException( "Listener already specified" );
+        _listener = listener;
+        if( !_isDone ) return;
+      }
+      notifyListener( listener );
+    }
+
+    public boolean cancel( final boolean mayInterruptIfRunning )
+    {
+      return fail( new CancellationException( "Request cancelled" ) );
+    }
+
+    public synchronized boolean isCancelled()
+    {
+      return _exception instanceof CancellationException;
+    }
+
+    public synchronized boolean isDone()
+    {
+      return _isDone;
+    }
+
+    public synchronized Message get()
+      throws InterruptedException, ExecutionException
+    {
+      while( !_isDone )
+      {
+        wait();
+      }
+      return getResult();
+    }
+
+    public synchronized Message get( final long timeout, final TimeUnit unit )
+      throws InterruptedException, ExecutionException, TimeoutException
+    {
+      final long end = System.nanoTime() + unit.toNanos( timeout );
+      while( !_isDone )
+      {
+        final long remaining = end - System.nanoTime();
+        if( remaining <= 0 ) throw new TimeoutException();
+        TimeUnit.NANOSECONDS.timedWait( this, remaining );
+      }
+      return getResult();
+    }
+
+    private Message getResult()
+      throws ExecutionException
+    {
+      if( _exception instanceof CancellationException ) throw (CancellationException)_exception;
+      else if( null != _exception ) throw new ExecutionException( _exception );
+      else return _reply;
+    }
+
+    boolean complete( final Message reply )
+    {
+      return done( reply, null );
+    }
+
+    boolean fail( final Exception exception )
+    {
+      return done( null, exception );
+    }
+
+    private boolean done( final Message reply, final Exception exception )
+    {
+      final ReplyListener listener;
+      synchronized( this )
+      {
+        if( _isDone ) return false;
+        _isDone = true;
+        _reply = reply;
+        _exception = exception;
+        listener = _listener;
+        _pending.remove( _correlationID );
+        notifyAll();
+      }
+      if( null != _timeout ) _timeout.cancel();
+      if( null != listener ) notifyListener( listener );
+      return true;
+    }
+
+    private void notifyListener( final ReplyListener listener )
+    {
+      try
+      {
+        if( null != _exception ) listener.onFailure( _exception );
+        else listener.onReply( _reply );
+      }
+      catch( final RuntimeException e )
+      {
+        LOG.log( Level.WARNING, "Error notifying listener of request " + _correlationID, e );
+      }
+    }
+  }
+}
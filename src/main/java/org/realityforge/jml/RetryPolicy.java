@@ -0,0 +1,153 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Policy describing how an endpoint retries a message that failed processing before
+ * routing it to the dead message queue. The delay between attempts grows exponentially
+ * from the initial delay up to the maximum delay, and is randomized by the jitter factor
+ * so that a burst of failures does not retry in lockstep.
+ *
+ * <p>By default every exception is considered retryable. If retryable exception types are
+ * specified then a failure is only retried if the exception or one of its causes is an
+ * instance of a retryable type. A failure without an exception is a routing decision rather
+ * than a transient failure and is never retried. Subclasses may override
+ * {@link #isRetryable(Throwable)} to supply a different classification.</p>
+ *
+ * <p>Instances of this class are immutable and thread-safe.</p>
+ */
+public class RetryPolicy
+{
+  private final int _maxAttempts;
+  private final long _initialDelay;
+  private final long _maxDelay;
+  private final double _multiplier;
+  private final double _jitter;
+  private final List<Class<?>> _retryableTypes;
+  private final Random _random = new Random();
+
+  /**
+   * Create a policy.
+   *
+   * @param maxAttempts the maximum number of times a message is processed, including the first attempt.
+   * @param initialDelay the delay in milliseconds before the first retry.
+   * @param maxDelay the upper bound in milliseconds of the delay between attempts.
+   * @param multiplier the factor the delay is multiplied by after each attempt.
+   * @param jitter the fraction, between 0 and 1, by which the delay is randomly reduced.
+   * @param retryableTypes the exception types that are retryable. If empty then all exceptions are retryable.
+   */
+  public RetryPolicy( final int maxAttempts,
+                      final long initialDelay,
+                      final long maxDelay,
+                      final double multiplier,
+                      final double jitter,
+                      final Class<?>... retryableTypes )
+  {
+    if( maxAttempts < 1 ) throw new IllegalArgumentException( "maxAttempts must be at least 1" );
+    if( initialDelay < 0 ) throw new IllegalArgumentException( "initialDelay must not be negative" );
+    if( maxDelay < initialDelay ) throw new IllegalArgumentException( "maxDelay must not be less than initialDelay" );
+    if( multiplier < 1 ) throw new IllegalArgumentException( "multiplier must be at least 1" );
+    if( jitter < 0 || jitter > 1 ) throw new IllegalArgumentException( "jitter must be between 0 and 1" );
+    _maxAttempts = maxAttempts;
+    _initialDelay = initialDelay;
+    _maxDelay = maxDelay;
+    _multiplier = multiplier;
+    _jitter = jitter;
+    final ArrayList<Class<?>> types = new ArrayList<Class<?>>();
+    for( final Class<?> type : retryableTypes )
+    {
+      if( !Throwable.class.isAssignableFrom( type ) )
+      {
+        throw new IllegalArgumentException( "Retryable type " + type.getName() + " is not a Throwable" );
+      }
+      types.add( type );
+    }
+    _retryableTypes = Collections.unmodifiableList( types );
+  }
+
+  public final int getMaxAttempts()
+  {
+    return _maxAttempts;
+  }
+
+  public final long getInitialDelay()
+  {
+    return _initialDelay;
+  }
+
+  public final long getMaxDelay()
+  {
+    return _maxDelay;
+  }
+
+  public final double getMultiplier()
+  {
+    return _multiplier;
+  }
+
+  public final double getJitter()
+  {
+    return _jitter;
+  }
+
+  public final List<Class<?>> getRetryableTypes()
+  {
+    return _retryableTypes;
+  }
+
+  /**
+   * Return true if a message that has been processed attemptCount times and failed with
+   * the specified exception should be processed again.
+   */
+  public final boolean shouldRetry( final int attemptCount, final Throwable t )
+  {
+    return attemptCount < _maxAttempts && isRetryable( t );
+  }
+
+  /**
+   * Return true if the exception represents a transient failure. A null exception is not retryable.
+   */
+  public boolean isRetryable( final Throwable t )
+  {
+    if( null == t ) return false;
+    else if( _retryableTypes.isEmpty() ) return true;
+    Throwable candidate = t;
+    while( null != candidate )
+    {
+      for( final Class<?> type : _retryableTypes )
+      {
+        if( type.isInstance( candidate ) ) return true;
+      }
+      if( candidate.getCause() == candidate ) break;
+      candidate = candidate.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * Return the delay in milliseconds before the next attempt of a message that has
+   * been processed attemptCount times.
+   */
+  public final long getDelay( final int attemptCount )
+  {
+    double delay = _initialDelay;
+    for( int i = 1; i < attemptCount && delay < _maxDelay; i++ )
+    {
+      delay *= _multiplier;
+    }
+    delay = Math.min( delay, _maxDelay );
+    if( 0 != _jitter )
+    {
+      final double random;
+      synchronized( _random )
+      {
+        random = _random.nextDouble();
+      }
+      delay -= delay * _jitter * random;
+    }
+    return (long)delay;
+  }
+}
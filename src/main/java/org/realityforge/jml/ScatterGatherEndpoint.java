@@ -0,0 +1,357 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * The message endpoint that sends a copy of each request to a set of recipient channels,
+ * gathers the correlated replies and sends the result of aggregating the replies to a
+ * destination channel. The result may pass through a transformer and output verifier before
+ * being sent.
+ *
+ * <p>Requests are sent through a {@link RequestReplyClient} on the session of the endpoint so
+ * the replies of many requests are gathered in parallel without blocking the endpoint. The
+ * completion policy determines when the replies of a request are aggregated. If the policy
+ * can not be satisfied before the timeout then the request is routed to the dead message
+ * queue, as are requests that are awaiting replies when the endpoint is stopped. Timed out
+ * requests are completed on the endpoint thread rather than the timing wheel thread.</p>
+ *
+ * <p>Delivery is at-most-once. A request is acknowledged by the session once it has been sent
+ * to the recipients, before its replies are gathered, so a request that is awaiting replies is
+ * lost if the process fails. Per-request acknowledgement is not possible as acknowledging a
+ * message acknowledges every message consumed by the session, so the session must use automatic
+ * acknowledgement and must not be transacted. As the replies are received by the session of the
+ * endpoint, the provider must tolerate the session sending while its listener is active as
+ * described in {@link RequestReplyClient}.</p>
+ */
+public final class ScatterGatherEndpoint
+  extends AbstractMessageEndpoint
+{
+  /// The default time in milliseconds to wait for the replies to a request.
+  public static final long DEFAULT_TIMEOUT = 30 * 1000;
+
+  /** The policy that determines when the replies to a request are aggregated. */
+  public enum Completion
+  {
+    /// Aggregate once a reply has been received from every recipient.
+    ALL,
+    /// Aggregate once the specified number of replies have been received.
+    FIRST_N,
+    /// Aggregate the replies received when the timeout expires, or earlier if every recipient has replied.
+    TIMEOUT
+  }
+
+  private final List<ChannelSpec> _recipients = new ArrayList<ChannelSpec>();
+  private final Set<Gather> _gathers = new HashSet<Gather>();
+  private ChannelSpec _destination;
+  private Completion _completion = Completion.ALL;
+  private int _requiredReplies;
+  private long _timeout = DEFAULT_TIMEOUT;
+  private MessageAggregator _aggregator;
+  private MessageTransformer _transformer;
+  private MessageVerifier _outputVerifier;
+  private RequestReplyClient _client;
+  private MessageProducer _destinationProducer;
+
+  /** Add a channel that requests are sent to. */
+  public void addRecipient( final String channelSpec )
+  {
+    ensureEditable();
+    _recipients.add( ChannelSpec.parseChannelSpec( channelSpec ) );
+  }
+
+  /** Return the channels that requests are sent to. */
+  public List<ChannelSpec> getRecipients()
+  {
+    return Collections.unmodifiableList( _recipients );
+  }
+
+  /** Specify the destination channel. */
+  public void setDestinationChannel( final String channelSpec )
+  {
+    ensureEditable();
+    _destination = ChannelSpec.parseChannelSpec( channelSpec );
+  }
+
+  /**
+   * Specify the completion policy.
+   *
+   * @param completion the policy.
+   * @param requiredReplies the number of replies required by {@link Completion#FIRST_N}. Ignored by other policies.
+   */
+  public void setCompletion( final Completion completion, final int requiredReplies )
+  {
+    ensureEditable();
+    if( null == completion ) throw new NullPointerException( "completion" );
+    if( Completion.FIRST_N == completion && requiredReplies < 1 )
+    {
+      throw new IllegalArgumentException( "requiredReplies must be at least 1" );
+    }
+    _completion = completion;
+    _requiredReplies = requiredReplies;
+  }
+
+  public Completion getCompletion()
+  {
+    return _completion;
+  }
+
+  /** Specify the time in milliseconds to wait for the replies to a request. */
+  public void setTimeout( final long timeout )
+  {
+    ensureEditable();
+    if( timeout < 1 ) throw new IllegalArgumentException( "timeout must be positive" );
+    _timeout = timeout;
+  }
+
+  public long getTimeout()
+  {
+    return _timeout;
+  }
+
+  /** Specify the aggregator that combines the replies. */
+  public void setAggregator( final MessageAggregator aggregator )
+  {
+    ensureEditable();
+    _aggregator = aggregator;
+  }
+
+  /** Specify the transformer applied to the aggregated message. */
+  public void setTransformer( final MessageTransformer transformer )
+  {
+    ensureEditable();
+    _transformer = transformer;
+  }
+
+  /** Specify the verifier applied to the message sent to the destination. */
+  public void setOutputVerifier( final MessageVerifier outputVerifier )
+  {
+    ensureEditable();
+    _outputVerifier = outputVerifier;
+  }
+
+  /** Return the number of requests awaiting replies. */
+  public int getPendingCount()
+  {
+    synchronized( getLock() )
+    {
+      return _gathers.size();
+    }
+  }
+
+  @Override
+  protected void preSubscribe( final Session session ) throws Exception
+  {
+    if( session.getTransacted() || Session.CLIENT_ACKNOWLEDGE == session.getAcknowledgeMode() )
+    {
+      throw invalid( "session must not be transacted or use CLIENT_ACKNOWLEDGE" );
+    }
+    _destinationProducer = session.createProducer( _destination.create( session ) );
+    _client = new RequestReplyClient( session );
+    _client.setDefaultTimeout( _timeout );
+    _client.start();
+  }
+
+  @Override
+  protected void postConsumerClose()
+  {
+    for( final Gather gather : new ArrayList<Gather>( _gathers ) )
+    {
+      gather.reject( "Endpoint stopped before the replies were gathered" );
+    }
+  }
+
+  @Override
+  protected void preSessionClose()
+  {
+    if( null != _client ) _client.stop();
+    _client = null;
+    closeProducer( _destinationProducer, "Closing destination producer" );
+    _destinationProducer = null;
+  }
+
+  @Override
+  protected void handleMessage( final Session session, final Message message ) throws Exception
+  {
+    final Gather gather = new Gather( message );
+    _gathers.add( gather );
+    final Message request = MessageCloner.cloneMessage( session, message );
+    try
+    {
+      for( final ChannelSpec recipient : _recipients )
+      {
+        final RequestReplyClient.ReplyFuture future = _client.request( recipient, request );
+        gather._futures.add( future );
+        future.setListener( gather );
+      }
+    }
+    catch( final Exception e )
+    {
+      gather.reject( "Failed to send request to recipients. Error: " + e );
+    }
+  }
+
+  @Override
+  protected void preSendMessageToDMQ( final Message message ) throws JMSException
+  {
+    message.setStringProperty( "JMLDestinationChannel", _destination.toSpec() );
+  }
+
+  @Override
+  protected void ensureValidConfig()
+    throws Exception
+  {
+    super.ensureValidConfig();
+    if( null == _destination ) throw invalid( "destination channel not specified" );
+    else if( _recipients.isEmpty() ) throw invalid( "recipients not specified" );
+    else if( null == _aggregator ) throw invalid( "aggregator not specified" );
+    else if( Completion.FIRST_N == _completion && _requiredReplies > _recipients.size() )
+    {
+      throw invalid( "requiredReplies exceeds the number of recipients" );
+    }
+  }
+
+  private void complete( final Gather gather )
+  {
+    remove( gather );
+    final Message output;
+    try
+    {
+      final Message aggregate = _aggregator.aggregate( getSession(), gather._request, gather._replies );
+      output = null != _transformer ? _transformer.transformMessage( getSession(), aggregate ) : aggregate;
+      if( null != output && null != _outputVerifier ) _outputVerifier.verifyMessage( output );
+    }
+    catch( final Exception e )
+    {
+      failure( gather, "Failed to aggregate " + gather._replies.size() + " replies. Error: " + e, e );
+      return;
+    }
+    try
+    {
+      if( null != output )
+      {
+        _destinationProducer.send( output,
+                                    output.getJMSDeliveryMode(),
+                                    output.getJMSPriority(),
+                                    output.getJMSExpiration() );
+      }
+    }
+    catch( final Exception e )
+    {
+      failure( gather, "Failed to send aggregated message to destination. Error: " + e, e );
+    }
+    if( LOG.isLoggable( Level.FINE ) )
+    {
+      log( Level.FINE, "Completed processing of message: " + gather._request, null );
+    }
+  }
+
+  private void failure( final Gather gather, final String reason, final Exception e )
+  {
+    try
+    {
+      handleFailure( gather._request, reason, e );
+    }
+    catch( final IllegalStateException ise )
+    {
+      // No DMQ or unable to send to DMQ. Already logged.
+    }
+  }
+
+  private void remove( final Gather gather )
+  {
+    _gathers.remove( gather );
+    for( final RequestReplyClient.ReplyFuture future : gather._futures )
+    {
+      future.cancel( false );
+    }
+  }
+
+  /**
+   * The replies gathered for a request. The state is guarded by the lock of the endpoint. Replies
+   * are gathered on the thread that delivers them while failures, which may be notified on the
+   * timing wheel thread, are gathered on the endpoint thread.
+   */
+  private final class Gather
+    implements RequestReplyClient.ReplyListener
+  {
+    private final Message _request;
+    private final List<RequestReplyClient.ReplyFuture> _futures = new ArrayList<RequestReplyClient.ReplyFuture>();
+    private final List<Message> _replies = new ArrayList<Message>();
+    private int _failures;
+    private Exception _failure;
+
+    Gather( final Message request )
+    {
+      _request = request;
+    }
+
+    public void onReply( final Message reply )
+    {
+      synchronized( getLock() )
+      {
+        if( !_gathers.contains( this ) ) return;
+        _replies.add( reply );
+        update();
+      }
+    }
+
+    public void onFailure( final Exception exception )
+    {
+      synchronized( getLock() )
+      {
+        // Futures cancelled when the gather is removed notify the failure re-entrantly
+        if( !_gathers.contains( this ) ) return;
+      }
+      execute( new Runnable()
+      {
+        public void run()
+        {
+          if( !_gathers.contains( Gather.this ) ) return;
+          _failures++;
+          if( null == _failure || exception instanceof TimeoutException ) _failure = exception;
+          update();
+        }
+      } );
+    }
+
+    private void update()
+    {
+      final int recipientCount = _recipients.size();
+      final int replyCount = _replies.size();
+      final int requiredReplies = Completion.FIRST_N == _completion ? _requiredReplies : recipientCount;
+      if( replyCount >= requiredReplies )
+      {
+        complete( this );
+      }
+      else if( replyCount + _failures == recipientCount )
+      {
+        if( Completion.TIMEOUT == _completion && 0 != replyCount )
+        {
+          complete( this );
+        }
+        else
+        {
+          remove( this );
+          failure( this, "Received " + replyCount + " of " + requiredReplies + " required replies. Error: " +
+                         _failure, _failure );
+        }
+      }
+    }
+
+    void reject( final String reason )
+    {
+      remove( this );
+      failure( this, reason, null );
+    }
+  }
+}
@@ -0,0 +1,513 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * Spreads a durable subscription to a topic across a number of shards so that a hot topic can be
+ * consumed by several endpoints. Each shard is a separate durable subscription named
+ * <tt>name-count-index</tt> whose selector matches a disjoint range of buckets, and the ranges of
+ * all shards are complementary so every message is received by exactly one shard.
+ *
+ * <p>JMS selectors can not hash a property so the bucket is computed when the message is
+ * produced. Producers invoke {@link #assignShard(Message, String)} which stores a bucket derived
+ * from the hash of the key property in the property named by appending "Shard" to the key
+ * property. Messages without a bucket are received by the first shard. Messages with the same key
+ * are always received by the same shard for a given shard count.</p>
+ *
+ * <p>{@link #rebalance(int)} changes the shard count without losing messages. The shards of the
+ * new count are started before the existing shards are retired. The retired shards continue to
+ * process the messages that were published before the new shards subscribed, and drop later
+ * messages that are also received by the new shards, until they have drained. A retired shard
+ * has drained once it receives a message published after the new shards subscribed or it has
+ * been idle for the idle timeout, at which point it is stopped and its subscription removed.
+ * Messages published while the rebalance is in progress may be processed by both a retired and
+ * a new shard if the clocks of the producers differ by less than the clock skew allowance, so
+ * endpoints should tolerate duplicates.</p>
+ *
+ * <p>The connection must have a client ID for the durable subscriptions to be created. As with
+ * other durable subscriptions of endpoints, messages published on the same connection are not
+ * received by the shards.</p>
+ */
+public final class ShardedSubscription
+{
+  /// Logger used to log in the sharded subscription.
+  static final Logger LOG = Logger.getLogger( ShardedSubscription.class.getName() );
+
+  /// The number of buckets that the shards partition. The shard count may not exceed this.
+  public static final int BUCKET_COUNT = 1024;
+
+  /// The suffix appended to the key property to name the property containing the bucket.
+  public static final String SHARD_PROPERTY_SUFFIX = "Shard";
+
+  /** Factory used to create the endpoint for each shard. */
+  public interface EndpointFactory
+  {
+    /**
+     * Create an unstarted endpoint for a shard. The source channel of the endpoint is replaced
+     * with the durable subscription of the shard.
+     */
+    AbstractMessageEndpoint createEndpoint( int shard, int shardCount )
+      throws Exception;
+  }
+
+  private final Connection _connection;
+  private final String _name;
+  private final String _topicName;
+  private final String _keyProperty;
+  private final EndpointFactory _factory;
+  private final List<AbstractMessageEndpoint> _endpoints = new ArrayList<AbstractMessageEndpoint>();
+  private final List<AbstractMessageEndpoint> _retired = new ArrayList<AbstractMessageEndpoint>();
+  private final Map<AbstractMessageEndpoint, DrainFilter> _drainFilters =
+    new IdentityHashMap<AbstractMessageEndpoint, DrainFilter>();
+  private int _shardCount = 1;
+  private boolean _transacted;
+  private int _acknowledgeMode = Session.AUTO_ACKNOWLEDGE;
+  private long _clockSkewAllowance = 1000;
+  private long _idleTimeout = 5000;
+  private long _drainTimeout = 60000;
+  private boolean _isStarted;
+
+  /**
+   * Create a sharded subscription.
+   *
+   * @param connection the connection used to create the sessions of the shards.
+   * @param name the prefix of the names of the durable subscriptions.
+   * @param topicName the topic subscribed to.
+   * @param keyProperty the property containing the key that messages are sharded by.
+   * @param factory the factory used to create the endpoint of each shard.
+   */
+  public ShardedSubscription( final Connection connection,
+                              final String name,
+                              final String topicName,
+                              final String keyProperty,
+                              final EndpointFactory factory )
+  {
+    if( null == connection ) throw new NullPointerException( "connection" );
+    if( null == name ) throw new NullPointerException( "name" );
+    if( null == topicName ) throw new NullPointerException( "topicName" );
+    if( null == keyProperty ) throw new NullPointerException( "keyProperty" );
+    if( null == factory ) throw new NullPointerException( "factory" );
+    _connection = connection;
+    _name = name;
+    _topicName = topicName;
+    _keyProperty = keyProperty;
+    _factory = factory;
+  }
+
+  /** Specify the number of shards started. */
+  public void setShardCount( final int shardCount )
+  {
+    ensureEditable();
+    checkShardCount( shardCount );
+    _shardCount = shardCount;
+  }
+
+  public int getShardCount()
+  {
+    return _shardCount;
+  }
+
+  /** Specify the transacted flag and acknowledge mode of the sessions created for the shards. */
+  public void setSessionMode( final boolean transacted, final int acknowledgeMode )
+  {
+    ensureEditable();
+    _transacted = transacted;
+    _acknowledgeMode = acknowledgeMode;
+  }
+
+  /**
+   * Specify the maximum difference in milliseconds between the clocks of the producers and the
+   * clock of this process. A larger allowance increases the number of duplicates processed
+   * during a rebalance while a smaller allowance risks losing messages from producers whose
+   * clocks are ahead.
+   */
+  public void setClockSkewAllowance( final long clockSkewAllowance )
+  {
+    if( clockSkewAllowance < 0 ) throw new IllegalArgumentException( "clockSkewAllowance must not be negative" );
+    _clockSkewAllowance = clockSkewAllowance;
+  }
+
+  /**
+   * Specify the time in milliseconds without messages after which a retired shard is considered
+   * drained, and the maximum time in milliseconds that a rebalance waits for the retired shards
+   * to drain.
+   */
+  public void setDrainTimeouts( final long idleTimeout, final long drainTimeout )
+  {
+    if( idleTimeout < 1 ) throw new IllegalArgumentException( "idleTimeout must be positive" );
+    if( drainTimeout < 0 ) throw new IllegalArgumentException( "drainTimeout must not be negative" );
+    _idleTimeout = idleTimeout;
+    _drainTimeout = drainTimeout;
+  }
+
+  public boolean isStarted()
+  {
+    return _isStarted;
+  }
+
+  /** Return the number of retired shards that have not yet drained. */
+  public synchronized int getRetiredCount()
+  {
+    return _retired.size();
+  }
+
+  /** Return the name of the durable subscription for a shard. */
+  public String getSubscriptionName( final int shard, final int shardCount )
+  {
+    return subscriptionName( _name, shard, shardCount );
+  }
+
+  /** Return the selector of the durable subscription for a shard. */
+  public String getSelector( final int shard, final int shardCount )
+  {
+    return selector( _keyProperty, shard, shardCount );
+  }
+
+  /**
+   * Start the endpoints of every shard.
+   *
+   * @throws Exception if the endpoints can not be created or started.
+   */
+  public synchronized void start()
+    throws Exception
+  {
+    if( _isStarted ) throw new IllegalStateException( "Sharded subscription already started" );
+    try
+    {
+      _endpoints.addAll( startShards( _shardCount ) );
+    }
+    catch( final Exception e )
+    {
+      LOG.log( Level.WARNING, "Error starting sharded subscription " + _name, e );
+      throw e;
+    }
+    _isStarted = true;
+  }
+
+  /**
+   * Stop the endpoints of every shard including retired shards that have not drained. The
+   * durable subscriptions are retained so messages published while stopped are not lost.
+   */
+  public synchronized void stop()
+  {
+    stopEndpoints( _retired );
+    _drainFilters.clear();
+    stopEndpoints( _endpoints );
+    _isStarted = false;
+  }
+
+  /**
+   * Change the number of shards. The shards of the new count are started and then the current
+   * shards are retired and drained. Retired shards that have not drained within the drain
+   * timeout continue draining and may be completed using {@link #awaitRetired(long)}.
+   *
+   * @return true if every retired shard has drained and its subscription has been removed.
+   * @throws Exception if the shards of the new count can not be started, in which case the
+   *                   current shards are left unchanged.
+   */
+  public boolean rebalance( final int shardCount )
+    throws Exception
+  {
+    checkShardCount( shardCount );
+    synchronized( this )
+    {
+      if( !_isStarted ) throw new IllegalStateException( "Sharded subscription not started" );
+      if( shardCount != _shardCount )
+      {
+        final int previousCount = _shardCount;
+        final List<AbstractMessageEndpoint> endpoints = startShards( shardCount );
+        final long cutoff = System.currentTimeMillis() + _clockSkewAllowance;
+        for( final AbstractMessageEndpoint endpoint : _endpoints )
+        {
+          final DrainFilter filter = new DrainFilter( endpoint.getFilter(), cutoff );
+          _drainFilters.put( endpoint, filter );
+          endpoint.setFilter( filter );
+        }
+        _retired.addAll( _endpoints );
+        _endpoints.clear();
+        _endpoints.addAll( endpoints );
+        _shardCount = shardCount;
+        if( LOG.isLoggable( Level.INFO ) )
+        {
+          LOG.info( "Rebalancing " + _name + " from " + previousCount + " to " + shardCount + " shards" );
+        }
+      }
+    }
+    return awaitRetired( _drainTimeout );
+  }
+
+  /**
+   * Wait for the retired shards to drain, stopping each drained shard and removing its
+   * subscription.
+   *
+   * @param timeout the maximum time to wait in milliseconds.
+   * @return true if every retired shard has drained and its subscription has been removed.
+   */
+  public boolean awaitRetired( final long timeout )
+    throws InterruptedException
+  {
+    final long deadline = System.currentTimeMillis() + timeout;
+    while( true )
+    {
+      synchronized( this )
+      {
+        removeDrained();
+        if( _retired.isEmpty() ) return true;
+      }
+      final long remaining = deadline - System.currentTimeMillis();
+      if( remaining <= 0 ) return false;
+      Thread.sleep( Math.min( remaining, Math.max( 1, _idleTimeout / 10 ) ) );
+    }
+  }
+
+  /**
+   * Remove the durable subscriptions of every shard for a shard count. This is used to remove
+   * the subscriptions of a shard count that is no longer in use, for example after the process
+   * that started a rebalance exited before the retired shards drained. Any messages remaining
+   * in the subscriptions are discarded.
+   *
+   * @param session a session created from a connection with the client ID of the subscriptions.
+   * @throws JMSException if a subscription can not be removed, such as when it is in use.
+   */
+  public static void unsubscribe( final Session session, final String name, final int shardCount )
+    throws JMSException
+  {
+    checkShardCount( shardCount );
+    for( int i = 0; i < shardCount; i++ )
+    {
+      session.unsubscribe( subscriptionName( name, i, shardCount ) );
+    }
+  }
+
+  /**
+   * Set the bucket property of a message from the hash of the key property. The message
+   * properties must be writable. Messages without the key property are left unchanged.
+   *
+   * @throws JMSException if the properties can not be read or written.
+   */
+  public static void assignShard( final Message message, final String keyProperty )
+    throws JMSException
+  {
+    final Object key = message.getObjectProperty( keyProperty );
+    if( null != key )
+    {
+      message.setIntProperty( keyProperty + SHARD_PROPERTY_SUFFIX, bucketOf( key ) );
+    }
+  }
+
+  /** Return the bucket of a key. Numeric keys with the same value share a bucket regardless of type. */
+  public static int bucketOf( final Object key )
+  {
+    int hash;
+    if( key instanceof Number && !( key instanceof Float || key instanceof Double ) )
+    {
+      final long value = ( (Number)key ).longValue();
+      hash = (int)( value ^ ( value >>> 32 ) );
+    }
+    else
+    {
+      hash = key.hashCode();
+    }
+    // Spread the bits so that sequential keys are distributed across buckets
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return ( hash & Integer.MAX_VALUE ) % BUCKET_COUNT;
+  }
+
+  /** Return the name of the durable subscription for a shard. */
+  public static String subscriptionName( final String name, final int shard, final int shardCount )
+  {
+    checkShard( shard, shardCount );
+    return name + "-" + shardCount + "-" + shard;
+  }
+
+  /**
+   * Return the selector for a shard, or null if there is a single shard. The first shard also
+   * matches messages without a bucket or with a negative bucket and the last shard also matches
+   * buckets beyond the bucket count, so the selectors of all shards are complementary.
+   */
+  public static String selector( final String keyProperty, final int shard, final int shardCount )
+  {
+    checkShard( shard, shardCount );
+    if( 1 == shardCount ) return null;
+    final String property = keyProperty + SHARD_PROPERTY_SUFFIX;
+    final int low = lowBucket( shard, shardCount );
+    final int high = lowBucket( shard + 1, shardCount );
+    if( 0 == shard )
+    {
+      return property + " IS NULL OR " + property + " < " + high;
+    }
+    else if( shardCount - 1 == shard )
+    {
+      return property + " >= " + low;
+    }
+    else
+    {
+      return property + " >= " + low + " AND " + property + " < " + high;
+    }
+  }
+
+  private static int lowBucket( final int shard, final int shardCount )
+  {
+    return (int)( (long)shard * BUCKET_COUNT / shardCount );
+  }
+
+  private List<AbstractMessageEndpoint> startShards( final int shardCount )
+    throws Exception
+  {
+    final ChannelSpec topic = new ChannelSpec( _topicName, true );
+    final List<AbstractMessageEndpoint> endpoints = new ArrayList<AbstractMessageEndpoint>();
+    try
+    {
+      for( int i = 0; i < shardCount; i++ )
+      {
+        final AbstractMessageEndpoint endpoint = _factory.createEndpoint( i, shardCount );
+        endpoint.setSourceChannel( topic.toSpec(), getSubscriptionName( i, shardCount ), getSelector( i, shardCount ) );
+        final Session session = _connection.createSession( _transacted, _acknowledgeMode );
+        try
+        {
+          endpoint.start( session );
+        }
+        catch( final Exception e )
+        {
+          if( !endpoint.isStarted() ) session.close();
+          throw e;
+        }
+        endpoints.add( endpoint );
+      }
+    }
+    catch( final Exception e )
+    {
+      stopEndpoints( endpoints );
+      throw e;
+    }
+    return endpoints;
+  }
+
+  private void removeDrained()
+  {
+    final long now = System.nanoTime();
+    for( int i = _retired.size() - 1; i >= 0; i-- )
+    {
+      final AbstractMessageEndpoint endpoint = _retired.get( i );
+      if( _drainFilters.get( endpoint ).isDrained( now, _idleTimeout ) )
+      {
+        final String subscriptionName = endpoint.getSubscriptionName();
+        stopEndpoint( endpoint );
+        try
+        {
+          final Session session = _connection.createSession( false, Session.AUTO_ACKNOWLEDGE );
+          try
+          {
+            session.unsubscribe( subscriptionName );
+          }
+          finally
+          {
+            session.close();
+          }
+          _retired.remove( i );
+          _drainFilters.remove( endpoint );
+          if( LOG.isLoggable( Level.INFO ) ) LOG.info( "Removed drained subscription " + subscriptionName );
+        }
+        catch( final JMSException e )
+        {
+          LOG.log( Level.WARNING, "Error removing subscription " + subscriptionName, e );
+        }
+      }
+    }
+  }
+
+  private static void stopEndpoints( final List<AbstractMessageEndpoint> endpoints )
+  {
+    while( !endpoints.isEmpty() )
+    {
+      stopEndpoint( endpoints.remove( endpoints.size() - 1 ) );
+    }
+  }
+
+  private static void stopEndpoint( final AbstractMessageEndpoint endpoint )
+  {
+    try
+    {
+      endpoint.stop();
+    }
+    catch( final Exception e )
+    {
+      LOG.log( Level.WARNING, "Error stopping endpoint " + endpoint.getName(), e );
+    }
+  }
+
+  private static void checkShardCount( final int shardCount )
+  {
+    if( shardCount < 1 || shardCount > BUCKET_COUNT )
+    {
+      throw new IllegalArgumentException( "shardCount must be between 1 and " + BUCKET_COUNT );
+    }
+  }
+
+  private static void checkShard( final int shard, final int shardCount )
+  {
+    checkShardCount( shardCount );
+    if( shard < 0 || shard >= shardCount ) throw new IllegalArgumentException( "shard must be less than shardCount" );
+  }
+
+  private void ensureEditable()
+  {
+    if( _isStarted ) throw new IllegalStateException( "Attempting to edit active sharded subscription" );
+  }
+
+  /**
+   * Filter installed on a retired shard. Accepts messages published before the cutoff and
+   * records when the shard last received a message and whether it received a message published
+   * after the cutoff, which indicates that every earlier message has been received.
+   */
+  private static final class DrainFilter
+    extends MessageFilter
+  {
+    private final MessageFilter _filter;
+    private final long _cutoff;
+    private volatile long _lastReceived = System.nanoTime();
+    private volatile boolean _passedCutoff;
+
+    DrainFilter( final MessageFilter filter, final long cutoff )
+    {
+      _filter = filter;
+      _cutoff = cutoff;
+    }
+
+    @Override
+    public boolean accept( final Message message )
+      throws Exception
+    {
+      _lastReceived = System.nanoTime();
+      final long timestamp = message.getJMSTimestamp();
+      if( timestamp >= _cutoff )
+      {
+        _passedCutoff = true;
+        return false;
+      }
+      else
+      {
+        return null == _filter || _filter.accept( message );
+      }
+    }
+
+    boolean isDrained( final long now, final long idleTimeout )
+    {
+      return _passedCutoff || now - _lastReceived >= TimeUnit.MILLISECONDS.toNanos( idleTimeout );
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package org.realityforge.jml;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel used to schedule delayed tasks without blocking the caller.
+ * Scheduling and cancelling are O(1) and a single daemon thread advances the wheel one
+ * tick at a time, running any tasks that have expired. The precision of the wheel is
+ * limited to the tick duration.
+ *
+ * <p>Tasks are run on the wheel thread and should complete quickly.</p>
+ */
+public final class TimingWheel
+{
+  private static final Logger LOG = Logger.getLogger( TimingWheel.class.getName() );
+
+  private static TimingWheel c_default;
+
+  private final long _tickDuration;
+  private final LinkedList<Timeout>[] _wheel;
+  private final int _mask;
+  private final ConcurrentLinkedQueue<Timeout> _pending = new ConcurrentLinkedQueue<Timeout>();
+  private final Thread _worker;
+  private volatile boolean _running = true;
+  private long _startTime;
+  private long _tick;
+
+  /**
+   * Create and start a timing wheel.
+   *
+   * @param name the name of the worker thread.
+   * @param tickDuration the duration of a single tick.
+   * @param unit the unit of tickDuration.
+   * @param ticksPerWheel the number of buckets in the wheel. Rounded up to a power of two.
+   */
+  public TimingWheel( final String name, final long tickDuration, final TimeUnit unit, final int ticksPerWheel )
+  {
+    if( null == name ) throw new NullPointerException( "name" );
+    if( null == unit ) throw new NullPointerException( "unit" );
+    if( tickDuration <= 0 ) throw new IllegalArgumentException( "tickDuration must be positive" );
+    if( ticksPerWheel <= 0 ) throw new IllegalArgumentException( "ticksPerWheel must be positive" );
+
+    int size = 1;
+    while( size < ticksPerWheel )
+    {
+      size <<= 1;
+    }
+    _tickDuration = unit.toNanos( tickDuration );
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    final LinkedList<Timeout>[] wheel = new LinkedList[ size ];
+    _wheel = wheel;
+    for( int i = 0; i < size; i++ )
+    {
+      _wheel[ i ] = new LinkedList<Timeout>();
+    }
+    _mask = size - 1;
+    _startTime = System.nanoTime();
+    _worker = new Thread( new Worker(), name );
+    _worker.setDaemon( true );
+    _worker.start();
+  }
+
+  /**
+   * Return the process-wide timing wheel, creating it if necessary.
+   * The shared wheel ticks every 10 milliseconds and is never stopped.
+   */
+  public static synchronized TimingWheel getDefault()
+  {
+    if( null == c_default )
+    {
+      c_default = new TimingWheel( "JML-TimingWheel", 10, TimeUnit.MILLISECONDS, 512 );
+    }
+    return c_default;
+  }
+
+  /**
+   * Schedule a task to run after the specified delay.
+   *
+   * @return a handle that can be used to cancel the task.
+   */
+  public Timeout schedule( final Runnable task, final long delay, final TimeUnit unit )
+  {
+    if( null == task ) throw new NullPointerException( "task" );
+    if( null == unit ) throw new NullPointerException( "unit" );
+    if( !_running ) throw new IllegalStateException( "TimingWheel has been stopped" );
+    final Timeout timeout = new Timeout( task, System.nanoTime() + unit.toNanos( Math.max( 0, delay ) ) );
+    _pending.add( timeout );
+    return timeout;
+  }
+
+  /**
+   * Stop the wheel. Tasks that have not yet expired are discarded.
+   */
+  public void stop()
+    throws InterruptedException
+  {
+    _running = false;
+    _worker.interrupt();
+    if( Thread.currentThread() != _worker )
+    {
+      _worker.join();
+    }
+  }
+
+  private void transferPending()
+  {
+    Timeout timeout;
+    while( null != ( timeout = _pending.poll() ) )
+    {
+      if( timeout.isCancelled() ) continue;
+      final long ticks = Math.max( _tick, ( timeout._deadline - _startTime ) / _tickDuration );
+      timeout._remainingRounds = ( ticks - _tick ) / _wheel.length;
+      _wheel[ (int)( ticks & _mask ) ].add( timeout );
+    }
+  }
+
+  private void expireBucket( final LinkedList<Timeout> bucket, final long deadline )
+  {
+    final Iterator<Timeout> iterator = bucket.iterator();
+    while( iterator.hasNext() )
+    {
+      final Timeout timeout = iterator.next();
+      if( timeout.isCancelled() )
+      {
+        iterator.remove();
+      }
+      else if( timeout._remainingRounds <= 0 && timeout._deadline <= deadline )
+      {
+        iterator.remove();
+        timeout.expire();
+      }
+      else
+      {
+        timeout._remainingRounds--;
+      }
+    }
+  }
+
+  private long waitForNextTick()
+    throws InterruptedException
+  {
+    final long deadline = _startTime + _tickDuration * ( _tick + 1 );
+    while( true )
+    {
+      final long now = System.nanoTime();
+      final long sleep = deadline - now;
+      if( sleep <= 0 ) return now;
+      TimeUnit.NANOSECONDS.sleep( sleep );
+    }
+  }
+
+  private class Worker
+    implements Runnable
+  {
+    public void run()
+    {
+      while( _running )
+      {
+        try
+        {
+          final long now = waitForNextTick();
+          transferPending();
+          expireBucket( _wheel[ (int)( _tick & _mask ) ], now );
+          _tick++;
+        }
+        catch( final InterruptedException ie )
+        {
+          // Stop has been invoked
+        }
+      }
+    }
+  }
+
+  /**
+   * Handle for a task scheduled on the wheel.
+   */
+  public static final class Timeout
+  {
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    private final Runnable _task;
+    private final long _deadline;
+    private long _remainingRounds;
+    private int _state = STATE_PENDING;
+
+    Timeout( final Runnable task, final long deadline )
+    {
+      _task = task;
+      _deadline = deadline;
+    }
+
+    /**
+     * Cancel the task.
+     *
+     * @return true if the task was cancelled, false if it has already run or been cancelled.
+     */
+    public synchronized boolean cancel()
+    {
+      if( STATE_PENDING != _state ) return false;
+      _state = STATE_CANCELLED;
+      return true;
+    }
+
+    public synchronized boolean isCancelled()
+    {
+      return STATE_CANCELLED == _state;
+    }
+
+    public synchronized boolean isExpired()
+    {
+      return STATE_EXPIRED == _state;
+    }
+
+    private void expire()
+    {
+      synchronized( this )
+      {
+        if( STATE_PENDING != _state ) return;
+        _state = STATE_EXPIRED;
+      }
+      try
+      {
+        _task.run();
+      }
+      catch( final Throwable t )
+      {
+        LOG.log( Level.WARNING, "Error executing task scheduled on timing wheel", t );
+      }
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package org.realityforge.jml;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * The message endpoint that aggregates messages by the value of a key property over time windows
+ * and sends one summary message per key per window to a destination channel, in place of the
+ * messages themselves.
+ *
+ * <p>Windows are aligned to multiples of the slide interval since the epoch and measured using
+ * the clock of the endpoint. If the slide interval equals the window size then the windows are
+ * tumbling, otherwise each window spans several slide intervals and overlaps the previous window.
+ * The aggregates of each slide interval are held separately and combined when a window closes, so
+ * every message is recorded once regardless of the number of windows it falls in.</p>
+ *
+ * <p>A summary is a MapMessage with the key in the key property, the start and end of the window in
+ * the {@link #WINDOW_START_PROPERTY} and {@link #WINDOW_END_PROPERTY} properties, and the number of
+ * messages in the "count" entry. If a value property is specified then the "sum", "min" and "max"
+ * entries contain the aggregates of its numeric values. When the endpoint is stopped a summary of
+ * the window that would close next is sent with {@link #WINDOW_COMPLETE_PROPERTY} set to false.
+ * Messages without the key property, or with a value property that is not numeric, are routed to
+ * the dead message queue.</p>
+ *
+ * <p>Windows are closed and their summaries sent on the endpoint thread, never on the timing
+ * wheel thread, so a slow destination does not delay the timeouts of other endpoints. Sending the
+ * summaries uses the session of the endpoint and so holds the endpoint lock, which delays the
+ * delivery of messages to the endpoint until the summaries of the window have been sent.</p>
+ *
+ * <p>Messages are acknowledged as they are received so the aggregates of open windows are lost if
+ * the process fails. Summaries that can not be sent are logged and discarded.</p>
+ */
+public final class WindowedAggregationEndpoint
+  extends AbstractMessageEndpoint
+{
+  /// The property containing the start of the window in milliseconds since the epoch.
+  public static final String WINDOW_START_PROPERTY = "jmlWindowStart";
+  /// The property containing the end of the window in milliseconds since the epoch.
+  public static final String WINDOW_END_PROPERTY = "jmlWindowEnd";
+  /// The property set to false on summaries of windows that were closed early.
+  public static final String WINDOW_COMPLETE_PROPERTY = "jmlWindowComplete";
+
+  private final KeyedAggregates _window = new KeyedAggregates();
+  private ChannelSpec _destination;
+  private String _keyProperty;
+  private String _valueProperty;
+  private long _windowSize = 60 * 1000;
+  private long _slide = 60 * 1000;
+  private MessageProducer _destinationProducer;
+  private KeyedAggregates[] _panes;
+  private int _currentPane;
+  private long _paneEnd;
+  private long _summaryCount;
+
+  /** Specify the destination channel. */
+  public void setDestinationChannel( final String channelSpec )
+  {
+    ensureEditable();
+    _destination = ChannelSpec.parseChannelSpec( channelSpec );
+  }
+
+  /** Specify the property containing the key that messages are aggregated by. */
+  public void setKeyProperty( final String keyProperty )
+  {
+    ensureEditable();
+    _keyProperty = keyProperty;
+  }
+
+  public String getKeyProperty()
+  {
+    return _keyProperty;
+  }
+
+  /** Specify the numeric property whose values are summed, or null if only messages are counted. */
+  public void setValueProperty( final String valueProperty )
+  {
+    ensureEditable();
+    _valueProperty = valueProperty;
+  }
+
+  public String getValueProperty()
+  {
+    return _valueProperty;
+  }
+
+  /**
+   * Specify the size of the windows and the interval between the start of consecutive windows in
+   * milliseconds. The window size must be a multiple of the slide interval.
+   */
+  public void setWindow( final long windowSize, final long slide )
+  {
+    ensureEditable();
+    if( slide < 1 ) throw new IllegalArgumentException( "slide must be positive" );
+    if( windowSize < slide || 0 != windowSize % slide )
+    {
+      throw new IllegalArgumentException( "windowSize must be a multiple of slide" );
+    }
+    _windowSize = windowSize;
+    _slide = slide;
+  }
+
+  public long getWindowSize()
+  {
+    return _windowSize;
+  }
+
+  public long getSlide()
+  {
+    return _slide;
+  }
+
+  /** Return the number of summary messages sent. */
+  public long getSummaryCount()
+  {
+    synchronized( getLock() )
+    {
+      return _summaryCount;
+    }
+  }
+
+  @Override
+  protected void preSubscribe( final Session session ) throws Exception
+  {
+    _destinationProducer = session.createProducer( _destination.create( session ) );
+    _panes = new KeyedAggregates[ (int)( _windowSize / _slide ) ];
+    for( int i = 0; i < _panes.length; i++ )
+    {
+      _panes[ i ] = new KeyedAggregates();
+    }
+    _currentPane = 0;
+    final long now = System.currentTimeMillis();
+    _paneEnd = now - now % _slide + _slide;
+    scheduleWindowClose();
+  }
+
+  @Override
+  protected void postConsumerClose()
+  {
+    emitWindow( false );
+    _panes = null;
+  }
+
+  @Override
+  protected void preSessionClose()
+  {
+    closeProducer( _destinationProducer, "Closing destination producer" );
+    _destinationProducer = null;
+  }
+
+  @Override
+  protected void handleMessage( final Session session, final Message message ) throws Exception
+  {
+    final String key = message.getStringProperty( _keyProperty );
+    if( null == key ) throw MessageUtil.exceptionFor( message, "is missing key property " + _keyProperty, null );
+    final double value;
+    if( null != _valueProperty )
+    {
+      final Object object = message.getObjectProperty( _valueProperty );
+      if( !( object instanceof Number ) )
+      {
+        throw MessageUtil.exceptionFor( message, "has a non-numeric value property " + _valueProperty, null );
+      }
+      value = ( (Number)object ).doubleValue();
+    }
+    else
+    {
+      value = 0;
+    }
+    _panes[ _currentPane ].add( key, value );
+  }
+
+  @Override
+  protected void preSendMessageToDMQ( final Message message ) throws JMSException
+  {
+    message.setStringProperty( "JMLDestinationChannel", _destination.toSpec() );
+  }
+
+  @Override
+  protected void ensureValidConfig()
+    throws Exception
+  {
+    super.ensureValidConfig();
+    if( null == _destination ) throw invalid( "destination channel not specified" );
+    else if( null == _keyProperty ) throw invalid( "key property not specified" );
+  }
+
+  private void scheduleWindowClose()
+  {
+    schedule( new Runnable()
+    {
+      public void run()
+      {
+        closeWindow();
+      }
+    }, Math.max( 0, _paneEnd - System.currentTimeMillis() ) );
+  }
+
+  /**
+   * Emit the window ending at the end of the current pane and start the next pane, reusing the
+   * pane that has left every window. Runs on the endpoint thread with exclusive access to the session.
+   */
+  private void closeWindow()
+  {
+    emitWindow( true );
+    _currentPane = ( _currentPane + 1 ) % _panes.length;
+    _panes[ _currentPane ].clear();
+    _paneEnd += _slide;
+    // Skip the windows that closed while the endpoint was unable to run
+    final long now = System.currentTimeMillis();
+    while( _paneEnd <= now )
+    {
+      _currentPane = ( _currentPane + 1 ) % _panes.length;
+      _panes[ _currentPane ].clear();
+      _paneEnd += _slide;
+    }
+    scheduleWindowClose();
+  }
+
+  private void emitWindow( final boolean complete )
+  {
+    if( null == _panes ) return;
+    _window.clear();
+    for( final KeyedAggregates pane : _panes )
+    {
+      _window.addAll( pane );
+    }
+    for( int i = 0; i < _window.capacity(); i++ )
+    {
+      final String key = _window.keyAt( i );
+      if( null != key ) emitSummary( key, i, complete );
+    }
+  }
+
+  private void emitSummary( final String key, final int slot, final boolean complete )
+  {
+    final Session session = getSession();
+    final MapMessage summary;
+    try
+    {
+      summary = session.createMapMessage();
+      summary.setStringProperty( _keyProperty, key );
+      summary.setLongProperty( WINDOW_START_PROPERTY, _paneEnd - _windowSize );
+      summary.setLongProperty( WINDOW_END_PROPERTY, _paneEnd );
+      if( !complete ) summary.setBooleanProperty( WINDOW_COMPLETE_PROPERTY, false );
+      summary.setLong( "count", _window.countAt( slot ) );
+      if( null != _valueProperty )
+      {
+        summary.setDouble( "sum", _window.sumAt( slot ) );
+        summary.setDouble( "min", _window.minAt( slot ) );
+        summary.setDouble( "max", _window.maxAt( slot ) );
+      }
+    }
+    catch( final JMSException e )
+    {
+      warning( "Error creating summary for key " + key, e );
+      return;
+    }
+    try
+    {
+      _destinationProducer.send( summary );
+      _summaryCount++;
+    }
+    catch( final JMSException e )
+    {
+      warning( "Failed to send summary to destination. Summary: " + summary, e );
+    }
+  }
+}
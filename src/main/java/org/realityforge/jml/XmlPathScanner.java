@@ -0,0 +1,451 @@
+package org.realityforge.jml;
+
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Scans XML text in a single streaming pass and reports the string value of the first node found
+ * at each of a set of paths. Scanning stops as soon as every path has been resolved, so a value
+ * near the start of a large document is found without parsing the remainder of the document, and
+ * the remainder is not checked for well-formedness.
+ *
+ * <p>A path is a restricted absolute XPath location path:</p>
+ *
+ * <pre>
+ * path      := ( '/' | '//' ) step ( ( '/' | '//' ) step )* [ '/' ( '@' name | 'text()' ) ]
+ * step      := ( name | '*' ) [ '[' ( position | '@' name '=' literal ) ']' ]
+ * </pre>
+ *
+ * <p>Names must not have a namespace prefix and, as in XPath, match nodes that are not in a
+ * namespace. The value of an element is the concatenation of its descendant text. Paths are
+ * compiled into arrays of steps and matched against the open elements using a bit set of the
+ * matched prefixes of each path, so no tree is built.</p>
+ */
+final class XmlPathScanner
+{
+  /**
+   * Callback invoked for the first value found at each path.
+   */
+  interface Visitor
+  {
+    /**
+     * @param path  the index of the path in the collection the scanner was created with.
+     * @param value the string value of the node.
+     */
+    void onValue( int path, String value )
+      throws Exception;
+  }
+
+  /// The maximum number of element steps in a path. Limited by the size of the prefix bit set.
+  private static final int MAX_STEPS = 62;
+  private static final int INITIAL_DEPTH = 16;
+
+  private static final int TYPE_ELEMENT = 0;
+  private static final int TYPE_ATTRIBUTE = 1;
+  private static final int TYPE_TEXT = 2;
+
+  private static final ThreadLocal<XMLInputFactory> c_inputFactory = new ThreadLocal<XMLInputFactory>()
+  {
+    @Override
+    protected XMLInputFactory initialValue()
+    {
+      final XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE );
+      factory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.TRUE );
+      factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+      return factory;
+    }
+  };
+
+  private final Step[][] _steps;
+  private final int[] _types;
+  private final String[] _attributes;
+  /// The steps of each path that may match descendants rather than children.
+  private final long[] _descendantSteps;
+  private final int[] _counterOffsets;
+  private final int _counterCount;
+
+  /**
+   * @throws ParseException if a path is not supported.
+   */
+  XmlPathScanner( final Collection<String> paths )
+    throws ParseException
+  {
+    final int count = paths.size();
+    _steps = new Step[ count ][];
+    _types = new int[ count ];
+    _attributes = new String[ count ];
+    _descendantSteps = new long[ count ];
+    _counterOffsets = new int[ count ];
+    int index = 0;
+    int counters = 0;
+    for( final String path : paths )
+    {
+      new PathParser( path ).parse( index );
+      _counterOffsets[ index ] = counters;
+      counters += _steps[ index ].length;
+      index++;
+    }
+    _counterCount = counters;
+  }
+
+  /** Return true if the path is supported by the scanner. */
+  static boolean isSupported( final String path )
+  {
+    try
+    {
+      new XmlPathScanner( Arrays.asList( path ) );
+      return true;
+    }
+    catch( final ParseException pe )
+    {
+      return false;
+    }
+  }
+
+  /** Return the number of paths. */
+  int size()
+  {
+    return _steps.length;
+  }
+
+  /**
+   * Scan the text and invoke the visitor with the first value found at each path.
+   *
+   * @throws javax.xml.stream.XMLStreamException if the text is not well-formed XML before every path is resolved.
+   */
+  void scan( final String text, final Visitor visitor )
+    throws Exception
+  {
+    final int count = _steps.length;
+    int unresolved = count;
+    final boolean[] resolved = new boolean[ count ];
+    final int[] captureDepths = new int[ count ];
+    final StringBuilder[] captures = new StringBuilder[ count ];
+    int capturing = 0;
+    // The matched prefixes of each path at the element at each depth, and at the element or any ancestor
+    long[] matched = new long[ INITIAL_DEPTH * count ];
+    long[] inherited = new long[ INITIAL_DEPTH * count ];
+    int[] counters = new int[ INITIAL_DEPTH * _counterCount ];
+    // The document node matches the empty prefix
+    for( int p = 0; p < count; p++ )
+    {
+      matched[ p ] = 1;
+      inherited[ p ] = 1;
+    }
+    int depth = 0;
+
+    final XMLStreamReader reader = c_inputFactory.get().createXMLStreamReader( new StringReader( text ) );
+    try
+    {
+      while( 0 != unresolved && reader.hasNext() )
+      {
+        final int event = reader.next();
+        if( XMLStreamConstants.START_ELEMENT == event )
+        {
+          if( 0 != capturing )
+          {
+            // Starting a child ends the first text node of an element
+            for( int p = 0; p < count; p++ )
+            {
+              if( TYPE_TEXT == _types[ p ] && depth == captureDepths[ p ] && 0 != captures[ p ].length() )
+              {
+                captureDepths[ p ] = 0;
+                capturing--;
+                resolved[ p ] = true;
+                unresolved--;
+                visitor.onValue( p, captures[ p ].toString() );
+              }
+            }
+            if( 0 == unresolved ) break;
+          }
+          depth++;
+          if( ( depth + 1 ) * count > matched.length )
+          {
+            matched = Arrays.copyOf( matched, matched.length * 2 );
+            inherited = Arrays.copyOf( inherited, inherited.length * 2 );
+            counters = Arrays.copyOf( counters, counters.length * 2 );
+          }
+          Arrays.fill( counters, depth * _counterCount, ( depth + 1 ) * _counterCount, 0 );
+          final boolean inNamespace = !isEmpty( reader.getNamespaceURI() );
+          final String name = reader.getLocalName();
+          for( int p = 0; p < count; p++ )
+          {
+            final int parent = ( depth - 1 ) * count + p;
+            final int current = depth * count + p;
+            long state = 0;
+            // Skip paths that can not match any element within the parent
+            if( !resolved[ p ] && 0 != ( matched[ parent ] | ( inherited[ parent ] & _descendantSteps[ p ] ) ) )
+            {
+              final Step[] steps = _steps[ p ];
+              for( int k = 0; k < steps.length; k++ )
+              {
+                final Step step = steps[ k ];
+                final long source = step._descendant ? inherited[ parent ] : matched[ parent ];
+                if( 0 != ( source & ( 1L << k ) ) &&
+                    ( null == step._name || ( !inNamespace && step._name.equals( name ) ) ) &&
+                    ( 0 == step._position ||
+                      step._position == ++counters[ ( depth - 1 ) * _counterCount + _counterOffsets[ p ] + k ] ) &&
+                    ( null == step._attribute || step._value.equals( attributeValue( reader, step._attribute ) ) ) )
+                {
+                  state |= 1L << ( k + 1 );
+                }
+              }
+              if( 0 != ( state & ( 1L << steps.length ) ) && 0 == captureDepths[ p ] )
+              {
+                if( TYPE_ATTRIBUTE == _types[ p ] )
+                {
+                  final String value = attributeValue( reader, _attributes[ p ] );
+                  if( null != value )
+                  {
+                    resolved[ p ] = true;
+                    unresolved--;
+                    visitor.onValue( p, value );
+                  }
+                }
+                else
+                {
+                  if( null == captures[ p ] ) captures[ p ] = new StringBuilder();
+                  else captures[ p ].setLength( 0 );
+                  captureDepths[ p ] = depth;
+                  capturing++;
+                }
+              }
+            }
+            matched[ current ] = state;
+            inherited[ current ] = inherited[ parent ] | state;
+          }
+        }
+        else if( XMLStreamConstants.END_ELEMENT == event )
+        {
+          if( 0 != capturing )
+          {
+            for( int p = 0; p < count; p++ )
+            {
+              if( depth == captureDepths[ p ] )
+              {
+                captureDepths[ p ] = 0;
+                capturing--;
+                // An element without text has no text node but does have a value
+                if( TYPE_ELEMENT == _types[ p ] || 0 != captures[ p ].length() )
+                {
+                  resolved[ p ] = true;
+                  unresolved--;
+                  visitor.onValue( p, captures[ p ].toString() );
+                }
+              }
+            }
+          }
+          depth--;
+        }
+        else if( 0 != capturing &&
+                 ( XMLStreamConstants.CHARACTERS == event ||
+                   XMLStreamConstants.CDATA == event ||
+                   XMLStreamConstants.SPACE == event ) )
+        {
+          for( int p = 0; p < count; p++ )
+          {
+            final int captureDepth = captureDepths[ p ];
+            if( 0 != captureDepth && ( depth == captureDepth || TYPE_ELEMENT == _types[ p ] ) )
+            {
+              captures[ p ].append( reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength() );
+            }
+          }
+        }
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  private static String attributeValue( final XMLStreamReader reader, final String name )
+  {
+    final int count = reader.getAttributeCount();
+    for( int i = 0; i < count; i++ )
+    {
+      if( name.equals( reader.getAttributeLocalName( i ) ) && isEmpty( reader.getAttributeNamespace( i ) ) )
+      {
+        return reader.getAttributeValue( i );
+      }
+    }
+    return null;
+  }
+
+  private static boolean isEmpty( final String value )
+  {
+    return null == value || 0 == value.length();
+  }
+
+  /**
+   * A step that matches an element.
+   */
+  private static final class Step
+  {
+    private final boolean _descendant;
+    /// The name of the element, or null for any element.
+    private final String _name;
+    /// The required position of the element amongst the siblings matching the name, or 0.
+    private final int _position;
+    /// The name and value of a required attribute, or null.
+    private final String _attribute;
+    private final String _value;
+
+    Step( final boolean descendant,
+          final String name,
+          final int position,
+          final String attribute,
+          final String value )
+    {
+      _descendant = descendant;
+      _name = name;
+      _position = position;
+      _attribute = attribute;
+      _value = value;
+    }
+  }
+
+  /**
+   * Parser that compiles a path into the steps of the scanner.
+   */
+  private final class PathParser
+  {
+    private final String _path;
+    private int _position;
+
+    PathParser( final String path )
+      throws ParseException
+    {
+      if( null == path ) throw new ParseException( "Missing path", 0 );
+      _path = path;
+    }
+
+    void parse( final int index )
+      throws ParseException
+    {
+      final ArrayList<Step> steps = new ArrayList<Step>();
+      _types[ index ] = TYPE_ELEMENT;
+      if( !_path.startsWith( "/" ) ) throw error( "Expected absolute path" );
+      while( _position < _path.length() )
+      {
+        final boolean descendant = _path.startsWith( "//", _position );
+        _position += descendant ? 2 : 1;
+        if( !descendant && !steps.isEmpty() && _path.startsWith( "@", _position ) )
+        {
+          _position++;
+          _attributes[ index ] = name();
+          _types[ index ] = TYPE_ATTRIBUTE;
+          break;
+        }
+        else if( !descendant && !steps.isEmpty() && _path.startsWith( "text()", _position ) )
+        {
+          _position += 6;
+          _types[ index ] = TYPE_TEXT;
+          break;
+        }
+        final String name;
+        if( _path.startsWith( "*", _position ) )
+        {
+          _position++;
+          name = null;
+        }
+        else
+        {
+          name = name();
+        }
+        int position = 0;
+        String attribute = null;
+        String value = null;
+        if( _path.startsWith( "[", _position ) )
+        {
+          _position++;
+          if( _path.startsWith( "@", _position ) )
+          {
+            _position++;
+            attribute = name();
+            expect( '=' );
+            value = literal();
+          }
+          else
+          {
+            position = position();
+          }
+          expect( ']' );
+        }
+        if( MAX_STEPS == steps.size() ) throw error( "Too many steps" );
+        if( descendant ) _descendantSteps[ index ] |= 1L << steps.size();
+        steps.add( new Step( descendant, name, position, attribute, value ) );
+        if( _position < _path.length() && '/' != _path.charAt( _position ) ) throw error( "Expected '/'" );
+      }
+      if( _position != _path.length() ) throw error( "Unexpected content" );
+      if( steps.isEmpty() ) throw error( "Expected step" );
+      _steps[ index ] = steps.toArray( new Step[ steps.size() ] );
+    }
+
+    private String name()
+      throws ParseException
+    {
+      final int start = _position;
+      while( _position < _path.length() )
+      {
+        final char ch = _path.charAt( _position );
+        if( Character.isLetter( ch ) || '_' == ch ||
+            ( _position != start && ( Character.isDigit( ch ) || '-' == ch || '.' == ch ) ) )
+        {
+          _position++;
+        }
+        else
+        {
+          break;
+        }
+      }
+      if( start == _position ) throw error( "Expected name" );
+      return _path.substring( start, _position );
+    }
+
+    private int position()
+      throws ParseException
+    {
+      final int start = _position;
+      while( _position < _path.length() && Character.isDigit( _path.charAt( _position ) ) )
+      {
+        _position++;
+      }
+      if( start == _position || _position - start > 9 ) throw error( "Expected position" );
+      final int position = Integer.parseInt( _path.substring( start, _position ) );
+      if( 0 == position ) throw error( "Expected position" );
+      return position;
+    }
+
+    private String literal()
+      throws ParseException
+    {
+      final char quote = _position < _path.length() ? _path.charAt( _position ) : 0;
+      if( '\'' != quote && '"' != quote ) throw error( "Expected literal" );
+      final int end = _path.indexOf( quote, _position + 1 );
+      if( -1 == end ) throw error( "Unterminated literal" );
+      final String value = _path.substring( _position + 1, end );
+      _position = end + 1;
+      return value;
+    }
+
+    private void expect( final char ch )
+      throws ParseException
+    {
+      if( _position >= _path.length() || ch != _path.charAt( _position ) ) throw error( "Expected '" + ch + "'" );
+      _position++;
+    }
+
+    private ParseException error( final String message )
+    {
+      return new ParseException( message + " at offset " + _position + " in path: " + _path, _position );
+    }
+  }
+}
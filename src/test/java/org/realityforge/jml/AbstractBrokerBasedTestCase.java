@@ -2,6 +2,7 @@ package org.realityforge.jml;
 
 import java.util.LinkedList;
 import javax.jms.Connection;
+import javax.jms.Destination;
 import javax.jms.Session;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.AfterSuite;
@@ -66,6 +67,28 @@ public class AbstractBrokerBasedTestCase
     return session;
   }
 
+  /**
+   * Return a collector that receives the messages sent to the specified queue.
+   */
+  final MessageCollector collectResults( final String queueName )
+    throws Exception
+  {
+    return collectResults( queueName, false );
+  }
+
+  /**
+   * Return a collector that receives the messages sent to the specified queue or topic.
+   */
+  final MessageCollector collectResults( final String channelName, final boolean topic )
+    throws Exception
+  {
+    final Session session = createSession();
+    final Destination destination = topic ? session.createTopic( channelName ) : session.createQueue( channelName );
+    final MessageCollector collector = new MessageCollector();
+    session.createConsumer( destination ).setMessageListener( collector );
+    return collector;
+  }
+
   final Connection getConnection()
   {
     if( null == _connection )
@@ -0,0 +1,206 @@
+package org.realityforge.jml;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Tests that the bytes allocated on the listener thread to process a message through
+ * standard link configurations stay within a budget. Messages are delivered directly
+ * to the listener of the link and sent to a producer that discards them, so only the
+ * allocations made by the link, verifiers and transformers are measured.
+ *
+ * <p>Budgets allow headroom of at least twice the allocation measured when they were last
+ * reviewed. A failure indicates an allocation regression in the listener path.</p>
+ */
+public class AllocationBudgetTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  private static final int WARM_UP_COUNT = 5000;
+  private static final int MESSAGE_COUNT = 5000;
+
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    AbstractMessageEndpoint.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void plainLink()
+    throws Exception
+  {
+    assertWithinBudget( new MessageLink(), 128 );
+  }
+
+  @Test
+  public void linkWithFilter()
+    throws Exception
+  {
+    final MessageLink link = new MessageLink();
+    link.setFilter( MessageFilter.compile( TestHelper.HEADER_KEY + " >= 0 AND JMSPriority >= 0" ) );
+    assertWithinBudget( link, 256 );
+  }
+
+  @Test
+  public void linkWithRegexVerifiers()
+    throws Exception
+  {
+    final MessageLink link = new MessageLink();
+    link.setInputVerifier( MessageVerifier.newRegexVerifier( Pattern.compile( "<order .*/>" ) ) );
+    link.setOutputVerifier( MessageVerifier.newRegexVerifier( Pattern.compile( "<order .*/>" ) ) );
+    assertWithinBudget( link, 1024 );
+  }
+
+  @Test
+  public void linkWithXSDVerifier()
+    throws Exception
+  {
+    final String xsd = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">\n" +
+                       "  <xs:element name=\"order\">\n" +
+                       "    <xs:complexType>\n" +
+                       "      <xs:attribute name=\"id\" type=\"xs:string\" use=\"required\"/>\n" +
+                       "    </xs:complexType>" +
+                       "  </xs:element>\n" +
+                       "</xs:schema>\n";
+    final MessageLink link = new MessageLink();
+    link.setInputVerifier(
+      MessageVerifier.newXSDVerifier( TestHelper.createURLForContent( AllocationBudgetTestCase.class, xsd, "xsd" ) ) );
+    assertWithinBudget( link, 12 * 1024 );
+  }
+
+  private void assertWithinBudget( final MessageLink link, final long budget )
+    throws Exception
+  {
+    final com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+    final Session session = createSession();
+    final TextMessage message = session.createTextMessage( "<order id=\"42\"/>" );
+    message.setIntProperty( TestHelper.HEADER_KEY, 1 );
+    final Capture capture = new Capture( session );
+
+    link.setName( "AllocationLink" );
+    link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    link.setDmqName( TestHelper.DMQ_NAME );
+    link.start( capture.createSession() );
+    try
+    {
+      final MessageListener listener = capture._listener;
+      for( int i = 0; i < WARM_UP_COUNT; i++ )
+      {
+        listener.onMessage( message );
+      }
+      final long threadID = Thread.currentThread().getId();
+      final long start = threadMXBean.getThreadAllocatedBytes( threadID );
+      for( int i = 0; i < MESSAGE_COUNT; i++ )
+      {
+        listener.onMessage( message );
+      }
+      final long allocated = ( threadMXBean.getThreadAllocatedBytes( threadID ) - start ) / MESSAGE_COUNT;
+
+      assertEquals( capture._sendCount, WARM_UP_COUNT + MESSAGE_COUNT );
+      assertTrue( allocated <= budget,
+                  "Allocated " + allocated + " bytes per message which exceeds budget of " + budget + " bytes" );
+    }
+    finally
+    {
+      link.stop();
+    }
+  }
+
+  private static com.sun.management.ThreadMXBean getThreadMXBean()
+  {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if( !( bean instanceof com.sun.management.ThreadMXBean ) )
+    {
+      throw new SkipException( "Thread allocation measurement is not available" );
+    }
+    final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)bean;
+    if( !threadMXBean.isThreadAllocatedMemorySupported() )
+    {
+      throw new SkipException( "Thread allocation measurement is not supported" );
+    }
+    threadMXBean.setThreadAllocatedMemoryEnabled( true );
+    return threadMXBean;
+  }
+
+  /**
+   * Creates a session that delegates to a real session except that consumers capture their
+   * listener rather than receive messages and producers count and discard sent messages.
+   */
+  private static final class Capture
+  {
+    private final Session _session;
+    private MessageListener _listener;
+    private int _sendCount;
+
+    Capture( final Session session )
+    {
+      _session = session;
+    }
+
+    Session createSession()
+    {
+      return proxy( Session.class, new InvocationHandler()
+      {
+        public Object invoke( final Object proxy, final Method method, final Object[] args )
+          throws Throwable
+        {
+          final String name = method.getName();
+          if( "createConsumer".equals( name ) || "createDurableSubscriber".equals( name ) )
+          {
+            return proxy( MessageConsumer.class, new InvocationHandler()
+            {
+              public Object invoke( final Object proxy, final Method method, final Object[] args )
+              {
+                if( "setMessageListener".equals( method.getName() ) ) _listener = (MessageListener)args[ 0 ];
+                return null;
+              }
+            } );
+          }
+          else if( "createProducer".equals( name ) )
+          {
+            return proxy( MessageProducer.class, new InvocationHandler()
+            {
+              public Object invoke( final Object proxy, final Method method, final Object[] args )
+              {
+                if( "send".equals( method.getName() ) && args[ 0 ] instanceof Message ) _sendCount++;
+                return null;
+              }
+            } );
+          }
+          else if( "close".equals( name ) )
+          {
+            return null;
+          }
+          try
+          {
+            return method.invoke( _session, args );
+          }
+          catch( final InvocationTargetException ite )
+          {
+            throw ite.getCause();
+          }
+        }
+      } );
+    }
+
+    private static <T> T proxy( final Class<T> type, final InvocationHandler handler )
+    {
+      return type.cast( Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[]{ type }, handler ) );
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package org.realityforge.jml;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.logging.Level;
+import javax.xml.XMLConstants;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class CompiledArtifactCacheTestCase
+{
+  private static final String XSD =
+    "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"><xs:element name=\"a\"/></xs:schema>";
+  private static final String XSL =
+    "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">" +
+    "<xsl:template match=\"/\"><b/></xsl:template></xsl:stylesheet>";
+
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    CompiledArtifactCache.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void artifactsAreShared()
+    throws Exception
+  {
+    final CompiledArtifactCache cache = new CompiledArtifactCache();
+    final URL xsd = TestHelper.createURLForContent( CompiledArtifactCacheTestCase.class, XSD, "xsd" );
+    final URL xsl = TestHelper.createURLForContent( CompiledArtifactCacheTestCase.class, XSL, "xsl" );
+
+    final Schema schema = cache.getSchema( XMLConstants.W3C_XML_SCHEMA_NS_URI, xsd );
+    assertSame( cache.getSchema( XMLConstants.W3C_XML_SCHEMA_NS_URI, xsd ), schema );
+    final Templates templates = cache.getTemplates( xsl );
+    assertSame( cache.getTemplates( xsl ), templates );
+
+    cache.clear();
+    assertNotSame( cache.getSchema( XMLConstants.W3C_XML_SCHEMA_NS_URI, xsd ), schema );
+    assertNotSame( cache.getTemplates( xsl ), templates );
+  }
+
+  @Test
+  public void modifiedArtifactsAreRefreshed()
+    throws Exception
+  {
+    final CompiledArtifactCache cache = new CompiledArtifactCache();
+    final URL xsd = TestHelper.createURLForContent( CompiledArtifactCacheTestCase.class, XSD, "xsd" );
+    final File file = new File( xsd.toURI() );
+    assertTrue( file.setLastModified( 1000000000000L ) );
+
+    final Schema schema = cache.getSchema( XMLConstants.W3C_XML_SCHEMA_NS_URI, xsd );
+    assertTrue( file.setLastModified( 1000000100000L ) );
+    // Not checked by default
+    assertSame( cache.getSchema( XMLConstants.W3C_XML_SCHEMA_NS_URI, xsd ), schema );
+
+    cache.setCheckLastModified( true );
+    final Schema refreshed = cache.getSchema( XMLConstants.W3C_XML_SCHEMA_NS_URI, xsd );
+    assertNotSame( refreshed, schema );
+    assertSame( cache.getSchema( XMLConstants.W3C_XML_SCHEMA_NS_URI, xsd ), refreshed );
+  }
+
+  @Test
+  public void preload()
+    throws Exception
+  {
+    final CompiledArtifactCache cache = new CompiledArtifactCache();
+    final URL xsd1 = TestHelper.createURLForContent( CompiledArtifactCacheTestCase.class, XSD, "xsd" );
+    final URL xsd2 = TestHelper.createURLForContent( CompiledArtifactCacheTestCase.class, XSD, "xsd" );
+    final URL xsl = TestHelper.createURLForContent( CompiledArtifactCacheTestCase.class, XSL, "xsl" );
+
+    cache.preload( Arrays.asList( xsd1, xsd2 ), Collections.singletonList( xsl ), 2 );
+
+    final Schema schema = cache.getSchema( XMLConstants.W3C_XML_SCHEMA_NS_URI, xsd1 );
+    cache.preload( Collections.singletonList( xsd1 ), Collections.<URL>emptyList(), 2 );
+    assertSame( cache.getSchema( XMLConstants.W3C_XML_SCHEMA_NS_URI, xsd1 ), schema );
+  }
+
+  @Test
+  public void failedCompilationIsNotCached()
+    throws Exception
+  {
+    final CompiledArtifactCache cache = new CompiledArtifactCache();
+    final URL bad = TestHelper.createURLForContent( CompiledArtifactCacheTestCase.class, "<notASchema", "xsd" );
+    for( int i = 0; i < 2; i++ )
+    {
+      try
+      {
+        cache.preload( Collections.singletonList( bad ), Collections.<URL>emptyList(), 1 );
+        fail( "Expected preload to fail" );
+      }
+      catch( final Exception e )
+      {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void transletsArePersisted()
+    throws Exception
+  {
+    final File directory = File.createTempFile( "translets", "" );
+    assertTrue( directory.delete() );
+    try
+    {
+      final URL xsl = TestHelper.createURLForContent( CompiledArtifactCacheTestCase.class, XSL, "xsl" );
+
+      final CompiledArtifactCache cache = new CompiledArtifactCache();
+      cache.setTransletDirectory( directory );
+      assertEquals( transform( cache.getTemplates( xsl ) ), "<b/>" );
+
+      if( !CompiledArtifactCache.isTransletSupported() )
+      {
+        // Stylesheets are compiled in memory without touching the translet directory
+        assertEquals( cache.getTransletCompileCount(), 0 );
+        assertEquals( cache.getTransletLoadCount(), 0 );
+        assertFalse( directory.exists() );
+        return;
+      }
+
+      assertEquals( cache.getTransletCompileCount(), 1 );
+      assertEquals( cache.getTransletLoadCount(), 0 );
+
+      final File[] translets = directory.listFiles();
+      assertNotNull( translets );
+      assertEquals( translets.length, 1 );
+      assertTrue( translets[ 0 ].getName().matches( "[0-9a-f]{40}" ) );
+
+      // A new cache, as created by a later process, loads the persisted translet
+      final CompiledArtifactCache other = new CompiledArtifactCache();
+      other.setTransletDirectory( directory );
+      assertEquals( transform( other.getTemplates( xsl ) ), "<b/>" );
+      assertEquals( other.getTransletLoadCount(), 1 );
+      assertEquals( other.getTransletCompileCount(), 0 );
+      assertEquals( directory.listFiles().length, 1 );
+    }
+    finally
+    {
+      if( directory.exists() ) delete( directory );
+    }
+  }
+
+  private static void delete( final File file )
+  {
+    final File[] children = file.listFiles();
+    if( null != children )
+    {
+      for( final File child : children )
+      {
+        delete( child );
+      }
+    }
+    assertTrue( file.delete() );
+  }
+
+  private static String transform( final Templates templates )
+    throws Exception
+  {
+    final StringWriter writer = new StringWriter();
+    final Transformer transformer = templates.newTransformer();
+    transformer.setOutputProperty( "omit-xml-declaration", "yes" );
+    transformer.transform( new StreamSource( new StringReader( "<a/>" ) ), new StreamResult( writer ) );
+    return writer.toString();
+  }
+}
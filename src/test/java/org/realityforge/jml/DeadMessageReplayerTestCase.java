@@ -0,0 +1,144 @@
+package org.realityforge.jml;
+
+import java.util.LinkedList;
+import java.util.logging.Level;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class DeadMessageReplayerTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    DeadMessageReplayer.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void replayToSourceFilteredByLink()
+    throws Exception
+  {
+    final Session session = createSession();
+    sendToDMQ( session, "ReplayLinkA", "Error: Boom", 3 );
+    sendToDMQ( session, "ReplayLinkB", "Error: Boom", 2 );
+
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_1_NAME );
+
+    final LinkedList<Integer> batches = new LinkedList<Integer>();
+    final DeadMessageReplayer replayer = new DeadMessageReplayer();
+    replayer.setDmqName( TestHelper.DMQ_NAME );
+    replayer.setLinkName( "ReplayLinkA" );
+    replayer.setBatchSize( 2 );
+    replayer.setReceiveTimeout( 100 );
+    replayer.setProgressListener( new DeadMessageReplayer.ProgressListener()
+    {
+      public void onProgress( final DeadMessageReplayer.Progress progress )
+      {
+        batches.add( progress.getMessageCount() );
+      }
+    } );
+    final DeadMessageReplayer.Progress progress = replayer.replay( createSession( true, Session.SESSION_TRANSACTED ) );
+
+    assertEquals( progress.getMessageCount(), 3 );
+    assertEquals( progress.getBatchCount(), 2 );
+    assertEquals( batches.size(), 2 );
+    assertEquals( batches.get( 0 ).intValue(), 2 );
+    assertEquals( batches.get( 1 ).intValue(), 3 );
+
+    for( final Message message : collector.expectMessageCount( 3 ) )
+    {
+      assertTrue( ( (TextMessage)message ).getText().startsWith( "ReplayLinkA-" ) );
+      assertNull( message.getObjectProperty( "JMLMessageLink" ) );
+      assertNull( message.getObjectProperty( "JMLFailureReason" ) );
+      assertNull( message.getObjectProperty( "JMLSourceChannel" ) );
+      assertNotNull( message.getObjectProperty( TestHelper.HEADER_KEY ) );
+    }
+
+    // Messages from other links remain in DMQ
+    replayer.setLinkName( "ReplayLinkB" );
+    replayer.setFailureReasonPattern( "%Boom%" );
+    replayer.setTarget( DeadMessageReplayer.Target.DESTINATION );
+    replayer.setMaxMessages( 1 );
+    final MessageCollector destinationCollector = collectResults( TestHelper.QUEUE_2_NAME );
+    assertEquals( replayer.replay( createSession( true, Session.SESSION_TRANSACTED ) ).getMessageCount(), 1 );
+    destinationCollector.expectMessageCount( 1 );
+
+    replayer.setMaxMessages( 0 );
+    assertEquals( replayer.replay( createSession( true, Session.SESSION_TRANSACTED ) ).getMessageCount(), 1 );
+    destinationCollector.expectMessageCount( 1 );
+  }
+
+  @Test
+  public void rateEnforcedPerMessage()
+    throws Exception
+  {
+    final Session session = createSession();
+    sendToDMQ( session, "ReplayRate", "Error: Boom", 5 );
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_1_NAME );
+
+    final LinkedList<Long> elapsed = new LinkedList<Long>();
+    final DeadMessageReplayer replayer = new DeadMessageReplayer();
+    replayer.setDmqName( TestHelper.DMQ_NAME );
+    replayer.setLinkName( "ReplayRate" );
+    replayer.setBatchSize( 5 );
+    replayer.setMaxRate( 10 );
+    replayer.setReceiveTimeout( 100 );
+    replayer.setProgressListener( new DeadMessageReplayer.ProgressListener()
+    {
+      public void onProgress( final DeadMessageReplayer.Progress progress )
+      {
+        elapsed.add( progress.getElapsedTime() );
+      }
+    } );
+    assertEquals( replayer.replay( createSession( true, Session.SESSION_TRANSACTED ) ).getMessageCount(), 5 );
+
+    // The batch is committed only once its last message is permitted to be sent
+    assertEquals( elapsed.size(), 1 );
+    assertTrue( elapsed.get( 0 ) >= 450, "elapsed = " + elapsed.get( 0 ) );
+    collector.expectMessageCount( 5 );
+  }
+
+  @Test
+  public void selector()
+  {
+    final DeadMessageReplayer replayer = new DeadMessageReplayer();
+    assertEquals( replayer.getSelector(), "JMLSourceChannel IS NOT NULL" );
+    replayer.setLinkName( "Bob's Link" );
+    replayer.setFailureReasonPattern( "%XSD%" );
+    replayer.setTarget( DeadMessageReplayer.Target.DESTINATION );
+    assertEquals( replayer.getSelector(),
+                  "JMLDestinationChannel IS NOT NULL AND JMLMessageLink = 'Bob''s Link' " +
+                  "AND JMLFailureReason LIKE '%XSD%'" );
+  }
+
+  @Test( expectedExceptions = IllegalStateException.class )
+  public void replayRequiresTransactedSession()
+    throws Exception
+  {
+    final DeadMessageReplayer replayer = new DeadMessageReplayer();
+    replayer.setDmqName( TestHelper.DMQ_NAME );
+    replayer.replay( createSession() );
+  }
+
+  private void sendToDMQ( final Session session, final String linkName, final String reason, final int count )
+    throws Exception
+  {
+    final MessageProducer producer = session.createProducer( session.createQueue( TestHelper.DMQ_NAME ) );
+    for( int i = 0; i < count; i++ )
+    {
+      final Message message = session.createTextMessage( linkName + "-" + i );
+      message.setIntProperty( TestHelper.HEADER_KEY, i );
+      message.setStringProperty( "JMLMessageLink", linkName );
+      message.setStringProperty( "JMLFailureReason", reason );
+      message.setStringProperty( "JMLSourceChannel", TestHelper.QUEUE_1_SPEC );
+      message.setStringProperty( "JMLDestinationChannel", TestHelper.QUEUE_2_SPEC );
+      producer.send( message );
+    }
+    producer.close();
+  }
+}
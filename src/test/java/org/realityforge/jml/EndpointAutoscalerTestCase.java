@@ -0,0 +1,117 @@
+package org.realityforge.jml;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class EndpointAutoscalerTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    EndpointAutoscaler.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void scalesWithBacklog()
+    throws Exception
+  {
+    final AtomicInteger received = new AtomicInteger();
+    createSession().createConsumer( createSession().createQueue( TestHelper.QUEUE_2_NAME ) ).
+      setMessageListener( new MessageListener()
+      {
+        public void onMessage( final Message message )
+        {
+          received.incrementAndGet();
+        }
+      } );
+
+    final EndpointAutoscaler autoscaler = new EndpointAutoscaler( getConnection(), new EndpointAutoscaler.EndpointFactory()
+    {
+      public AbstractMessageEndpoint createEndpoint( final int index )
+      {
+        final MessageLink link = new MessageLink();
+        link.setName( "ScaledLink-" + index );
+        link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+        link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+        link.setInputVerifier( new SlowMessageVerifier() );
+        return link;
+      }
+    } );
+    autoscaler.setEndpointBounds( 1, 3 );
+    autoscaler.setSampleInterval( 50 );
+    autoscaler.setDrainTimeThresholds( 100, 300 );
+    autoscaler.setHysteresis( 1, 3 );
+    autoscaler.start();
+    assertEquals( autoscaler.getEndpointCount(), 1 );
+
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( session.createQueue( TestHelper.QUEUE_1_NAME ) );
+    for( int i = 0; i < 40; i++ )
+    {
+      producer.send( session.createTextMessage( "Message-" + i ) );
+    }
+
+    int maxEndpoints = 0;
+    final long end = System.currentTimeMillis() + 10000;
+    while( ( received.get() < 40 || autoscaler.getEndpointCount() > 1 ) && System.currentTimeMillis() < end )
+    {
+      maxEndpoints = Math.max( maxEndpoints, autoscaler.getEndpointCount() );
+      Thread.sleep( 10 );
+    }
+
+    assertEquals( received.get(), 40 );
+    assertTrue( maxEndpoints > 1, "maxEndpoints = " + maxEndpoints );
+    assertEquals( autoscaler.getEndpointCount(), 1 );
+    assertEquals( autoscaler.getBacklog(), 0 );
+
+    autoscaler.stop();
+    assertEquals( autoscaler.getEndpointCount(), 0 );
+    assertFalse( autoscaler.isStarted() );
+  }
+
+  @Test
+  public void topicsAreRejected()
+    throws Exception
+  {
+    final EndpointAutoscaler autoscaler = new EndpointAutoscaler( getConnection(), new EndpointAutoscaler.EndpointFactory()
+    {
+      public AbstractMessageEndpoint createEndpoint( final int index )
+      {
+        final MessageLink link = new MessageLink();
+        link.setSourceChannel( TestHelper.TOPIC_1_SPEC, null, null );
+        link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+        return link;
+      }
+    } );
+    try
+    {
+      autoscaler.start();
+      fail( "Expected to fail to start" );
+    }
+    catch( final IllegalStateException ise )
+    {
+      assertEquals( ise.getMessage(), "Endpoints must consume from a queue" );
+    }
+    assertFalse( autoscaler.isStarted() );
+    assertEquals( autoscaler.getEndpointCount(), 0 );
+  }
+
+  static final class SlowMessageVerifier
+    extends MessageVerifier
+  {
+    @Override
+    public void verifyMessage( final Message message )
+      throws Exception
+    {
+      Thread.sleep( 20 );
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package org.realityforge.jml;
+
+import java.util.logging.Level;
+import javax.jms.Destination;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class EndpointContainerTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    EndpointContainer.LOG.setLevel( Level.OFF );
+    MessageLink.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void startAndStopEndpoints()
+    throws Exception
+  {
+    final MessageCollector queueCollector = collectResults( TestHelper.QUEUE_2_NAME, false );
+    final MessageCollector topicCollector = collectResults( TestHelper.TOPIC_2_NAME, true );
+
+    final EndpointContainer container = new EndpointContainer( TestHelper.createConnectionFactory() );
+    container.setConnectionCount( 2 );
+    container.setParallelism( 3 );
+    container.setClientIDPrefix( "ContainerTest" );
+
+    final MessageLink queueLink = new MessageLink();
+    queueLink.setName( "QueueLink" );
+    queueLink.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    queueLink.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    container.addEndpoint( queueLink );
+
+    final MessageLink topicLink = new MessageLink();
+    topicLink.setName( "TopicLink" );
+    topicLink.setSourceChannel( TestHelper.TOPIC_1_SPEC, null, null );
+    topicLink.setDestinationChannel( TestHelper.TOPIC_2_SPEC );
+    container.addEndpoint( topicLink );
+
+    final MessageLink badLink = new MessageLink();
+    badLink.setName( "BadLink" );
+    badLink.setDestinationChannel( TestHelper.TOPIC_2_SPEC );
+    container.addEndpoint( badLink );
+
+    final MessageLink otherBadLink = new MessageLink();
+    otherBadLink.setName( "BadLink" );
+    otherBadLink.setDestinationChannel( TestHelper.TOPIC_2_SPEC );
+    container.addEndpoint( otherBadLink );
+
+    container.start();
+    assertTrue( container.isStarted() );
+    assertTrue( queueLink.isStarted() );
+    assertTrue( topicLink.isStarted() );
+    assertFalse( badLink.isStarted() );
+
+    final EndpointContainer.Status status = container.getStatus();
+    assertEquals( status.getEndpointCount(), 4 );
+    assertEquals( status.getStartedCount(), 2 );
+    assertEquals( status.getFailures().size(), 2 );
+    assertTrue( status.getFailures().containsKey( badLink ) );
+    assertTrue( status.getFailures().containsKey( otherBadLink ) );
+
+    send( TestHelper.QUEUE_1_NAME, false );
+    send( TestHelper.TOPIC_1_NAME, true );
+    queueCollector.expectMessageCount( 1 );
+    topicCollector.expectMessageCount( 1 );
+
+    container.stop();
+    assertFalse( container.isStarted() );
+    assertFalse( queueLink.isStarted() );
+    assertFalse( topicLink.isStarted() );
+    assertEquals( container.getStatus().getStartedCount(), 0 );
+  }
+
+  @Test( expectedExceptions = IllegalStateException.class )
+  public void endpointsCanNotBeAddedWhileStarted()
+    throws Exception
+  {
+    final EndpointContainer container = new EndpointContainer( TestHelper.createConnectionFactory() );
+    container.start();
+    try
+    {
+      container.addEndpoint( new MessageLink() );
+    }
+    finally
+    {
+      container.stop();
+    }
+  }
+
+  private void send( final String channelName, final boolean topic )
+    throws Exception
+  {
+    final Session session = createSession();
+    final Destination destination = topic ? session.createTopic( channelName ) : session.createQueue( channelName );
+    final MessageProducer producer = session.createProducer( destination );
+    producer.send( session.createTextMessage( "Message" ) );
+    producer.close();
+  }
+}
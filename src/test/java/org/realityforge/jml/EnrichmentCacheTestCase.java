@@ -0,0 +1,230 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import javax.jms.Message;
+import javax.jms.Session;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class EnrichmentCacheTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    EnrichmentCache.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void cachesValuesAndAbsentKeys()
+    throws Exception
+  {
+    final RegionLoader loader = new RegionLoader();
+    final EnrichmentCache<String> cache = new EnrichmentCache<String>( loader );
+    cache.setTimeToLive( 10000, 10000 );
+
+    assertEquals( cache.get( "C1" ), "Region-C1" );
+    assertEquals( cache.get( "C1" ), "Region-C1" );
+    assertNull( cache.get( "Unknown" ) );
+    assertNull( cache.get( "Unknown" ) );
+    assertEquals( loader._loadCount.get(), 2 );
+    assertEquals( cache.getMissCount(), 2 );
+
+    cache.invalidate( "C1" );
+    assertEquals( cache.get( "C1" ), "Region-C1" );
+    assertEquals( loader._loadCount.get(), 3 );
+
+    cache.preload( Arrays.asList( "C2", "C3", "C1" ) );
+    assertEquals( loader._loadCount.get(), 4 );
+    assertEquals( (int)loader._keys.get( 3 ), 2 );
+    assertEquals( cache.get( "C3" ), "Region-C3" );
+    assertEquals( loader._loadCount.get(), 4 );
+  }
+
+  @Test
+  public void expiresAndEvicts()
+    throws Exception
+  {
+    final RegionLoader loader = new RegionLoader();
+    final EnrichmentCache<String> cache = new EnrichmentCache<String>( loader );
+    cache.setTimeToLive( 50, 0 );
+    cache.setMaxSize( 10 );
+
+    assertNull( cache.get( "Unknown" ) );
+    assertNull( cache.get( "Unknown" ) );
+    assertEquals( loader._loadCount.get(), 2 );
+
+    cache.get( "C1" );
+    Thread.sleep( 80 );
+    cache.get( "C1" );
+    assertEquals( loader._loadCount.get(), 4 );
+
+    for( int i = 0; i < 100; i++ )
+    {
+      cache.get( "K" + i );
+      cache.get( "C1" );
+    }
+    assertTrue( cache.size() <= 10, "size = " + cache.size() );
+  }
+
+  @Test
+  public void refreshesAhead()
+    throws Exception
+  {
+    final RegionLoader loader = new RegionLoader();
+    final EnrichmentCache<String> cache = new EnrichmentCache<String>( loader );
+    cache.setTimeToLive( 400, 0 );
+    cache.setRefreshAhead( 0.25 );
+
+    assertEquals( cache.get( "C1" ), "Region-C1" );
+    loader._suffix = "-Updated";
+    Thread.sleep( 150 );
+    // The current value is returned while the refresh is in progress
+    assertEquals( cache.get( "C1" ), "Region-C1" );
+    final long end = System.currentTimeMillis() + 2000;
+    while( loader._loadCount.get() < 2 && System.currentTimeMillis() < end )
+    {
+      Thread.sleep( 5 );
+    }
+    Thread.sleep( 20 );
+    assertEquals( cache.get( "C1" ), "Region-C1-Updated" );
+    assertEquals( cache.getMissCount(), 1 );
+    cache.close();
+  }
+
+  @Test
+  public void batchesConcurrentMisses()
+    throws Exception
+  {
+    final CountDownLatch blocked = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final RegionLoader loader = new RegionLoader()
+    {
+      @Override
+      public Map<String, String> load( final Set<String> keys )
+        throws Exception
+      {
+        if( keys.contains( "Blocking" ) )
+        {
+          blocked.countDown();
+          release.await();
+        }
+        return super.load( keys );
+      }
+    };
+    final EnrichmentCache<String> cache = new EnrichmentCache<String>( loader );
+
+    final List<Thread> threads = new ArrayList<Thread>();
+    final AtomicInteger loaded = new AtomicInteger();
+    for( final String key : new String[]{ "Blocking", "C1", "C2", "C3", "C1" } )
+    {
+      final Thread thread = new Thread( new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            if( null != cache.get( key ) ) loaded.incrementAndGet();
+          }
+          catch( final Exception e )
+          {
+            throw new IllegalStateException( e );
+          }
+        }
+      } );
+      thread.start();
+      threads.add( thread );
+      if( 1 == threads.size() ) assertTrue( blocked.await( 1, TimeUnit.SECONDS ) );
+    }
+    Thread.sleep( 50 );
+    release.countDown();
+    for( final Thread thread : threads )
+    {
+      thread.join( 5000 );
+    }
+
+    assertEquals( loaded.get(), 5 );
+    assertEquals( loader._loadCount.get(), 2 );
+    assertEquals( (int)loader._keys.get( 1 ), 3 );
+  }
+
+  @Test
+  public void loaderFailuresAreNotCached()
+    throws Exception
+  {
+    final RegionLoader loader = new RegionLoader();
+    final EnrichmentCache<String> cache = new EnrichmentCache<String>( loader );
+    loader._fail = true;
+    try
+    {
+      cache.get( "C1" );
+      fail( "Expected loader failure" );
+    }
+    catch( final IllegalStateException e )
+    {
+      //Expected
+    }
+    loader._fail = false;
+    assertEquals( cache.get( "C1" ), "Region-C1" );
+  }
+
+  @Test
+  public void enrichesMessageProperty()
+    throws Exception
+  {
+    final EnrichmentCache<String> cache = new EnrichmentCache<String>( new RegionLoader() );
+    final MessageTransformer transformer =
+      MessageTransformer.newEnrichmentTransformer( TestHelper.HEADER_KEY, cache, "Region" );
+    final Session session = createSession();
+
+    final Message message = session.createTextMessage( "X" );
+    message.setStringProperty( TestHelper.HEADER_KEY, "C1" );
+    final Message result = transformer.transformMessage( session, message );
+    assertEquals( result.getStringProperty( "Region" ), "Region-C1" );
+    assertEquals( result.getStringProperty( TestHelper.HEADER_KEY ), "C1" );
+
+    final Message unknown = session.createTextMessage( "X" );
+    unknown.setStringProperty( TestHelper.HEADER_KEY, "Unknown" );
+    assertSame( transformer.transformMessage( session, unknown ), unknown );
+
+    final Message keyless = session.createTextMessage( "X" );
+    assertSame( transformer.transformMessage( session, keyless ), keyless );
+  }
+
+  /** Loader that returns a region for every key other than "Unknown". */
+  private static class RegionLoader
+    implements EnrichmentCache.Loader<String>
+  {
+    final AtomicInteger _loadCount = new AtomicInteger();
+    final List<Integer> _keys = new ArrayList<Integer>();
+    volatile String _suffix = "";
+    volatile boolean _fail;
+
+    public Map<String, String> load( final Set<String> keys )
+      throws Exception
+    {
+      _loadCount.incrementAndGet();
+      synchronized( _keys )
+      {
+        _keys.add( keys.size() );
+      }
+      if( _fail ) throw new IllegalStateException( "Loader failed" );
+      final Map<String, String> values = new HashMap<String, String>();
+      for( final String key : keys )
+      {
+        if( !"Unknown".equals( key ) ) values.put( key, "Region-" + key + _suffix );
+      }
+      return values;
+    }
+  }
+}
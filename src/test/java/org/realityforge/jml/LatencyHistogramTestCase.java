@@ -0,0 +1,70 @@
+package org.realityforge.jml;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class LatencyHistogramTestCase
+{
+  @Test
+  public void percentiles()
+  {
+    final LatencyHistogram histogram = new LatencyHistogram( 3600L * 1000 * 1000, 3 );
+    for( int i = 1; i <= 10000; i++ )
+    {
+      histogram.recordValue( i );
+    }
+    final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals( snapshot.getCount(), 10000 );
+    assertEquals( snapshot.getMin(), 1 );
+    assertWithinPrecision( snapshot.getMax(), 10000, 3 );
+    assertWithinPrecision( snapshot.getValueAtPercentile( 50 ), 5000, 3 );
+    assertWithinPrecision( snapshot.getValueAtPercentile( 99 ), 9900, 3 );
+    assertWithinPrecision( snapshot.getValueAtPercentile( 100 ), 10000, 3 );
+    assertWithinPrecision( (long)snapshot.getMean(), 5000, 3 );
+  }
+
+  @Test
+  public void valuesAreClampedAndPreciseAcrossRange()
+  {
+    final LatencyHistogram histogram = new LatencyHistogram( 1000000, 2 );
+    histogram.recordValue( -5 );
+    histogram.recordValue( 5000000 );
+    final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals( snapshot.getMin(), 0 );
+    assertEquals( snapshot.getMax(), 1000000 );
+
+    for( long value = 1; value < 1000000; value = value * 3 + 1 )
+    {
+      histogram.reset();
+      histogram.recordValue( value );
+      assertWithinPrecision( histogram.snapshot().getValueAtPercentile( 50 ), value, 2 );
+    }
+  }
+
+  @Test
+  public void intervalSnapshotsAndReset()
+  {
+    final LatencyHistogram histogram = new LatencyHistogram( 1000, 2 );
+    assertEquals( histogram.snapshot().getCount(), 0 );
+    assertEquals( histogram.snapshot().getValueAtPercentile( 99 ), 0 );
+
+    histogram.recordValue( 10 );
+    histogram.recordValue( 20 );
+    assertEquals( histogram.intervalSnapshot().getCount(), 2 );
+    histogram.recordValue( 30 );
+    final LatencyHistogram.Snapshot interval = histogram.intervalSnapshot();
+    assertEquals( interval.getCount(), 1 );
+    assertEquals( interval.getMin(), 30 );
+    assertEquals( histogram.snapshot().getCount(), 3 );
+
+    histogram.reset();
+    assertEquals( histogram.snapshot().getCount(), 0 );
+    assertEquals( histogram.intervalSnapshot().getCount(), 0 );
+  }
+
+  private static void assertWithinPrecision( final long actual, final long expected, final int significantDigits )
+  {
+    final double tolerance = Math.max( 1, expected / Math.pow( 10, significantDigits ) );
+    assertTrue( Math.abs( actual - expected ) <= tolerance, "actual = " + actual + " expected = " + expected );
+  }
+}
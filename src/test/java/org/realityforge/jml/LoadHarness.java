@@ -0,0 +1,491 @@
+package org.realityforge.jml;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+/**
+ * A load generation and soak test harness. The harness produces messages to a source channel
+ * at a fixed rate with a weighted mix of sizes and message types, runs a topology of endpoints
+ * in an {@link EndpointContainer} and consumes the messages from a sink channel and the dead
+ * message queue. Every report interval it prints the throughput, the end-to-end latency
+ * percentiles, the time spent in garbage collection and the rate of messages routed to the
+ * dead message queue.
+ *
+ * <p>Latency is measured from the time each message was scheduled to be sent rather than the
+ * time it was actually sent, so a producer that falls behind does not hide queuing delays.</p>
+ *
+ * <p>Run from the command line with arguments of the form key=value. See {@link #main(String[])}.</p>
+ */
+public final class LoadHarness
+{
+  /** The message types that can be produced. */
+  public enum MessageType
+  {
+    TEXT, BYTES, MAP, STREAM
+  }
+
+  private static final String SEND_TIME_PROPERTY = "LoadSendTime";
+
+  private final ConnectionFactory _connectionFactory;
+  private final EndpointContainer _container;
+  private final ArrayList<Integer> _sizes = new ArrayList<Integer>();
+  private final ArrayList<MessageType> _types = new ArrayList<MessageType>();
+  private String _sourceChannel;
+  private String _sinkChannel;
+  private String _dmqName;
+  private int _rate = 1000;
+  private long _duration = 60 * 1000;
+  private long _reportInterval = 5 * 1000;
+  private long _drainTimeout = 10 * 1000;
+  private PrintStream _output = System.out;
+
+  private final LatencyHistogram _latency = new LatencyHistogram( AbstractMessageEndpoint.MAX_RECORDED_LATENCY, 3 );
+  private final AtomicLong _sent = new AtomicLong();
+  private final AtomicLong _received = new AtomicLong();
+  private final AtomicLong _dead = new AtomicLong();
+
+  public LoadHarness( final ConnectionFactory connectionFactory )
+  {
+    _connectionFactory = connectionFactory;
+    _container = new EndpointContainer( connectionFactory );
+  }
+
+  /** Specify the channel messages are produced to. */
+  public void setSourceChannel( final String sourceChannel )
+  {
+    _sourceChannel = sourceChannel;
+  }
+
+  /** Specify the channel messages are consumed from after passing through the endpoints. */
+  public void setSinkChannel( final String sinkChannel )
+  {
+    _sinkChannel = sinkChannel;
+  }
+
+  /** Specify the dead message queue that is monitored, if any. */
+  public void setDmqName( final String dmqName )
+  {
+    _dmqName = dmqName;
+  }
+
+  /** Specify the number of messages produced per second. */
+  public void setRate( final int rate )
+  {
+    if( rate < 1 ) throw new IllegalArgumentException( "rate must be positive" );
+    _rate = rate;
+  }
+
+  /** Specify the time in milliseconds that messages are produced for. */
+  public void setDuration( final long duration )
+  {
+    _duration = duration;
+  }
+
+  /** Specify the time in milliseconds between reports. */
+  public void setReportInterval( final long reportInterval )
+  {
+    _reportInterval = reportInterval;
+  }
+
+  /** Specify the time in milliseconds to wait for messages in flight once production stops. */
+  public void setDrainTimeout( final long drainTimeout )
+  {
+    _drainTimeout = drainTimeout;
+  }
+
+  /** Specify the stream reports are printed to, or null to suppress reports. */
+  public void setOutput( final PrintStream output )
+  {
+    _output = output;
+  }
+
+  /** Add a body size in bytes that is chosen in proportion to its weight. */
+  public void addMessageSize( final int size, final int weight )
+  {
+    for( int i = 0; i < weight; i++ )
+    {
+      _sizes.add( size );
+    }
+  }
+
+  /** Add a message type that is chosen in proportion to its weight. */
+  public void addMessageType( final MessageType type, final int weight )
+  {
+    for( int i = 0; i < weight; i++ )
+    {
+      _types.add( type );
+    }
+  }
+
+  /** Add an endpoint to the topology under test. */
+  public void addEndpoint( final AbstractMessageEndpoint endpoint )
+  {
+    _container.addEndpoint( endpoint );
+  }
+
+  /** Return the number of messages produced. */
+  public long getSentCount()
+  {
+    return _sent.get();
+  }
+
+  /** Return the number of messages consumed from the sink channel. */
+  public long getReceivedCount()
+  {
+    return _received.get();
+  }
+
+  /** Return the number of messages consumed from the dead message queue. */
+  public long getDeadCount()
+  {
+    return _dead.get();
+  }
+
+  /** Return the histogram of end-to-end latency in microseconds. */
+  public LatencyHistogram getLatency()
+  {
+    return _latency;
+  }
+
+  /**
+   * Run the load test, returning once messages have been produced for the duration and
+   * either all have been consumed or the drain timeout has expired.
+   */
+  public void run()
+    throws Exception
+  {
+    if( null == _sourceChannel || null == _sinkChannel )
+    {
+      throw new IllegalStateException( "source and sink channels must be specified" );
+    }
+    if( _sizes.isEmpty() ) addMessageSize( 1024, 1 );
+    if( _types.isEmpty() ) addMessageType( MessageType.TEXT, 1 );
+
+    final Connection connection = _connectionFactory.createConnection();
+    try
+    {
+      final Session sinkSession = connection.createSession( false, Session.AUTO_ACKNOWLEDGE );
+      final MessageConsumer sinkConsumer =
+        sinkSession.createConsumer( ChannelSpec.parseChannelSpec( _sinkChannel ).create( sinkSession ) );
+      sinkConsumer.setMessageListener( new MessageListener()
+      {
+        public void onMessage( final Message message )
+        {
+          _received.incrementAndGet();
+          try
+          {
+            final long sendTime = message.getLongProperty( SEND_TIME_PROPERTY );
+            _latency.recordValue( ( System.nanoTime() - sendTime ) / 1000 );
+          }
+          catch( final Exception e )
+          {
+            // The property was removed by the topology so latency is unknown
+          }
+        }
+      } );
+      if( null != _dmqName )
+      {
+        final Session dmqSession = connection.createSession( false, Session.AUTO_ACKNOWLEDGE );
+        final MessageConsumer dmqConsumer = dmqSession.createConsumer( dmqSession.createQueue( _dmqName ) );
+        dmqConsumer.setMessageListener( new MessageListener()
+        {
+          public void onMessage( final Message message )
+          {
+            _dead.incrementAndGet();
+          }
+        } );
+      }
+      connection.start();
+      _container.start();
+      try
+      {
+        produce( connection.createSession( false, Session.AUTO_ACKNOWLEDGE ) );
+      }
+      finally
+      {
+        _container.stop();
+      }
+    }
+    finally
+    {
+      connection.close();
+    }
+  }
+
+  private void produce( final Session session )
+    throws Exception
+  {
+    final MessageProducer producer =
+      session.createProducer( ChannelSpec.parseChannelSpec( _sourceChannel ).create( session ) );
+    producer.setDeliveryMode( DeliveryMode.NON_PERSISTENT );
+    final Random random = new Random( 42 );
+    final long period = TimeUnit.SECONDS.toNanos( 1 ) / _rate;
+    final long start = System.nanoTime();
+    final long end = start + TimeUnit.MILLISECONDS.toNanos( _duration );
+    final Report report = new Report( start );
+    long next = start;
+    while( next < end )
+    {
+      final long now = System.nanoTime();
+      if( now < next )
+      {
+        LockSupport.parkNanos( next - now );
+        continue;
+      }
+      final Message message = createMessage( session,
+                                             _types.get( random.nextInt( _types.size() ) ),
+                                             _sizes.get( random.nextInt( _sizes.size() ) ),
+                                             random );
+      message.setLongProperty( SEND_TIME_PROPERTY, next );
+      producer.send( message );
+      _sent.incrementAndGet();
+      next += period;
+      report.reportIfDue( now );
+    }
+    final long drainEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( _drainTimeout );
+    while( _received.get() + _dead.get() < _sent.get() && System.nanoTime() < drainEnd )
+    {
+      Thread.sleep( 10 );
+      report.reportIfDue( System.nanoTime() );
+    }
+    producer.close();
+    report.reportTotal( System.nanoTime() );
+  }
+
+  private static Message createMessage( final Session session,
+                                        final MessageType type,
+                                        final int size,
+                                        final Random random )
+    throws Exception
+  {
+    final byte[] data = new byte[ size ];
+    for( int i = 0; i < size; i++ )
+    {
+      data[ i ] = (byte)( 'a' + random.nextInt( 26 ) );
+    }
+    if( MessageType.BYTES == type )
+    {
+      final BytesMessage message = session.createBytesMessage();
+      message.writeBytes( data );
+      return message;
+    }
+    else if( MessageType.MAP == type )
+    {
+      final MapMessage message = session.createMapMessage();
+      message.setBytes( "data", data );
+      message.setInt( "size", size );
+      return message;
+    }
+    else if( MessageType.STREAM == type )
+    {
+      final StreamMessage message = session.createStreamMessage();
+      message.writeInt( size );
+      message.writeBytes( data );
+      return message;
+    }
+    else
+    {
+      return session.createTextMessage( new String( data, "US-ASCII" ) );
+    }
+  }
+
+  private static long getGarbageCollectionTime()
+  {
+    long time = 0;
+    for( final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans() )
+    {
+      time += Math.max( 0, bean.getCollectionTime() );
+    }
+    return time;
+  }
+
+  /**
+   * Tracks the counters at the last report so that each report describes an interval.
+   */
+  private final class Report
+  {
+    private final long _start;
+    private final long _startGarbageCollectionTime;
+    private long _last;
+    private long _lastReceived;
+    private long _lastDead;
+    private long _lastGarbageCollectionTime;
+
+    Report( final long start )
+    {
+      _start = start;
+      _last = start;
+      _startGarbageCollectionTime = getGarbageCollectionTime();
+      _lastGarbageCollectionTime = _startGarbageCollectionTime;
+    }
+
+    void reportIfDue( final long now )
+    {
+      if( now - _last >= TimeUnit.MILLISECONDS.toNanos( _reportInterval ) )
+      {
+        final long received = _received.get();
+        final long dead = _dead.get();
+        final long garbageCollectionTime = getGarbageCollectionTime();
+        print( "t=" + TimeUnit.NANOSECONDS.toSeconds( now - _start ) + "s",
+               now - _last,
+               received - _lastReceived,
+               dead - _lastDead,
+               garbageCollectionTime - _lastGarbageCollectionTime,
+               _latency.intervalSnapshot() );
+        _last = now;
+        _lastReceived = received;
+        _lastDead = dead;
+        _lastGarbageCollectionTime = garbageCollectionTime;
+      }
+    }
+
+    void reportTotal( final long now )
+    {
+      print( "total sent=" + _sent.get(),
+             now - _start,
+             _received.get(),
+             _dead.get(),
+             getGarbageCollectionTime() - _startGarbageCollectionTime,
+             _latency.snapshot() );
+    }
+
+    private void print( final String label,
+                        final long elapsed,
+                        final long received,
+                        final long dead,
+                        final long garbageCollectionTime,
+                        final LatencyHistogram.Snapshot latency )
+    {
+      if( null == _output ) return;
+      final double seconds = Math.max( 1, elapsed ) / 1e9;
+      _output.println( label +
+                       " received=" + received +
+                       " throughput=" + Math.round( received / seconds ) + "/s" +
+                       " dmq=" + Math.round( dead / seconds ) + "/s" +
+                       " gc=" + garbageCollectionTime + "ms" +
+                       " latency(us) p50=" + latency.getValueAtPercentile( 50 ) +
+                       " p99=" + latency.getValueAtPercentile( 99 ) +
+                       " p99.9=" + latency.getValueAtPercentile( 99.9 ) +
+                       " max=" + latency.getMax() );
+    }
+  }
+
+  /**
+   * Run a chain of MessageLinks under load. Arguments are of the form key=value:
+   *
+   * <ul>
+   * <li>url - the broker URL. If not specified an embedded broker is started.</li>
+   * <li>rate - messages produced per second. Defaults to 1000.</li>
+   * <li>duration - seconds to produce messages for. Defaults to 60.</li>
+   * <li>interval - seconds between reports. Defaults to 5.</li>
+   * <li>links - the number of links in the chain. Defaults to 1.</li>
+   * <li>sizes - comma separated size:weight pairs. Defaults to 1024:1.</li>
+   * <li>types - comma separated type:weight pairs, such as text:3,bytes:1. Defaults to text:1.</li>
+   * <li>verifier - a regular expression used to verify messages entering each link.</li>
+   * <li>transformer - "compress" to compress messages in the first link.</li>
+   * </ul>
+   */
+  public static void main( final String[] args )
+    throws Exception
+  {
+    String url = null;
+    int links = 1;
+    String verifier = null;
+    String transformer = null;
+    final ArrayList<String[]> sizes = new ArrayList<String[]>();
+    final ArrayList<String[]> types = new ArrayList<String[]>();
+    int rate = 1000;
+    long duration = 60;
+    long interval = 5;
+    for( final String arg : args )
+    {
+      final int index = arg.indexOf( '=' );
+      if( -1 == index ) throw new IllegalArgumentException( "Expected key=value: " + arg );
+      final String key = arg.substring( 0, index );
+      final String value = arg.substring( index + 1 );
+      if( "url".equals( key ) ) url = value;
+      else if( "rate".equals( key ) ) rate = Integer.parseInt( value );
+      else if( "duration".equals( key ) ) duration = Long.parseLong( value );
+      else if( "interval".equals( key ) ) interval = Long.parseLong( value );
+      else if( "links".equals( key ) ) links = Integer.parseInt( value );
+      else if( "verifier".equals( key ) ) verifier = value;
+      else if( "transformer".equals( key ) ) transformer = value;
+      else if( "sizes".equals( key ) ) sizes.addAll( parsePairs( value ) );
+      else if( "types".equals( key ) ) types.addAll( parsePairs( value ) );
+      else throw new IllegalArgumentException( "Unknown argument: " + arg );
+    }
+
+    if( null == url ) TestHelper.startupBroker();
+    try
+    {
+      final ConnectionFactory connectionFactory =
+        null == url ? TestHelper.createConnectionFactory() : new ActiveMQConnectionFactory( url );
+      final LoadHarness harness = new LoadHarness( connectionFactory );
+      harness.setRate( rate );
+      harness.setDuration( TimeUnit.SECONDS.toMillis( duration ) );
+      harness.setReportInterval( TimeUnit.SECONDS.toMillis( interval ) );
+      harness.setDmqName( TestHelper.DMQ_NAME );
+      harness.setSourceChannel( ChannelSpec.QUEUE_PREFIX + "LOAD_0" );
+      harness.setSinkChannel( ChannelSpec.QUEUE_PREFIX + "LOAD_" + links );
+      for( final String[] pair : sizes )
+      {
+        harness.addMessageSize( Integer.parseInt( pair[ 0 ] ), Integer.parseInt( pair[ 1 ] ) );
+      }
+      for( final String[] pair : types )
+      {
+        harness.addMessageType( MessageType.valueOf( pair[ 0 ].toUpperCase() ), Integer.parseInt( pair[ 1 ] ) );
+      }
+      for( int i = 0; i < links; i++ )
+      {
+        final MessageLink link = new MessageLink();
+        link.setName( "LoadLink-" + i );
+        link.setSourceChannel( ChannelSpec.QUEUE_PREFIX + "LOAD_" + i, null, null );
+        link.setDestinationChannel( ChannelSpec.QUEUE_PREFIX + "LOAD_" + ( i + 1 ) );
+        link.setDmqName( TestHelper.DMQ_NAME );
+        if( null != verifier ) link.setInputVerifier( MessageVerifier.newRegexVerifier( Pattern.compile( verifier ) ) );
+        if( 0 == i && "compress".equals( transformer ) )
+        {
+          link.setTransformer( MessageTransformer.newCompressingTransformer( CompressionFormat.DEFLATE, 0 ) );
+        }
+        harness.addEndpoint( link );
+      }
+      harness.run();
+    }
+    finally
+    {
+      if( null == url ) TestHelper.shutdownBroker();
+    }
+    // Threads created by the message server client may not be daemon threads
+    System.exit( 0 );
+  }
+
+  private static ArrayList<String[]> parsePairs( final String value )
+  {
+    final ArrayList<String[]> pairs = new ArrayList<String[]>();
+    for( final String pair : value.split( "," ) )
+    {
+      final String[] parts = pair.split( ":" );
+      pairs.add( 1 == parts.length ? new String[]{ parts[ 0 ], "1" } : parts );
+    }
+    return pairs;
+  }
+}
@@ -0,0 +1,42 @@
+package org.realityforge.jml;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class LoadHarnessTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @Test
+  public void messagesFlowThroughTopologyAtRate()
+    throws Exception
+  {
+    final LoadHarness harness = new LoadHarness( TestHelper.createConnectionFactory() );
+    harness.setSourceChannel( ChannelSpec.QUEUE_PREFIX + "LOAD_IN" );
+    harness.setSinkChannel( ChannelSpec.QUEUE_PREFIX + "LOAD_OUT" );
+    harness.setDmqName( "LOAD_DMQ" );
+    harness.setRate( 400 );
+    harness.setDuration( 500 );
+    harness.setDrainTimeout( 5000 );
+    harness.setOutput( null );
+    harness.addMessageSize( 100, 3 );
+    harness.addMessageSize( 5000, 1 );
+    harness.addMessageType( LoadHarness.MessageType.TEXT, 1 );
+    harness.addMessageType( LoadHarness.MessageType.BYTES, 1 );
+    harness.addMessageType( LoadHarness.MessageType.MAP, 1 );
+    harness.addMessageType( LoadHarness.MessageType.STREAM, 1 );
+
+    final MessageLink link = new MessageLink();
+    link.setSourceChannel( ChannelSpec.QUEUE_PREFIX + "LOAD_IN", null, null );
+    link.setDestinationChannel( ChannelSpec.QUEUE_PREFIX + "LOAD_OUT" );
+    link.setDmqName( "LOAD_DMQ" );
+    harness.addEndpoint( link );
+
+    harness.run();
+
+    assertTrue( harness.getSentCount() >= 190 && harness.getSentCount() <= 200, "sent = " + harness.getSentCount() );
+    assertEquals( harness.getReceivedCount(), harness.getSentCount() );
+    assertEquals( harness.getDeadCount(), 0 );
+    assertEquals( harness.getLatency().snapshot().getCount(), harness.getSentCount() );
+    assertFalse( link.isStarted() );
+  }
+}
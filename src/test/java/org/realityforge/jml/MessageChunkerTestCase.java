@@ -0,0 +1,227 @@
+package org.realityforge.jml;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.logging.Level;
+import javax.jms.BytesMessage;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class MessageChunkerTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    AbstractMessageEndpoint.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void chunksAreReassembled()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.TOPIC_1_NAME, true );
+
+    final MessageChunker chunker = new MessageChunker();
+    chunker.setName( "Chunker" );
+    chunker.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    chunker.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    chunker.setChunkSize( 10 );
+    chunker.start( createSession() );
+
+    final MessageReassembler reassembler = new MessageReassembler();
+    reassembler.setName( "Reassembler" );
+    reassembler.setSourceChannel( TestHelper.QUEUE_2_SPEC, null, null );
+    reassembler.setDestinationChannel( TestHelper.TOPIC_1_SPEC );
+    reassembler.start( createSession() );
+
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( session.createQueue( TestHelper.QUEUE_1_NAME ) );
+    final String text = "Large message with \u00e9l\u00e9ments that spans chunks";
+    final TextMessage textMessage = session.createTextMessage( text );
+    textMessage.setStringProperty( "X", "text" );
+    producer.send( textMessage );
+    producer.send( session.createTextMessage( "Small" ) );
+    final byte[] data = new byte[ 25 ];
+    for( int i = 0; i < data.length; i++ )
+    {
+      data[ i ] = (byte)i;
+    }
+    final BytesMessage bytesMessage = session.createBytesMessage();
+    bytesMessage.writeBytes( data );
+    bytesMessage.setStringProperty( "X", "bytes" );
+    producer.send( bytesMessage );
+
+    final Collection<Message> messages = collector.expectMessageCount( 3, 2000 );
+    chunker.stop();
+    reassembler.stop();
+
+    final HashMap<String, Message> results = new HashMap<String, Message>();
+    for( final Message message : messages )
+    {
+      results.put( message.getStringProperty( "X" ), message );
+      assertNull( message.getObjectProperty( MessageChunker.GROUP_ID_PROPERTY ) );
+    }
+    assertEquals( ( (TextMessage)results.get( "text" ) ).getText(), text );
+    assertEquals( ( (TextMessage)results.get( null ) ).getText(), "Small" );
+    final BytesMessage result = (BytesMessage)results.get( "bytes" );
+    final byte[] output = new byte[ (int)result.getBodyLength() ];
+    result.readBytes( output );
+    assertEquals( output, data );
+  }
+
+  @Test
+  public void chunkProperties()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME );
+
+    final MessageChunker chunker = new MessageChunker();
+    chunker.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    chunker.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    chunker.setChunkSize( 4 );
+    chunker.start( createSession() );
+
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( session.createQueue( TestHelper.QUEUE_1_NAME ) );
+    final TextMessage message = session.createTextMessage( "0123456789" );
+    producer.send( message );
+
+    final Collection<Message> chunks = collector.expectMessageCount( 3, 2000 );
+    chunker.stop();
+
+    int sequence = 1;
+    for( final Message chunk : chunks )
+    {
+      assertEquals( chunk.getStringProperty( MessageChunker.GROUP_ID_PROPERTY ), message.getJMSMessageID() );
+      assertEquals( chunk.getIntProperty( MessageChunker.SEQUENCE_PROPERTY ), sequence );
+      assertEquals( chunk.getIntProperty( MessageChunker.COUNT_PROPERTY ), 3 );
+      assertEquals( chunk.getIntProperty( MessageChunker.OFFSET_PROPERTY ), ( sequence - 1 ) * 4 );
+      assertEquals( chunk.getIntProperty( MessageChunker.LENGTH_PROPERTY ), 10 );
+      assertEquals( ( (BytesMessage)chunk ).getBodyLength(), 3 == sequence ? 2 : 4 );
+      sequence++;
+    }
+  }
+
+  @Test
+  public void incompleteGroupRoutedToDMQOnTimeout()
+    throws Exception
+  {
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME );
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME );
+
+    final MessageReassembler reassembler = new MessageReassembler();
+    reassembler.setName( "Reassembler" );
+    reassembler.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    reassembler.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    reassembler.setDmqName( TestHelper.DMQ_NAME );
+    reassembler.setGroupTimeout( 50 );
+    // Timed out chunks are not retried
+    reassembler.setRetryPolicy( new RetryPolicy( 3, 10, 100, 2, 0 ) );
+    reassembler.start( createSession() );
+
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( session.createQueue( TestHelper.QUEUE_1_NAME ) );
+    producer.send( createChunk( session, "G1", 1, 3, 12 ) );
+    producer.send( createChunk( session, "G1", 3, 3, 12 ) );
+
+    final Collection<Message> messages = dmqCollector.expectMessageCount( 2, 2000 );
+    reassembler.stop();
+    for( final Message message : messages )
+    {
+      assertTrue( message.getStringProperty( "JMLFailureReason" ).
+        startsWith( "Timed out waiting for chunks. Received 2 of 3 chunks of group G1" ) );
+      assertEquals( message.getStringProperty( MessageChunker.GROUP_ID_PROPERTY ), "G1" );
+    }
+    collector.expectMessageCount( 0 );
+  }
+
+  @Test
+  public void groupsLargerThanBufferAreRejected()
+    throws Exception
+  {
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME );
+
+    final MessageReassembler reassembler = new MessageReassembler();
+    reassembler.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    reassembler.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    reassembler.setDmqName( TestHelper.DMQ_NAME );
+    // Holds 40 bytes of chunked messages as the chunks are retained as well as reassembled
+    reassembler.setMaxBufferSize( 40 );
+    reassembler.start( createSession() );
+
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( session.createQueue( TestHelper.QUEUE_1_NAME ) );
+    producer.send( createChunk( session, "G1", 1, 2, 8 ) );
+    producer.send( createChunk( session, "G2", 1, 8, 32 ) );
+    // Evicts G1 as the buffer can not hold both
+    producer.send( createChunk( session, "G3", 1, 4, 16 ) );
+
+    final Collection<Message> messages = dmqCollector.expectMessageCount( 2, 2000 );
+    final HashMap<String, String> reasons = new HashMap<String, String>();
+    for( final Message message : messages )
+    {
+      reasons.put( message.getStringProperty( MessageChunker.GROUP_ID_PROPERTY ),
+                   message.getStringProperty( "JMLFailureReason" ) );
+    }
+    assertEquals( reasons.get( "G2" ), "Chunked message of 32 bytes is larger than the reassembly buffer" );
+    assertTrue( reasons.get( "G1" ).startsWith( "Evicted from full reassembly buffer" ) );
+
+    // Incomplete groups are routed to the DMQ when stopped
+    reassembler.stop();
+    final Message message = dmqCollector.expectMessageCount( 1, 2000 ).iterator().next();
+    assertEquals( message.getStringProperty( MessageChunker.GROUP_ID_PROPERTY ), "G3" );
+  }
+
+  @Test
+  public void groupsWithInvalidChunkCountsAreRejected()
+    throws Exception
+  {
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME );
+
+    final MessageReassembler reassembler = new MessageReassembler();
+    reassembler.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    reassembler.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    reassembler.setDmqName( TestHelper.DMQ_NAME );
+    reassembler.setMaxChunkCount( 2 );
+    reassembler.start( createSession() );
+
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( session.createQueue( TestHelper.QUEUE_1_NAME ) );
+    final BytesMessage hostile = createChunk( session, "G1", 1, 2, 8 );
+    hostile.setIntProperty( MessageChunker.COUNT_PROPERTY, Integer.MAX_VALUE );
+    producer.send( hostile );
+    final Message invalid = dmqCollector.expectMessageCount( 1, 2000 ).iterator().next();
+    assertTrue( invalid.getStringProperty( "JMLFailureReason" ).contains( "has invalid chunk count or length" ) );
+
+    producer.send( createChunk( session, "G2", 1, 4, 16 ) );
+    final Message rejected = dmqCollector.expectMessageCount( 1, 2000 ).iterator().next();
+    assertEquals( rejected.getStringProperty( "JMLFailureReason" ),
+                  "Chunked message of 4 chunks has more than the maximum of 2 chunks" );
+    reassembler.stop();
+  }
+
+  private static BytesMessage createChunk( final Session session,
+                                           final String groupID,
+                                           final int sequence,
+                                           final int count,
+                                           final int length )
+    throws Exception
+  {
+    final int size = length / count;
+    final BytesMessage chunk = session.createBytesMessage();
+    chunk.writeBytes( new byte[ size ] );
+    chunk.setStringProperty( MessageChunker.GROUP_ID_PROPERTY, groupID );
+    chunk.setIntProperty( MessageChunker.SEQUENCE_PROPERTY, sequence );
+    chunk.setIntProperty( MessageChunker.COUNT_PROPERTY, count );
+    chunk.setIntProperty( MessageChunker.OFFSET_PROPERTY, ( sequence - 1 ) * size );
+    chunk.setIntProperty( MessageChunker.LENGTH_PROPERTY, length );
+    chunk.setStringProperty( MessageChunker.BODY_TYPE_PROPERTY, "bytes" );
+    return chunk;
+  }
+}
@@ -0,0 +1,129 @@
+package org.realityforge.jml;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import javax.jms.BytesMessage;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class MessageClonerTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @Test
+  public void bodiesAreCopied()
+    throws Exception
+  {
+    final Session session = createSession();
+
+    final BytesMessage bytesMessage = session.createBytesMessage();
+    final byte[] data = new byte[ 20000 ];
+    for( int i = 0; i < data.length; i++ )
+    {
+      data[ i ] = (byte)i;
+    }
+    bytesMessage.writeBytes( data );
+    bytesMessage.setStringProperty( "X", "Y" );
+    final BytesMessage bytesResult = (BytesMessage)roundTrip( session, bytesMessage );
+    bytesResult.reset();
+    final byte[] output = new byte[ (int)bytesResult.getBodyLength() ];
+    bytesResult.readBytes( output );
+    assertEquals( output, data );
+    assertEquals( bytesResult.getStringProperty( "X" ), "Y" );
+
+    final MapMessage mapMessage = session.createMapMessage();
+    mapMessage.setString( "a", "b" );
+    mapMessage.setLong( "c", 42L );
+    mapMessage.setBytes( "d", new byte[]{ 1, 2 } );
+    final MapMessage mapResult = (MapMessage)roundTrip( session, mapMessage );
+    assertEquals( mapResult.getString( "a" ), "b" );
+    assertEquals( mapResult.getLong( "c" ), 42L );
+    assertEquals( mapResult.getBytes( "d" ), new byte[]{ 1, 2 } );
+    assertFalse( mapResult.propertyExists( "a" ) );
+
+    final StreamMessage streamMessage = session.createStreamMessage();
+    streamMessage.writeInt( 1 );
+    streamMessage.writeString( null );
+    streamMessage.writeString( "three" );
+    final StreamMessage streamResult = (StreamMessage)roundTrip( session, streamMessage );
+    streamResult.reset();
+    assertEquals( streamResult.readInt(), 1 );
+    assertNull( streamResult.readString() );
+    assertEquals( streamResult.readString(), "three" );
+  }
+
+  @Test
+  public void objectMessageIsCopiedWithoutDeserializing()
+    throws Exception
+  {
+    final Session session = createSession();
+    final Queue queue = session.createQueue( TestHelper.QUEUE_1_NAME );
+    final MessageProducer producer = session.createProducer( queue );
+    final MessageConsumer consumer = session.createConsumer( queue );
+
+    producer.send( session.createObjectMessage( new Payload( "Hello" ) ) );
+    final Message received = consumer.receive( 2000 );
+    assertNotNull( received );
+
+    Payload.c_deserializeCount = 0;
+    final ObjectMessage copy = (ObjectMessage)MessageCloner.cloneMessage( session, received );
+    assertEquals( Payload.c_deserializeCount, 0 );
+
+    // The original is still readable and the copy yields the same object
+    assertEquals( ( (Payload)( (ObjectMessage)received ).getObject() )._value, "Hello" );
+    assertEquals( ( (Payload)copy.getObject() )._value, "Hello" );
+
+    // An ObjectMessage that has not been serialized is copied by value
+    final ObjectMessage local = session.createObjectMessage( new Payload( "Local" ) );
+    assertEquals( ( (Payload)( (ObjectMessage)MessageCloner.cloneMessage( session, local ) ).getObject() )._value,
+                  "Local" );
+  }
+
+  private Message roundTrip( final Session session, final Message message )
+    throws Exception
+  {
+    final Queue queue = session.createQueue( TestHelper.QUEUE_1_NAME );
+    final MessageProducer producer = session.createProducer( queue );
+    final MessageConsumer consumer = session.createConsumer( queue );
+    producer.send( message );
+    final Message received = consumer.receive( 2000 );
+    assertNotNull( received );
+    final Message copy = MessageCloner.cloneMessage( session, received );
+    producer.send( copy );
+    final Message result = consumer.receive( 2000 );
+    assertNotNull( result );
+    consumer.close();
+    producer.close();
+    return result;
+  }
+
+  static final class Payload
+    implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    static int c_deserializeCount;
+
+    private final String _value;
+
+    Payload( final String value )
+    {
+      _value = value;
+    }
+
+    private void readObject( final ObjectInputStream input )
+      throws IOException, ClassNotFoundException
+    {
+      c_deserializeCount++;
+      input.defaultReadObject();
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package org.realityforge.jml;
+
+import java.text.ParseException;
+import javax.jms.BytesMessage;
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class MessageFilterTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @Test
+  public void headersAndProperties()
+    throws Exception
+  {
+    final Session session = createSession();
+    final Message message = session.createMessage();
+    message.setJMSType( "Order" );
+    message.setJMSPriority( 7 );
+    message.setJMSDeliveryMode( DeliveryMode.PERSISTENT );
+    message.setIntProperty( "Count", 5 );
+    message.setDoubleProperty( "Price", 2.5 );
+    message.setStringProperty( "Region", "EU" );
+    message.setBooleanProperty( "Urgent", true );
+
+    assertAccepts( message, "JMSType = 'Order'" );
+    assertRejects( message, "JMSType <> 'Order'" );
+    assertAccepts( message, "JMSPriority >= 5 AND JMSDeliveryMode = 'PERSISTENT'" );
+    assertAccepts( message, "Count = 5 AND Count > 4 AND Count <= 5.0" );
+    assertRejects( message, "Count < 5" );
+    assertAccepts( message, "Price > 2 AND Price < 3" );
+    assertAccepts( message, "Region IN ('US', 'EU')" );
+    assertRejects( message, "Region NOT IN ('US', 'EU')" );
+    assertAccepts( message, "Urgent" );
+    assertAccepts( message, "Urgent = TRUE" );
+    assertRejects( message, "NOT Urgent" );
+    assertAccepts( message, "Missing IS NULL AND Region IS NOT NULL" );
+    assertRejects( message, "Missing = 'X' OR Missing > 1" );
+    assertAccepts( message, "(Region = 'US' OR Region = 'EU') and not (Count = 1)" );
+    assertAccepts( message, "Region MATCHES '^E'" );
+    assertRejects( message, "Region NOT MATCHES '^E'" );
+    // Comparisons with values of a different type are false
+    assertRejects( message, "Region = 1" );
+    assertRejects( message, "Count = '5'" );
+  }
+
+  @Test
+  public void bodyChecks()
+    throws Exception
+  {
+    final Session session = createSession();
+    final TextMessage message =
+      session.createTextMessage( "<order type=\"retail\"><item>A</item><item>B</item><total>12.5</total></order>" );
+
+    assertAccepts( message, "body MATCHES '<item>B</item>'" );
+    assertRejects( message, "body MATCHES '<item>C</item>'" );
+    assertAccepts( message, "xpath('/order/@type') = 'retail'" );
+    assertAccepts( message, "xpath('count(/order/item)') = 2 AND xpath('/order/total') > 12" );
+    assertAccepts( message, "xpath('/order/item = \"B\"')" );
+    assertRejects( message, "xpath('/order/missing')" );
+    assertAccepts( message, "xpath('/order/missing') = ''" );
+
+    // Body checks against messages that are not TextMessages are false
+    final BytesMessage bytesMessage = session.createBytesMessage();
+    assertRejects( bytesMessage, "body MATCHES '.*'" );
+    assertRejects( bytesMessage, "xpath('/order')" );
+    assertAccepts( bytesMessage, "body IS NULL" );
+  }
+
+  @Test
+  public void streamingXPathStopsAtResolvedNodes()
+    throws Exception
+  {
+    final TextMessage message = createSession().createTextMessage(
+      "<order><header><id>7</id><tag>a</tag><tag>b</tag></header><lines><line>1</line></lines></order>" );
+
+    assertAccepts( message, "xpath('/order/header/id') = '7' AND xpath('//tag[2]') = 'b'" );
+    assertAccepts( message, "xpath('/order/header/tag[1]/text()') = 'a'" );
+    assertRejects( message, "xpath('/order/header/id[@type=\"x\"]')" );
+    assertAccepts( message, "xpath('/order/missing') = ''" );
+
+    // Content after the resolved nodes is not parsed
+    final TextMessage truncated = createSession().createTextMessage( "<order><header><id>7</id></header><lin" );
+    assertAccepts( truncated, "xpath('/order/header/id') = '7'" );
+  }
+
+  @Test
+  public void headersAreCheckedBeforeBody()
+    throws Exception
+  {
+    final TextMessage message = createSession().createTextMessage( "Not XML" );
+    message.setStringProperty( "Format", "text" );
+
+    // The body is never parsed as the property check fails first
+    assertRejects( message, "xpath('/order') AND Format = 'xml'" );
+    assertAccepts( message, "xpath('/order') OR Format = 'text'" );
+    try
+    {
+      MessageFilter.compile( "Format = 'xml' OR xpath('/order')" ).accept( message );
+      fail( "Expected to fail parsing the body" );
+    }
+    catch( final Exception e )
+    {
+      assertTrue( e.getMessage().endsWith( "does not contain well-formed XML" ) );
+    }
+  }
+
+  @Test
+  public void documentTypeDeclarationsAreRejected()
+    throws Exception
+  {
+    final TextMessage message = createSession().createTextMessage(
+      "<!DOCTYPE order [<!ENTITY secret SYSTEM \"file:///etc/passwd\">]><order>&secret;</order>" );
+    try
+    {
+      MessageFilter.compile( "xpath('count(/order)') = 1" ).accept( message );
+      fail( "Expected to fail parsing the body" );
+    }
+    catch( final Exception e )
+    {
+      assertTrue( e.getMessage().endsWith( "does not contain well-formed XML" ) );
+    }
+  }
+
+  @Test
+  public void invalidExpressions()
+    throws Exception
+  {
+    assertInvalid( "" );
+    assertInvalid( "Count =" );
+    assertInvalid( "Count = 1 AND" );
+    assertInvalid( "(Count = 1" );
+    assertInvalid( "Region IN ()" );
+    assertInvalid( "Region MATCHES '['" );
+    assertInvalid( "Flag > TRUE" );
+    assertInvalid( "xpath('/a[')" );
+    assertInvalid( "Region = 'EU" );
+    assertInvalid( "Count = 1 Count = 2" );
+    assertEquals( MessageFilter.compile( "Count = 1" ).toString(), "Count = 1" );
+  }
+
+  private static void assertAccepts( final Message message, final String expression )
+    throws Exception
+  {
+    assertTrue( MessageFilter.compile( expression ).accept( message ), expression );
+  }
+
+  private static void assertRejects( final Message message, final String expression )
+    throws Exception
+  {
+    assertFalse( MessageFilter.compile( expression ).accept( message ), expression );
+  }
+
+  private static void assertInvalid( final String expression )
+  {
+    try
+    {
+      MessageFilter.compile( expression );
+      fail( "Expected to fail to compile: " + expression );
+    }
+    catch( final ParseException pe )
+    {
+      //expected
+    }
+  }
+}
@@ -1,14 +1,20 @@
 package org.realityforge.jml;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
-import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.jms.TextMessage;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 import static org.testng.Assert.*;
@@ -40,6 +46,9 @@ public class MessageLinkTestCase
     collector.expectMessageCount( 5 );
     link.stop();
 
+    // Messages are produced without timestamps so delivery latency is not recorded
+    assertEquals( link.getDeliveryLatency().snapshot().getCount(), 0 );
+    assertEquals( link.getProcessingTime().snapshot().getCount(), 5 );
     assertEquals( "TestLink", link.getName() );
     assertEquals( null, link.getDmqName() );
     assertEquals( null, link.getSelector() );
@@ -47,6 +56,32 @@ public class MessageLinkTestCase
     assertEquals( TestHelper.QUEUE_1_SPEC, link.getSource().toSpec() );
   }
 
+  @Test
+  public void deliveryLatencyRecordedFromTimestamp()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME, false );
+
+    final MessageLink link = new MessageLink();
+    link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    link.start( createSession() );
+
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( session.createQueue( TestHelper.QUEUE_1_NAME ) );
+    producer.send( session.createTextMessage( "X" ) );
+    producer.send( session.createTextMessage( "Y" ) );
+    collector.expectMessageCount( 2, 2000 );
+    link.stop();
+
+    final LatencyHistogram.Snapshot snapshot = link.getDeliveryLatency().intervalSnapshot();
+    assertEquals( snapshot.getCount(), 2 );
+    assertTrue( snapshot.getMax() < 5 * 1000 * 1000, "max = " + snapshot.getMax() );
+    assertEquals( link.getProcessingTime().snapshot().getCount(), 2 );
+    link.getProcessingTime().reset();
+    assertEquals( link.getProcessingTime().snapshot().getCount(), 0 );
+  }
+
   @Test
   public void transferFromInputQueueToOutputQueueWithSelector()
     throws Exception
@@ -70,6 +105,131 @@ public class MessageLinkTestCase
     assertEquals( TestHelper.HEADER_KEY + " <= 2", link.getSelector() );
   }
 
+  @Test
+  public void transferFromInputQueueToOutputQueueWithFilter()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME, false );
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME, false );
+
+    final MessageLink link = new MessageLink();
+    link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    link.setDmqName( TestHelper.DMQ_NAME );
+    link.setFilter( MessageFilter.compile( TestHelper.HEADER_KEY + " < 2 OR body MATCHES '-4$'" ) );
+    link.setInputVerifier( new TestMessageVerifier( 1 ) );
+    link.setName( "TestLink" );
+    link.start( createSession() );
+
+    produceMessages( TestHelper.QUEUE_1_NAME, false, 5 );
+    collector.expectMessageCount( 2 );
+
+    // Messages not matching the filter are dropped before the verifier is invoked
+    final Message message = dmqCollector.expectMessageCount( 1 ).iterator().next();
+    assertEquals( message.getIntProperty( TestHelper.HEADER_KEY ), 4 );
+    collectResults( TestHelper.QUEUE_1_NAME, false ).expectMessageCount( 0 );
+
+    link.stop();
+  }
+
+  @Test
+  public void reconfigureRunningLink()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME, false );
+    final MessageCollector topicCollector = collectResults( TestHelper.TOPIC_1_NAME, true );
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME, false );
+
+    final MessageLink link = new MessageLink();
+    link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    link.setName( "TestLink" );
+    link.start( createSession() );
+
+    produceMessages( TestHelper.QUEUE_1_NAME, false, 2 );
+    collector.expectMessageCount( 2 );
+
+    link.setDmqName( TestHelper.DMQ_NAME );
+    link.setInputVerifier( new TestMessageVerifier( 0 ) );
+    produceMessages( TestHelper.QUEUE_1_NAME, false, 2 );
+    collector.expectMessageCount( 1 );
+    dmqCollector.expectMessageCount( 1 );
+
+    link.setInputVerifier( null );
+    link.setDestinationChannel( TestHelper.TOPIC_1_SPEC );
+    link.setSelector( TestHelper.HEADER_KEY + " >= 1" );
+    produceMessages( TestHelper.QUEUE_1_NAME, false, 3 );
+    topicCollector.expectMessageCount( 2 );
+    collector.expectMessageCount( 0 );
+    link.stop();
+
+    // The message not matching the new selector remains in the source queue
+    collectResults( TestHelper.QUEUE_1_NAME, false ).expectMessageCount( 1 );
+    assertEquals( link.getSelector(), TestHelper.HEADER_KEY + " >= 1" );
+  }
+
+  @Test
+  public void samplesProcessedDuringWarmUpAreNotSent()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME, false );
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME, false );
+
+    final Session session = createSession();
+    final TextMessage valid = session.createTextMessage( "Valid" );
+    valid.setIntProperty( TestHelper.HEADER_KEY, 1 );
+    final TextMessage invalid = session.createTextMessage( "Invalid" );
+    invalid.setIntProperty( TestHelper.HEADER_KEY, 5 );
+
+    final TestMessageTransformer transformer = new TestMessageTransformer( false );
+    final MessageLink link = new MessageLink();
+    link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    link.setDmqName( TestHelper.DMQ_NAME );
+    link.setInputVerifier( new TestMessageVerifier( 3 ) );
+    link.setTransformer( transformer );
+    link.setWarmUpMessages( Arrays.asList( valid, invalid ), 10 );
+
+    final ArrayList<LogRecord> failures = new ArrayList<LogRecord>();
+    final Handler handler = new Handler()
+    {
+      public void publish( final LogRecord record )
+      {
+        if( null != record.getThrown() ) failures.add( record );
+      }
+
+      public void flush()
+      {
+      }
+
+      public void close()
+      {
+      }
+    };
+    final Level level = MessageLink.LOG.getLevel();
+    MessageLink.LOG.setLevel( Level.FINE );
+    MessageLink.LOG.addHandler( handler );
+    try
+    {
+      link.start( createSession() );
+    }
+    finally
+    {
+      MessageLink.LOG.removeHandler( handler );
+      MessageLink.LOG.setLevel( level );
+    }
+
+    // Only the valid sample passes the input verifier, and only the first failure is logged
+    assertEquals( transformer.getInvocationCount(), 10 );
+    assertEquals( failures.size(), 1 );
+    assertEquals( failures.get( 0 ).getLevel(), Level.FINE );
+    produceMessages( TestHelper.QUEUE_1_NAME, false, 1 );
+    collector.expectMessageCount( 1 );
+    dmqCollector.expectMessageCount( 0 );
+    link.stop();
+    assertEquals( transformer.getInvocationCount(), 11 );
+  }
+
   @Test
   public void transferFromInputQueueToOutputTopic()
     throws Exception
@@ -346,6 +506,145 @@ public class MessageLinkTestCase
     link.stop();
   }
 
+  @Test
+  public void transferFromInputQueueToOutputQueueWithTransientErrorIsRetried()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME, false );
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME, false );
+
+    final MessageLink link = new MessageLink();
+    link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    link.setDmqName( TestHelper.DMQ_NAME );
+    link.setRetryPolicy( new RetryPolicy( 3, 10, 100, 2, 0 ) );
+    final TestMessageTransformer transformer = new TestMessageTransformer( 2 );
+    link.setTransformer( transformer );
+    link.setName( "TestLink" );
+    link.start( createSession() );
+
+    produceMessages( TestHelper.QUEUE_1_NAME, false, 1 );
+    collector.expectMessageCount( 1, 1000 );
+    dmqCollector.expectMessageCount( 0 );
+    assertEquals( transformer.getInvocationCount(), 3 );
+    link.stop();
+    // Stopping waits for the attempt in progress to be recorded
+    assertEquals( link.getProcessingTime().snapshot().getCount(), 3 );
+    assertEquals( link.getCompletedCount(), 1 );
+  }
+
+  @Test
+  public void transferFromInputQueueToOutputQueueWithRetriesExhausted()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME, false );
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME, false );
+
+    final MessageLink link = new MessageLink();
+    link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    link.setDmqName( TestHelper.DMQ_NAME );
+    link.setRetryPolicy( new RetryPolicy( 3, 10, 100, 2, 0.5 ) );
+    final TestMessageTransformer transformer = new TestMessageTransformer( true );
+    link.setTransformer( transformer );
+    link.setName( "TestLink" );
+    link.start( createSession() );
+
+    produceMessages( TestHelper.QUEUE_1_NAME, false, 1 );
+    final Message message = dmqCollector.expectMessageCount( 1, 1000 ).iterator().next();
+    collector.expectMessageCount( 0 );
+    assertMessageProperty( message, "JMLAttemptCount", 3 );
+    assertEquals( transformer.getInvocationCount(), 3 );
+    link.stop();
+  }
+
+  @Test
+  public void transferFromInputQueueToOutputQueueWithNonRetryableError()
+    throws Exception
+  {
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME, false );
+
+    final MessageLink link = new MessageLink();
+    link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    link.setDmqName( TestHelper.DMQ_NAME );
+    link.setRetryPolicy( new RetryPolicy( 3, 10, 100, 2, 0, JMSException.class ) );
+    final TestMessageTransformer transformer = new TestMessageTransformer( true );
+    link.setTransformer( transformer );
+    link.setName( "TestLink" );
+    link.start( createSession() );
+
+    produceMessages( TestHelper.QUEUE_1_NAME, false, 1 );
+    final Message message = dmqCollector.expectMessageCount( 1 ).iterator().next();
+    assertMessageProperty( message, "JMLAttemptCount", 1 );
+    assertEquals( transformer.getInvocationCount(), 1 );
+    link.stop();
+  }
+
+  @Test
+  public void pendingRetriesSentToDMQOnStop()
+    throws Exception
+  {
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME, false );
+
+    final MessageLink link = new MessageLink();
+    link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    link.setDmqName( TestHelper.DMQ_NAME );
+    link.setRetryPolicy( new RetryPolicy( 3, 60000, 60000, 1, 0 ) );
+    final TestMessageTransformer transformer = new TestMessageTransformer( true );
+    link.setTransformer( transformer );
+    link.setName( "TestLink" );
+    link.start( createSession() );
+
+    produceMessages( TestHelper.QUEUE_1_NAME, false, 1 );
+    final long start = System.currentTimeMillis();
+    while( 0 == transformer.getInvocationCount() && System.currentTimeMillis() - start < 1000 )
+    {
+      Thread.sleep( 10 );
+    }
+    dmqCollector.expectMessageCount( 0 );
+    link.stop();
+
+    final Message message = dmqCollector.expectMessageCount( 1 ).iterator().next();
+    assertMessageProperty( message, "JMLAttemptCount", 1 );
+  }
+
+  @Test
+  public void spooledMessagesForwardedInOrderOnStart()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME, false );
+
+    final File directory = File.createTempFile( "spool", "" );
+    assertTrue( directory.delete() );
+    final MessageSpool spool = new MessageSpool( directory, 4096, 2 );
+    final Session session = createSession();
+    for( int i = 0; i < 3; i++ )
+    {
+      assertTrue( spool.append( session.createTextMessage( "Spooled-" + i ) ) );
+    }
+
+    final MessageLink link = new MessageLink();
+    link.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    link.setSpool( spool );
+    link.setName( "TestLink" );
+    link.start( createSession() );
+
+    final Iterator<Message> messages = collector.expectMessageCount( 3, 1000 ).iterator();
+    for( int i = 0; i < 3; i++ )
+    {
+      assertEquals( ( (TextMessage)messages.next() ).getText(), "Spooled-" + i );
+    }
+    assertTrue( spool.isEmpty() );
+
+    produceMessages( TestHelper.QUEUE_1_NAME, false, 1 );
+    collector.expectMessageCount( 1 );
+    link.stop();
+    spool.close();
+  }
+
   private static void publishMessage( final Session session,
                                       final Destination destination,
                                       final String messageContent,
@@ -378,17 +677,6 @@ public class MessageLinkTestCase
     }
   }
 
-  private MessageCollector collectResults( final String channelName, final boolean topic )
-    throws Exception
-  {
-    final Session session = createSession();
-    final Destination destination = createDestination( session, channelName, topic );
-    final MessageConsumer consumer = session.createConsumer( destination );
-    final MessageCollector collector = new MessageCollector();
-    consumer.setMessageListener( collector );
-    return collector;
-  }
-
   private Destination createDestination( final Session session, final String channelName, final boolean topic )
     throws JMSException
   {
@@ -0,0 +1,263 @@
+package org.realityforge.jml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import javax.jms.BytesMessage;
+import javax.jms.DeliveryMode;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TextMessage;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class MessageSpoolTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  private File _directory;
+
+  @BeforeMethod
+  public void createDirectory()
+    throws IOException
+  {
+    _directory = File.createTempFile( "spool", "" );
+    assertTrue( _directory.delete() );
+  }
+
+  @AfterMethod
+  public void deleteDirectory()
+  {
+    final File[] files = _directory.listFiles();
+    if( null != files )
+    {
+      for( final File file : files )
+      {
+        file.delete();
+      }
+    }
+    _directory.delete();
+  }
+
+  @Test
+  public void messagesAreForwardedInOrder()
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageSpool spool = new MessageSpool( _directory, 4096, 10 );
+    assertTrue( spool.isEmpty() );
+    for( int i = 0; i < 5; i++ )
+    {
+      assertTrue( spool.append( createTextMessage( session, i ) ) );
+    }
+    assertEquals( spool.size(), 5 );
+    for( int i = 0; i < 5; i++ )
+    {
+      final TextMessage message = (TextMessage)spool.peek( session );
+      assertEquals( message.getText(), "Message-" + i );
+      assertEquals( message.getIntProperty( TestHelper.HEADER_KEY ), i );
+      spool.remove();
+    }
+    assertTrue( spool.isEmpty() );
+    assertNull( spool.peek( session ) );
+    spool.close();
+  }
+
+  @Test
+  public void bodiesAndHeadersArePreserved()
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageSpool spool = new MessageSpool( _directory, 4096, 10 );
+
+    final BytesMessage bytesMessage = session.createBytesMessage();
+    bytesMessage.writeBytes( new byte[]{ 1, 2, 3 } );
+    bytesMessage.setJMSCorrelationID( "X" );
+    bytesMessage.setJMSType( "Y" );
+    bytesMessage.setJMSPriority( 7 );
+    bytesMessage.setJMSDeliveryMode( DeliveryMode.NON_PERSISTENT );
+    bytesMessage.setJMSReplyTo( session.createQueue( TestHelper.QUEUE_2_NAME ) );
+    final MapMessage mapMessage = session.createMapMessage();
+    mapMessage.setString( "a", "b" );
+    mapMessage.setLong( "c", 42L );
+    final StreamMessage streamMessage = session.createStreamMessage();
+    streamMessage.writeInt( 1 );
+    streamMessage.writeString( "two" );
+
+    assertTrue( spool.append( bytesMessage ) );
+    assertTrue( spool.append( mapMessage ) );
+    assertTrue( spool.append( streamMessage ) );
+
+    final BytesMessage bytesResult = (BytesMessage)spool.peek( session );
+    spool.remove();
+    bytesResult.reset();
+    assertEquals( bytesResult.getBodyLength(), 3 );
+    assertEquals( bytesResult.readByte(), 1 );
+    assertEquals( bytesResult.getJMSCorrelationID(), "X" );
+    assertEquals( bytesResult.getJMSType(), "Y" );
+    assertEquals( bytesResult.getJMSPriority(), 7 );
+    assertEquals( bytesResult.getJMSDeliveryMode(), DeliveryMode.NON_PERSISTENT );
+    assertEquals( bytesResult.getJMSReplyTo(), session.createQueue( TestHelper.QUEUE_2_NAME ) );
+
+    final MapMessage mapResult = (MapMessage)spool.peek( session );
+    spool.remove();
+    assertEquals( mapResult.getString( "a" ), "b" );
+    assertEquals( mapResult.getLong( "c" ), 42L );
+
+    final StreamMessage streamResult = (StreamMessage)spool.peek( session );
+    spool.remove();
+    streamResult.reset();
+    assertEquals( streamResult.readInt(), 1 );
+    assertEquals( streamResult.readString(), "two" );
+    spool.close();
+  }
+
+  @Test
+  public void spoolIsBoundedAndRollsSegments()
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageSpool spool = new MessageSpool( _directory, 512, 3 );
+    int count = 0;
+    while( spool.append( createTextMessage( session, count ) ) )
+    {
+      count++;
+    }
+    assertTrue( count > 3, "count = " + count );
+    assertEquals( segmentCount(), 3 );
+
+    for( int i = 0; i < count; i++ )
+    {
+      assertEquals( ( (TextMessage)spool.peek( session ) ).getText(), "Message-" + i );
+      spool.remove();
+    }
+    assertEquals( segmentCount(), 1 );
+    assertTrue( spool.append( createTextMessage( session, 0 ) ) );
+    spool.close();
+  }
+
+  @Test
+  public void spoolIsRecoveredAfterRestart()
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageSpool spool = new MessageSpool( _directory, 512, 10 );
+    for( int i = 0; i < 10; i++ )
+    {
+      assertTrue( spool.append( createTextMessage( session, i ) ) );
+    }
+    spool.peek( session );
+    spool.remove();
+    spool.peek( session );
+    spool.remove();
+    spool.sync();
+    // Removed after the last sync and thus will be replayed
+    spool.peek( session );
+    spool.remove();
+
+    final MessageSpool recovered = new MessageSpool( _directory, 512, 10 );
+    assertEquals( recovered.size(), 8 );
+    for( int i = 2; i < 10; i++ )
+    {
+      assertEquals( ( (TextMessage)recovered.peek( session ) ).getText(), "Message-" + i );
+      recovered.remove();
+    }
+    assertTrue( recovered.isEmpty() );
+    recovered.close();
+  }
+
+  @Test
+  public void tornRecordIsDiscardedDuringRecovery()
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageSpool spool = new MessageSpool( _directory, 4096, 10 );
+    assertTrue( spool.append( createTextMessage( session, 0 ) ) );
+    assertTrue( spool.append( createTextMessage( session, 1 ) ) );
+    spool.close();
+
+    // Corrupt the last byte of the second record
+    final RandomAccessFile file = new RandomAccessFile( new File( _directory, String.format( "%020d.seg", 0 ) ), "rw" );
+    final int firstLength = file.readInt();
+    file.seek( 8 + firstLength );
+    final int secondLength = file.readInt();
+    final int lastByte = 8 + firstLength + 8 + secondLength - 1;
+    file.seek( lastByte );
+    final byte value = file.readByte();
+    file.seek( lastByte );
+    file.writeByte( ~value );
+    file.close();
+
+    final MessageSpool recovered = new MessageSpool( _directory, 4096, 10 );
+    assertEquals( recovered.size(), 1 );
+    assertEquals( ( (TextMessage)recovered.peek( session ) ).getText(), "Message-0" );
+    assertTrue( recovered.append( createTextMessage( session, 2 ) ) );
+    recovered.remove();
+    assertEquals( ( (TextMessage)recovered.peek( session ) ).getText(), "Message-2" );
+    recovered.close();
+  }
+
+  @Test
+  public void recordsAfterTornRecordAreNotReadAfterRoll()
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageSpool spool = new MessageSpool( _directory, 512, 10 );
+    assertTrue( spool.append( createTextMessage( session, 0 ) ) );
+    assertTrue( spool.append( createTextMessage( session, 1 ) ) );
+    assertTrue( spool.append( createTextMessage( session, 2 ) ) );
+    spool.close();
+
+    // Tear the second record leaving the intact third record after it
+    final RandomAccessFile file = new RandomAccessFile( new File( _directory, String.format( "%020d.seg", 0 ) ), "rw" );
+    final int firstLength = file.readInt();
+    file.seek( 8 + firstLength );
+    final int secondLength = file.readInt();
+    final int lastByte = 8 + firstLength + 8 + secondLength - 1;
+    file.seek( lastByte );
+    final byte value = file.readByte();
+    file.seek( lastByte );
+    file.writeByte( ~value );
+    file.close();
+
+    final MessageSpool recovered = new MessageSpool( _directory, 512, 10 );
+    assertEquals( recovered.size(), 1 );
+    // Same length as the torn record so the stale third record directly follows it
+    assertTrue( recovered.append( createTextMessage( session, 3 ) ) );
+    // Too large for the remainder of the segment so the spool rolls to a new segment
+    final Message large = session.createTextMessage( new String( new char[ 400 ] ) );
+    assertTrue( recovered.append( large ) );
+    assertEquals( segmentCount(), 2 );
+
+    assertEquals( recovered.size(), 3 );
+    assertEquals( ( (TextMessage)recovered.peek( session ) ).getText(), "Message-0" );
+    recovered.remove();
+    assertEquals( ( (TextMessage)recovered.peek( session ) ).getText(), "Message-3" );
+    recovered.remove();
+    assertEquals( ( (TextMessage)recovered.peek( session ) ).getText().length(), 400 );
+    recovered.remove();
+    assertTrue( recovered.isEmpty() );
+    recovered.close();
+  }
+
+  private int segmentCount()
+  {
+    int count = 0;
+    for( final String name : _directory.list() )
+    {
+      if( name.endsWith( ".seg" ) ) count++;
+    }
+    return count;
+  }
+
+  private Message createTextMessage( final Session session, final int index )
+    throws Exception
+  {
+    final Message message = session.createTextMessage( "Message-" + index );
+    message.setIntProperty( TestHelper.HEADER_KEY, index );
+    return message;
+  }
+}
@@ -1,6 +1,14 @@
 package org.realityforge.jml;
 
+import java.io.ByteArrayInputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import javax.jms.BytesMessage;
 import javax.jms.Message;
 import javax.jms.Session;
 import javax.jms.TextMessage;
@@ -37,4 +45,287 @@ public class MessageTransformerTestCase
     }
     assertEquals( "<ace>X</ace>", ((TextMessage) result ).getText() );
   }
+
+  @Test
+  public void binaryTransformer()
+    throws Exception
+  {
+    final BinaryLayout input = new BinaryLayout( ByteOrder.BIG_ENDIAN ).
+      addField( "id", BinaryLayout.Type.INT32 ).
+      addField( "flags", BinaryLayout.Type.UINT8 ).
+      addVariableBytesField( "name", BinaryLayout.Type.UINT16 ).
+      addField( "price", BinaryLayout.Type.FLOAT64 );
+    final BinaryLayout output = new BinaryLayout( ByteOrder.LITTLE_ENDIAN ).
+      addField( "identifier", BinaryLayout.Type.INT64 ).
+      addPadding( 2 ).
+      addBytesField( "name", 4 ).
+      addField( "price", BinaryLayout.Type.FLOAT32 ).
+      addField( "flags", BinaryLayout.Type.UINT16 );
+    final MessageTransformer transformer =
+      MessageTransformer.newBinaryTransformer( input, output, Collections.singletonMap( "identifier", "id" ) );
+
+    final ByteBuffer data = ByteBuffer.allocate( 64 ).order( ByteOrder.BIG_ENDIAN );
+    data.putInt( -7 ).put( (byte)200 ).putShort( (short)2 ).put( "ab".getBytes( "US-ASCII" ) ).putDouble( 1.5 );
+    data.putInt( 42 ).put( (byte)1 ).putShort( (short)6 ).put( "abcdef".getBytes( "US-ASCII" ) ).putDouble( -2 );
+
+    final Session session = createSession();
+    final BytesMessage message = session.createBytesMessage();
+    message.writeBytes( data.array(), 0, data.position() );
+    message.setStringProperty( "X", "Y" );
+
+    for( int i = 0; i < 2; i++ )
+    {
+      final BytesMessage result = (BytesMessage)transformer.transformMessage( session, message );
+      result.reset();
+      assertEquals( result.getStringProperty( "X" ), "Y" );
+      assertEquals( result.getBodyLength(), 2 * output.getRecordSize() );
+      final byte[] body = new byte[ (int)result.getBodyLength() ];
+      result.readBytes( body );
+      final ByteBuffer buffer = ByteBuffer.wrap( body ).order( ByteOrder.LITTLE_ENDIAN );
+
+      assertEquals( buffer.getLong(), -7 );
+      assertEquals( buffer.getShort(), 0 );
+      assertEquals( readString( buffer, 4 ), "ab\0\0" );
+      assertEquals( buffer.getFloat(), 1.5F );
+      assertEquals( buffer.getShort(), 200 );
+
+      assertEquals( buffer.getLong(), 42 );
+      assertEquals( buffer.getShort(), 0 );
+      assertEquals( readString( buffer, 4 ), "abcd" );
+      assertEquals( buffer.getFloat(), -2F );
+      assertEquals( buffer.getShort(), 1 );
+      assertFalse( buffer.hasRemaining() );
+    }
+  }
+
+  @Test
+  public void binaryTransformerRejectsTruncatedRecord()
+    throws Exception
+  {
+    final BinaryLayout layout = new BinaryLayout( ByteOrder.BIG_ENDIAN ).
+      addField( "a", BinaryLayout.Type.INT32 ).
+      addField( "b", BinaryLayout.Type.INT16 );
+    final MessageTransformer transformer = MessageTransformer.newBinaryTransformer( layout, layout );
+
+    final Session session = createSession();
+    final BytesMessage message = session.createBytesMessage();
+    message.writeBytes( new byte[ 10 ] );
+    try
+    {
+      transformer.transformMessage( session, message );
+      fail( "Expected truncated record to fail" );
+    }
+    catch( final Exception e )
+    {
+      assertTrue( e.getMessage().endsWith( "contains a truncated record at offset 6" ), e.getMessage() );
+    }
+  }
+
+  @Test( expectedExceptions = IllegalArgumentException.class )
+  public void binaryTransformerRejectsIncompatibleFields()
+    throws Exception
+  {
+    final BinaryLayout input = new BinaryLayout( ByteOrder.BIG_ENDIAN ).addBytesField( "a", 4 );
+    final BinaryLayout output = new BinaryLayout( ByteOrder.BIG_ENDIAN ).addField( "a", BinaryLayout.Type.INT32 );
+    MessageTransformer.newBinaryTransformer( input, output );
+  }
+
+  @Test
+  public void jsonTransformer()
+    throws Exception
+  {
+    final LinkedHashMap<String, String> mapping = new LinkedHashMap<String, String>();
+    mapping.put( "id", "orderId" );
+    mapping.put( "customer.name", "customer" );
+    mapping.put( "lines", "lines" );
+    mapping.put( "missing", "missing" );
+    final MessageTransformer transformer = MessageTransformer.newJsonTransformer( mapping );
+
+    final Session session = createSession();
+    final TextMessage message = session.createTextMessage(
+      "{ \"lines\" : [ {\"a\": 1}, \"}\" ], \"customer\": {\"id\": 3, \"name\": \"Bob \\\"B\\\"\"}, \"id\":7}" );
+    message.setStringProperty( "X", "Y" );
+    final TextMessage result = (TextMessage)transformer.transformMessage( session, message );
+    assertEquals( result.getText(),
+                  "{\"lines\":[ {\"a\": 1}, \"}\" ],\"customer\":\"Bob \\\"B\\\"\",\"orderId\":7}" );
+    assertEquals( result.getStringProperty( "X" ), "Y" );
+
+    try
+    {
+      transformer.transformMessage( session, session.createTextMessage( "{\"id\": }" ) );
+      fail( "Expected invalid JSON to fail" );
+    }
+    catch( final Exception e )
+    {
+      assertTrue( e.getMessage().endsWith( "is not valid JSON" ), e.getMessage() );
+    }
+  }
+
+  @Test
+  public void xpathExtractingTransformer()
+    throws Exception
+  {
+    final LinkedHashMap<String, String> mapping = new LinkedHashMap<String, String>();
+    mapping.put( "/order/header/customer/@region", "Region" );
+    mapping.put( "/order/header/id", "OrderId" );
+    mapping.put( "/order/missing", "Missing" );
+    final MessageTransformer transformer = MessageTransformer.newXPathExtractingTransformer( mapping );
+
+    final Session session = createSession();
+    final String text =
+      "<order><header><id>7</id><customer region='EU'>Bob</customer></header><lines/></order>";
+    final TextMessage message = session.createTextMessage( text );
+    message.setStringProperty( "X", "Y" );
+    final TextMessage result = (TextMessage)transformer.transformMessage( session, message );
+    assertNotSame( result, message );
+    assertEquals( result.getText(), text );
+    assertEquals( result.getStringProperty( "Region" ), "EU" );
+    assertEquals( result.getStringProperty( "OrderId" ), "7" );
+    assertFalse( result.propertyExists( "Missing" ) );
+    assertEquals( result.getStringProperty( "X" ), "Y" );
+
+    // Messages without any of the nodes are returned unchanged
+    final TextMessage other = session.createTextMessage( "<invoice/>" );
+    assertSame( transformer.transformMessage( session, other ), other );
+
+    try
+    {
+      transformer.transformMessage( session, session.createTextMessage( "<order><header>" ) );
+      fail( "Expected invalid XML to fail" );
+    }
+    catch( final Exception e )
+    {
+      assertTrue( e.getMessage().endsWith( "is not well-formed XML" ), e.getMessage() );
+    }
+  }
+
+  @Test
+  public void compressionTransformers()
+    throws Exception
+  {
+    final Session session = createSession();
+    final StringBuilder sb = new StringBuilder( "<document>" );
+    for( int i = 0; i < 1000; i++ )
+    {
+      sb.append( "<line n=\"" ).append( i ).append( "\">\u00e9l\u00e9ment</line>" );
+    }
+    final String text = sb.append( "</document>" ).toString();
+    final MessageTransformer decompressor = MessageTransformer.newDecompressingTransformer();
+    final MessageVerifier verifier =
+      MessageVerifier.newDecompressingVerifier( MessageVerifier.newRegexVerifier( Pattern.compile( "<document>.*" ) ) );
+
+    for( final CompressionFormat format : CompressionFormat.values() )
+    {
+      final MessageTransformer compressor = MessageTransformer.newCompressingTransformer( format, 1024 );
+      for( int i = 0; i < 2; i++ )
+      {
+        final TextMessage message = session.createTextMessage( text );
+        message.setStringProperty( "X", "Y" );
+        final BytesMessage compressed = (BytesMessage)compressor.transformMessage( session, message );
+        compressed.reset();
+        assertTrue( compressed.getBodyLength() < text.length() / 10 );
+        assertEquals( compressed.getStringProperty( "jmlCompression" ), format.getPropertyValue() );
+        assertEquals( compressed.getStringProperty( "X" ), "Y" );
+        // Compressing a compressed message has no effect
+        assertSame( compressor.transformMessage( session, compressed ), compressed );
+
+        verifier.verifyMessage( compressed );
+
+        final TextMessage result = (TextMessage)decompressor.transformMessage( session, compressed );
+        assertEquals( result.getText(), text );
+        assertEquals( result.getStringProperty( "X" ), "Y" );
+        assertFalse( result.propertyExists( "jmlCompression" ) );
+      }
+    }
+
+    // Messages below the threshold are unchanged
+    final TextMessage small = session.createTextMessage( "<document/>" );
+    assertSame( MessageTransformer.newCompressingTransformer( CompressionFormat.GZIP, 1024 ).
+      transformMessage( session, small ), small );
+    assertSame( decompressor.transformMessage( session, small ), small );
+  }
+
+  @Test
+  public void compressedBytesMessageIsGzipCompatible()
+    throws Exception
+  {
+    final Session session = createSession();
+    final byte[] data = new byte[ 50000 ];
+    for( int i = 0; i < data.length; i++ )
+    {
+      data[ i ] = (byte)( i % 7 );
+    }
+    final BytesMessage message = session.createBytesMessage();
+    message.writeBytes( data );
+    message.setStringProperty( "Z", "1" );
+
+    final BytesMessage compressed = (BytesMessage)MessageTransformer.
+      newCompressingTransformer( CompressionFormat.GZIP, 0 ).transformMessage( session, message );
+    compressed.reset();
+    final byte[] body = new byte[ (int)compressed.getBodyLength() ];
+    compressed.readBytes( body );
+    final GZIPInputStream input = new GZIPInputStream( new ByteArrayInputStream( body ) );
+    for( int i = 0; i < data.length; i++ )
+    {
+      assertEquals( input.read(), data[ i ] );
+    }
+    assertEquals( input.read(), -1 );
+
+    final BytesMessage result =
+      (BytesMessage)MessageTransformer.newDecompressingTransformer().transformMessage( session, compressed );
+    result.reset();
+    final byte[] output = new byte[ (int)result.getBodyLength() ];
+    result.readBytes( output );
+    assertEquals( output, data );
+
+    final BytesMessage view = (BytesMessage)MessageCompressor.decompressedView( compressed, data.length );
+    assertEquals( view.getBodyLength(), data.length );
+    assertEquals( view.readShort(), 1 );
+    assertEquals( view.getStringProperty( "Z" ), "1" );
+    assertEquals( view.getJMSMessageID(), compressed.getJMSMessageID() );
+  }
+
+  @Test
+  public void decompressionLimitsBodyLength()
+    throws Exception
+  {
+    final Session session = createSession();
+    final BytesMessage message = session.createBytesMessage();
+    message.writeBytes( new byte[ 1024 * 1024 ] );
+    for( final CompressionFormat format : CompressionFormat.values() )
+    {
+      final Message compressed = MessageTransformer.newCompressingTransformer( format, 0 ).transformMessage( session, message );
+      try
+      {
+        MessageTransformer.newDecompressingTransformer( 1024 * 1024 - 1 ).transformMessage( session, compressed );
+        fail( "Expected decompressed body to exceed maximum length" );
+      }
+      catch( final Exception e )
+      {
+        assertTrue( e.getCause().getMessage().contains( "exceeds maximum length" ), e.getCause().getMessage() );
+      }
+      try
+      {
+        MessageVerifier.newDecompressingVerifier( MessageVerifier.newRegexVerifier( Pattern.compile( ".*" ) ), 1024 ).
+          verifyMessage( compressed );
+        fail( "Expected decompressed body to exceed maximum length" );
+      }
+      catch( final Exception e )
+      {
+        assertTrue( e.getCause().getMessage().contains( "exceeds maximum length" ), e.getCause().getMessage() );
+      }
+      final BytesMessage result =
+        (BytesMessage)MessageTransformer.newDecompressingTransformer( 1024 * 1024 ).transformMessage( session, compressed );
+      result.reset();
+      assertEquals( result.getBodyLength(), 1024 * 1024 );
+    }
+  }
+
+  private static String readString( final ByteBuffer buffer, final int length )
+    throws Exception
+  {
+    final byte[] data = new byte[ length ];
+    buffer.get( data );
+    return new String( data, "US-ASCII" );
+  }
 }
@@ -1,6 +1,9 @@
 package org.realityforge.jml;
 
 import java.net.URL;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.regex.Pattern;
 import javax.jms.Message;
 import javax.jms.TextMessage;
@@ -141,4 +144,100 @@ public class MessageVerifierTestCase
     }
     if( fail ) fail( "Expected to not be able to verify message" );
   }
+
+  @Test
+  public void jsonVerifier()
+    throws Exception
+  {
+    final LinkedHashMap<String, JsonType> fields = new LinkedHashMap<String, JsonType>();
+    fields.put( "id", JsonType.NUMBER );
+    fields.put( "customer.name", JsonType.STRING );
+    fields.put( "customer.address", JsonType.ANY );
+    fields.put( "lines", JsonType.ARRAY );
+    final MessageVerifier verifier = MessageVerifier.newJsonVerifier( fields );
+
+    final String valid =
+      "{\"id\": -1.5e3, \"skipped\": {\"name\": [1, {\"x\": null}]}, " +
+      "\"customer\": {\"name\": \"J\\u00f6e \\\"Q\\\"\", \"address\": null}, \"lines\": [true, false]}";
+    try
+    {
+      verifier.verifyMessage( createSession().createTextMessage( valid ) );
+    }
+    catch( final Exception e )
+    {
+      fail( "Expected to be able to verify message but got " + e );
+    }
+
+    assertFailure( verifier, "{\"id\": 1, \"customer\": {\"name\": \"x\", \"address\": 1}}",
+                   "is missing JSON field lines." );
+    assertFailure( verifier, "{\"id\": \"1\", \"customer\": {}, \"lines\": []}",
+                   "has JSON field id of type STRING but expected NUMBER." );
+    assertFailure( verifier, "{\"id\": 1, \"lines\": [}", "is not valid JSON." );
+    assertFailure( verifier, "{\"id\": 01}", "is not valid JSON." );
+    assertFailure( verifier, "{} {}", "is not valid JSON." );
+  }
+
+  @Test
+  public void xpathVerifier()
+    throws Exception
+  {
+    final LinkedHashMap<String, Pattern> values = new LinkedHashMap<String, Pattern>();
+    values.put( "/order/header/id", Pattern.compile( "\\d+" ) );
+    values.put( "/order/@type", null );
+    values.put( "/order/header/note", Pattern.compile( "axc" ) );
+    values.put( "/order/header/note/text()", Pattern.compile( "a" ) );
+    values.put( "//item[2]/sku", Pattern.compile( "B" ) );
+    values.put( "/*/items/item[@status='held']/sku", Pattern.compile( "B" ) );
+    final MessageVerifier verifier = MessageVerifier.newXPathVerifier( values );
+
+    final String valid =
+      "<order type='retail'><header><id>42</id><note>a<b>x</b>c</note></header>" +
+      "<items><item><sku>A</sku></item><item status='held'><sku>B</sku></item></items></order>";
+    try
+    {
+      verifier.verifyMessage( createSession().createTextMessage( valid ) );
+    }
+    catch( final Exception e )
+    {
+      fail( "Expected to be able to verify message but got " + e );
+    }
+
+    assertFailure( verifier, valid.replace( "type='retail'", "" ), "is missing XML node /order/@type." );
+    assertFailure( verifier, valid.replace( "42", "X" ),
+                   "has a value at /order/header/id that failed to match pattern \"\\d+\"." );
+    assertFailure( verifier, "<order><header>", "is not well-formed XML." );
+
+    // Content after the required nodes is not parsed
+    final MessageVerifier headerVerifier =
+      MessageVerifier.newXPathVerifier( Collections.<String, Pattern>singletonMap( "/order/header/id", null ) );
+    headerVerifier.verifyMessage( createSession().createTextMessage( "<order><header><id>1</id></header><<" ) );
+
+    for( final String path : new String[]{ "order/id", "/p:order", "count(/order)", "/order[0]", "/order/@id/x" } )
+    {
+      try
+      {
+        MessageVerifier.newXPathVerifier( Collections.<String, Pattern>singletonMap( path, null ) );
+        fail( "Expected path " + path + " to be unsupported" );
+      }
+      catch( final ParseException pe )
+      {
+        //Expected
+      }
+    }
+  }
+
+  private void assertFailure( final MessageVerifier verifier, final String text, final String problem )
+    throws Exception
+  {
+    final TextMessage message = createSession().createTextMessage( text );
+    try
+    {
+      verifier.verifyMessage( message );
+      fail( "Expected to not be able to verify " + text );
+    }
+    catch( final Exception e )
+    {
+      assertEquals( e.getMessage(), "Message with ID = " + message.getJMSMessageID() + " " + problem );
+    }
+  }
 }
@@ -0,0 +1,139 @@
+package org.realityforge.jml;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.BytesMessage;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageNotWriteableException;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class MessageViewTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @Test
+  public void textBodyDecodedOnceWhenRead()
+    throws Exception
+  {
+    final Session session = createSession();
+    final TextMessage message = session.createTextMessage( "Hello" );
+    message.setStringProperty( TestHelper.HEADER_KEY, "X" );
+    final AtomicInteger decodeCount = new AtomicInteger();
+    final TextMessage counting = countingGetText( message, decodeCount );
+
+    final TextMessage view = (TextMessage)MessageView.lazyView( counting );
+    assertNotSame( view, counting );
+    assertEquals( view.getStringProperty( TestHelper.HEADER_KEY ), "X" );
+    assertEquals( decodeCount.get(), 0 );
+    assertEquals( view.getText(), "Hello" );
+    assertEquals( view.getText(), "Hello" );
+    assertEquals( decodeCount.get(), 1 );
+
+    assertSame( MessageView.lazyView( view ), view );
+    assertSame( MessageView.unwrap( view ), counting );
+    assertSame( MessageView.unwrap( counting ), counting );
+    try
+    {
+      view.setText( "Changed" );
+      fail( "Expected view to be read-only" );
+    }
+    catch( final MessageNotWriteableException e )
+    {
+      //Expected
+    }
+  }
+
+  @Test
+  public void bytesBodyLeftReadable()
+    throws Exception
+  {
+    final Session session = createSession();
+    final BytesMessage message = session.createBytesMessage();
+    message.writeInt( 42 );
+    message.writeUTF( "Hello" );
+    message.reset();
+
+    final BytesMessage view = (BytesMessage)MessageView.lazyView( message );
+    assertEquals( view.readInt(), 42 );
+    assertEquals( view.readUTF(), "Hello" );
+    assertEquals( view.readBytes( new byte[ 1 ] ), -1 );
+    view.reset();
+    assertEquals( view.readInt(), 42 );
+    assertEquals( view.getBodyLength(), message.getBodyLength() );
+
+    // The underlying message is not consumed by the view
+    assertEquals( message.readInt(), 42 );
+
+    try
+    {
+      view.readLong();
+      fail( "Expected end of body" );
+    }
+    catch( final MessageEOFException e )
+    {
+      //Expected
+    }
+    try
+    {
+      view.writeInt( 1 );
+      fail( "Expected view to be read-only" );
+    }
+    catch( final MessageNotWriteableException e )
+    {
+      //Expected
+    }
+  }
+
+  @Test
+  public void objectBodyRetained()
+    throws Exception
+  {
+    final Session session = createSession();
+    final ObjectMessage message = session.createObjectMessage( "Hello" );
+    final ObjectMessage view = (ObjectMessage)MessageView.lazyView( message );
+    assertEquals( view.getObject(), "Hello" );
+    assertSame( view.getObject(), view.getObject() );
+
+    final Message clone = MessageCloner.cloneMessage( session, view );
+    assertEquals( ( (ObjectMessage)clone ).getObject(), "Hello" );
+
+    final MapMessage mapMessage = session.createMapMessage();
+    assertSame( MessageView.lazyView( mapMessage ), mapMessage );
+  }
+
+  /** Return a message that delegates to the specified message and counts calls to getText. */
+  private static TextMessage countingGetText( final TextMessage message, final AtomicInteger count )
+  {
+    return (TextMessage)Proxy.newProxyInstance( MessageViewTestCase.class.getClassLoader(),
+                                                new Class<?>[]{ TextMessage.class },
+                                                new InvocationHandler()
+                                                {
+                                                  public Object invoke( final Object proxy,
+                                                                        final Method method,
+                                                                        final Object[] args )
+                                                    throws Throwable
+                                                  {
+                                                    if( "getText".equals( method.getName() ) )
+                                                    {
+                                                      count.incrementAndGet();
+                                                    }
+                                                    try
+                                                    {
+                                                      return method.invoke( message, args );
+                                                    }
+                                                    catch( final InvocationTargetException ite )
+                                                    {
+                                                      throw ite.getCause();
+                                                    }
+                                                  }
+                                                } );
+  }
+}
@@ -0,0 +1,205 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class RequestReplyClientTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    RequestReplyClient.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void manyRequestsInFlight()
+    throws Exception
+  {
+    startResponder();
+    final Session session = createSession();
+    final RequestReplyClient client = new RequestReplyClient( getConnection() );
+    client.start();
+
+    final int count = 500;
+    final List<RequestReplyClient.ReplyFuture> futures = new ArrayList<RequestReplyClient.ReplyFuture>();
+    for( int i = 0; i < count; i++ )
+    {
+      futures.add( client.request( ChannelSpec.parseChannelSpec( TestHelper.QUEUE_1_SPEC ),
+                                   session.createTextMessage( "Request-" + i ) ) );
+    }
+
+    final CountDownLatch latch = new CountDownLatch( 1 );
+    final AtomicInteger replies = new AtomicInteger();
+    futures.get( 0 ).setListener( new RequestReplyClient.ReplyListener()
+    {
+      public void onReply( final Message reply )
+      {
+        replies.incrementAndGet();
+        latch.countDown();
+      }
+
+      public void onFailure( final Exception exception )
+      {
+        latch.countDown();
+      }
+    } );
+
+    for( int i = 0; i < count; i++ )
+    {
+      final TextMessage reply = (TextMessage)futures.get( i ).get( 5, TimeUnit.SECONDS );
+      assertEquals( reply.getText(), "Reply-Request-" + i );
+      assertEquals( reply.getJMSCorrelationID(), futures.get( i ).getCorrelationID() );
+    }
+    assertTrue( latch.await( 1, TimeUnit.SECONDS ) );
+    assertEquals( replies.get(), 1 );
+    assertEquals( client.getPendingCount(), 0 );
+
+    client.stop();
+    assertFalse( client.isStarted() );
+  }
+
+  @Test
+  public void requestTimesOutAndCancels()
+    throws Exception
+  {
+    final Session session = createSession();
+    final RequestReplyClient client = new RequestReplyClient( session );
+    client.start();
+
+    // No responder consumes from QUEUE_2
+    final RequestReplyClient.ReplyFuture timedOut =
+      client.request( ChannelSpec.parseChannelSpec( TestHelper.QUEUE_2_SPEC ), session.createTextMessage( "X" ), 50 );
+    final RequestReplyClient.ReplyFuture cancelled =
+      client.request( ChannelSpec.parseChannelSpec( TestHelper.QUEUE_2_SPEC ), session.createTextMessage( "Y" ), 10000 );
+    final RequestReplyClient.ReplyFuture stopped =
+      client.request( ChannelSpec.parseChannelSpec( TestHelper.QUEUE_2_SPEC ), session.createTextMessage( "Z" ), 10000 );
+    assertEquals( client.getPendingCount(), 3 );
+    final CountDownLatch latch = new CountDownLatch( 1 );
+    final AtomicReference<String> listenerThread = new AtomicReference<String>();
+    timedOut.setListener( new RequestReplyClient.ReplyListener()
+    {
+      public void onReply( final Message reply )
+      {
+      }
+
+      public void onFailure( final Exception exception )
+      {
+        listenerThread.set( Thread.currentThread().getName() );
+        latch.countDown();
+      }
+    } );
+
+    try
+    {
+      timedOut.get( 5, TimeUnit.SECONDS );
+      fail( "Expected request to time out" );
+    }
+    catch( final ExecutionException e )
+    {
+      assertTrue( e.getCause() instanceof TimeoutException );
+    }
+    // Listeners of timed out requests are not notified on the timing wheel thread
+    assertTrue( latch.await( 1, TimeUnit.SECONDS ) );
+    assertTrue( listenerThread.get().startsWith( "RequestReplyClient-" ), listenerThread.get() );
+
+    assertTrue( cancelled.cancel( false ) );
+    assertTrue( cancelled.isCancelled() );
+    assertFalse( cancelled.cancel( false ) );
+    assertEquals( client.getPendingCount(), 1 );
+
+    client.stop();
+    assertTrue( stopped.isDone() );
+    try
+    {
+      stopped.get();
+      fail( "Expected request to be cancelled" );
+    }
+    catch( final CancellationException e )
+    {
+      //Expected
+    }
+    assertEquals( client.getPendingCount(), 0 );
+
+    // Drain the requests sent to QUEUE_2
+    final MessageConsumer consumer = session.createConsumer( session.createQueue( TestHelper.QUEUE_2_NAME ) );
+    while( null != consumer.receive( 100 ) )
+    {
+      // Discard
+    }
+  }
+
+  @Test
+  public void transactedSessionRejected()
+    throws Exception
+  {
+    final RequestReplyClient client = new RequestReplyClient( createSession( true, Session.SESSION_TRANSACTED ) );
+    try
+    {
+      client.start();
+      fail( "Expected transacted session to be rejected" );
+    }
+    catch( final IllegalStateException e )
+    {
+      //Expected
+    }
+  }
+
+  @Test
+  public void clientAcknowledgeSessionRejected()
+    throws Exception
+  {
+    final RequestReplyClient client = new RequestReplyClient( createSession( false, Session.CLIENT_ACKNOWLEDGE ) );
+    try
+    {
+      client.start();
+      fail( "Expected client acknowledge session to be rejected" );
+    }
+    catch( final IllegalStateException e )
+    {
+      //Expected
+    }
+    assertFalse( client.isStarted() );
+  }
+
+  private void startResponder()
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( null );
+    session.createConsumer( session.createQueue( TestHelper.QUEUE_1_NAME ) ).setMessageListener( new MessageListener()
+    {
+      public void onMessage( final Message message )
+      {
+        try
+        {
+          final Message reply = session.createTextMessage( "Reply-" + ( (TextMessage)message ).getText() );
+          reply.setJMSCorrelationID( message.getJMSCorrelationID() );
+          producer.send( message.getJMSReplyTo(), reply );
+        }
+        catch( final JMSException e )
+        {
+          throw new IllegalStateException( e );
+        }
+      }
+    } );
+  }
+}
@@ -0,0 +1,97 @@
+package org.realityforge.jml;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.jms.JMSException;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class RetryPolicyTestCase
+{
+  @Test
+  public void exponentialDelay()
+  {
+    final RetryPolicy policy = new RetryPolicy( 10, 100, 1000, 2, 0 );
+    assertEquals( policy.getDelay( 1 ), 100 );
+    assertEquals( policy.getDelay( 2 ), 200 );
+    assertEquals( policy.getDelay( 3 ), 400 );
+    assertEquals( policy.getDelay( 4 ), 800 );
+    assertEquals( policy.getDelay( 5 ), 1000 );
+    assertEquals( policy.getDelay( 9 ), 1000 );
+  }
+
+  @Test
+  public void jitterReducesDelay()
+  {
+    final RetryPolicy policy = new RetryPolicy( 10, 100, 1000, 2, 0.5 );
+    for( int i = 0; i < 100; i++ )
+    {
+      final long delay = policy.getDelay( 2 );
+      assertTrue( delay >= 100 && delay <= 200, "delay = " + delay );
+    }
+  }
+
+  @Test
+  public void shouldRetry()
+  {
+    final RetryPolicy policy = new RetryPolicy( 3, 0, 0, 1, 0, JMSException.class );
+    final Exception retryable = new Exception( "Wrapped", new JMSException( "X" ) );
+    assertTrue( policy.shouldRetry( 1, retryable ) );
+    assertTrue( policy.shouldRetry( 2, retryable ) );
+    assertFalse( policy.shouldRetry( 3, retryable ) );
+    assertFalse( policy.shouldRetry( 1, new IOException() ) );
+    assertFalse( policy.shouldRetry( 1, null ) );
+
+    assertTrue( new RetryPolicy( 3, 0, 0, 1, 0 ).shouldRetry( 1, new IOException() ) );
+  }
+
+  @Test
+  public void failureWithoutExceptionNotRetried()
+  {
+    final RetryPolicy policy = new RetryPolicy( 3, 0, 0, 1, 0 );
+    assertFalse( policy.isRetryable( null ) );
+    assertFalse( policy.shouldRetry( 1, null ) );
+  }
+
+  @Test( expectedExceptions = IllegalArgumentException.class )
+  public void nonThrowableRetryableType()
+  {
+    new RetryPolicy( 3, 0, 0, 1, 0, String.class );
+  }
+
+  @Test
+  public void timingWheelRunsAndCancelsTasks()
+    throws Exception
+  {
+    final TimingWheel wheel = new TimingWheel( "TestWheel", 5, TimeUnit.MILLISECONDS, 4 );
+    try
+    {
+      final CountDownLatch latch = new CountDownLatch( 2 );
+      final Runnable task = new Runnable()
+      {
+        public void run()
+        {
+          latch.countDown();
+        }
+      };
+      final long start = System.nanoTime();
+      final TimingWheel.Timeout first = wheel.schedule( task, 10, TimeUnit.MILLISECONDS );
+      // Longer than a full rotation of the wheel
+      final TimingWheel.Timeout second = wheel.schedule( task, 50, TimeUnit.MILLISECONDS );
+      final TimingWheel.Timeout cancelled = wheel.schedule( task, 20, TimeUnit.MILLISECONDS );
+      assertTrue( cancelled.cancel() );
+
+      assertTrue( latch.await( 1, TimeUnit.SECONDS ) );
+      assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) >= 50 );
+      assertTrue( first.isExpired() );
+      assertTrue( second.isExpired() );
+      assertTrue( cancelled.isCancelled() );
+      assertFalse( first.cancel() );
+    }
+    finally
+    {
+      wheel.stop();
+    }
+  }
+}
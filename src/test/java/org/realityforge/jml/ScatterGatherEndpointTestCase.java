@@ -0,0 +1,234 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class ScatterGatherEndpointTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  private static final String SERVICE_A = "SERVICE_A";
+  private static final String SERVICE_B = "SERVICE_B";
+  private static final String SERVICE_C = "SERVICE_C";
+
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    AbstractMessageEndpoint.LOG.setLevel( Level.OFF );
+    RequestReplyClient.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void gatherAllReplies()
+    throws Exception
+  {
+    startResponder( SERVICE_A, "a" );
+    startResponder( SERVICE_B, "b" );
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME );
+
+    final ScatterGatherEndpoint endpoint = createEndpoint( SERVICE_A, SERVICE_B );
+    endpoint.start( createSession() );
+
+    produceMessages( 3 );
+    final Iterator<Message> messages = collector.expectMessageCount( 3, 2000 ).iterator();
+    for( int i = 0; i < 3; i++ )
+    {
+      final TextMessage message = (TextMessage)messages.next();
+      final String text = message.getText();
+      assertTrue( text.startsWith( "<replies>" ) && text.endsWith( "</replies>" ), text );
+      assertTrue( text.contains( "<a id=\"Message-" + i + "\"/>" ), text );
+      assertTrue( text.contains( "<b id=\"Message-" + i + "\"/>" ), text );
+      assertEquals( message.getIntProperty( TestHelper.HEADER_KEY ), i );
+    }
+    assertEquals( endpoint.getPendingCount(), 0 );
+    endpoint.stop();
+  }
+
+  @Test
+  public void firstNReplies()
+    throws Exception
+  {
+    startResponder( SERVICE_A, "a" );
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME );
+
+    // SERVICE_C has no responder
+    final ScatterGatherEndpoint endpoint = createEndpoint( SERVICE_A, SERVICE_C );
+    endpoint.setCompletion( ScatterGatherEndpoint.Completion.FIRST_N, 1 );
+    endpoint.start( createSession() );
+
+    produceMessages( 1 );
+    final TextMessage message = (TextMessage)collector.expectMessageCount( 1, 2000 ).iterator().next();
+    assertEquals( message.getText(), "<replies><a id=\"Message-0\"/></replies>" );
+    endpoint.stop();
+    drain( SERVICE_C );
+  }
+
+  @Test
+  public void partialRepliesAfterTimeout()
+    throws Exception
+  {
+    startResponder( SERVICE_A, "a" );
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME );
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME );
+
+    final ScatterGatherEndpoint endpoint = createEndpoint( SERVICE_A, SERVICE_C );
+    endpoint.setCompletion( ScatterGatherEndpoint.Completion.TIMEOUT, 0 );
+    endpoint.setTimeout( 200 );
+    endpoint.start( createSession() );
+
+    produceMessages( 1 );
+    collector.expectMessageCount( 0, 100 );
+    final TextMessage message = (TextMessage)collector.expectMessageCount( 1, 2000 ).iterator().next();
+    assertEquals( message.getText(), "<replies><a id=\"Message-0\"/></replies>" );
+    dmqCollector.expectMessageCount( 0 );
+    endpoint.stop();
+    drain( SERVICE_C );
+  }
+
+  @Test
+  public void incompleteRepliesRoutedToDMQ()
+    throws Exception
+  {
+    startResponder( SERVICE_A, "a" );
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME );
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME );
+
+    final ScatterGatherEndpoint endpoint = createEndpoint( SERVICE_A, SERVICE_C );
+    endpoint.setTimeout( 200 );
+    endpoint.start( createSession() );
+
+    produceMessages( 1 );
+    final Message message = dmqCollector.expectMessageCount( 1, 2000 ).iterator().next();
+    assertEquals( message.getIntProperty( TestHelper.HEADER_KEY ), 0 );
+    assertTrue( message.getStringProperty( "JMLFailureReason" ).startsWith( "Received 1 of 2 required replies" ),
+                message.getStringProperty( "JMLFailureReason" ) );
+    collector.expectMessageCount( 0 );
+
+    // Requests awaiting replies are routed to the DMQ when stopped
+    endpoint.stop();
+    endpoint.setTimeout( 10000 );
+    endpoint.start( createSession() );
+    produceMessages( 1 );
+    Thread.sleep( 100 );
+    assertEquals( endpoint.getPendingCount(), 1 );
+    endpoint.stop();
+    dmqCollector.expectMessageCount( 1 );
+    drain( SERVICE_C );
+  }
+
+  @Test
+  public void clientAcknowledgeSessionRejected()
+    throws Exception
+  {
+    final ScatterGatherEndpoint endpoint = createEndpoint( SERVICE_A );
+    try
+    {
+      endpoint.start( createSession( false, Session.CLIENT_ACKNOWLEDGE ) );
+      fail( "Expected client acknowledge session to be rejected" );
+    }
+    catch( final IllegalStateException e )
+    {
+      //Expected
+    }
+    assertFalse( endpoint.isStarted() );
+  }
+
+  @Test
+  public void xmlAggregatorRemovesProlog()
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageAggregator aggregator = MessageAggregator.newXMLAggregator( "replies" );
+    final List<Message> replies = new ArrayList<Message>();
+    replies.add( session.createTextMessage( "\uFEFF <?xml version=\"1.0\"?>\n<!-- c --><?pi x?>\n<a/>" ) );
+    replies.add( session.createTextMessage( "  <b>1</b>" ) );
+    final TextMessage result = (TextMessage)aggregator.aggregate( session, session.createTextMessage(), replies );
+    assertEquals( result.getText(), "<replies><a/><b>1</b></replies>" );
+
+    replies.add( session.createTextMessage( "<!DOCTYPE c><c/>" ) );
+    try
+    {
+      aggregator.aggregate( session, session.createTextMessage(), replies );
+      fail( "Expected document type declaration to be rejected" );
+    }
+    catch( final Exception e )
+    {
+      assertTrue( e.getMessage().endsWith( "has a document type declaration" ) );
+    }
+  }
+
+  private ScatterGatherEndpoint createEndpoint( final String... services )
+  {
+    final ScatterGatherEndpoint endpoint = new ScatterGatherEndpoint();
+    endpoint.setName( "ScatterGather" );
+    endpoint.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    endpoint.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    endpoint.setDmqName( TestHelper.DMQ_NAME );
+    endpoint.setAggregator( MessageAggregator.newXMLAggregator( "replies" ) );
+    for( final String service : services )
+    {
+      endpoint.addRecipient( ChannelSpec.QUEUE_PREFIX + service );
+    }
+    return endpoint;
+  }
+
+  private void startResponder( final String queueName, final String element )
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( null );
+    session.createConsumer( session.createQueue( queueName ) ).setMessageListener( new MessageListener()
+    {
+      public void onMessage( final Message message )
+      {
+        try
+        {
+          final String text = ( (TextMessage)message ).getText();
+          final Message reply =
+            session.createTextMessage( "<?xml version=\"1.0\"?><" + element + " id=\"" + text + "\"/>" );
+          reply.setJMSCorrelationID( message.getJMSCorrelationID() );
+          producer.send( message.getJMSReplyTo(), reply );
+        }
+        catch( final JMSException e )
+        {
+          throw new IllegalStateException( e );
+        }
+      }
+    } );
+  }
+
+  private void produceMessages( final int count )
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( session.createQueue( TestHelper.QUEUE_1_NAME ) );
+    for( int i = 0; i < count; i++ )
+    {
+      final Message message = session.createTextMessage( "Message-" + i );
+      message.setIntProperty( TestHelper.HEADER_KEY, i );
+      producer.send( message );
+    }
+  }
+
+  private void drain( final String queueName )
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageConsumer consumer = session.createConsumer( session.createQueue( queueName ) );
+    while( null != consumer.receive( 100 ) )
+    {
+      // Discard requests that were not replied to
+    }
+  }
+}
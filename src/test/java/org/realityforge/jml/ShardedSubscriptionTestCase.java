@@ -0,0 +1,232 @@
+package org.realityforge.jml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class ShardedSubscriptionTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    ShardedSubscription.LOG.setLevel( Level.OFF );
+    AbstractMessageEndpoint.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void selectorsAreComplementary()
+    throws Exception
+  {
+    final Session session = createSession();
+    final List<Message> messages = new ArrayList<Message>();
+    messages.add( session.createTextMessage() );
+    for( final int bucket : new int[]{ -1, 0, 1, 255, 256, 511, 512, 1000, 1023, 1024, 5000 } )
+    {
+      final Message message = session.createTextMessage();
+      message.setIntProperty( "CustomerShard", bucket );
+      messages.add( message );
+    }
+    for( final int shardCount : new int[]{ 1, 2, 3, 4, 7 } )
+    {
+      for( final Message message : messages )
+      {
+        int matches = 0;
+        for( int i = 0; i < shardCount; i++ )
+        {
+          final String selector = ShardedSubscription.selector( "Customer", i, shardCount );
+          if( null == selector || MessageFilter.compile( selector ).accept( message ) ) matches++;
+        }
+        assertEquals( matches, 1, "Shard count " + shardCount + " message " + message );
+      }
+    }
+    assertEquals( ShardedSubscription.subscriptionName( "Orders", 2, 4 ), "Orders-4-2" );
+  }
+
+  @Test
+  public void bucketIsStableForKey()
+    throws Exception
+  {
+    assertEquals( ShardedSubscription.bucketOf( 42 ), ShardedSubscription.bucketOf( 42L ) );
+    assertEquals( ShardedSubscription.bucketOf( "X-1" ), ShardedSubscription.bucketOf( "X-1" ) );
+
+    final int[] counts = new int[ 4 ];
+    for( int i = 0; i < 4000; i++ )
+    {
+      final int bucket = ShardedSubscription.bucketOf( i );
+      assertTrue( bucket >= 0 && bucket < ShardedSubscription.BUCKET_COUNT );
+      counts[ bucket * 4 / ShardedSubscription.BUCKET_COUNT ]++;
+    }
+    for( final int count : counts )
+    {
+      assertTrue( count > 800, "Unbalanced buckets " + count );
+    }
+
+    final Message message = createSession().createTextMessage();
+    ShardedSubscription.assignShard( message, TestHelper.HEADER_KEY );
+    assertFalse( message.propertyExists( TestHelper.HEADER_KEY + ShardedSubscription.SHARD_PROPERTY_SUFFIX ) );
+    message.setStringProperty( TestHelper.HEADER_KEY, "X-1" );
+    ShardedSubscription.assignShard( message, TestHelper.HEADER_KEY );
+    assertEquals( message.getIntProperty( TestHelper.HEADER_KEY + ShardedSubscription.SHARD_PROPERTY_SUFFIX ),
+                  ShardedSubscription.bucketOf( "X-1" ) );
+  }
+
+  @Test
+  public void rebalanceWithoutLosingMessages()
+    throws Exception
+  {
+    final List<String> received = Collections.synchronizedList( new ArrayList<String>() );
+    createSession().createConsumer( createSession().createQueue( TestHelper.QUEUE_2_NAME ) ).
+      setMessageListener( new MessageListener()
+      {
+        public void onMessage( final Message message )
+        {
+          try
+          {
+            received.add( ( (TextMessage)message ).getText() );
+          }
+          catch( final JMSException e )
+          {
+            throw new IllegalStateException( e );
+          }
+        }
+      } );
+
+    final ShardedSubscription subscription =
+      new ShardedSubscription( getConnection(), "Sharded", TestHelper.TOPIC_1_NAME, TestHelper.HEADER_KEY,
+                               new ShardedSubscription.EndpointFactory()
+                               {
+                                 public AbstractMessageEndpoint createEndpoint( final int shard, final int shardCount )
+                                 {
+                                   final MessageLink link = new MessageLink();
+                                   link.setName( "ShardLink-" + shardCount + "-" + shard );
+                                   link.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+                                   link.setTransformer( new MessageTransformer()
+                                   {
+                                     @Override
+                                     public Message transformMessage( final Session session, final Message message )
+                                       throws Exception
+                                     {
+                                       // Record the subscription that received each key
+                                       return session.createTextMessage(
+                                         message.getStringProperty( TestHelper.HEADER_KEY ) + "@" +
+                                         ShardedSubscription.subscriptionName( "Sharded", shard, shardCount ) );
+                                     }
+                                   } );
+                                   return link;
+                                 }
+                               } );
+    subscription.setShardCount( 2 );
+    subscription.setClockSkewAllowance( 0 );
+    subscription.setDrainTimeouts( 10000, 0 );
+    subscription.start();
+
+    publish( 0, 10 );
+    awaitCount( received, 10 );
+    assertUniqueKeys( received, 10 );
+    assertSubscriptions( received, "Sharded-2-" );
+
+    // Messages published while stopped are retained by the durable subscriptions
+    subscription.stop();
+    received.clear();
+    publish( 10, 10 );
+    subscription.start();
+
+    assertFalse( subscription.rebalance( 3 ) );
+    assertEquals( subscription.getShardCount(), 3 );
+    assertEquals( subscription.getRetiredCount(), 2 );
+
+    publish( 20, 10 );
+    assertTrue( subscription.awaitRetired( 10000 ) );
+    assertEquals( subscription.getRetiredCount(), 0 );
+    awaitCount( received, 20 );
+    assertUniqueKeys( received, 20 );
+    for( final String entry : received )
+    {
+      final int key = Integer.parseInt( entry.substring( 0, entry.indexOf( '@' ) ) );
+      assertTrue( entry.contains( key < 20 ? "@Sharded-2-" : "@Sharded-3-" ), entry );
+    }
+
+    subscription.stop();
+    assertFalse( subscription.isStarted() );
+
+    // Retired subscriptions have been removed and the current subscriptions are retained
+    final Session session = createSession();
+    ShardedSubscription.unsubscribe( session, "Sharded", 3 );
+    try
+    {
+      ShardedSubscription.unsubscribe( session, "Sharded", 2 );
+      fail( "Expected retired subscriptions to have been removed" );
+    }
+    catch( final JMSException e )
+    {
+      //Expected
+    }
+  }
+
+  /** Publish from a separate connection as shards do not receive messages published on their connection. */
+  private static void publish( final int start, final int count )
+    throws Exception
+  {
+    final Connection connection = TestHelper.createConnectionFactory().createConnection();
+    try
+    {
+      final Session session = connection.createSession( false, Session.AUTO_ACKNOWLEDGE );
+      final MessageProducer producer = session.createProducer( session.createTopic( TestHelper.TOPIC_1_NAME ) );
+      for( int i = start; i < start + count; i++ )
+      {
+        final Message message = session.createTextMessage( "Message-" + i );
+        message.setStringProperty( TestHelper.HEADER_KEY, String.valueOf( i ) );
+        ShardedSubscription.assignShard( message, TestHelper.HEADER_KEY );
+        producer.send( message );
+      }
+    }
+    finally
+    {
+      connection.close();
+    }
+  }
+
+  private static void awaitCount( final List<String> received, final int count )
+    throws InterruptedException
+  {
+    final long end = System.currentTimeMillis() + 5000;
+    while( received.size() < count && System.currentTimeMillis() < end )
+    {
+      Thread.sleep( 10 );
+    }
+    Thread.sleep( 100 );
+    assertEquals( received.size(), count, String.valueOf( received ) );
+  }
+
+  private static void assertUniqueKeys( final List<String> received, final int count )
+  {
+    final List<String> keys = new ArrayList<String>();
+    for( final String entry : received )
+    {
+      final String key = entry.substring( 0, entry.indexOf( '@' ) );
+      assertFalse( keys.contains( key ), "Duplicate " + key );
+      keys.add( key );
+    }
+    assertEquals( keys.size(), count );
+  }
+
+  private static void assertSubscriptions( final List<String> received, final String prefix )
+  {
+    for( final String entry : received )
+    {
+      assertTrue( entry.contains( "@" + prefix ), entry );
+    }
+  }
+}
@@ -7,6 +7,7 @@ import java.net.URL;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.broker.BrokerService;
@@ -82,11 +83,15 @@ final class TestHelper
     c_initDepth--;
   }
 
+  static ConnectionFactory createConnectionFactory()
+  {
+    return new ActiveMQConnectionFactory( "vm://" + BROKER_NAME + "?create=false" );
+  }
+
   static Connection createConnection()
     throws JMSException
   {
-    final Connection connection =
-      new ActiveMQConnectionFactory( "vm://" + BROKER_NAME + "?create=false" ).createConnection();
+    final Connection connection = createConnectionFactory().createConnection();
     connection.setClientID( "TestClient" );
     return connection;
   }
@@ -6,12 +6,18 @@ import javax.jms.Session;
 class TestMessageTransformer
   extends MessageTransformer
 {
-  private final boolean _fail;
+  private final int _failureCount;
+  private volatile int _invocationCount;
   private long _lastMessageTime;
 
   TestMessageTransformer( final boolean fail )
   {
-    _fail = fail;
+    this( fail ? Integer.MAX_VALUE : 0 );
+  }
+
+  TestMessageTransformer( final int failureCount )
+  {
+    _failureCount = failureCount;
   }
 
   long getLastMessageTime()
@@ -19,11 +25,17 @@ class TestMessageTransformer
     return _lastMessageTime;
   }
 
+  int getInvocationCount()
+  {
+    return _invocationCount;
+  }
+
   @Override
   public Message transformMessage( final Session session, final Message message ) throws Exception
   {
     _lastMessageTime = System.nanoTime();
-    if( _fail ) throw new Exception();
+    _invocationCount++;
+    if( _invocationCount <= _failureCount ) throw new Exception();
     return message;
   }
 }
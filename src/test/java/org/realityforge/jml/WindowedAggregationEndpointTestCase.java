@@ -0,0 +1,180 @@
+package org.realityforge.jml;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class WindowedAggregationEndpointTestCase
+  extends AbstractBrokerBasedTestCase
+{
+  private static final String VALUE_KEY = "Amount";
+
+  @BeforeTest
+  public void turnOffLogging()
+  {
+    AbstractMessageEndpoint.LOG.setLevel( Level.OFF );
+  }
+
+  @Test
+  public void tumblingWindow()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME );
+    final WindowedAggregationEndpoint endpoint = createEndpoint();
+    endpoint.setWindow( 300, 300 );
+    endpoint.start( createSession() );
+
+    awaitStartOfWindow( 300 );
+    produceMessage( "A", 1 );
+    produceMessage( "A", 2 );
+    produceMessage( "B", 10 );
+    produceMessage( "A", 3 );
+
+    final Map<String, MapMessage> summaries = bySummaryKey( collector.expectMessageCount( 2, 1000 ).iterator() );
+    final MapMessage a = summaries.get( "A" );
+    assertEquals( a.getLong( "count" ), 3 );
+    assertEquals( a.getDouble( "sum" ), 6.0 );
+    assertEquals( a.getDouble( "min" ), 1.0 );
+    assertEquals( a.getDouble( "max" ), 3.0 );
+    assertEquals( a.getLongProperty( WindowedAggregationEndpoint.WINDOW_END_PROPERTY ) -
+                  a.getLongProperty( WindowedAggregationEndpoint.WINDOW_START_PROPERTY ), 300 );
+    assertEquals( a.getLongProperty( WindowedAggregationEndpoint.WINDOW_END_PROPERTY ) % 300, 0 );
+    assertFalse( a.propertyExists( WindowedAggregationEndpoint.WINDOW_COMPLETE_PROPERTY ) );
+    final MapMessage b = summaries.get( "B" );
+    assertEquals( b.getLong( "count" ), 1 );
+    assertEquals( b.getDouble( "sum" ), 10.0 );
+
+    // Empty windows do not produce summaries
+    collector.expectMessageCount( 0, 400 );
+    assertEquals( endpoint.getSummaryCount(), 2 );
+    endpoint.stop();
+  }
+
+  @Test
+  public void slidingWindow()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME );
+    final WindowedAggregationEndpoint endpoint = createEndpoint();
+    endpoint.setWindow( 400, 200 );
+    endpoint.start( createSession() );
+
+    awaitStartOfWindow( 200 );
+    produceMessage( "A", 5 );
+
+    final Iterator<Message> messages = collector.expectMessageCount( 2, 1000 ).iterator();
+    final MapMessage first = (MapMessage)messages.next();
+    final MapMessage second = (MapMessage)messages.next();
+    assertEquals( first.getLong( "count" ), 1 );
+    assertEquals( second.getLong( "count" ), 1 );
+    assertEquals( second.getLongProperty( WindowedAggregationEndpoint.WINDOW_END_PROPERTY ) -
+                  first.getLongProperty( WindowedAggregationEndpoint.WINDOW_END_PROPERTY ), 200 );
+    collector.expectMessageCount( 0, 300 );
+    endpoint.stop();
+  }
+
+  @Test
+  public void openWindowSummarizedWhenStopped()
+    throws Exception
+  {
+    final MessageCollector collector = collectResults( TestHelper.QUEUE_2_NAME );
+    final MessageCollector dmqCollector = collectResults( TestHelper.DMQ_NAME );
+    final WindowedAggregationEndpoint endpoint = createEndpoint();
+    endpoint.setValueProperty( null );
+    endpoint.start( createSession() );
+
+    produceMessage( "A", 1 );
+    produceMessage( "A", 2 );
+    final Session session = createSession();
+    session.createProducer( session.createQueue( TestHelper.QUEUE_1_NAME ) ).send( session.createTextMessage() );
+    dmqCollector.expectMessageCount( 1, 1000 );
+    collector.expectMessageCount( 0 );
+
+    endpoint.stop();
+    final MapMessage summary = (MapMessage)collector.expectMessageCount( 1 ).iterator().next();
+    assertEquals( summary.getStringProperty( TestHelper.HEADER_KEY ), "A" );
+    assertEquals( summary.getLong( "count" ), 2 );
+    assertFalse( summary.itemExists( "sum" ) );
+    assertFalse( summary.getBooleanProperty( WindowedAggregationEndpoint.WINDOW_COMPLETE_PROPERTY ) );
+  }
+
+  @Test
+  public void keyedAggregatesGrowAndMerge()
+  {
+    final KeyedAggregates first = new KeyedAggregates();
+    final KeyedAggregates second = new KeyedAggregates();
+    for( int i = 0; i < 1000; i++ )
+    {
+      first.add( "K" + i, i );
+      second.add( "K" + ( i % 10 ), -i );
+    }
+    first.addAll( second );
+    assertEquals( first.size(), 1000 );
+    int found = 0;
+    for( int i = 0; i < first.capacity(); i++ )
+    {
+      if( "K3".equals( first.keyAt( i ) ) )
+      {
+        found++;
+        assertEquals( first.countAt( i ), 101 );
+        assertEquals( first.minAt( i ), -993.0 );
+        assertEquals( first.maxAt( i ), 3.0 );
+      }
+    }
+    assertEquals( found, 1 );
+    first.clear();
+    assertEquals( first.size(), 0 );
+    first.add( "K3", 1 );
+    assertEquals( first.size(), 1 );
+  }
+
+  private WindowedAggregationEndpoint createEndpoint()
+  {
+    final WindowedAggregationEndpoint endpoint = new WindowedAggregationEndpoint();
+    endpoint.setName( "Windowed" );
+    endpoint.setSourceChannel( TestHelper.QUEUE_1_SPEC, null, null );
+    endpoint.setDestinationChannel( TestHelper.QUEUE_2_SPEC );
+    endpoint.setDmqName( TestHelper.DMQ_NAME );
+    endpoint.setKeyProperty( TestHelper.HEADER_KEY );
+    endpoint.setValueProperty( VALUE_KEY );
+    return endpoint;
+  }
+
+  /** Wait until shortly after the start of a window so the messages fall within one window. */
+  private static void awaitStartOfWindow( final long slide )
+    throws InterruptedException
+  {
+    Thread.sleep( slide - System.currentTimeMillis() % slide + 20 );
+  }
+
+  private static Map<String, MapMessage> bySummaryKey( final Iterator<Message> messages )
+    throws Exception
+  {
+    final Map<String, MapMessage> summaries = new HashMap<String, MapMessage>();
+    while( messages.hasNext() )
+    {
+      final MapMessage message = (MapMessage)messages.next();
+      summaries.put( message.getStringProperty( TestHelper.HEADER_KEY ), message );
+    }
+    return summaries;
+  }
+
+  private void produceMessage( final String key, final int value )
+    throws Exception
+  {
+    final Session session = createSession();
+    final MessageProducer producer = session.createProducer( session.createQueue( TestHelper.QUEUE_1_NAME ) );
+    final Message message = session.createTextMessage();
+    message.setStringProperty( TestHelper.HEADER_KEY, key );
+    message.setIntProperty( VALUE_KEY, value );
+    producer.send( message );
+  }
+}